@@ -21,11 +21,13 @@ import com.google.copybara.config.Config;
 import com.google.copybara.config.ConfigFile;
 import com.google.copybara.config.SkylarkParser;
 import com.google.copybara.config.SkylarkParser.ConfigWithDependencies;
+import com.google.copybara.config.StarlarkFileCache;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.profiler.Profiler.ProfilerTask;
 import com.google.copybara.util.console.Console;
 import java.io.IOException;
+import javax.annotation.Nullable;
 
 /**
  * Loads the configuration from a given config file.
@@ -37,8 +39,16 @@ public class ConfigLoader {
   private final ModuleSet moduleSet;
 
   public ConfigLoader(ModuleSet moduleSet, ConfigFile configFile) {
+    this(moduleSet, configFile, /*fileCache=*/ null);
+  }
+
+  /**
+   * @param fileCache if not null, config files are only parsed again if their content changed
+   */
+  public ConfigLoader(ModuleSet moduleSet, ConfigFile configFile,
+      @Nullable StarlarkFileCache fileCache) {
     this.moduleSet = moduleSet;
-    this.skylarkParser = new SkylarkParser(this.moduleSet.getStaticModules());
+    this.skylarkParser = new SkylarkParser(this.moduleSet.getStaticModules(), fileCache);
     this.configFile = Preconditions.checkNotNull(configFile);
   }
 
@@ -141,7 +141,18 @@ public final class GeneralOptions implements Option {
    * Returns current working directory
    */
   public Path getCwd() {
-    return fileSystem.getPath(environment.get("PWD"));
+    String pwd = environment.get("PWD");
+    // Not set if not started from a shell
+    return pwd == null ? fileSystem.getPath("").toAbsolutePath() : fileSystem.getPath(pwd);
+  }
+
+  /**
+   * Returns the {@link Path} of a flag value. Relative paths are resolved against {@link
+   * #getCwd()}, which is not the working directory of the JVM for the requests of the 'server'
+   * subcommand.
+   */
+  public Path resolvePath(String path) {
+    return getCwd().resolve(fileSystem.getPath(path));
   }
 
   /**
@@ -150,7 +161,7 @@ public final class GeneralOptions implements Option {
   @Nullable
   public Path getConfigRoot() throws ValidationException {
     if (configRootPath == null && this.configRoot != null) {
-      configRootPath = fileSystem.getPath(this.configRoot).toAbsolutePath();
+      configRootPath = resolvePath(this.configRoot).toAbsolutePath();
       checkCondition(Files.exists(configRootPath), "%s doesn't exist", configRoot);
       checkCondition(Files.isDirectory(configRootPath), "%s isn't a directory", configRoot);
     }
@@ -167,7 +178,7 @@ public final class GeneralOptions implements Option {
   @Nullable
   public Path getOutputRoot() {
     if (outputRootPath == null && this.outputRoot != null) {
-      outputRootPath = fileSystem.getPath(this.outputRoot);
+      outputRootPath = resolvePath(this.outputRoot);
     }
     return outputRootPath;
   }
@@ -181,6 +192,15 @@ public final class GeneralOptions implements Option {
     return outputLimit > 0 ? outputLimit : Integer.MAX_VALUE;
   }
 
+  /**
+   * Returns the path where the profiler should write a Chrome trace of the run, or null if not
+   * set.
+   */
+  @Nullable
+  public Path getProfileTracePath() {
+    return profileTrace == null ? null : resolvePath(profileTrace);
+  }
+
   public Profiler profiler() {
     return profiler;
   }
@@ -321,6 +341,13 @@ public final class GeneralOptions implements Option {
               + "flag differently. Defaults to 0, which shows all the output.")
   int outputLimit = 0;
 
+  @Parameter(
+      names = "--profile-trace",
+      description = "If set, write a trace of the profiled tasks in Chrome trace_event format"
+          + " (Loadable in chrome://tracing) to the given file path, and log a summary of the"
+          + " latencies of each kind of task at the end of the run.")
+  String profileTrace = null;
+
   @Parameter(
       names = "--nocleanup",
       description =
@@ -17,63 +17,210 @@
 package com.google.copybara;
 
 import com.google.common.base.Preconditions;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.flogger.FluentLogger;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.treestate.TreeState.FileState;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import javax.annotation.Nullable;
 
 /**
  * A class that allows to run a list of things in parallel batches.
+ *
+ * <p>Elements are split in small batches of similar weight (for example the size of the files) that
+ * are run in a work-stealing {@link ForkJoinPool}, so that a few big elements don't delay the whole
+ * execution. The pool is shared by all the callers and is created on first use.
  */
-public class LocalParallelizer {
+public class LocalParallelizer implements AutoCloseable {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /**
+   * Number of batches per thread that we try to create. Bigger values make the load more even
+   * between threads at the cost of more {@link TransformFunc#run} calls.
+   */
+  private static final int BATCHES_PER_THREAD = 8;
+
+  /**
+   * Fixed cost of processing an element, in weight units, so that lots of small (or empty) files
+   * are also split between threads.
+   */
+  private static final long ELEMENT_OVERHEAD = 4096;
+
+  /**
+   * Weights {@link FileState}s by the file size recorded in the tree state, so that the files are
+   * not read before running in parallel. Files with an unknown size only weight the element
+   * overhead.
+   */
+  public static final ToLongFunction<FileState> FILE_SIZE = FileState::getKnownSize;
 
   private final int threads;
   private final int minSize;
-  private final ListeningExecutorService executor;
+  @Nullable private ForkJoinPool pool;
 
   public LocalParallelizer(int threads, int minSize) {
     this.threads = threads;
     this.minSize = minSize;
     Preconditions.checkState(threads >= 1, "Threads need to be positive");
     Preconditions.checkState(threads < 1000, "Too many threads (max: 1000)");
-    executor = threads == 1
-        ? null
-        : MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads));
   }
 
   /**
-   * Run a list of things in batches, calling {@code func} for each batch.
+   * Run a list of things in batches, calling {@code func} for each batch. All the elements are
+   * considered to have the same weight.
    */
   public <K, V> List<V> run(Iterable<K> list, TransformFunc<K, V> func)
       throws IOException, ValidationException {
+    return run(list, func, e -> 0);
+  }
+
+  /**
+   * Run a list of things in batches, calling {@code func} for each batch. Batches are created so
+   * that they have a similar total {@code weigher} weight.
+   *
+   * <p>The results are returned in the same order as the elements in {@code list}.
+   */
+  public <K, V> List<V> run(Iterable<K> list, TransformFunc<K, V> func,
+      ToLongFunction<? super K> weigher) throws IOException, ValidationException {
     if (threads == 1 || Iterables.size(list) < minSize) {
       return ImmutableList.of(func.run(list));
     }
-    List<ListenableFuture<V>> results = new ArrayList<>(threads);
-    List<K> newList = Lists.newArrayList(list);
-    for (List<K> batch : Lists.partition(newList, Math.max(1, newList.size() / threads))) {
-      results.add(executor.submit(() -> func.run(batch)));
+    List<K> elements = Lists.newArrayList(list);
+    long[] cumulativeWeight = new long[elements.size() + 1];
+    for (int i = 0; i < elements.size(); i++) {
+      cumulativeWeight[i + 1] = cumulativeWeight[i]
+          + Math.max(0, weigher.applyAsLong(elements.get(i))) + ELEMENT_OVERHEAD;
     }
+    long batchWeight = Math.max(1,
+        cumulativeWeight[elements.size()] / ((long) threads * BATCHES_PER_THREAD));
+
     try {
-      return Futures.allAsList(results).get();
+      return getPool()
+          .submit(new BatchTask<>(elements, cumulativeWeight, batchWeight, 0, elements.size(),
+              func))
+          .get();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
-      //TODO We cannot do much here. We might expose InterruptedException all the way up to Main...
       throw new RuntimeException("Interrupted", e);
     } catch (ExecutionException e) {
-      Throwables.propagateIfPossible(e.getCause(), IOException.class, ValidationException.class);
+      // ForkJoinPool might wrap the exception again when rethrowing it in a different thread.
+      for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+        if (cause instanceof BatchException) {
+          Throwable original = cause.getCause();
+          if (original instanceof IOException) {
+            throw (IOException) original;
+          }
+          throw (ValidationException) original;
+        }
+      }
       throw new RuntimeException("Unhandled error", e.getCause());
+    }
+  }
+
+  private synchronized ForkJoinPool getPool() {
+    if (pool == null) {
+      pool = new ForkJoinPool(threads, p -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+        thread.setName("copybara-parallelizer-" + thread.getPoolIndex());
+        return thread;
+      }, /*handler=*/null, /*asyncMode=*/false);
+    }
+    return pool;
+  }
+
+  /**
+   * Shuts down the thread pool, if it was created. Pending batches are allowed to finish.
+   */
+  @Override
+  public synchronized void close() {
+    if (pool == null) {
+      return;
+    }
+    pool.shutdown();
+    try {
+      if (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+        logger.atWarning().log("Parallelizer threads didn't finish in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    pool = null;
+  }
+
+  /**
+   * Runs the elements in [from, to). If the weight is bigger than the batch weight, it splits the
+   * range in two halves of similar weight and forks one of them, so that idle threads can steal it.
+   */
+  private static final class BatchTask<K, V> extends RecursiveTask<List<V>> {
+
+    private final List<K> elements;
+    private final long[] cumulativeWeight;
+    private final long batchWeight;
+    private final int from;
+    private final int to;
+    private final TransformFunc<K, V> func;
+
+    private BatchTask(List<K> elements, long[] cumulativeWeight, long batchWeight, int from,
+        int to, TransformFunc<K, V> func) {
+      this.elements = elements;
+      this.cumulativeWeight = cumulativeWeight;
+      this.batchWeight = batchWeight;
+      this.from = from;
+      this.to = to;
+      this.func = func;
+    }
+
+    @Override
+    protected List<V> compute() {
+      if (to - from <= 1 || cumulativeWeight[to] - cumulativeWeight[from] <= batchWeight) {
+        try {
+          return ImmutableList.of(func.run(elements.subList(from, to)));
+        } catch (IOException | ValidationException e) {
+          throw new BatchException(e);
+        }
+      }
+      int middle = split();
+      BatchTask<K, V> right =
+          new BatchTask<>(elements, cumulativeWeight, batchWeight, middle, to, func);
+      right.fork();
+      List<V> result = new ArrayList<>(
+          new BatchTask<>(elements, cumulativeWeight, batchWeight, from, middle, func).compute());
+      result.addAll(right.join());
+      return result;
+    }
+
+    /** Finds the index that splits the range in two halves of similar weight. */
+    private int split() {
+      long half = cumulativeWeight[from] + (cumulativeWeight[to] - cumulativeWeight[from]) / 2;
+      int low = from + 1;
+      int high = to - 1;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (cumulativeWeight[mid] < half) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+
+  /** Wraps the checked exceptions thrown by {@link TransformFunc} inside the pool. */
+  private static final class BatchException extends RuntimeException {
 
+    private BatchException(Exception cause) {
+      super(cause);
     }
   }
 
@@ -35,6 +35,7 @@ import com.google.copybara.MainArguments.CommandWithArgs;
 import com.google.copybara.config.ConfigValidator;
 import com.google.copybara.config.Migration;
 import com.google.copybara.config.PathBasedConfigFile;
+import com.google.copybara.config.StarlarkFileCache;
 import com.google.copybara.exception.CommandLineException;
 import com.google.copybara.exception.EmptyChangeException;
 import com.google.copybara.exception.RepoException;
@@ -44,14 +45,18 @@ import com.google.copybara.profiler.ConsoleProfilerListener;
 import com.google.copybara.profiler.Listener;
 import com.google.copybara.profiler.LogProfilerListener;
 import com.google.copybara.profiler.Profiler;
+import com.google.copybara.profiler.TraceProfilerListener;
 import com.google.copybara.util.ExitCode;
+import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.console.AnsiConsole;
 import com.google.copybara.util.console.Console;
 import com.google.copybara.util.console.FileConsole;
 import com.google.copybara.util.console.LogConsole;
 import com.google.devtools.build.lib.syntax.EvalException;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
@@ -60,6 +65,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
@@ -88,6 +94,10 @@ public class Main {
   protected JCommander jCommander;
 
   private Console console;
+  // True if this instance runs a request of the server mode
+  private boolean serverRequest = false;
+  // Parsed config files shared by the requests of the server mode. Null if not a server.
+  @Nullable private StarlarkFileCache configFileCache = null;
 
   public Main() {
     this(System.getenv());
@@ -129,6 +139,61 @@ public class Main {
     return result.exitCode;
   }
 
+  /**
+   * Returns a new instance for running a request of the server mode. Requests run in parallel, so
+   * each one needs its own instance.
+   */
+  protected Main newMainForServerRequest(Map<String, String> environment) {
+    return new Main(environment);
+  }
+
+  /**
+   * Runs a request of the server mode. Like a regular invocation, it has its own options, modules
+   * and configuration, but the logging is already configured by the server.
+   *
+   * <p>The request runs with the environment and the working directory of the client (relative
+   * paths are resolved with {@link GeneralOptions#getCwd()}) if it sends them.
+   */
+  private ExitCode runServerRequest(String[] args, @Nullable Map<String, String> requestEnvironment,
+      @Nullable String cwd, PrintStream output) {
+    Map<String, String> environment =
+        new HashMap<>(requestEnvironment != null ? requestEnvironment : this.environment);
+    if (cwd != null) {
+      environment.put("PWD", cwd);
+    }
+    Main main = newMainForServerRequest(environment);
+    main.serverRequest = true;
+    synchronized (this) {
+      if (configFileCache == null) {
+        configFileCache = new StarlarkFileCache();
+      }
+      main.configFileCache = configFileCache;
+    }
+    main.console = LogConsole.writeOnlyConsole(output, isVerbose(args));
+    logger.atInfo().log("Running server request: %s", Joiner.on(' ').join(args));
+    CommandResult result = main.runInternal(args, main.console, FileSystems.getDefault());
+    try {
+      main.shutdown(result);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      main.handleUnexpectedError(main.console, "Execution was interrupted.", args, e);
+    }
+    // The output directory is not cleaned for each request, so at least remove the workdir
+    CommandEnv commandEnv = result.getCommandEnv();
+    if (commandEnv != null) {
+      GeneralOptions generalOptions = commandEnv.getOptions().get(GeneralOptions.class);
+      if (!generalOptions.isNoCleanup()
+          && commandEnv.getWorkdir().startsWith(generalOptions.getDirFactory().getTmpRoot())) {
+        try {
+          FileUtil.deleteRecursively(commandEnv.getWorkdir());
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("Cannot delete %s", commandEnv.getWorkdir());
+        }
+      }
+    }
+    return result.exitCode;
+  }
+
   /** Helper to find out about verbose output before JCommander has been initialized .*/
   protected static boolean isVerbose(String[] args) {
     return Arrays.stream(args).anyMatch(s -> s.equals("-v") || s.equals("--verbose"));
@@ -286,12 +351,17 @@ public class Main {
       throws CommandLineException {
     ConfigValidator validator = getConfigValidator(moduleSet.getOptions());
     Consumer<Migration> consumer = getMigrationRanConsumer();
-    return ImmutableSet.of(
-        new MigrateCmd(validator, consumer, configLoaderProvider),
-        new InfoCmd(configLoaderProvider, newInfoContextProvider()),
-        new ValidateCmd(validator, consumer, configLoaderProvider),
-        new HelpCmd(jcommander),
-        new VersionCmd());
+    ImmutableSet.Builder<CopybaraCmd> commands = ImmutableSet.<CopybaraCmd>builder()
+        .add(new MigrateCmd(validator, consumer, configLoaderProvider))
+        .add(new InfoCmd(configLoaderProvider, newInfoContextProvider()))
+        .add(new ValidateCmd(validator, consumer, configLoaderProvider))
+        .add(new HelpCmd(jcommander))
+        .add(new VersionCmd());
+    // Don't allow starting a server from a server request
+    if (!serverRequest) {
+      commands.add(new ServerCmd(this::runServerRequest));
+    }
+    return commands.build();
   }
 
   /**
@@ -327,7 +397,8 @@ public class Main {
     GeneralOptions generalOptions = moduleSet.getOptions().get(GeneralOptions.class);
     return (configPath, sourceRef) -> new ConfigLoader(moduleSet,
         createConfigFileWithHeuristic(validateLocalConfig(generalOptions, configPath),
-            generalOptions.getConfigRoot()));
+            generalOptions.getConfigRoot()),
+        configFileCache);
   }
 
   protected ContextProvider newInfoContextProvider() {
@@ -342,7 +413,10 @@ public class Main {
    */
   protected Path validateLocalConfig(GeneralOptions generalOptions, String configLocation)
       throws ValidationException {
-    Path configPath = generalOptions.getFileSystem().getPath(configLocation).normalize();
+    // Server requests don't run in the working directory of the JVM
+    Path configPath = (serverRequest
+        ? generalOptions.resolvePath(configLocation)
+        : generalOptions.getFileSystem().getPath(configLocation)).normalize();
     String fileName = configPath.getFileName().toString();
     checkCondition(
         fileName.contentEquals(COPYBARA_SKYLARK_CONFIG_FILENAME),
@@ -449,6 +523,9 @@ public class Main {
     ImmutableList.Builder<Listener> profilerListeners = ImmutableList.builder();
     profilerListeners.add(
         new LogProfilerListener(), new ConsoleProfilerListener(generalOptions.console()));
+    if (generalOptions.getProfileTracePath() != null) {
+      profilerListeners.add(new TraceProfilerListener(generalOptions.getProfileTracePath()));
+    }
     profiler.init(profilerListeners.build());
     cleanupOutputDir(generalOptions);
   }
@@ -459,7 +536,9 @@ public class Main {
         .ioRepoTask(
             "clean_outputdir",
             () -> {
-              if (generalOptions.isNoCleanup()) {
+              // Requests of the server mode run in parallel and share the output directory. It
+              // is cleaned once when the server starts.
+              if (generalOptions.isNoCleanup() || serverRequest) {
                 return null;
               }
               generalOptions.console().progress("Cleaning output directory");
@@ -482,6 +561,19 @@ public class Main {
     if (profiler != null) {
       profiler.stop();
     }
+    if (result.getCommandEnv() != null) {
+      result.getCommandEnv().getOptions().get(WorkflowOptions.class).shutdownParallelizer();
+      // Options can hold resources for the command, like long-lived git processes.
+      for (Option option : result.getCommandEnv().getOptions().getAll()) {
+        if (option instanceof Closeable) {
+          try {
+            ((Closeable) option).close();
+          } catch (IOException e) {
+            logger.atWarning().withCause(e).log("Cannot close %s", option);
+          }
+        }
+      }
+    }
   }
 
   /**
@@ -27,10 +27,17 @@ import javax.annotation.Nullable;
 public class MigrationInfo {
   @Nullable private final String originLabel;
   @Nullable private final ChangeVisitable<?> destinationVisitable;
+  @Nullable private final String destinationId;
 
   public MigrationInfo(String originLabel, ChangeVisitable<?> destinationVisitable) {
+    this(originLabel, destinationVisitable, /*destinationId=*/ null);
+  }
+
+  public MigrationInfo(String originLabel, ChangeVisitable<?> destinationVisitable,
+      @Nullable String destinationId) {
     this.originLabel = originLabel;
     this.destinationVisitable = destinationVisitable;
+    this.destinationId = destinationId;
   }
 
   public String getOriginLabel() {
@@ -41,4 +48,13 @@ public class MigrationInfo {
   public ChangeVisitable<?> destinationVisitable() {
     return destinationVisitable;
   }
+
+  /**
+   * A stable identifier of the destination being written, that can be used to persist information
+   * about the destination history between runs. Null if unknown.
+   */
+  @Nullable
+  public String getDestinationId() {
+    return destinationId;
+  }
 }
@@ -85,7 +85,7 @@ public class ModuleSupplier {
             options.get(FolderDestinationOptions.class),
             general),
         new PatchModule(options.get(PatchingOptions.class)),
-        new MetadataModule(),
+        new MetadataModule(general),
         new Authoring.Module());
   }
 
@@ -111,7 +111,8 @@ public class ModuleSupplier {
         new HgOriginOptions(),
         new PatchingOptions(generalOptions),
         new WorkflowOptions(),
-        new DebugOptions(generalOptions)));
+        new DebugOptions(generalOptions),
+        new ServerOptions()));
   }
 
   /**
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A thin client that forwards its command line to a Copybara server (see {@link ServerCmd})
+ * listening on the loopback interface, and exits with the exit code of the request.
+ *
+ * <p>Usage: {@code copybara_client --server-port=PORT [--server-token-file=FILE]
+ * [copybara args...]}
+ *
+ * <p>The request includes the token that the server wrote to its token file. By default the file
+ * is {@code $HOME/copybara/server/PORT.token}.
+ *
+ * <p>The request runs with the working directory and the environment of the client, so relative
+ * paths in the arguments are resolved like in a regular invocation.
+ */
+public final class ServerClient {
+
+  private static final String PORT_FLAG = "--server-port=";
+  private static final String TOKEN_FILE_FLAG = "--server-token-file=";
+  private static final int ENVIRONMENT_ERROR = 30;
+
+  private ServerClient() {}
+
+  public static void main(String[] args) {
+    if (args.length == 0 || !args[0].startsWith(PORT_FLAG)) {
+      System.err.println("Usage: copybara_client " + PORT_FLAG + "PORT [" + TOKEN_FILE_FLAG
+          + "FILE] [copybara args...]");
+      System.exit(ENVIRONMENT_ERROR);
+    }
+    int port = Integer.parseInt(args[0].substring(PORT_FLAG.length()));
+    int first = 1;
+    Path tokenFile;
+    if (args.length > 1 && args[1].startsWith(TOKEN_FILE_FLAG)) {
+      tokenFile = Paths.get(args[1].substring(TOKEN_FILE_FLAG.length()));
+      first = 2;
+    } else {
+      // Same as the server, that uses $HOME
+      String home = System.getenv("HOME");
+      if (home == null) {
+        System.err.println("$HOME is not set. Use " + TOKEN_FILE_FLAG + "FILE");
+        System.exit(ENVIRONMENT_ERROR);
+      }
+      tokenFile = defaultTokenFile(Paths.get(home), port);
+    }
+    Request request = new Request(
+        ImmutableList.copyOf(Arrays.asList(args).subList(first, args.length)),
+        Paths.get("").toAbsolutePath().toString(),
+        System.getenv());
+    try {
+      request.token = new String(Files.readAllBytes(tokenFile), UTF_8).trim();
+      Response response = send(port, request);
+      System.err.print(response.output);
+      System.exit(response.exitCode);
+    } catch (IOException e) {
+      System.err.println("Error talking to the Copybara server on port " + port + ": " + e);
+      System.exit(ENVIRONMENT_ERROR);
+    }
+  }
+
+  /** The token file of a server listening on {@code port}, if not set with a flag. */
+  static Path defaultTokenFile(Path home, int port) {
+    return home.resolve("copybara").resolve("server").resolve(port + ".token");
+  }
+
+  private static Response send(int port, Request request) throws IOException {
+    Gson gson = new Gson();
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      Writer writer = new OutputStreamWriter(socket.getOutputStream(), UTF_8);
+      writer.write(gson.toJson(request));
+      writer.write('\n');
+      writer.flush();
+      socket.shutdownOutput();
+      String line = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8))
+          .readLine();
+      if (line == null) {
+        throw new IOException("The server closed the connection without a response");
+      }
+      return gson.fromJson(line, Response.class);
+    }
+  }
+
+  private static class Request {
+    private final List<String> args;
+    private final String cwd;
+    private final Map<String, String> env;
+    private String token;
+
+    private Request(List<String> args, String cwd, Map<String, String> env) {
+      this.args = args;
+      this.cwd = cwd;
+      this.env = env;
+    }
+  }
+
+  private static class Response {
+    @SerializedName("exit_code") private int exitCode;
+    private String output;
+  }
+}
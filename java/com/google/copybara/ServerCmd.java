@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.beust.jcommander.Parameters;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.copybara.exception.CommandLineException;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.util.ExitCode;
+import com.google.copybara.util.console.Console;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
+
+/**
+ * Runs Copybara as a long-running process that executes the commands that it receives as JSON
+ * lines, from the standard input or from a port on the loopback interface.
+ *
+ * <p>Each request runs like a regular invocation, with its own options, modules, configuration and
+ * console, so requests can run in parallel. What the requests share is the JVM (so that we don't
+ * pay for the startup and the JIT warmup on every invocation) and the repository caches.
+ *
+ * <p>A request looks like {@code {"id": "1", "args": ["migrate", "copy.bara.sky", "default"],
+ * "cwd": "/path/to/dir", "env": {"HOME": "/home/user", ...}}} and its response like {@code {"id":
+ * "1", "exit_code": 0, "output": "..."}}. Responses are written in the order that the requests
+ * finish. The optional {@code "cwd"} and {@code "env"} are the working directory and the
+ * environment of the request, and default to the ones of the server.
+ *
+ * <p>Requests received on the port also need a {@code "token"} with the content of a file that
+ * the server creates when it starts, only readable by the user that runs it.
+ */
+@Parameters(separators = "=",
+    commandDescription = "Runs Copybara as a server that executes the commands received as JSON"
+        + " lines.")
+public class ServerCmd implements CopybaraCmd {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+  /** Runs the Copybara command line {@code args}, writing the console output to {@code output}. */
+  public interface RequestRunner {
+
+    /**
+     * @param environment the environment of the request, or null for the one of the server
+     * @param cwd the absolute working directory of the request, or null for the one of the server
+     */
+    ExitCode run(String[] args, @Nullable Map<String, String> environment, @Nullable String cwd,
+        PrintStream output);
+  }
+
+  private final RequestRunner runner;
+
+  public ServerCmd(RequestRunner runner) {
+    this.runner = Preconditions.checkNotNull(runner);
+  }
+
+  @Override
+  public ExitCode run(CommandEnv commandEnv)
+      throws ValidationException, IOException {
+    if (!commandEnv.getArgs().isEmpty()) {
+      throw new CommandLineException("'server' subcommand doesn't take arguments");
+    }
+    ServerOptions serverOptions = commandEnv.getOptions().get(ServerOptions.class);
+    Console console = commandEnv.getOptions().get(GeneralOptions.class).console();
+    ExecutorService executor = Executors.newFixedThreadPool(serverOptions.threads);
+    try {
+      if (serverOptions.port == null) {
+        console.info("Reading requests from the standard input");
+        serve(System.in, System.out, executor, /*token=*/ null);
+        return ExitCode.SUCCESS;
+      }
+      try (ServerSocket serverSocket =
+          new ServerSocket(serverOptions.port, /*backlog=*/ 50, InetAddress.getLoopbackAddress())) {
+        Path tokenFile = tokenFile(commandEnv, serverOptions, serverSocket.getLocalPort());
+        // Any local user can connect to the port, so requests need to include the token that only
+        // this user can read.
+        String token = createTokenFile(tokenFile);
+        console.infoFmt("Listening on %s. The token is in %s",
+            serverSocket.getLocalSocketAddress(), tokenFile);
+        try {
+          while (true) {
+            Socket socket = serverSocket.accept();
+            Thread connection = new Thread(() -> {
+              try (Socket ignore = socket) {
+                serve(socket.getInputStream(), socket.getOutputStream(), executor, token);
+              } catch (IOException | RuntimeException e) {
+                logger.atWarning().withCause(e).log("Error serving connection");
+              }
+            }, "copybara-server-connection");
+            connection.setDaemon(true);
+            connection.start();
+          }
+        } finally {
+          Files.deleteIfExists(tokenFile);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static Path tokenFile(CommandEnv commandEnv, ServerOptions serverOptions, int port)
+      throws ValidationException {
+    if (serverOptions.tokenFile != null) {
+      return Paths.get(serverOptions.tokenFile);
+    }
+    String home = commandEnv.getOptions().get(GeneralOptions.class).getEnvironment().get("HOME");
+    ValidationException.checkCondition(home != null,
+        "$HOME environment var is not set. Use --server-token-file");
+    return ServerClient.defaultTokenFile(Paths.get(home), port);
+  }
+
+  /**
+   * Writes a new random token to {@code tokenFile}, only readable and writable by the user, and
+   * returns it.
+   */
+  @VisibleForTesting
+  static String createTokenFile(Path tokenFile) throws IOException {
+    byte[] bytes = new byte[32];
+    new SecureRandom().nextBytes(bytes);
+    String token = BaseEncoding.base16().lowerCase().encode(bytes);
+    Path dir = tokenFile.toAbsolutePath().getParent();
+    if (!Files.isDirectory(dir)) {
+      Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(
+          PosixFilePermissions.fromString("rwx------")));
+    }
+    // The permissions are set when the file is created, so the token is never readable by others
+    Path tmp = Files.createTempFile(dir, tokenFile.getFileName().toString(), ".tmp",
+        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    Files.write(tmp, token.getBytes(UTF_8));
+    Files.move(tmp, tokenFile, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    return token;
+  }
+
+  /**
+   * Reads requests until the end of {@code in} and writes their responses to {@code out}. Returns
+   * when all the responses have been written.
+   *
+   * @param token if not null, requests without this token are rejected
+   */
+  @VisibleForTesting
+  void serve(InputStream in, OutputStream out, ExecutorService executor, @Nullable String token)
+      throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+    Writer writer = new OutputStreamWriter(out, UTF_8);
+    List<Future<?>> pending = new ArrayList<>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      Request request;
+      try {
+        request = GSON.fromJson(line, Request.class);
+      } catch (JsonParseException e) {
+        write(writer, new Response(/*id=*/ null, ExitCode.COMMAND_LINE_ERROR,
+            "Invalid request: " + e.getMessage()));
+        continue;
+      }
+      // 'null' and other JSON values that are not objects
+      if (request == null) {
+        write(writer, new Response(/*id=*/ null, ExitCode.COMMAND_LINE_ERROR,
+            "Invalid request: a JSON object is required"));
+        continue;
+      }
+      if (token != null && (request.token == null || !MessageDigest.isEqual(
+          request.token.getBytes(UTF_8), token.getBytes(UTF_8)))) {
+        write(writer, new Response(request.id, ExitCode.COMMAND_LINE_ERROR,
+            "Invalid request: missing or wrong 'token'"));
+        continue;
+      }
+      String error = validate(request);
+      if (error != null) {
+        write(writer, new Response(request.id, ExitCode.COMMAND_LINE_ERROR,
+            "Invalid request: " + error));
+        continue;
+      }
+      pending.add(executor.submit(() -> {
+        write(writer, handle(request));
+        return null;
+      }));
+    }
+    for (Future<?> future : pending) {
+      try {
+        Uninterruptibles.getUninterruptibly(future);
+      } catch (ExecutionException e) {
+        logger.atWarning().withCause(e.getCause()).log("Error writing a response");
+      }
+    }
+  }
+
+  /** Returns why {@code request} cannot run, or null if it is valid. */
+  @Nullable
+  private static String validate(Request request) {
+    if (request.args == null || request.args.contains(null)) {
+      return "'args' is required and cannot contain null values";
+    }
+    if (request.cwd != null && !Paths.get(request.cwd).isAbsolute()) {
+      return "'cwd' has to be an absolute path";
+    }
+    if (request.env != null
+        && (request.env.containsKey(null) || request.env.containsValue(null))) {
+      return "'env' cannot contain null values";
+    }
+    return null;
+  }
+
+  /**
+   * Runs the request. Any error is reported in the response, so that a failing request doesn't
+   * take down the server.
+   */
+  private Response handle(Request request) {
+    logger.atInfo().log("Server request %s: %s", request.id, request.args);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ExitCode exitCode;
+    try (PrintStream printStream = new PrintStream(output, /*autoFlush=*/ true, UTF_8.name())) {
+      exitCode = runner.run(
+          request.args.toArray(new String[0]), request.env, request.cwd, printStream);
+    } catch (Throwable e) {
+      logger.atSevere().withCause(e).log("Error running server request %s", request.id);
+      byte[] message = ("Unexpected error running the request: " + e + "\n").getBytes(UTF_8);
+      output.write(message, 0, message.length);
+      exitCode = ExitCode.INTERNAL_ERROR;
+    }
+    return new Response(request.id, exitCode, new String(output.toByteArray(), UTF_8));
+  }
+
+  private static void write(Writer writer, Response response) throws IOException {
+    synchronized (writer) {
+      writer.write(GSON.toJson(response));
+      writer.write('\n');
+      writer.flush();
+    }
+  }
+
+  @Override
+  public String name() {
+    return "server";
+  }
+
+  /** A request to run a Copybara command line. */
+  private static class Request {
+    @Nullable private String id;
+    @Nullable private List<String> args;
+    @Nullable private String cwd;
+    @Nullable private Map<String, String> env;
+    @Nullable private String token;
+  }
+
+  /** The result of a {@link Request}. */
+  private static class Response {
+    @Nullable private final String id;
+    @SerializedName("exit_code") private final int exitCode;
+    @SerializedName("exit_code_name") private final String exitCodeName;
+    private final String output;
+
+    private Response(@Nullable String id, ExitCode exitCode, String output) {
+      this.id = id;
+      this.exitCode = exitCode.getCode();
+      this.exitCodeName = exitCode.name();
+      this.output = output;
+    }
+  }
+}
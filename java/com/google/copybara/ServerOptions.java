@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+
+/**
+ * Arguments for the 'server' subcommand.
+ */
+@Parameters(separators = "=")
+public final class ServerOptions implements Option {
+
+  @Parameter(names = "--server-port",
+      description = "Port on the loopback interface where the server listens for requests. If not"
+          + " set, the requests are read from the standard input and the responses are written to"
+          + " the standard output.")
+  public Integer port = null;
+
+  @Parameter(names = "--server-token-file",
+      description = "File where the server writes the token that the requests received on"
+          + " --server-port need to include. Only readable by the user. Defaults to"
+          + " $HOME/copybara/server/PORT.token.")
+  public String tokenFile = null;
+
+  @Parameter(names = "--server-threads",
+      description = "Number of requests that the server runs in parallel.")
+  public int threads = 4;
+}
@@ -34,6 +34,7 @@ import com.google.copybara.doc.annotations.DocSignaturePrefix;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.treestate.FileSystemTreeState;
 import com.google.copybara.treestate.TreeState;
+import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.events.Location;
@@ -269,6 +270,7 @@ public final class TransformWork implements SkylarkContext<TransformWork>, Skyla
           linkFullPath.getParent().resolve(relativized).normalize().startsWith(checkoutDir),
           "%s path escapes the checkout dir", relativized);
       Files.createSymbolicLink(linkFullPath, relativized);
+      notifyAdded(linkFullPath);
     } catch (IOException e) {
       String msg = "Cannot create symlink: " + e.getMessage();
       logger.atSevere().withCause(e).log(msg);
@@ -291,6 +293,18 @@ public final class TransformWork implements SkylarkContext<TransformWork>, Skyla
       Files.createDirectories(fullPath.getParent());
     }
     Files.write(fullPath, content.getBytes(UTF_8));
+    notifyAdded(fullPath);
+  }
+
+  /**
+   * Records {@code path} in the {@link TreeState} of the transformations executed with {@link
+   * #run}, since the next one might reuse it instead of walking the checkout dir. Before the first
+   * run it is not needed: That one always walks the checkout dir.
+   */
+  private void notifyAdded(Path path) {
+    if (skylarkTransformWork != this) {
+      skylarkTransformWork.getTreeState().notifyAdd(ImmutableList.of(new FileState(path)));
+    }
   }
 
   @SkylarkCallable(
@@ -199,6 +199,14 @@ public class WorkflowOptions implements Option {
     return parallelizerSupplier.get();
   }
 
+  /**
+   * Releases the threads used by the {@link LocalParallelizer}. Should be called once the
+   * migration finished.
+   */
+  public void shutdownParallelizer() {
+    parallelizerSupplier.get().close();
+  }
+
   public boolean joinTransformations() {
     return !noTransformationJoin;
   }
@@ -25,6 +25,7 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Verify;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.copybara.Destination.DestinationStatus;
 import com.google.copybara.Destination.Writer;
 import com.google.copybara.DestinationEffect.Type;
@@ -48,16 +49,19 @@ import com.google.copybara.util.DiffUtil.DiffFile;
 import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.InsideGitDirException;
+import com.google.copybara.util.TreeSnapshot;
 import com.google.copybara.util.console.AnsiColor;
 import com.google.copybara.util.console.Console;
 import com.google.copybara.util.console.PrefixConsole;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Set;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
@@ -291,6 +295,13 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
       this.migrationFinishedMonitor = checkNotNull(migrationFinishedMonitor);
     }
 
+    /**
+     * An identifier of the destination that is stable between runs of the same config.
+     */
+    private String destinationId() {
+      return workflow.getDestination().describe(workflow.getOriginFiles()).toString();
+    }
+
     /**
      * Return true if this change can be skipped because it would generate a noop in the
      * destination.
@@ -501,13 +512,12 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
 
       checkout(rev, processConsole, checkoutDir, "origin.checkout");
 
-      Path originCopy = null;
+      TreeSnapshot originSnapshot = null;
       if (getReverseTransformForCheck() != null) {
-        try (ProfilerTask ignored = profiler().start("reverse_copy")) {
-          workflow.getConsole().progress("Making a copy or the workdir for reverse checking");
-          originCopy = Files.createDirectories(workdir.resolve("origin"));
+        try (ProfilerTask ignored = profiler().start("reverse_snapshot")) {
+          workflow.getConsole().progress("Recording the workdir content for reverse checking");
           try {
-            FileUtil.copyFilesRecursively(checkoutDir, originCopy, FAIL_OUTSIDE_SYMLINKS);
+            originSnapshot = TreeSnapshot.create(checkoutDir);
           } catch (NoSuchFileException e) {
             throw new ValidationException(String.format(""
                 + "Failed to perform reversible check of transformations due to symlink '%s' "
@@ -525,7 +535,7 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
               metadata,
               changes,
               workflow.getConsole(),
-              new MigrationInfo(workflow.getRevIdLabel(), writer),
+              new MigrationInfo(workflow.getRevIdLabel(), writer, destinationId()),
               resolvedRef,
               /*ignoreNoop=*/ false)
               .withLastRev(lastRev)
@@ -533,6 +543,8 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
       try (ProfilerTask ignored = profiler().start("transforms")) {
         getTransformation().transform(transformWork);
       }
+      workflow.getConsole().verboseFmt("File lookups done by the transformations: %s",
+          transformWork.getTreeState().getMatchStats());
 
       if (getReverseTransformForCheck() != null) {
         workflow.getConsole().progress("Checking that the transformations can be reverted");
@@ -563,20 +575,18 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
                       resolvedRef,
                       /*ignoreNoop=*/ false));
         }
-        String diff;
-        try {
-          diff = new String(DiffUtil.diff(originCopy, reverse, workflow.isVerbose(),
-              workflow.getGeneralOptions().getEnvironment()),
-              StandardCharsets.UTF_8);
-        } catch (InsideGitDirException e) {
-          throw new ValidationException(String.format(
-              "Cannot use 'reversible_check = True' because Copybara temporary directory (%s) is"
-                  + " inside a git directory (%s). Please remove the git repository or use %s"
-                  + " flag.", e.getPath(), e.getGitDirPath(), OUTPUT_ROOT_FLAG));
+        ImmutableSortedSet<String> changedFiles;
+        try (ProfilerTask ignored = profiler().start("reverse_compare")) {
+          changedFiles = originSnapshot.changedFiles(reverse);
         }
-        if (!diff.trim().isEmpty()) {
+        if (!changedFiles.isEmpty()) {
+          // The diff is only used to report the changes. Differences that it doesn't show, like
+          // a changed mode, still make the workflow non reversible.
+          String diff = reverseDiff(rev, processConsole, changedFiles, reverse);
           workflow.getConsole().error("Non reversible transformations:\n"
-              + DiffUtil.colorize(workflow.getConsole(), diff));
+              + (diff.trim().isEmpty()
+                  ? "Changed files: " + String.join(", ", changedFiles)
+                  : DiffUtil.colorize(workflow.getConsole(), diff)));
           throw new ValidationException(
               String.format("Workflow '%s' is not reversible", workflow.getName()));
         }
@@ -624,7 +634,7 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
                   // We don't care about the changes that are imported.
                   changes,
                   baselineConsole,
-                  new MigrationInfo(workflow.getRevIdLabel(), writer),
+                  new MigrationInfo(workflow.getRevIdLabel(), writer, destinationId()),
                   resolvedRef,
                   // Doesn't guarantee that we will not run a ignore_noop = False core.transform but
                   // reduces the chances.
@@ -662,6 +672,42 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
       return result;
     }
 
+    /**
+     * Computes the diff of the files that are different after reversing the transformations.
+     *
+     * <p>The original content is not kept while transforming, so the revision is checked out
+     * again. Only the files that changed are copied next to each other and diffed.
+     */
+    private String reverseDiff(O rev, Console processConsole, Set<String> changedFiles,
+        Path reverse) throws RepoException, ValidationException, IOException {
+      Path originCheckout = Files.createDirectories(workdir.resolve("origin"));
+      checkout(rev, processConsole, originCheckout, "reverse_diff_checkout");
+      Path diffDir = workdir.resolve("reverse_diff");
+      Path originFiles = Files.createDirectories(diffDir.resolve("origin"));
+      Path reverseFiles = Files.createDirectories(diffDir.resolve("reverse"));
+      for (String file : changedFiles) {
+        copyIfExists(originCheckout.resolve(file), originFiles.resolve(file));
+        copyIfExists(reverse.resolve(file), reverseFiles.resolve(file));
+      }
+      try {
+        return new String(DiffUtil.diff(originFiles, reverseFiles, workflow.isVerbose(),
+            workflow.getGeneralOptions().getEnvironment()),
+            StandardCharsets.UTF_8);
+      } catch (InsideGitDirException e) {
+        throw new ValidationException(String.format(
+            "Cannot use 'reversible_check = True' because Copybara temporary directory (%s) is"
+                + " inside a git directory (%s). Please remove the git repository or use %s"
+                + " flag.", e.getPath(), e.getGitDirPath(), OUTPUT_ROOT_FLAG));
+      }
+    }
+
+    private void copyIfExists(Path from, Path to) throws IOException {
+      if (Files.exists(from, LinkOption.NOFOLLOW_LINKS)) {
+        Files.createDirectories(to.getParent());
+        Files.copy(from, to, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.COPY_ATTRIBUTES);
+      }
+    }
+
     private void checkout(
         O rev, Console processConsole, Path checkoutDir, String profileDescription)
         throws RepoException, ValidationException, IOException {
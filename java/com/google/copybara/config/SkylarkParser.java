@@ -52,6 +52,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.function.Supplier;
+import javax.annotation.Nullable;
 
 /**
  * Loads Copybara configs out of Skylark files.
@@ -62,11 +63,20 @@ public class SkylarkParser {
   private static final String BARA_SKY = ".bara.sky";
   // For now all the modules are namespaces. We don't use variables except for 'core'.
   private final Iterable<Class<?>> modules;
+  @Nullable private final StarlarkFileCache fileCache;
 
   public SkylarkParser(Set<Class<?>> staticModules) {
+    this(staticModules, /*fileCache=*/ null);
+  }
+
+  /**
+   * @param fileCache if not null, parsed files are reused from it if their content didn't change
+   */
+  public SkylarkParser(Set<Class<?>> staticModules, @Nullable StarlarkFileCache fileCache) {
     this.modules = ImmutableSet.<Class<?>>builder()
         .add(GlobalMigrations.class)
         .addAll(staticModules).build();
+    this.fileCache = fileCache;
   }
 
   public Config loadConfig(ConfigFile config, ModuleSet moduleSet, Console console)
@@ -207,9 +217,14 @@ public class SkylarkParser {
       }
       pending.add(content.path());
 
-      ParserInput input =
-          ParserInput.create(content.readContent(), PathFragment.create(content.path()));
-      StarlarkFile file = StarlarkFile.parse(input);
+      StarlarkFile file;
+      if (fileCache != null) {
+        file = fileCache.parse(content.path(), content.readContentBytes());
+      } else {
+        ParserInput input =
+            ParserInput.create(content.readContent(), PathFragment.create(content.path()));
+        file = StarlarkFile.parse(input);
+      }
       Event.replayEventsOn(eventHandler, file.errors());
       Map<String, Extension> imports = new HashMap<>();
       for (Statement stmt : file.getStatements()) {
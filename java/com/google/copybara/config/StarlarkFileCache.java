@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.config;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.syntax.ParserInput;
+import com.google.devtools.build.lib.syntax.StarlarkFile;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of parsed config files, shared by the invocations that run in the same JVM (see the
+ * 'server' subcommand).
+ *
+ * <p>Entries are keyed by the path of the file and stored with the hash of the content that was
+ * parsed. An entry is replaced when the content of the file changes.
+ *
+ * <p>Only the syntax trees are cached. Evaluating a file binds the options and the console of the
+ * invocation to the resulting values, so files are still evaluated for every invocation.
+ */
+public final class StarlarkFileCache {
+
+  private static final int MAX_FILES = 1000;
+
+  private final Map<String, Entry> files =
+      new LinkedHashMap<String, Entry>(16, 0.75f, /*accessOrder=*/true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > MAX_FILES;
+        }
+      };
+  private long hits;
+  private long misses;
+
+  /** Returns the parsed {@code content} of the file at {@code path}. */
+  StarlarkFile parse(String path, byte[] content) {
+    HashCode hash = Hashing.sha256().hashBytes(content);
+    synchronized (this) {
+      Entry entry = files.get(path);
+      if (entry != null && entry.hash.equals(hash)) {
+        hits++;
+        return entry.file;
+      }
+      misses++;
+    }
+    StarlarkFile file = StarlarkFile.parse(
+        ParserInput.create(new String(content, UTF_8), PathFragment.create(path)));
+    synchronized (this) {
+      files.put(path, new Entry(hash, file));
+    }
+    return file;
+  }
+
+  @VisibleForTesting
+  synchronized long getHits() {
+    return hits;
+  }
+
+  @VisibleForTesting
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  private static final class Entry {
+    private final HashCode hash;
+    private final StarlarkFile file;
+
+    private Entry(HashCode hash, StarlarkFile file) {
+      this.hash = hash;
+      this.file = file;
+    }
+  }
+}
@@ -114,16 +114,28 @@ public class FolderDestination implements Destination<Revision> {
         }
         throw e;
       }
-      console.progress("FolderDestination: deleting all files from " + localFolder);
-      FileUtil.deleteFilesRecursively(localFolder, destinationFiles.relativeTo(localFolder));
-
-      console.progress("FolderDestination: Copying contents of the workdir to " + localFolder);
-      FileUtil.copyFilesRecursively(transformResult.getPath(), localFolder,
-          CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS);
+      String summary;
+      if (folderDestinationOptions.incremental) {
+        console.progress("FolderDestination: Syncing contents of the workdir to " + localFolder);
+        FolderSync sync = new FolderSync(transformResult.getPath(), localFolder);
+        sync.sync(destinationFiles);
+        summary = String.format("Folder '%s' contains the output files of the migration"
+                + " (%d added, %d modified, %d deleted, %d unchanged)", localFolder,
+            sync.getAdded(), sync.getModified(), sync.getDeleted(), sync.getUnchanged());
+      } else {
+        console.progress("FolderDestination: deleting all files from " + localFolder);
+        FileUtil.deleteFilesRecursively(localFolder, destinationFiles.relativeTo(localFolder));
+
+        console.progress("FolderDestination: Copying contents of the workdir to " + localFolder);
+        FileUtil.copyFilesRecursively(transformResult.getPath(), localFolder,
+            CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS);
+        summary = String.format("Folder '%s' contains the output files of the migration",
+            localFolder);
+      }
       return ImmutableList.of(
           new DestinationEffect(
               exists ? DestinationEffect.Type.UPDATED : DestinationEffect.Type.CREATED,
-              String.format("Folder '%s' contains the output files of the migration", localFolder),
+              summary,
               transformResult.getChanges().getCurrent(),
               new DestinationEffect.DestinationRef(
                   localFolder.toString(), "local_folder", localFolder.toString())));
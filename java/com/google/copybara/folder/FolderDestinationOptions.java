@@ -33,4 +33,10 @@ public final class FolderDestinationOptions implements Option {
           + "directory, so you shouldn't need this.")
   @VisibleForTesting
   public String localFolder = null;
+
+  @Parameter(names = "--folder-dir-incremental",
+      description = "Instead of deleting all the files of --folder-dir and copying the output of "
+          + "the migration, only copy the files that were added or changed and delete the ones "
+          + "that were removed. Files with the same size are compared by content.")
+  public boolean incremental = false;
 }
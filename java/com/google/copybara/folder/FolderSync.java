@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.folder;
+
+import com.google.common.io.MoreFiles;
+import com.google.copybara.util.AbsoluteSymlinksNotAllowed;
+import com.google.copybara.util.FileUtil;
+import com.google.copybara.util.FileUtil.ResolvedSymlink;
+import com.google.copybara.util.Glob;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Makes a folder contain the same files as another one, like rsync does, by only copying the
+ * files that were added or changed and deleting the ones that were removed.
+ *
+ * <p>The result is the same as deleting the files matching the destination files glob and then
+ * copying all the files: Symlinks that stay under the source folder are replicated as symlinks and
+ * the rest are rejected.
+ */
+final class FolderSync {
+
+  private final Path from;
+  private final Path to;
+
+  private int added;
+  private int modified;
+  private int deleted;
+  private int unchanged;
+
+  FolderSync(Path from, Path to) {
+    this.from = from.normalize();
+    this.to = to.normalize();
+  }
+
+  /**
+   * Syncs the folders. Files in the destination folder that are not in the source folder are only
+   * deleted if they match {@code destinationFiles}.
+   */
+  void sync(Glob destinationFiles) throws IOException {
+    Map<String, Path> sourceFiles = listFiles();
+    PathMatcher deleteMatcher = destinationFiles.relativeTo(to);
+    deleted = FileUtil.deleteFilesRecursively(to, path -> deleteMatcher.matches(path)
+        && !sourceFiles.containsKey(to.relativize(path).toString()));
+
+    PathMatcher allFiles = Glob.ALL_FILES.relativeTo(from);
+    for (Map.Entry<String, Path> entry : sourceFiles.entrySet()) {
+      Path source = entry.getValue();
+      Path dest = to.resolve(entry.getKey());
+      if (Files.isSymbolicLink(source)) {
+        syncSymlink(allFiles, source, dest);
+      } else {
+        syncFile(source, dest);
+      }
+    }
+  }
+
+  private Map<String, Path> listFiles() throws IOException {
+    Map<String, Path> result = new LinkedHashMap<>();
+    Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        result.put(from.relativize(file).toString(), file);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return result;
+  }
+
+  private void syncFile(Path source, Path dest) throws IOException {
+    if (!Files.exists(dest, LinkOption.NOFOLLOW_LINKS)) {
+      Files.createDirectories(dest.getParent());
+      Files.copy(source, dest, StandardCopyOption.COPY_ATTRIBUTES);
+      added++;
+      return;
+    }
+    if (!Files.isSymbolicLink(dest) && Files.isRegularFile(dest) && sameContent(source, dest)) {
+      unchanged++;
+      return;
+    }
+    if (Files.isDirectory(dest, LinkOption.NOFOLLOW_LINKS)) {
+      // A directory not managed by the destination files glob is in the way.
+      FileUtil.deleteRecursively(dest);
+    }
+    Files.copy(source, dest, StandardCopyOption.COPY_ATTRIBUTES,
+        StandardCopyOption.REPLACE_EXISTING);
+    modified++;
+  }
+
+  /**
+   * Files with the same size are compared by content. The workdir is written on every migration,
+   * so the last modified time cannot tell whether a file changed.
+   */
+  private boolean sameContent(Path source, Path dest) throws IOException {
+    if (Files.size(source) != Files.size(dest)
+        || Files.isExecutable(source) != Files.isExecutable(dest)) {
+      return false;
+    }
+    return MoreFiles.asByteSource(source).contentEquals(MoreFiles.asByteSource(dest));
+  }
+
+  private void syncSymlink(PathMatcher allFiles, Path source, Path dest) throws IOException {
+    ResolvedSymlink resolvedSymlink = FileUtil.resolveSymlink(allFiles, source);
+    if (!resolvedSymlink.isAllUnderRoot()) {
+      throw new AbsoluteSymlinksNotAllowed(
+          String.format("Symlink '%s' is absolute or escaped the root: '%s'.",
+              source, resolvedSymlink.getRegularFile()),
+          source, resolvedSymlink.getRegularFile());
+    }
+    Path target = Files.readSymbolicLink(source);
+    boolean exists = Files.exists(dest, LinkOption.NOFOLLOW_LINKS);
+    if (exists && Files.isSymbolicLink(dest)
+        && Objects.equals(Files.readSymbolicLink(dest), target)) {
+      unchanged++;
+      return;
+    }
+    if (exists) {
+      if (Files.isDirectory(dest, LinkOption.NOFOLLOW_LINKS)) {
+        FileUtil.deleteRecursively(dest);
+      } else {
+        Files.delete(dest);
+      }
+      modified++;
+    } else {
+      Files.createDirectories(dest.getParent());
+      added++;
+    }
+    Files.createSymbolicLink(dest, target);
+  }
+
+  /** Number of files that didn't exist in the destination folder. */
+  int getAdded() {
+    return added;
+  }
+
+  /** Number of files that were different in the destination folder and got replaced. */
+  int getModified() {
+    return modified;
+  }
+
+  /** Number of files deleted from the destination folder. */
+  int getDeleted() {
+    return deleted;
+  }
+
+  /** Number of files that were the same in both folders. */
+  int getUnchanged() {
+    return unchanged;
+  }
+}
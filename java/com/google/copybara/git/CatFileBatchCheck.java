@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.git;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.flogger.FluentLogger;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * A long-lived {@code git cat-file --batch-check} process that looks up objects by name without
+ * starting a new git process per request.
+ *
+ * <p>There is one process per git directory, shared by all the repository objects of the JVM (see
+ * {@link #check(Path, Callable, String)}). The process is started on the first request and is
+ * stopped when it has been idle for {@link #IDLE_TIMEOUT}, when {@link #close(Path)} is called or
+ * when the JVM exits. If the process fails, requests throw {@link IOException} and callers are
+ * expected to fall back to running a regular git command. Failed requests don't count as uses, so
+ * a failed process is replaced by a new one after {@link #IDLE_TIMEOUT}.
+ */
+final class CatFileBatchCheck {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final CharMatcher INVALID_NAME_CHARS =
+      CharMatcher.whitespace().or(CharMatcher.javaIsoControl());
+
+  /** Processes that were not used for this long are stopped. */
+  static final Duration IDLE_TIMEOUT = Duration.ofMinutes(1);
+
+  private static final Map<Path, CatFileBatchCheck> shared = new ConcurrentHashMap<>();
+  @Nullable private static ScheduledExecutorService idleChecker;
+
+  private final Callable<Process> processFactory;
+  @Nullable private Process process;
+  @Nullable private Writer stdin;
+  @Nullable private BufferedReader stdout;
+  private boolean failed;
+  private long lastUsedNanos = System.nanoTime();
+  // Removed from the shared instances. A new instance needs to be used.
+  private boolean retired;
+
+  /**
+   * Creates a new instance that lazily starts the process with {@code processFactory}. The process
+   * needs to be started with '--batch-check' and have its stderr redirected or consumed.
+   */
+  CatFileBatchCheck(Callable<Process> processFactory) {
+    this.processFactory = Preconditions.checkNotNull(processFactory);
+  }
+
+  /**
+   * Information about an object.
+   */
+  static final class ObjectInfo {
+
+    private final String sha1;
+    private final String type;
+
+    private ObjectInfo(String sha1, String type) {
+      this.sha1 = sha1;
+      this.type = type;
+    }
+
+    String getSha1() {
+      return sha1;
+    }
+
+    /**
+     * Object type: 'commit', 'tree', 'blob' or 'tag'.
+     */
+    String getType() {
+      return type;
+    }
+  }
+
+  /**
+   * Returns true if {@code name} can be resolved by this class. Names with whitespace cannot be
+   * sent to 'git cat-file', ranges and options are not object names and 'rev:path' names would
+   * resolve blobs.
+   */
+  static boolean isSupported(String name) {
+    return !name.isEmpty()
+        && INVALID_NAME_CHARS.matchesNoneOf(name)
+        && !name.startsWith("-")
+        && !name.startsWith("^")
+        && !name.contains("..")
+        && !name.contains(":");
+  }
+
+  /**
+   * Returns the information of the object named {@code name} in {@code gitDir}, using the process
+   * shared by all the users of {@code gitDir}. If there is no process for {@code gitDir}, it is
+   * started with {@code processFactory}.
+   *
+   * @throws IOException if the process cannot be used. The caller should fall back to running a
+   *     regular git command.
+   */
+  @Nullable
+  static ObjectInfo check(Path gitDir, Callable<Process> processFactory, String name)
+      throws IOException {
+    Path key = gitDir.toAbsolutePath().normalize();
+    while (true) {
+      CatFileBatchCheck batchCheck = shared.computeIfAbsent(key, k -> {
+        startIdleChecker();
+        return new CatFileBatchCheck(processFactory);
+      });
+      synchronized (batchCheck) {
+        if (!batchCheck.retired) {
+          return batchCheck.check(name);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops the shared process for {@code gitDir}, if any. A new one is started if there are more
+   * requests.
+   */
+  static void close(Path gitDir) {
+    CatFileBatchCheck batchCheck = shared.get(gitDir.toAbsolutePath().normalize());
+    if (batchCheck != null) {
+      batchCheck.retire(gitDir.toAbsolutePath().normalize());
+    }
+  }
+
+  /** Stops the shared processes that were not used for {@link #IDLE_TIMEOUT}. */
+  @VisibleForTesting
+  static void closeIdle(Duration idleTimeout) {
+    long now = System.nanoTime();
+    for (Map.Entry<Path, CatFileBatchCheck> entry : shared.entrySet()) {
+      CatFileBatchCheck batchCheck = entry.getValue();
+      synchronized (batchCheck) {
+        if (now - batchCheck.lastUsedNanos >= idleTimeout.toNanos()) {
+          batchCheck.retire(entry.getKey());
+        }
+      }
+    }
+  }
+
+  /** Number of shared processes running. */
+  @VisibleForTesting
+  static int runningProcesses() {
+    int running = 0;
+    for (CatFileBatchCheck batchCheck : shared.values()) {
+      synchronized (batchCheck) {
+        if (batchCheck.process != null) {
+          running++;
+        }
+      }
+    }
+    return running;
+  }
+
+  private static synchronized void startIdleChecker() {
+    if (idleChecker != null) {
+      return;
+    }
+    idleChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "git-cat-file-idle-checker");
+      thread.setDaemon(true);
+      return thread;
+    });
+    idleChecker.scheduleWithFixedDelay(() -> closeIdle(IDLE_TIMEOUT),
+        IDLE_TIMEOUT.toMillis(), IDLE_TIMEOUT.toMillis() / 2, TimeUnit.MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      for (Map.Entry<Path, CatFileBatchCheck> entry : shared.entrySet()) {
+        entry.getValue().retire(entry.getKey());
+      }
+    }, "git-cat-file-shutdown"));
+  }
+
+  private synchronized void retire(Path key) {
+    retired = true;
+    close();
+    shared.remove(key, this);
+  }
+
+  /**
+   * Returns the information of the object named {@code name}, like 'HEAD^{commit}' or a SHA-1, or
+   * null if it doesn't exist.
+   *
+   * @throws IOException if the process cannot be used. The caller should fall back to running a
+   *     regular git command.
+   */
+  @Nullable
+  synchronized ObjectInfo check(String name) throws IOException {
+    Preconditions.checkArgument(isSupported(name), "Unsupported object name: '%s'", name);
+    if (failed) {
+      throw new IOException("git cat-file --batch-check process failed previously");
+    }
+    String line;
+    try {
+      if (process == null) {
+        start();
+      }
+      stdin.write(name);
+      stdin.write('\n');
+      stdin.flush();
+      line = stdout.readLine();
+      if (line == null) {
+        throw new IOException("git cat-file --batch-check process exited unexpectedly");
+      }
+    } catch (IOException e) {
+      failed = true;
+      close();
+      throw e;
+    }
+    lastUsedNanos = System.nanoTime();
+    return parse(name, line);
+  }
+
+  @Nullable
+  private static ObjectInfo parse(String name, String line) throws IOException {
+    if (line.equals(name + " missing")) {
+      return null;
+    }
+    List<String> parts = Splitter.on(' ').splitToList(line);
+    if (parts.size() != 3) {
+      // For example '<name> ambiguous'
+      throw new IOException(String.format("Unexpected response for '%s': %s", name, line));
+    }
+    return new ObjectInfo(parts.get(0), parts.get(1));
+  }
+
+  private void start() throws IOException {
+    try {
+      process = processFactory.call();
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Cannot start git cat-file --batch-check", e);
+    }
+    stdin = new OutputStreamWriter(process.getOutputStream(), UTF_8);
+    stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8));
+  }
+
+  /**
+   * Stops the process, if running. A new one is started if there are more requests.
+   */
+  synchronized void close() {
+    if (process == null) {
+      return;
+    }
+    try {
+      stdin.close();
+    } catch (IOException e) {
+      logger.atFine().withCause(e).log("Error closing git cat-file --batch-check stdin");
+    }
+    process.destroy();
+    process = null;
+    stdin = null;
+    stdout = null;
+  }
+}
@@ -21,16 +21,31 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.copybara.Change;
 import com.google.copybara.ChangeMessage;
+import com.google.copybara.ChangeVisitable.ChangesVisitor;
+import com.google.copybara.ChangeVisitable.VisitResult;
 import com.google.copybara.authoring.Author;
 import com.google.copybara.authoring.Authoring;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.git.GitRepository.GitLogEntry;
 import com.google.copybara.git.GitRepository.LogCmd;
+import com.google.copybara.git.GitRepository.LogEntryVisitor;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
@@ -48,10 +63,12 @@ class ChangeReader {
   private final boolean firstParent;
   private final int skip;
   @Nullable private final String grepString;
+  @Nullable private final GitLogCache logCache;
 
   private ChangeReader(@Nullable Authoring authoring, GitRepository repository, int limit,
       Iterable<String> roots, boolean includeBranchCommitLogs, @Nullable String url,
-      boolean firstParent, int skip, @Nullable String grepString) {
+      boolean firstParent, int skip, @Nullable String grepString,
+      @Nullable GitLogCache logCache) {
     this.authoring = authoring;
     this.repository = checkNotNull(repository, "repository");
     this.limit = limit;
@@ -61,9 +78,158 @@ class ChangeReader {
     this.firstParent = firstParent;
     this.skip = skip;
     this.grepString = grepString;
+    this.logCache = logCache;
   }
 
   ImmutableList<Change<GitRevision>> run(String refExpression) throws RepoException {
+    ImmutableList.Builder<GitLogEntry> entries = ImmutableList.builder();
+    visitLog(refExpression, e -> {
+      entries.add(e);
+      return true;
+    });
+    return parseChanges(entries.build());
+  }
+
+  /**
+   * Visits the changes from newest to oldest as they are read from 'git log', so that memory
+   * usage doesn't depend on the size of the history. Entries are accumulated in batches of
+   * {@code batchSize} so that the branch commit logs of their merges are computed together.
+   *
+   * @return true if at least one change was visited
+   */
+  boolean visit(String refExpression, ChangesVisitor visitor, int batchSize)
+      throws RepoException {
+    Preconditions.checkArgument(batchSize > 0);
+    BatchVisitor batchVisitor = new BatchVisitor(visitor, batchSize);
+    visitLog(refExpression, batchVisitor);
+    if (!batchVisitor.terminated) {
+      batchVisitor.visitBatch();
+    }
+    return batchVisitor.visited;
+  }
+
+  private class BatchVisitor implements LogEntryVisitor {
+
+    private final ChangesVisitor visitor;
+    private final int batchSize;
+    private final List<GitLogEntry> batch;
+    @Nullable private GitRevision last;
+    private boolean visited;
+    private boolean terminated;
+
+    private BatchVisitor(ChangesVisitor visitor, int batchSize) {
+      this.visitor = visitor;
+      this.batchSize = batchSize;
+      this.batch = new ArrayList<>(batchSize);
+    }
+
+    @Override
+    public boolean visit(GitLogEntry entry) throws RepoException {
+      // Keep the first commit if repeated (merge commits).
+      if (entry.getCommit().equals(last)) {
+        return true;
+      }
+      last = entry.getCommit();
+      batch.add(entry);
+      if (batch.size() == batchSize) {
+        visitBatch();
+      }
+      return !terminated;
+    }
+
+    private void visitBatch() throws RepoException {
+      Map<String, CharSequence> branchCommitLogs = branchCommitLogs(batch);
+      for (GitLogEntry e : batch) {
+        visited = true;
+        if (visitor.visit(toChange(e, branchCommitLogs)) == VisitResult.TERMINATE) {
+          terminated = true;
+          break;
+        }
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Visits the log entries of {@code refExpression}. If there is a cache, we only list the commits
+   * with git log, that is cheap, and read the entries not in the cache in batches.
+   */
+  private void visitLog(String refExpression, LogEntryVisitor visitor) throws RepoException {
+    LogCmd logCmd = logCmd(refExpression);
+    if (logCache == null) {
+      logCmd.visit(visitor);
+      return;
+    }
+    CachedLogVisitor cachedVisitor = new CachedLogVisitor(visitor);
+    logCmd.includeBody(false).includeFiles(false).includeMergeDiff(false).visit(cachedVisitor);
+    cachedVisitor.flush();
+  }
+
+  private class CachedLogVisitor implements LogEntryVisitor {
+
+    private final LogEntryVisitor visitor;
+    private final List<String> pending = new ArrayList<>(CACHE_READ_BATCH_SIZE);
+    private boolean stopped;
+
+    private CachedLogVisitor(LogEntryVisitor visitor) {
+      this.visitor = visitor;
+    }
+
+    @Override
+    public boolean visit(GitLogEntry entry) throws RepoException {
+      pending.add(entry.getCommit().getSha1());
+      if (pending.size() == CACHE_READ_BATCH_SIZE) {
+        flush();
+      }
+      return !stopped;
+    }
+
+    private void flush() throws RepoException {
+      if (stopped || pending.isEmpty()) {
+        return;
+      }
+      Map<String, GitLogEntry> entries = new HashMap<>();
+      List<String> missing = new ArrayList<>();
+      for (String sha1 : pending) {
+        GitLogEntry cached = logCache.get(repository, sha1);
+        if (cached == null) {
+          missing.add(sha1);
+        } else {
+          entries.put(sha1, cached);
+        }
+      }
+      if (!missing.isEmpty()) {
+        List<GitLogEntry> read = new ArrayList<>(missing.size());
+        repository.log(ImmutableList.copyOf(missing))
+            .noWalk(true)
+            .firstParent(false)
+            .includeFiles(true)
+            .includeMergeDiff(true)
+            .visit(e -> {
+              // Merges are returned once per parent. The first one is the diff against the first
+              // parent, same as in the --first-parent log.
+              if (entries.putIfAbsent(e.getCommit().getSha1(), e) == null) {
+                read.add(e);
+              }
+              return true;
+            });
+        logCache.putAll(read);
+      }
+      for (String sha1 : pending) {
+        GitLogEntry entry = entries.get(sha1);
+        if (entry == null) {
+          throw new RepoException("Cannot find git log entry for " + sha1);
+        }
+        if (!visitor.visit(entry)) {
+          stopped = true;
+          break;
+        }
+      }
+      pending.clear();
+    }
+  }
+
+  private LogCmd logCmd(String refExpression) {
     LogCmd logCmd = repository
         .log(refExpression)
         .firstParent(firstParent);
@@ -79,51 +245,125 @@ class ChangeReader {
     // Log command does not filter by roots here because of how git log works. Some commits (e.g.
     // fake merges) might not include the files in the log, and filtering here would return
     // incorrect results. We do filter later on the changes to match the actual glob.
-    return parseChanges(logCmd.includeFiles(true).includeMergeDiff(true).run());
+    return logCmd.includeFiles(true).includeMergeDiff(true);
   }
 
   static final String BRANCH_COMMIT_LOG_HEADING = "-- Branch commit log --";
 
-  private CharSequence branchCommitLog(GitRevision ref, List<GitRevision> parents)
+  // Number of commits not in the cache read together with a single git log.
+  private static final int CACHE_READ_BATCH_SIZE = 200;
+
+  /**
+   * Returns the branch commit log of each merge commit in {@code logEntries}, keyed by SHA-1.
+   *
+   * <p>Instead of running one 'git log' per merge, we read the commit graph of all the merges with
+   * a single 'git log' and compute the commits of each branch in memory.
+   */
+  private Map<String, CharSequence> branchCommitLogs(List<GitLogEntry> logEntries)
       throws RepoException {
-    if (parents.size() <= 1) {
+    if (!includeBranchCommitLogs) {
+      return ImmutableMap.of();
+    }
+    // Merge SHA-1 to first parent SHA-1
+    Map<String, String> merges = new LinkedHashMap<>();
+    for (GitLogEntry e : logEntries) {
       // Not a merge commit, so don't bother showing full log of branch commits. This would only
       // contain the raw commit of 'ref', which will be redundant.
-      return "";
+      if (e.getParents().size() > 1) {
+        merges.put(e.getCommit().getSha1(), e.getParents().get(0).getSha1());
+      }
     }
-    if (!includeBranchCommitLogs) {
-      return "";
+    if (merges.isEmpty()) {
+      return ImmutableMap.of();
     }
 
-    ImmutableList<GitLogEntry> entries =
-        repository
-            .log(parents.get(0).getSha1() + ".." + ref.getSha1())
-            // This might give incorrect results but several migrations rely on this behavior.
-            // and first_parent = False doesn't work for ITERATIVE
-            .withPaths(Glob.isEmptyRoot(roots) ? ImmutableList.of() : roots)
-            .firstParent(false)
-            .run();
-
-    if (entries.isEmpty()) {
-      return "";
-    }
-    // Remove the merge commit. Since we already have that in the body.
-    entries = entries.subList(1, entries.size());
-
-    return "\n" + BRANCH_COMMIT_LOG_HEADING + "\n" +
-        Joiner.on("\n").join(entries.stream()
-            .map(e -> ""
-                + "commit " + e.getCommit().getSha1() + "\n"
-                + "Author:  " + filterAuthor(e.getAuthor()) + "\n"
-                + "Date:    " + e.getAuthorDate() + "\n"
-                + "\n"
-                + "    " + e.getBody().replace("\n", "    \n"))
-            .collect(Collectors.toList()));
+    ImmutableList.Builder<String> refs = ImmutableList.<String>builder().addAll(merges.keySet());
+    // Commits reachable from all the first parents are never part of a branch commit log.
+    Set<String> firstParents = ImmutableSet.copyOf(merges.values());
+    String base = firstParents.size() == 1
+        ? Iterables.getOnlyElement(firstParents)
+        : repository.octopusMergeBase(firstParents);
+    if (base != null) {
+      refs.add("^" + base);
+    }
+    boolean filterByRoots = !Glob.isEmptyRoot(roots);
+    ImmutableList<GitLogEntry> graph = repository.log(refs.build())
+        .firstParent(false)
+        .includeFiles(filterByRoots)
+        .run();
+    Map<String, GitLogEntry> commits = new HashMap<>();
+    for (GitLogEntry e : graph) {
+      commits.put(e.getCommit().getSha1(), e);
+    }
+
+    Map<String, CharSequence> result = new HashMap<>();
+    for (Entry<String, String> merge : merges.entrySet()) {
+      Set<String> excluded = reachable(merge.getValue(), commits, ImmutableSet.of());
+      Set<String> branch = reachable(merge.getKey(), commits, excluded);
+      List<GitLogEntry> entries = graph.stream()
+          // Remove the merge commit. Since we already have that in the body.
+          .filter(e -> branch.contains(e.getCommit().getSha1())
+              && !e.getCommit().getSha1().equals(merge.getKey()))
+          // This might give incorrect results but several migrations rely on this behavior.
+          // and first_parent = False doesn't work for ITERATIVE
+          .filter(e -> !filterByRoots || affectsRoots(e))
+          .collect(Collectors.toList());
+      if (entries.isEmpty()) {
+        continue;
+      }
+      result.put(merge.getKey(), "\n" + BRANCH_COMMIT_LOG_HEADING + "\n" +
+          Joiner.on("\n").join(entries.stream()
+              .map(e -> ""
+                  + "commit " + e.getCommit().getSha1() + "\n"
+                  + "Author:  " + filterAuthor(e.getAuthor()) + "\n"
+                  + "Date:    " + e.getAuthorDate() + "\n"
+                  + "\n"
+                  + "    " + e.getBody().replace("\n", "    \n"))
+              .collect(Collectors.toList())));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the SHA-1s of the commits in {@code commits} reachable from {@code sha1}, stopping at
+   * the {@code excluded} ones.
+   */
+  private static Set<String> reachable(String sha1, Map<String, GitLogEntry> commits,
+      Set<String> excluded) {
+    Set<String> visited = new HashSet<>();
+    Deque<String> pending = new ArrayDeque<>();
+    pending.push(sha1);
+    while (!pending.isEmpty()) {
+      String current = pending.pop();
+      GitLogEntry entry = commits.get(current);
+      if (entry == null || excluded.contains(current) || !visited.add(current)) {
+        continue;
+      }
+      for (GitRevision parent : entry.getParents()) {
+        pending.push(parent.getSha1());
+      }
+    }
+    return visited;
+  }
+
+  private boolean affectsRoots(GitLogEntry entry) {
+    if (entry.getFiles() == null) {
+      return false;
+    }
+    for (String file : entry.getFiles()) {
+      for (String root : roots) {
+        if (file.equals(root) || file.startsWith(root + "/")) {
+          return true;
+        }
+      }
+    }
+    return false;
   }
 
   private ImmutableList<Change<GitRevision>> parseChanges(ImmutableList<GitLogEntry> logEntries)
       throws RepoException {
 
+    Map<String, CharSequence> branchCommitLogs = branchCommitLogs(logEntries);
     ImmutableList.Builder<Change<GitRevision>> result = ImmutableList.builder();
     GitRevision last = null;
     for (GitLogEntry e : logEntries) {
@@ -132,17 +372,21 @@ class ChangeReader {
         continue;
       }
       last = e.getCommit();
-      result.add(new Change<>(
-          e.getCommit().withUrl(url),
-          filterAuthor(e.getAuthor())
-          , e.getBody() + branchCommitLog(e.getCommit(), e.getParents()),
-          e.getAuthorDate(),
-          ChangeMessage.parseAllAsLabels(e.getBody()).labelsAsMultimap(),
-          e.getFiles(), e.getParents().size() > 1, e.getParents()));
+      result.add(toChange(e, branchCommitLogs));
     }
     return result.build().reverse();
   }
 
+  private Change<GitRevision> toChange(GitLogEntry e, Map<String, CharSequence> branchCommitLogs) {
+    return new Change<>(
+        e.getCommit().withUrl(url),
+        filterAuthor(e.getAuthor())
+        , e.getBody() + branchCommitLogs.getOrDefault(e.getCommit().getSha1(), ""),
+        e.getAuthorDate(),
+        ChangeMessage.parseAllAsLabels(e.getBody()).labelsAsMultimap(),
+        e.getFiles(), e.getParents().size() > 1, e.getParents());
+  }
+
   private Author filterAuthor(Author author) {
     return authoring == null || authoring.useAuthor(author.getEmail())
         ? author
@@ -163,6 +407,7 @@ class ChangeReader {
     private boolean firstParent;
     private int skip;
     private String grepString;
+    private GitLogCache logCache;
 
     // TODO(matvore): Consider adding destinationFiles.
     // For ALL_FILES and where roots is [""], This will skip merges that don't affect the tree
@@ -233,10 +478,18 @@ class ChangeReader {
       return this;
     }
 
+    /**
+     * Use {@code logCache} for reading the log entries, if not null.
+     */
+    Builder setLogCache(@Nullable GitLogCache logCache) {
+      this.logCache = logCache;
+      return this;
+    }
+
     ChangeReader build() {
       return new ChangeReader(
           authoring, repository, limit, roots, includeBranchCommitLogs, url,
-          firstParent, skip, grepString);
+          firstParent, skip, grepString, logCache);
     }
   }
 
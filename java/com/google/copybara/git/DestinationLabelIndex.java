@@ -0,0 +1,590 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.git;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.Hashing;
+import com.google.copybara.Change;
+import com.google.copybara.ChangeVisitable.VisitResult;
+import com.google.copybara.exception.RepoException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+
+/**
+ * A persistent index of the destination commits that contain an origin label, stored in the git
+ * directory of the destination repository.
+ *
+ * <p>The history of a destination head (the base) is indexed lazily: a lookup only reads the
+ * commits until it finds a match, like a plain 'git log' scan would, and the next lookups that
+ * don't find a match in the indexed commits continue from there. Updating the index to a new head
+ * only reads the commits in between. If the new head doesn't descend from the indexed one (for
+ * example because the branch was rewritten), or in first-parent mode, if the indexed head is not in
+ * the first-parent chain of the new head, the index is rebuilt from the new head.
+ *
+ * <p>There is one index per destination ref, label and first-parent mode, since the cached
+ * repository is shared by all the workflows that use the same destination url. The index file is
+ * a sequence of checksummed blocks, each one with the commits indexed by an update of the head or
+ * by an extension of the base. Updates append a block. The file is only rewritten when the index
+ * is rebuilt or has too many blocks. The entries of a block are only parsed when a lookup reaches
+ * them.
+ */
+final class DestinationLabelIndex {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final int VERSION = 3;
+  private static final String INDEX_DIR = "copybara_label_index";
+  /** The index is rewritten as a single block when it has more blocks than this. */
+  private static final int MAX_BLOCKS = 100;
+
+  /** A block with the commits in 'previousHead..newHead'. */
+  private static final byte RANGE_BLOCK = 0;
+  /** A block with the commits of the log of the base, after skipping the already indexed ones. */
+  private static final byte BASE_BLOCK = 1;
+
+  private final GitRepository repository;
+  private final Path file;
+  private final boolean firstParent;
+  @Nullable private String indexedHead;
+  // The head that the log is indexed lazily from
+  @Nullable private String base;
+  // Number of commits of the log of base that are indexed
+  private int scanned;
+  // Whether the whole log of base is indexed
+  private boolean complete;
+  // Blocks indexed on top of base, oldest first
+  private List<Block> ranges = new ArrayList<>();
+  // Blocks of the log of base, newest first
+  private List<Block> baseBlocks = new ArrayList<>();
+  private int blocks;
+  // Whether the file needs to be rewritten instead of appending the next update.
+  private boolean rewrite = true;
+
+  private DestinationLabelIndex(GitRepository repository, Path file, boolean firstParent) {
+    this.repository = Preconditions.checkNotNull(repository);
+    this.file = Preconditions.checkNotNull(file);
+    this.firstParent = firstParent;
+  }
+
+  /**
+   * Loads the index for {@code labelName} in the destination {@code ref} from the git directory of
+   * {@code repository}. If there is no index or it cannot be read, it returns an empty index.
+   */
+  static DestinationLabelIndex load(GitRepository repository, String ref, String labelName,
+      boolean firstParent) {
+    String key = Hashing.sha256()
+        .hashString(ref + "\n" + labelName + (firstParent ? "\n--first-parent" : ""), UTF_8)
+        .toString();
+    DestinationLabelIndex index = new DestinationLabelIndex(
+        repository, repository.getGitDir().resolve(INDEX_DIR).resolve(key), firstParent);
+    index.read();
+    return index;
+  }
+
+  /**
+   * An indexed destination commit.
+   */
+  static final class Entry {
+
+    private final String sha1;
+    private final ImmutableList<String> labelValues;
+    private final ImmutableSet<String> files;
+
+    Entry(String sha1, ImmutableList<String> labelValues, ImmutableSet<String> files) {
+      this.sha1 = Preconditions.checkNotNull(sha1);
+      this.labelValues = Preconditions.checkNotNull(labelValues);
+      this.files = Preconditions.checkNotNull(files);
+    }
+
+    String getSha1() {
+      return sha1;
+    }
+
+    /**
+     * Values of the label in the commit message, in order.
+     */
+    ImmutableList<String> getLabelValues() {
+      return labelValues;
+    }
+
+    ImmutableSet<String> getFiles() {
+      return files;
+    }
+  }
+
+  /**
+   * Returns the newest commit in the history of {@code head} that contains the label and
+   * {@code matches}, or null if there is none. Only the commits that were not indexed yet and are
+   * needed to answer are read with {@code changeReader}, and the index is persisted.
+   *
+   * @param changeReader a reader that only returns the commits that might contain the label
+   */
+  @Nullable
+  Entry find(GitRevision head, ChangeReader.Builder changeReader, String labelName,
+      int batchSize, Predicate<Entry> matches) throws RepoException {
+    update(head, changeReader, labelName, batchSize);
+    for (Block block : Iterables.concat(Lists.reverse(ranges), baseBlocks)) {
+      for (Entry entry : block.getEntries()) {
+        if (matches.test(entry)) {
+          return entry;
+        }
+      }
+    }
+    return complete ? null : extendBase(changeReader, labelName, batchSize, matches);
+  }
+
+  /**
+   * Returns all the indexed commits, newest first.
+   */
+  @VisibleForTesting
+  ImmutableList<Entry> getEntries() throws RepoException {
+    ImmutableList.Builder<Entry> all = ImmutableList.builder();
+    for (Block block : Iterables.concat(Lists.reverse(ranges), baseBlocks)) {
+      all.addAll(block.getEntries());
+    }
+    return all.build();
+  }
+
+  /**
+   * Indexes the commits between the indexed head and {@code head}, or starts a new index at
+   * {@code head} if it doesn't descend from the indexed head.
+   */
+  private void update(GitRevision head, ChangeReader.Builder changeReader, String labelName,
+      int batchSize) throws RepoException {
+    if (head.getSha1().equals(indexedHead)) {
+      return;
+    }
+    if (indexedHead == null || !descends(head.getSha1(), indexedHead)) {
+      // Nothing is read until a lookup needs it
+      indexedHead = head.getSha1();
+      base = head.getSha1();
+      scanned = 0;
+      complete = false;
+      ranges = new ArrayList<>();
+      baseBlocks = new ArrayList<>();
+      rewrite = true;
+      return;
+    }
+    String range = indexedHead + ".." + head.getSha1();
+    List<Entry> newEntries = new ArrayList<>();
+    changeReader.setSkip(0).build().visit(range, change -> {
+      Entry entry = toEntry(change, labelName);
+      if (entry != null) {
+        newEntries.add(entry);
+      }
+      return VisitResult.CONTINUE;
+    }, batchSize);
+    logger.atInfo().log("Indexed %d new commits with label %s in %s", newEntries.size(),
+        labelName, range);
+    Block block = Block.range(indexedHead, head.getSha1(), newEntries);
+    ranges.add(block);
+    indexedHead = head.getSha1();
+    persist(block);
+  }
+
+  /**
+   * Continues indexing the log of the base until a commit {@code matches}. Returns that commit, or
+   * null if the rest of the log doesn't have any.
+   */
+  @Nullable
+  private Entry extendBase(ChangeReader.Builder changeReader, String labelName, int batchSize,
+      Predicate<Entry> matches) throws RepoException {
+    List<Entry> newEntries = new ArrayList<>();
+    int[] visited = {0};
+    Entry[] found = {null};
+    changeReader.setSkip(scanned).build().visit(base, change -> {
+      visited[0]++;
+      Entry entry = toEntry(change, labelName);
+      if (entry == null) {
+        return VisitResult.CONTINUE;
+      }
+      newEntries.add(entry);
+      if (matches.test(entry)) {
+        found[0] = entry;
+        return VisitResult.TERMINATE;
+      }
+      return VisitResult.CONTINUE;
+    }, batchSize);
+    boolean terminated = found[0] != null;
+    logger.atInfo().log("Indexed %d commits with label %s in %s after skipping %d", visited[0],
+        labelName, base, scanned);
+    Block block = Block.base(base, scanned, scanned + visited[0], !terminated, newEntries);
+    baseBlocks.add(block);
+    scanned += visited[0];
+    complete = !terminated;
+    persist(block);
+    return found[0];
+  }
+
+  @Nullable
+  private static Entry toEntry(Change<?> change, String labelName) {
+    if (!change.getLabels().containsKey(labelName) || change.getChangeFiles() == null) {
+      return null;
+    }
+    return new Entry(((GitRevision) change.getRevision()).getSha1(),
+        ImmutableList.copyOf(change.getLabels().get(labelName)), change.getChangeFiles());
+  }
+
+  /**
+   * Returns true if {@code commit} descends from {@code ancestor}. In first-parent mode,
+   * {@code ancestor} also needs to be in the first-parent chain of {@code commit}, otherwise the
+   * index would keep the commits of a merged branch.
+   */
+  private boolean descends(String commit, String ancestor) {
+    try {
+      if (!repository.isAncestor(ancestor, commit)) {
+        return false;
+      }
+      if (!firstParent) {
+        return true;
+      }
+      // The oldest commit of the first-parent chain that is not in the history of the ancestor
+      // has the ancestor as first parent.
+      List<String> chain = Splitter.on('\n').omitEmptyStrings().splitToList(repository
+          .simpleCommand("rev-list", "--first-parent", "--parents", ancestor + ".." + commit)
+          .getStdout());
+      if (chain.isEmpty()) {
+        return true;
+      }
+      List<String> oldest = Splitter.on(' ').splitToList(Iterables.getLast(chain).trim());
+      return oldest.size() > 1 && oldest.get(1).equals(ancestor);
+    } catch (RepoException e) {
+      // For example if the indexed head doesn't exist anymore.
+      logger.atWarning().withCause(e).log("Cannot check if %s is an ancestor of %s", ancestor,
+          commit);
+      return false;
+    }
+  }
+
+  private void persist(Block block) {
+    if (rewrite || blocks >= MAX_BLOCKS) {
+      writeAll();
+    } else {
+      append(block);
+    }
+  }
+
+  private void read() {
+    byte[] content;
+    try {
+      content = Files.readAllBytes(file);
+    } catch (NoSuchFileException e) {
+      // Not indexed yet
+      return;
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot read label index %s. Rebuilding it.", file);
+      return;
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+    String head = null;
+    String readBase = null;
+    int readScanned = 0;
+    boolean readComplete = false;
+    List<Block> readRanges = new ArrayList<>();
+    List<Block> readBaseBlocks = new ArrayList<>();
+    int numBlocks = 0;
+    boolean valid = true;
+    try {
+      if (in.readInt() != VERSION) {
+        return;
+      }
+      while (in.available() > 0) {
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length < 0 || length > in.available()) {
+          // Partially written block
+          valid = false;
+          break;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        if (Hashing.crc32c().hashBytes(bytes).asInt() != checksum) {
+          valid = false;
+          break;
+        }
+        Block block = Block.read(bytes);
+        numBlocks++;
+        if (block.type == BASE_BLOCK && block.from == 0) {
+          // The index was rebuilt
+          head = block.base;
+          readBase = block.base;
+          readRanges = new ArrayList<>();
+          readBaseBlocks = new ArrayList<>();
+        } else if (block.type == BASE_BLOCK
+            ? !block.base.equals(readBase) || block.from != readScanned
+            : !block.previousHead.equals(head)) {
+          // Appended concurrently by another process for a different state. Skip it.
+          continue;
+        }
+        if (block.type == BASE_BLOCK) {
+          readBaseBlocks.add(block);
+          readScanned = block.to;
+          readComplete = block.complete;
+        } else {
+          readRanges.add(block);
+          head = block.newHead;
+        }
+      }
+    } catch (IOException e) {
+      valid = false;
+    }
+    if (!valid) {
+      logger.atWarning().log("Label index %s is corrupted. Rewriting it.", file);
+    }
+    if (head == null) {
+      return;
+    }
+    indexedHead = head;
+    base = readBase;
+    scanned = readScanned;
+    complete = readComplete;
+    ranges = readRanges;
+    baseBlocks = readBaseBlocks;
+    blocks = numBlocks;
+    rewrite = !valid;
+  }
+
+  /** Rewrites the index with a block for the base and one for the commits on top of it. */
+  private void writeAll() {
+    Path tmp = null;
+    try {
+      List<Entry> baseEntries = new ArrayList<>();
+      for (Block block : baseBlocks) {
+        baseEntries.addAll(block.getEntries());
+      }
+      List<Entry> rangeEntries = new ArrayList<>();
+      for (Block block : Lists.reverse(ranges)) {
+        rangeEntries.addAll(block.getEntries());
+      }
+      Files.createDirectories(file.getParent());
+      tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      int written = 1;
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(VERSION);
+        out.write(Block.base(base, 0, scanned, complete, baseEntries).serialize());
+        if (!indexedHead.equals(base)) {
+          out.write(Block.range(base, indexedHead, rangeEntries).serialize());
+          written++;
+        }
+      }
+      try {
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      blocks = written;
+      rewrite = false;
+    } catch (IOException | RepoException e) {
+      // Not fatal, we will index again the next time.
+      logger.atWarning().withCause(e).log("Cannot write label index %s", file);
+    } finally {
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("Cannot delete %s", tmp);
+        }
+      }
+    }
+  }
+
+  private void append(Block block) {
+    try {
+      Files.write(file, block.serialize(), StandardOpenOption.APPEND);
+      blocks++;
+    } catch (IOException | RepoException e) {
+      logger.atWarning().withCause(e).log("Cannot append to label index %s", file);
+      // The file might end with a partial block
+      rewrite = true;
+    }
+  }
+
+  /**
+   * A block of the index file. The entries are kept serialized until they are needed.
+   */
+  private static final class Block {
+
+    private final byte type;
+    // For range blocks
+    @Nullable private final String previousHead;
+    @Nullable private final String newHead;
+    // For base blocks, the commits [from, to) of the log of base
+    @Nullable private final String base;
+    private final int from;
+    private final int to;
+    private final boolean complete;
+    @Nullable private List<Entry> entries;
+    @Nullable private byte[] serializedEntries;
+
+    private Block(byte type, @Nullable String previousHead, @Nullable String newHead,
+        @Nullable String base, int from, int to, boolean complete, @Nullable List<Entry> entries,
+        @Nullable byte[] serializedEntries) {
+      this.type = type;
+      this.previousHead = previousHead;
+      this.newHead = newHead;
+      this.base = base;
+      this.from = from;
+      this.to = to;
+      this.complete = complete;
+      this.entries = entries;
+      this.serializedEntries = serializedEntries;
+    }
+
+    private static Block range(String previousHead, String newHead, List<Entry> entries) {
+      return new Block(RANGE_BLOCK, previousHead, newHead, /*base=*/ null, 0, 0,
+          /*complete=*/ false, entries, /*serializedEntries=*/ null);
+    }
+
+    private static Block base(String base, int from, int to, boolean complete,
+        List<Entry> entries) {
+      return new Block(BASE_BLOCK, /*previousHead=*/ null, /*newHead=*/ null, base, from, to,
+          complete, entries, /*serializedEntries=*/ null);
+    }
+
+    /** Reads the header of a block. The entries are parsed on first use. */
+    private static Block read(byte[] bytes) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      byte type = in.readByte();
+      String previousHead = null;
+      String newHead = null;
+      String base = null;
+      int from = 0;
+      int to = 0;
+      boolean complete = false;
+      if (type == RANGE_BLOCK) {
+        previousHead = readString(in);
+        newHead = readString(in);
+      } else if (type == BASE_BLOCK) {
+        base = readString(in);
+        from = in.readInt();
+        to = in.readInt();
+        complete = in.readBoolean();
+      } else {
+        throw new IOException("Unknown block type " + type);
+      }
+      byte[] serializedEntries = Arrays.copyOfRange(bytes, bytes.length - in.available(),
+          bytes.length);
+      return new Block(type, previousHead, newHead, base, from, to, complete,
+          /*entries=*/ null, serializedEntries);
+    }
+
+    /** Returns the entries of the block, newest first. */
+    private List<Entry> getEntries() throws RepoException {
+      if (entries == null) {
+        try {
+          entries = readEntries(new DataInputStream(new ByteArrayInputStream(serializedEntries)));
+        } catch (IOException e) {
+          // The checksum of the block was already verified
+          throw new RepoException("Cannot parse label index entries", e);
+        }
+        serializedEntries = null;
+      }
+      return entries;
+    }
+
+    /** Returns the block with its length and checksum. */
+    private byte[] serialize() throws IOException, RepoException {
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(content);
+      out.writeByte(type);
+      if (type == RANGE_BLOCK) {
+        writeString(out, previousHead);
+        writeString(out, newHead);
+      } else {
+        writeString(out, base);
+        out.writeInt(from);
+        out.writeInt(to);
+        out.writeBoolean(complete);
+      }
+      List<Entry> blockEntries = getEntries();
+      out.writeInt(blockEntries.size());
+      for (Entry entry : blockEntries) {
+        writeString(out, entry.sha1);
+        out.writeInt(entry.labelValues.size());
+        for (String value : entry.labelValues) {
+          writeString(out, value);
+        }
+        out.writeInt(entry.files.size());
+        for (String f : entry.files) {
+          writeString(out, f);
+        }
+      }
+      byte[] bytes = content.toByteArray();
+      ByteArrayOutputStream block = new ByteArrayOutputStream(bytes.length + 8);
+      DataOutputStream blockOut = new DataOutputStream(block);
+      blockOut.writeInt(bytes.length);
+      blockOut.writeInt(Hashing.crc32c().hashBytes(bytes).asInt());
+      blockOut.write(bytes);
+      return block.toByteArray();
+    }
+  }
+
+  private static List<Entry> readEntries(DataInputStream in) throws IOException {
+    int numEntries = in.readInt();
+    List<Entry> read = new ArrayList<>(numEntries);
+    for (int i = 0; i < numEntries; i++) {
+      String sha1 = readString(in);
+      ImmutableList.Builder<String> values = ImmutableList.builder();
+      for (int j = in.readInt(); j > 0; j--) {
+        values.add(readString(in));
+      }
+      ImmutableSet.Builder<String> files = ImmutableSet.builder();
+      for (int j = in.readInt(); j > 0; j--) {
+        files.add(readString(in));
+      }
+      read.add(new Entry(sha1, values.build(), files.build()));
+    }
+    return read;
+  }
+
+  private static void writeString(DataOutputStream out, String str) throws IOException {
+    byte[] bytes = str.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
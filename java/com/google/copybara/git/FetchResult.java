@@ -25,7 +25,8 @@ import java.util.stream.Collectors;
 
 /**
  * The result of executing git fetch command
- * ({@link GitRepository#fetch(String, boolean, boolean, Iterable)}.
+ * ({@link GitRepository#fetch(String, boolean, boolean, Iterable)}. Also used for the changes to
+ * the destination references of an incremental mirror.
  */
 public class FetchResult {
 
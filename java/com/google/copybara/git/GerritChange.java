@@ -175,7 +175,7 @@ class GerritChange {
   GitRevision fetch(ImmutableMultimap<String, String> additionalLabels)
       throws RepoException, ValidationException {
     String metaRef = String.format("refs/changes/%02d/%d/meta", change % 100, change);
-    repository.fetch(repoUrl, /*prune=*/true, /*force=*/true,
+    repository.fetchWithoutResult(repoUrl, /*prune=*/true, /*force=*/true,
         ImmutableList.of(ref + ":refs/gerrit/" + ref, metaRef + ":refs/gerrit/" + metaRef));
     GitRevision gitRevision = repository.resolveReference("refs/gerrit/" + ref);
     GitRevision metaRevision = repository.resolveReference("refs/gerrit/" + metaRef);
@@ -219,7 +219,7 @@ public final class GerritDestination implements Destination<GitRevision> {
         ChangeInfo changeInfo = changes.get(0);
 
         try (ProfilerTask ignore2 = generalOptions.profiler().start("fetch_previous_patchset")) {
-          repo.fetch(repoUrl, /*prune=*/ false, /*force=*/ true,
+          repo.fetchWithoutResult(repoUrl, /*prune=*/ false, /*force=*/ true,
               ImmutableList.of(changeInfo.getCurrentRevision()));
         } catch (RepoException | ValidationException e) {
           // Don't fail if we cannot find the previous patchset
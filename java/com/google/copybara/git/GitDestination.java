@@ -35,7 +35,6 @@ import com.google.copybara.Change;
 import com.google.copybara.ChangeMessage;
 import com.google.copybara.Destination;
 import com.google.copybara.DestinationEffect;
-import com.google.copybara.DestinationStatusVisitor;
 import com.google.copybara.Endpoint;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.LabelFinder;
@@ -165,7 +164,8 @@ public final class GitDestination implements Destination<GitRevision> {
         destinationOptions.committerEmail,
         destinationOptions.rebaseWhenBaseline(),
         gitOptions.visitChangePageSize,
-        gitOptions.gitTagOverwrite);
+        gitOptions.gitTagOverwrite,
+        gitOptions.getLogCache());
   }
 
   /**
@@ -214,6 +214,7 @@ public final class GitDestination implements Destination<GitRevision> {
     private final boolean rebase;
     private final int visitChangePageSize;
     private final boolean gitTagOverwrite;
+    @Nullable private final GitLogCache logCache;
 
     /**
      * Create a new git.destination writer
@@ -224,7 +225,7 @@ public final class GitDestination implements Destination<GitRevision> {
         boolean nonFastForwardPush, Iterable<GitIntegrateChanges> integrates,
         boolean lastRevFirstParent, boolean ignoreIntegrationErrors, String localRepoPath,
         String committerName, String committerEmail, boolean rebase, int visitChangePageSize,
-        boolean gitTagOverwrite) {
+        boolean gitTagOverwrite, @Nullable GitLogCache logCache) {
       this.skipPush = skipPush;
       this.repoUrl = checkNotNull(repoUrl);
       this.remoteFetch = checkNotNull(remoteFetch);
@@ -246,6 +247,7 @@ public final class GitDestination implements Destination<GitRevision> {
       this.rebase = rebase;
       this.visitChangePageSize = visitChangePageSize;
       this.gitTagOverwrite = gitTagOverwrite;
+      this.logCache = logCache;
     }
 
     @Override
@@ -264,7 +266,8 @@ public final class GitDestination implements Destination<GitRevision> {
       }
       ChangeReader.Builder queryChanges =
           ChangeReader.Builder.forDestination(repository, baseConsole)
-              .setVerbose(generalOptions.isVerbose());
+              .setVerbose(generalOptions.isVerbose())
+              .setLogCache(logCache);
 
       GitVisitorUtil.visitChanges(
           start == null ? startRef : start,
@@ -305,26 +308,24 @@ public final class GitDestination implements Destination<GitRevision> {
       }
 
       PathMatcher pathMatcher = destinationFiles.relativeTo(Paths.get(""));
-      DestinationStatusVisitor visitor = new DestinationStatusVisitor(pathMatcher, labelName);
       ChangeReader.Builder changeReader =
           ChangeReader.Builder.forDestination(repo, baseConsole)
               .setVerbose(generalOptions.isVerbose())
               .setFirstParent(lastRevFirstParent)
-              .grep("^" + labelName + ORIGIN_LABEL_SEPARATOR);
-      try {
+              .grep("^" + labelName + ORIGIN_LABEL_SEPARATOR)
+              .setLogCache(logCache);
+      DestinationLabelIndex.Entry entry;
+      try (ProfilerTask ignore = generalOptions.profiler().start("get_destination_status")) {
+        DestinationLabelIndex index =
+            DestinationLabelIndex.load(repo, remoteFetch, labelName, lastRevFirstParent);
         // Using same visitChangePageSize for now
-        GitVisitorUtil.visitChanges(
-            startRef,
-            visitor,
-            changeReader,
-            generalOptions,
-            "get_destination_status",
-            visitChangePageSize);
-      } catch (CannotResolveRevisionException e) {
-        // TODO: handle
-        return null;
+        entry = index.find(startRef, changeReader, labelName, visitChangePageSize,
+            e -> e.getFiles().stream()
+                .anyMatch(file -> pathMatcher.matches(Paths.get('/' + file))));
       }
-      return visitor.getDestinationStatus();
+      return entry == null
+          ? null
+          : new DestinationStatus(Iterables.getLast(entry.getLabelValues()), ImmutableList.of());
     }
 
     @Override
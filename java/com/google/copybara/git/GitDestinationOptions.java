@@ -28,7 +28,6 @@ import com.google.copybara.exception.RepoException;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.UUID;
 import java.util.stream.Stream;
 import javax.annotation.Nullable;
@@ -119,7 +118,7 @@ public final class GitDestinationOptions implements Option {
         return gitOptions.cachedBareRepoForUrl(url)
             .withWorkTree(generalOptions.getDirFactory().newTempDir("git_dest"));
       }
-      Path path = Paths.get(localRepoPath);
+      Path path = generalOptions.resolvePath(localRepoPath);
 
       if (!Files.exists(path) || (Files.isDirectory(path) && isGitRepoOrEmptyDir(path))) {
         Files.createDirectories(path);
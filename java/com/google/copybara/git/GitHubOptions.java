@@ -21,6 +21,7 @@ import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.LazyResourceLoader;
 import com.google.copybara.Option;
@@ -31,8 +32,12 @@ import com.google.copybara.git.github.api.GitHubApi;
 import com.google.copybara.git.github.api.GitHubApiTransport;
 import com.google.copybara.git.github.api.GitHubApiTransportImpl;
 import com.google.copybara.git.github.api.GitHubApiTransportWithChecker;
+import com.google.copybara.git.github.api.GitHubRateLimiter;
 import com.google.copybara.git.github.util.GitHubUtil;
 import com.google.copybara.util.console.Console;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
 import javax.annotation.Nullable;
 
 /**
@@ -40,8 +45,12 @@ import javax.annotation.Nullable;
  */
 public class GitHubOptions implements Option {
 
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
   protected final GeneralOptions generalOptions;
   private final GitOptions gitOptions;
+  // Shared by all the transports, since the quota is per user.
+  private final GitHubRateLimiter rateLimiter = new GitHubRateLimiter();
 
   public GitHubOptions(GeneralOptions generalOptions, GitOptions gitOptions) {
     this.generalOptions = Preconditions.checkNotNull(generalOptions);
@@ -86,13 +95,36 @@ public class GitHubOptions implements Option {
     if (checker != null) {
       transport = new GitHubApiTransportWithChecker(transport, checker, console);
     }
-    return new GitHubApi(transport, generalOptions.profiler());
+    return new GitHubApi(transport, generalOptions.profiler(),
+        gitHubApiParallel ? GitHubOptions::runInNewThread : null);
+  }
+
+  /**
+   * Runs the GitHub API requests in their own thread. We don't use a pool so that the profiler
+   * tasks of the request are children of the task that started it.
+   */
+  private static void runInNewThread(Runnable runnable) {
+    Thread thread = new Thread(runnable, "github-api");
+    thread.setDaemon(true);
+    thread.start();
   }
 
   @Parameter(names = "--github-destination-delete-pr-branch",
       description = "Overwrite git.github_destination delete_pr_branch field", arity = 1)
   Boolean gitHubDeletePrBranch = null;
 
+  @Parameter(names = "--github-api-cache",
+      description = "Cache the GitHub API GET responses in the Copybara cache directory and"
+          + " revalidate them with conditional requests, that don't count against the rate"
+          + " limit. The responses can contain data of private repositories and are stored"
+          + " unencrypted, only readable by the user.", arity = 1, hidden = true)
+  boolean gitHubApiCache = false;
+
+  @Parameter(names = "--github-api-parallel",
+      description = "Run independent GitHub API requests, like the pages of a list, in parallel.",
+      arity = 1, hidden = true)
+  boolean gitHubApiParallel = true;
+
   @VisibleForTesting
   protected GitRepository getCredentialsRepo() throws RepoException {
     return gitOptions.cachedBareRepoForUrl("just_for_github_api");
@@ -105,7 +137,25 @@ public class GitHubOptions implements Option {
 
   private GitHubApiTransport newTransport(
       GitRepository repo, String storePath, Console console) {
-    return new GitHubApiTransportImpl(repo, newHttpTransport(), storePath, console);
+    return new GitHubApiTransportImpl(repo, newHttpTransport(), storePath, console,
+        getApiCacheDir(), rateLimiter);
+  }
+
+  /**
+   * Returns the directory for caching GitHub API responses or null if disabled or the directory
+   * cannot be created.
+   */
+  @Nullable
+  private Path getApiCacheDir() {
+    if (!gitHubApiCache) {
+      return null;
+    }
+    try {
+      return generalOptions.getDirFactory().getCacheDir("github_api");
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot create the GitHub API cache. Not using it.");
+      return null;
+    }
   }
 
   protected HttpTransport newHttpTransport() {
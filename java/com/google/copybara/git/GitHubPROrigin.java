@@ -51,9 +51,11 @@ import com.google.copybara.git.GitOrigin.SubmoduleStrategy;
 import com.google.copybara.git.GitRepository.GitLogEntry;
 import com.google.copybara.git.github.api.AuthorAssociation;
 import com.google.copybara.git.github.api.GitHubApi;
+import com.google.copybara.git.github.api.GitHubApi.PendingResult;
 import com.google.copybara.git.github.api.Issue;
 import com.google.copybara.git.github.api.Issue.Label;
 import com.google.copybara.git.github.api.PullRequest;
+import com.google.copybara.git.github.api.PullRequestDetails;
 import com.google.copybara.git.github.api.Review;
 import com.google.copybara.git.github.api.User;
 import com.google.copybara.git.github.util.GitHubUtil;
@@ -203,19 +205,33 @@ public class GitHubPROrigin implements Origin<GitRevision> {
         checkNotNull(revisionTo, "revisionTo should not be null").getSha1());
   }
 
+  private PullRequestDetails getPullRequestDetails(GitHubApi api, String project, int prNumber)
+      throws RepoException, ValidationException {
+    try (ProfilerTask ignore = generalOptions.profiler().start("github_api_get_pr_details")) {
+      return api.getPullRequestDetails(project, prNumber);
+    }
+  }
+
   private GitRevision getRevisionForPR(String project, int prNumber)
       throws RepoException, ValidationException {
     GitHubApi api = gitHubOptions.newGitHubApi(project);
     Set<String> requiredLabels = gitHubPrOriginOptions.getRequiredLabels(requiredLabelsField);
     Set<String> retryableLabels = gitHubPrOriginOptions.getRetryableLabels(retryableLabelsField);
 
+    // With GraphQL, the pull request, its labels and its reviews are fetched in one request.
+    PullRequestDetails details = null;
     if (!gitHubPrOriginOptions.forceImport && !requiredLabels.isEmpty()) {
       int retryCount = 0;
       Set<String> requiredButNotPresent;
       do {
         Issue issue;
-        try (ProfilerTask ignore = generalOptions.profiler().start("github_api_get_issue")) {
-          issue = api.getIssue(project, prNumber);
+        if (gitHubPrOriginOptions.useGraphQl) {
+          details = getPullRequestDetails(api, project, prNumber);
+          issue = details.getIssue();
+        } else {
+          try (ProfilerTask ignore = generalOptions.profiler().start("github_api_get_issue")) {
+            issue = api.getIssue(project, prNumber);
+          }
         }
 
         requiredButNotPresent = Sets.newHashSet(requiredLabels);
@@ -240,9 +256,25 @@ public class GitHubPROrigin implements Origin<GitRevision> {
 
     ImmutableListMultimap.Builder<String, String> labels = ImmutableListMultimap.builder();
 
+    if (gitHubPrOriginOptions.useGraphQl && details == null) {
+      details = getPullRequestDetails(api, project, prNumber);
+    }
+
+    PendingResult<ImmutableList<Review>> pendingReviews = null;
+    if (reviewState != null) {
+      // Reviews don't depend on the pull request data, so get them in parallel if possible.
+      pendingReviews = details != null
+          ? details::getReviews
+          : api.getReviewsAsync(project, prNumber);
+    }
+
     PullRequest prData;
-    try (ProfilerTask ignore = generalOptions.profiler().start("github_api_get_pr")) {
-      prData = api.getPullRequest(project, prNumber);
+    if (details != null) {
+      prData = details.getPullRequest();
+    } else {
+      try (ProfilerTask ignore = generalOptions.profiler().start("github_api_get_pr")) {
+        prData = api.getPullRequest(project, prNumber);
+      }
     }
 
     if (!gitHubPrOriginOptions.forceImport
@@ -256,7 +288,7 @@ public class GitHubPROrigin implements Origin<GitRevision> {
           branch));
     }
     if (reviewState != null) {
-      ImmutableList<Review> reviews = api.getReviews(project, prNumber);
+      ImmutableList<Review> reviews = pendingReviews.get();
       if (!gitHubPrOriginOptions.forceImport
           && !reviewState.shouldMigrate(reviews, reviewApprovers, prData.getHead().getSha())) {
         throw new EmptyChangeException(String.format(
@@ -301,7 +333,8 @@ public class GitHubPROrigin implements Origin<GitRevision> {
         refSpecBuilder.add(String.format("%s:%s", asMergeRef(prNumber), LOCAL_PR_MERGE_REF));
       }
       ImmutableList<String> refspec = refSpecBuilder.build();
-      getRepository().fetch(asGithubUrl(project),/*prune=*/false,/*force=*/true, refspec);
+      getRepository().fetchWithoutResult(asGithubUrl(project), /*prune=*/ false,
+          /*force=*/ true, refspec);
     } catch (CannotResolveRevisionException e) {
       if (useMerge) {
         throw new CannotResolveRevisionException(
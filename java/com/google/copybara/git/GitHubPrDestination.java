@@ -164,7 +164,8 @@ public class GitHubPrDestination implements Destination<GitRevision> {
         destinationOptions.committerEmail,
         destinationOptions.rebaseWhenBaseline(),
         gitOptions.visitChangePageSize,
-        gitOptions.gitTagOverwrite) {
+        gitOptions.gitTagOverwrite,
+        gitOptions.getLogCache()) {
       @Override
       public ImmutableList<DestinationEffect> write(
           TransformResult transformResult, Glob destinationFiles, Console console)
@@ -49,6 +49,11 @@ public class GitHubPrOriginOptions implements Option {
       + " of the PR")
   public boolean forceImport = false;
 
+  @Parameter(names = "--github-pr-graphql", description = "Get the Pull Request data, labels and"
+      + " reviews with a single GitHub GraphQL request instead of several REST requests. Requires"
+      + " GitHub credentials.", arity = 1, hidden = true)
+  public boolean useGraphQl = false;
+
   /**
    * Compute the labels that should be required by git.github_pr_origin for importing a
    * Pull Request.
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.git;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.copybara.authoring.Author;
+import com.google.copybara.git.GitRepository.GitLogEntry;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
+
+/**
+ * An on-disk cache of {@link GitLogEntry}s keyed by SHA-1.
+ *
+ * <p>Commits are immutable, so entries never go stale. Only entries that include the body and the
+ * files changed (against the first parent for merges) are stored, which is what {@link
+ * ChangeReader} reads.
+ *
+ * <p>Entries are appended in a compact binary format to segment files ('.pack'). Each segment has
+ * an index file ('.idx') with the SHA-1, offset and length of its entries, that is appended after
+ * the entries, so that it only points to complete entries. Each cache instance writes to its own
+ * segment, so concurrent processes don't interfere. The indexes are loaded the first time the
+ * cache is used, and old segments are compacted into a single one when there are too many.
+ *
+ * <p>The cache is best effort: I/O errors are logged and treated as a cache miss.
+ */
+final class GitLogCache {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final int VERSION = 2;
+  private static final String SEGMENT_SUFFIX = ".pack";
+  private static final String INDEX_SUFFIX = ".idx";
+  private static final int HEADER_SIZE = 4;
+  /** A new segment is started when the current one reaches this size. */
+  private static final long MAX_SEGMENT_SIZE = 256L * 1024 * 1024;
+  /** Old segments are compacted into a single one when there are more than this number. */
+  static final int MAX_SEGMENTS = 32;
+  /** Segments modified recently might still be written by another process. */
+  static final Duration COMPACTION_MIN_AGE = Duration.ofHours(1);
+
+  private final Path dir;
+  // SHA-1 -> location of the entry. Lazily loaded from the segment indexes.
+  @Nullable private Map<String, EntryLocation> index;
+  // The segment where this instance appends entries
+  @Nullable private Path currentSegment;
+  private long currentSegmentSize;
+
+  GitLogCache(Path dir) {
+    this.dir = Preconditions.checkNotNull(dir);
+  }
+
+  /**
+   * Returns the cached entry for {@code sha1} or null if it is not in the cache.
+   */
+  @Nullable
+  synchronized GitLogEntry get(GitRepository repository, String sha1) {
+    EntryLocation location = index().get(sha1);
+    if (location == null) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(read(location)));
+      if (!readString(in).equals(sha1)) {
+        logger.atWarning().log("Unexpected git log cache entry for %s in %s", sha1,
+            location.segment);
+        return null;
+      }
+      int numParents = in.readInt();
+      ImmutableList.Builder<GitRevision> parents = ImmutableList.builder();
+      for (int i = 0; i < numParents; i++) {
+        parents.add(new GitRevision(repository, readString(in)));
+      }
+      String tree = readString(in);
+      Author author = new Author(readString(in), readString(in));
+      Author committer = new Author(readString(in), readString(in));
+      ZonedDateTime authorDate = ZonedDateTime.parse(readString(in));
+      ZonedDateTime commitDate = ZonedDateTime.parse(readString(in));
+      String body = readString(in);
+      int numFiles = in.readInt();
+      ImmutableSet.Builder<String> files = ImmutableSet.builder();
+      for (int i = 0; i < numFiles; i++) {
+        files.add(readString(in));
+      }
+      return new GitLogEntry(new GitRevision(repository, sha1), parents.build(), tree, author,
+          committer, authorDate, commitDate, body, files.build());
+    } catch (NoSuchFileException e) {
+      // Compacted by another process
+      return null;
+    } catch (IOException | RuntimeException e) {
+      logger.atWarning().withCause(e).log("Cannot read git log cache entry %s from %s", sha1,
+          location.segment);
+      return null;
+    }
+  }
+
+  /**
+   * Stores {@code entry} in the cache. The entry needs to include the body and the files.
+   */
+  void put(GitLogEntry entry) {
+    putAll(ImmutableList.of(entry));
+  }
+
+  /**
+   * Stores {@code entries} in the cache with a single write. The entries need to include the body
+   * and the files.
+   */
+  synchronized void putAll(Collection<GitLogEntry> entries) {
+    for (GitLogEntry entry : entries) {
+      Preconditions.checkArgument(entry.getBody() != null && entry.getFiles() != null,
+          "Only entries with body and files can be cached: %s", entry);
+    }
+    if (entries.isEmpty()) {
+      return;
+    }
+    Map<String, EntryLocation> index = index();
+    try {
+      if (currentSegment == null || currentSegmentSize >= MAX_SEGMENT_SIZE) {
+        currentSegment = createSegment(dir.resolve(newSegmentName()));
+        currentSegmentSize = HEADER_SIZE;
+      }
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      DataOutputStream recordsOut = new DataOutputStream(records);
+      ByteArrayOutputStream indexRecords = new ByteArrayOutputStream();
+      DataOutputStream indexOut = new DataOutputStream(indexRecords);
+      Map<String, EntryLocation> added = new LinkedHashMap<>();
+      for (GitLogEntry entry : entries) {
+        long offset = currentSegmentSize + records.size();
+        writeEntry(recordsOut, entry);
+        int length = (int) (currentSegmentSize + records.size() - offset);
+        String sha1 = entry.getCommit().getSha1();
+        writeIndexRecord(indexOut, sha1, offset, length);
+        added.put(sha1, new EntryLocation(currentSegment, offset, length));
+      }
+      Files.write(currentSegment, records.toByteArray(), StandardOpenOption.APPEND);
+      currentSegmentSize += records.size();
+      Files.write(indexFile(currentSegment), indexRecords.toByteArray(),
+          StandardOpenOption.APPEND);
+      index.putAll(added);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot write git log cache entries to %s",
+          currentSegment);
+      // The segment might have a partial entry. Use a new one the next time.
+      currentSegment = null;
+    }
+  }
+
+  private Map<String, EntryLocation> index() {
+    if (index == null) {
+      index = new HashMap<>();
+      List<Path> segments = listSegments();
+      // Newer segments win, although the entries for a SHA-1 should be the same.
+      for (Path segment : segments) {
+        readIndex(segment, index);
+      }
+      if (segments.size() > MAX_SEGMENTS) {
+        compact(segments);
+      }
+    }
+    return index;
+  }
+
+  /** Returns the segments in the cache directory, oldest first. */
+  private List<Path> listSegments() {
+    if (!Files.isDirectory(dir)) {
+      return ImmutableList.of();
+    }
+    try (Stream<Path> files = Files.list(dir)) {
+      return files
+          .map(p -> p.getFileName().toString())
+          .filter(name -> name.endsWith(INDEX_SUFFIX))
+          .sorted()
+          .map(name -> dir.resolve(
+              name.substring(0, name.length() - INDEX_SUFFIX.length()) + SEGMENT_SUFFIX))
+          .collect(Collectors.toList());
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot list git log cache segments in %s", dir);
+      return ImmutableList.of();
+    }
+  }
+
+  private static void readIndex(Path segment, Map<String, EntryLocation> index) {
+    Path indexFile = indexFile(segment);
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+      if (in.readInt() != VERSION) {
+        return;
+      }
+      while (true) {
+        String sha1;
+        long offset;
+        int length;
+        try {
+          sha1 = in.readUTF();
+          offset = in.readLong();
+          length = in.readInt();
+        } catch (EOFException e) {
+          // End of the index or a partial record that is still being written.
+          return;
+        }
+        index.put(sha1, new EntryLocation(segment, offset, length));
+      }
+    } catch (NoSuchFileException | EOFException e) {
+      // Compacted by another process or empty
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot read git log cache index %s", indexFile);
+    }
+  }
+
+  /**
+   * Copies the entries of the segments that are not written anymore to a new segment and deletes
+   * them.
+   */
+  private void compact(List<Path> segments) {
+    Instant maxModifiedTime = Instant.now().minus(COMPACTION_MIN_AGE);
+    Set<Path> old = new LinkedHashSet<>();
+    for (Path segment : segments) {
+      try {
+        if (Files.getLastModifiedTime(indexFile(segment)).toInstant().isBefore(maxModifiedTime)) {
+          old.add(segment);
+        }
+      } catch (IOException e) {
+        // Deleted by another process
+      }
+    }
+    if (old.size() < 2) {
+      return;
+    }
+    String name = newSegmentName();
+    Path tmpSegment = dir.resolve(name + SEGMENT_SUFFIX + ".tmp");
+    Path tmpIndex = dir.resolve(name + INDEX_SUFFIX + ".tmp");
+    Path compacted = dir.resolve(name + SEGMENT_SUFFIX);
+    Map<String, EntryLocation> moved = new HashMap<>();
+    try {
+      try (DataOutputStream segmentOut = new DataOutputStream(
+              new BufferedOutputStream(Files.newOutputStream(tmpSegment)));
+          DataOutputStream indexOut = new DataOutputStream(
+              new BufferedOutputStream(Files.newOutputStream(tmpIndex)))) {
+        segmentOut.writeInt(VERSION);
+        indexOut.writeInt(VERSION);
+        Map<Path, List<Map.Entry<String, EntryLocation>>> bySegment = new LinkedHashMap<>();
+        for (Map.Entry<String, EntryLocation> entry : index.entrySet()) {
+          if (old.contains(entry.getValue().segment)) {
+            bySegment.computeIfAbsent(entry.getValue().segment, k -> new ArrayList<>())
+                .add(entry);
+          }
+        }
+        long offset = HEADER_SIZE;
+        for (Map.Entry<Path, List<Map.Entry<String, EntryLocation>>> segment
+            : bySegment.entrySet()) {
+          try (FileChannel channel = FileChannel.open(segment.getKey(), StandardOpenOption.READ)) {
+            for (Map.Entry<String, EntryLocation> entry : segment.getValue()) {
+              EntryLocation location = entry.getValue();
+              segmentOut.write(read(channel, location));
+              writeIndexRecord(indexOut, entry.getKey(), offset, location.length);
+              moved.put(entry.getKey(), new EntryLocation(compacted, offset, location.length));
+              offset += location.length;
+            }
+          }
+        }
+      }
+      move(tmpSegment, compacted);
+      // The index is moved last, so that it only becomes visible when the segment is complete.
+      move(tmpIndex, indexFile(compacted));
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot compact git log cache segments in %s", dir);
+      deleteIfExists(tmpSegment);
+      deleteIfExists(tmpIndex);
+      return;
+    }
+    index.putAll(moved);
+    for (Path segment : old) {
+      deleteIfExists(indexFile(segment));
+      deleteIfExists(segment);
+    }
+    logger.atInfo().log("Compacted %d git log cache segments into %s", old.size(), compacted);
+  }
+
+  private static byte[] read(EntryLocation location) throws IOException {
+    try (FileChannel channel = FileChannel.open(location.segment, StandardOpenOption.READ)) {
+      return read(channel, location);
+    }
+  }
+
+  private static byte[] read(FileChannel channel, EntryLocation location) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(location.length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, location.offset + buffer.position()) < 0) {
+        throw new EOFException("Truncated git log cache segment " + location.segment);
+      }
+    }
+    return buffer.array();
+  }
+
+  /** Creates an empty segment and its index. */
+  private static Path createSegment(Path segment) throws IOException {
+    Files.createDirectories(segment.getParent());
+    byte[] header = header();
+    Files.write(segment, header, StandardOpenOption.CREATE_NEW);
+    Files.write(indexFile(segment), header, StandardOpenOption.CREATE_NEW);
+    return segment;
+  }
+
+  private static byte[] header() throws IOException {
+    ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE);
+    new DataOutputStream(header).writeInt(VERSION);
+    return header.toByteArray();
+  }
+
+  private static String newSegmentName() {
+    // Names sort by creation time
+    return String.format("%013d-%s", System.currentTimeMillis(), UUID.randomUUID());
+  }
+
+  private static Path indexFile(Path segment) {
+    String name = segment.getFileName().toString();
+    return segment.resolveSibling(
+        name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+  }
+
+  private static void move(Path from, Path to) throws IOException {
+    try {
+      Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static void deleteIfExists(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot delete %s", path);
+    }
+  }
+
+  private static void writeEntry(DataOutputStream out, GitLogEntry entry) throws IOException {
+    writeString(out, entry.getCommit().getSha1());
+    out.writeInt(entry.getParents().size());
+    for (GitRevision parent : entry.getParents()) {
+      writeString(out, parent.getSha1());
+    }
+    writeString(out, entry.getTree());
+    writeString(out, entry.getAuthor().getName());
+    writeString(out, entry.getAuthor().getEmail());
+    writeString(out, entry.getCommitter().getName());
+    writeString(out, entry.getCommitter().getEmail());
+    writeString(out, entry.getAuthorDate().toString());
+    writeString(out, entry.getCommitDate().toString());
+    writeString(out, entry.getBody());
+    out.writeInt(entry.getFiles().size());
+    for (String f : entry.getFiles()) {
+      writeString(out, f);
+    }
+  }
+
+  private static void writeIndexRecord(DataOutputStream out, String sha1, long offset, int length)
+      throws IOException {
+    out.writeUTF(sha1);
+    out.writeLong(offset);
+    out.writeInt(length);
+  }
+
+  // DataOutputStream.writeUTF is limited to 64K, that is not enough for some commit messages.
+  private static void writeString(DataOutputStream out, String str) throws IOException {
+    byte[] bytes = str.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  /** Where an entry is stored. */
+  private static final class EntryLocation {
+    private final Path segment;
+    private final long offset;
+    private final int length;
+
+    private EntryLocation(Path segment, long offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+}
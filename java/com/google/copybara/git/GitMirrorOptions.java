@@ -19,14 +19,27 @@ package com.google.copybara.git;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.Option;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.profiler.Profiler;
 import com.google.copybara.profiler.Profiler.ProfilerTask;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
 /**
  * Arguments for git.mirror migration.
@@ -34,6 +47,9 @@ import java.util.stream.Collectors;
 @Parameters(separators = "=")
 public class GitMirrorOptions implements Option {
 
+  // Above this number of differing references, all the refspecs are mirrored.
+  private static final int MAX_INCREMENTAL_REFS = 100;
+
   private final GitOptions gitOptions;
   private final GeneralOptions generalOptions;
 
@@ -46,8 +62,31 @@ public class GitMirrorOptions implements Option {
       description = "Force push even if it is not fast-forward")
   boolean forcePush = false;
 
-  public void mirror(String origin, String destination, List<Refspec> refspec, boolean prune)
-      throws RepoException, ValidationException {
+  @Parameter(names = "--git-mirror-incremental",
+      description = "Compare the origin and destination references with 'git ls-remote' before"
+          + " mirroring. If they already match, nothing is fetched or pushed. Otherwise only the"
+          + " references that differ are fetched and pushed.")
+  boolean incremental = false;
+
+  /**
+   * Mirrors the {@code refspec} references from {@code origin} to {@code destination}.
+   *
+   * @return the changes to the destination references, or null if they are unknown because all
+   *     the references were mirrored.
+   */
+  @Nullable
+  public FetchResult mirror(String origin, String destination, List<Refspec> refspec,
+      boolean prune) throws RepoException, ValidationException {
+    if (incremental && refspec.stream().allMatch(
+        r -> r.getOrigin().startsWith("refs/") && r.getDestination().startsWith("refs/"))) {
+      return incrementalMirror(origin, destination, refspec, prune);
+    }
+    fullMirror(origin, destination, refspec, prune);
+    return null;
+  }
+
+  private void fullMirror(String origin, String destination, List<Refspec> refspec,
+      boolean prune) throws RepoException, ValidationException {
     GitRepository repo = gitOptions.cachedBareRepoForUrl(origin);
     List<String> fetchRefspecs = refspec.stream()
         .map(r -> r.originToOrigin().toString())
@@ -57,7 +96,7 @@ public class GitMirrorOptions implements Option {
 
     Profiler profiler = generalOptions.profiler();
     try (ProfilerTask ignore = profiler.start("fetch")) {
-      repo.fetch(origin, /*prune=*/true, /*force=*/true, fetchRefspecs);
+      repo.fetchWithoutResult(origin, /*prune=*/true, /*force=*/true, fetchRefspecs);
     }
 
     if (generalOptions.dryRunMode) {
@@ -75,4 +114,130 @@ public class GitMirrorOptions implements Option {
       repo.push().prune(prune).withRefspecs(destination, pushRefspecs).run();
     }
   }
+
+  /**
+   * Lists the references of both repositories and only fetches and pushes the ones that differ.
+   * The commits fetched are pushed by SHA-1, so that the result matches what was pushed even if
+   * the origin changes after listing its references.
+   */
+  @Nullable
+  private FetchResult incrementalMirror(String origin, String destination,
+      List<Refspec> refspec, boolean prune) throws RepoException, ValidationException {
+    GitRepository repo = gitOptions.cachedBareRepoForUrl(origin);
+    Profiler profiler = generalOptions.profiler();
+
+    generalOptions.console().progressFmt("Listing references in %s and %s", origin, destination);
+    Map<String, String> originRefs;
+    Map<String, String> destinationRefs;
+    ExecutorService executor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("ls-remote-%d").setDaemon(true).build());
+    try (ProfilerTask ignore = profiler.start("ls_remote")) {
+      Future<Map<String, String>> destinationLsRemote = executor.submit(
+          () -> repo.lsRemoteFromRepo(destination,
+              refspec.stream().map(Refspec::getDestination).collect(Collectors.toList())));
+      originRefs = repo.lsRemoteFromRepo(origin,
+          refspec.stream().map(Refspec::getOrigin).collect(Collectors.toList()));
+      destinationRefs = getUninterruptibly(destinationLsRemote);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // Destination ref -> the refspec for the origin ref that should be pushed to it
+    Map<String, Refspec> toPush = new LinkedHashMap<>();
+    Map<String, String> expected = new HashMap<>();
+    for (Refspec spec : refspec) {
+      for (Map.Entry<String, String> ref : originRefs.entrySet()) {
+        if (ref.getKey().endsWith("^{}") || !spec.matchesOrigin(ref.getKey())) {
+          continue;
+        }
+        Refspec exact = spec.forOriginRef(ref.getKey());
+        if (expected.putIfAbsent(exact.getDestination(), ref.getValue()) == null
+            && !ref.getValue().equals(destinationRefs.get(exact.getDestination()))) {
+          toPush.put(exact.getDestination(), forcePush ? exact.withAllowNoFastForward() : exact);
+        }
+      }
+    }
+    Map<String, GitRevision> before = new HashMap<>();
+    for (Map.Entry<String, String> ref : destinationRefs.entrySet()) {
+      String name = ref.getKey();
+      if (!name.endsWith("^{}")
+          && refspec.stream().anyMatch(r -> r.destinationToDestination().matchesOrigin(name))) {
+        before.put(name, new GitRevision(repo, ref.getValue()));
+      }
+    }
+    Map<String, GitRevision> after = new HashMap<>(before);
+    List<Refspec> toDelete = new ArrayList<>();
+    if (prune) {
+      for (String name : before.keySet()) {
+        if (!expected.containsKey(name)) {
+          toDelete.add(Refspec.deleteRef(name));
+          after.remove(name);
+        }
+      }
+    }
+
+    if (toPush.isEmpty() && toDelete.isEmpty()) {
+      generalOptions.console().progressFmt("%s is already up to date with %s", destination,
+          origin);
+      return new FetchResult(ImmutableMap.copyOf(before), ImmutableMap.copyOf(after));
+    }
+    if (toPush.size() + toDelete.size() > MAX_INCREMENTAL_REFS) {
+      // Too many references for the command line, mirror everything.
+      fullMirror(origin, destination, refspec, prune);
+      return null;
+    }
+
+    List<Refspec> pushRefspecs = new ArrayList<>(toPush.size() + toDelete.size());
+    if (!toPush.isEmpty()) {
+      generalOptions.console().progressFmt("Fetching %d references from %s", toPush.size(),
+          origin);
+      List<String> originRefNames = toPush.values().stream()
+          .map(Refspec::getOrigin)
+          .collect(Collectors.toList());
+      Map<String, GitRevision> fetched;
+      try (ProfilerTask ignore = profiler.start("fetch")) {
+        repo.fetchWithoutResult(origin, /*prune=*/false, /*force=*/true, originRefNames.stream()
+            .map(r -> "+" + r + ":" + r)
+            .collect(Collectors.toList()));
+        fetched = repo.showRef(originRefNames);
+      }
+      for (Refspec exact : toPush.values()) {
+        // The origin might have changed since it was listed
+        GitRevision revision = fetched.get(exact.getOrigin());
+        if (revision == null) {
+          throw new RepoException(String.format("Cannot find %s after fetching it from %s",
+              exact.getOrigin(), origin));
+        }
+        pushRefspecs.add(exact.forCommit(revision.getSha1()));
+        after.put(exact.getDestination(), revision);
+      }
+    }
+    pushRefspecs.addAll(toDelete);
+    FetchResult result = new FetchResult(ImmutableMap.copyOf(before), ImmutableMap.copyOf(after));
+
+    if (generalOptions.dryRunMode) {
+      generalOptions.console().progressFmt("Skipping push to to %s. You can check the"
+          + " commits to push in: %s", destination, repo.getGitDir());
+      return result;
+    }
+
+    generalOptions.console().progressFmt("Pushing %d references to %s",
+        toPush.size() + toDelete.size(), destination);
+    try (ProfilerTask ignore = profiler.start("push")) {
+      repo.push()
+          .withRefspecs(destination, pushRefspecs)
+          .run();
+    }
+    return result;
+  }
+
+  private static Map<String, String> getUninterruptibly(Future<Map<String, String>> future)
+      throws RepoException {
+    try {
+      return Uninterruptibles.getUninterruptibly(future);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), RepoException.class);
+      throw new RepoException("Error listing references", e.getCause());
+    }
+  }
 }
@@ -21,26 +21,38 @@ import static com.google.copybara.util.FileUtil.resolveDirInCache;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.Option;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.jcommander.GreaterThanZeroValidator;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.annotation.Nullable;
 
 /**
  * Common arguments for {@link GitDestination}, {@link GitOrigin}, and other Git components.
  */
 @Parameters(separators = "=")
-public class GitOptions implements Option {
+public class GitOptions implements Option, Closeable {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
   private final GeneralOptions generalOptions;
+  // The indexes of the cache are loaded once, so reuse the instance.
+  @Nullable private GitLogCache logCache;
+  // Repositories initialized by these options, closed when the command finishes.
+  private final Set<GitRepository> repositories = ConcurrentHashMap.newKeySet();
 
   @Nullable
   public String getCredentialHelperStorePath() {
-    return credentialHelperStorePath;
+    return credentialHelperStorePath == null
+        ? null
+        : generalOptions.resolvePath(credentialHelperStorePath).toString();
   }
 
   @Parameter(names = "--git-credential-helper-store-file",
@@ -63,7 +75,7 @@ public class GitOptions implements Option {
   boolean noGitPrompt = false;
 
   @Parameter(names = "--git-visit-changes-page-size",
-      description = "Size of the git log page used for visiting changes.", hidden = true,
+      description = "Number of changes read from git log before visiting them.", hidden = true,
       validateWith = GreaterThanZeroValidator.class)
   int visitChangePageSize = 200;
 
@@ -71,6 +83,11 @@ public class GitOptions implements Option {
       description = "If set, copybara will force update existing git tag")
   boolean gitTagOverwrite = false;
 
+  @Parameter(names = "--git-log-cache",
+      description = "Cache the git log entries by SHA-1 in the Copybara cache directory, so that"
+          + " already seen commits are not read again.", arity = 1, hidden = true)
+  boolean gitLogCache = true;
+
   public GitOptions(GeneralOptions generalOptions) {
     this.generalOptions = Preconditions.checkNotNull(generalOptions);
   }
@@ -79,6 +96,26 @@ public class GitOptions implements Option {
     return generalOptions.getDirFactory().getCacheDir("git_repos");
   }
 
+  /**
+   * Returns the cache of git log entries or null if disabled or the cache directory cannot be
+   * created.
+   */
+  @Nullable
+  synchronized GitLogCache getLogCache() {
+    if (!gitLogCache) {
+      return null;
+    }
+    if (logCache == null) {
+      try {
+        logCache = new GitLogCache(generalOptions.getDirFactory().getCacheDir("git_log"));
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Cannot create the git log cache. Not using it.");
+        return null;
+      }
+    }
+    return logCache;
+  }
+
   public GitRepository cachedBareRepoForUrl(String url) throws RepoException {
     Preconditions.checkNotNull(url);
     try {
@@ -109,6 +146,7 @@ public class GitOptions implements Option {
 
   protected GitRepository initRepo(GitRepository repo) throws RepoException {
     repo.init();
+    repositories.add(repo);
     if (noCredentialHelperStore) {
       return repo;
     }
@@ -117,4 +155,15 @@ public class GitOptions implements Option {
     repo.withCredentialHelper("store" + path);
     return repo;
   }
+
+  /**
+   * Stops the long-lived git processes of the repositories created by these options.
+   */
+  @Override
+  public void close() {
+    for (GitRepository repo : repositories) {
+      repo.close();
+    }
+    repositories.clear();
+  }
 }
@@ -195,7 +195,8 @@ public class GitOrigin implements Origin<GitRevision> {
           .setVerbose(generalOptions.isVerbose())
           .setIncludeBranchCommitLogs(includeBranchCommitLogs)
           .setRoots(originFiles.roots())
-          .setUrl(repoUrl);
+          .setUrl(repoUrl)
+          .setLogCache(gitOptions.getLogCache());
     }
 
     protected GitRepository getRepository() throws RepoException {
@@ -269,7 +270,7 @@ public class GitOrigin implements Origin<GitRevision> {
           if (submodule.getBranch() != null) {
             subRepo.fetchSingleRef(submodule.getUrl(), submodule.getBranch());
           } else {
-            subRepo.fetch(
+            subRepo.fetchWithoutResult(
                 submodule.getUrl(), /*prune*/
                 true, /*force*/
                 true,
@@ -374,7 +375,7 @@ public class GitOrigin implements Origin<GitRevision> {
     }
 
     /**
-     * Visit changes using git --skip and -n for pagination.
+     * Visit changes streaming the output of a single git log.
      *
      * <p>We only visit files in the roots. The reason is that there can be different project
      * imports from the same git repository. Using origin_files glob directly would be more
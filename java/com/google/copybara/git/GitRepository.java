@@ -22,12 +22,14 @@ import static com.google.copybara.util.CommandRunner.DEFAULT_TIMEOUT;
 import static com.google.copybara.util.CommandRunner.NO_INPUT;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.base.Verify;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
@@ -39,6 +41,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Range;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.copybara.authoring.Author;
 import com.google.copybara.authoring.AuthorParser;
 import com.google.copybara.authoring.InvalidAuthorException;
@@ -55,9 +58,14 @@ import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.RepositoryUtil;
 import com.google.copybara.shell.Command;
 import com.google.copybara.shell.CommandException;
+import com.google.copybara.shell.Killable;
+import com.google.copybara.shell.KillableObserver;
 import com.google.re2j.Matcher;
 import com.google.re2j.Pattern;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
@@ -72,6 +80,7 @@ import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -79,6 +88,11 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import javax.annotation.CheckReturnValue;
@@ -124,6 +138,12 @@ public class GitRepository {
               + "|upload-pack: not our ref"
               // Gerrit when fetching
               + "|ERR want .+ not valid)");
+  // A ref update line of 'git fetch', like ' + 1234abc...5678def master -> master (forced update)'
+  private static final Pattern FETCH_REF_UPDATE =
+      Pattern.compile(" (.) (\\[[^\\]]+\\]|\\S+) +\\S+ +-> (\\S+)( +\\(.*\\))?");
+  private static final Pattern FETCH_SHA1_RANGE =
+      Pattern.compile("([a-f0-9]+)\\.\\.\\.?[a-f0-9]+");
+  private static final int MAX_REFS_PER_COMMAND = 1_000;
   private static final Pattern NO_GIT_REPOSITORY =
       Pattern.compile("does not appear to be a git repository");
   private static final Pattern PROTECTED_BRANCH =
@@ -269,7 +289,7 @@ public class GitRepository {
     // allows to download it.
     if (isSha1Reference(ref)) {
       // Tags are fetched by the default refspec
-      fetch(url, /*prune=*/false, /*force=*/true, ImmutableList.of());
+      fetchWithoutResult(url, /*prune=*/false, /*force=*/true, ImmutableList.of());
       try {
         return resolveReferenceWithContext(ref, /*contextRef=*/ref, url);
       } catch (RepoException | CannotResolveRevisionException ignore) {
@@ -278,11 +298,11 @@ public class GitRepository {
     }
 
     if (fetchTags) {
-      fetch(url, /*prune=*/false, /*force=*/true,
+      fetchWithoutResult(url, /*prune=*/false, /*force=*/true,
           ImmutableList.of(ref + ":refs/copybara_fetch/" + ref, "refs/tags/*:refs/tags/*"));
       return resolveReferenceWithContext("refs/copybara_fetch/" + ref, /*contextRef=*/ref, url);
     } else {
-      fetch(
+      fetchWithoutResult(
           url,
           /*prune=*/ false,
           /*force=*/ true,
@@ -324,8 +344,31 @@ public class GitRepository {
    */
   public FetchResult fetch(String url, boolean prune, boolean force, Iterable<String> refspecs)
       throws RepoException, ValidationException {
+    return checkNotNull(fetch(url, prune, force, refspecs, /*computeResult=*/true));
+  }
 
-    List<String> args = Lists.newArrayList("fetch", validateUrl(url));
+  /**
+   * Like {@link #fetch(String, boolean, boolean, Iterable)} but doesn't compute the
+   * {@link FetchResult}. Computing it requires listing the local references that can be updated
+   * before fetching when pruning or when tags can be updated, which is expensive for mirrors with
+   * many references.
+   */
+  public void fetchWithoutResult(String url, boolean prune, boolean force,
+      Iterable<String> refspecs) throws RepoException, ValidationException {
+    fetch(url, prune, force, refspecs, /*computeResult=*/false);
+  }
+
+  /**
+   * Fetches the {@code refspecs}. Returns the {@link FetchResult} if {@code computeResult} is
+   * true, null otherwise.
+   */
+  @Nullable
+  protected FetchResult fetch(String url, boolean prune, boolean force,
+      Iterable<String> refspecs, boolean computeResult)
+      throws RepoException, ValidationException {
+
+    // Full output makes the local references of the ref update lines unambiguous
+    List<String> args = Lists.newArrayList("-c", "fetch.output=full", "fetch", validateUrl(url));
     args.add("--verbose");
     // This shows progress in the log if not attached to a terminal
     args.add("--progress");
@@ -337,18 +380,24 @@ public class GitRepository {
     }
 
     List<String> requestedRefs = new ArrayList<>();
+    List<Refspec> parsedRefspecs = new ArrayList<>();
     for (String ref : refspecs) {
       // Validates refspec:
       Refspec refSpec = createRefSpec(ref);
       requestedRefs.add(refSpec.getOrigin());
+      parsedRefspecs.add(refSpec);
       args.add(ref);
     }
 
-    ImmutableMap<String, GitRevision> before = showRef();
+    // Deleted refs and tag updates don't show the previous SHA-1 in the output. Only in that case
+    // we need to read the local refs that can be updated before fetching.
+    ImmutableMap<String, GitRevision> before = null;
+    if (computeResult && (prune || mayUpdateTags(parsedRefspecs, force))) {
+      before = refsForDestinations(parsedRefspecs);
+    }
     CommandOutputWithStatus output = gitAllowNonZeroExit(NO_INPUT, args, fetchTimeout);
     if (output.getTerminationStatus().success()) {
-      ImmutableMap<String, GitRevision> after = showRef();
-      return new FetchResult(before, after);
+      return computeResult ? fetchResult(output.getStderr(), parsedRefspecs, before) : null;
     }
     if (output.getStderr().isEmpty()
         || FETCH_CANNOT_RESOLVE_ERRORS.matcher(output.getStderr()).find()) {
@@ -368,6 +417,161 @@ public class GitRepository {
     throw throwUnknownGitError(output, args);
   }
 
+  /**
+   * Computes the {@link FetchResult} from the ref update lines of the fetch output, only reading
+   * the local references that changed.
+   *
+   * @param before the local references that can be updated by the fetch, before fetching. Null
+   * if the output contains the previous SHA-1 of all the updated references.
+   */
+  private FetchResult fetchResult(String fetchOutput, List<Refspec> refspecs,
+      @Nullable ImmutableMap<String, GitRevision> before) throws RepoException {
+    Set<String> changed = new LinkedHashSet<>();
+    Map<String, String> previousSha1 = new HashMap<>();
+    for (String line : Splitter.on(CharMatcher.anyOf("\r\n")).split(fetchOutput)) {
+      Matcher matcher = FETCH_REF_UPDATE.matcher(line);
+      if (!matcher.matches()) {
+        continue;
+      }
+      String flag = matcher.group(1);
+      String localRef = matcher.group(3);
+      // Up to date or rejected
+      if (flag.equals("=") || flag.equals("!") || localRef.equals("FETCH_HEAD")) {
+        continue;
+      }
+      Matcher range = FETCH_SHA1_RANGE.matcher(matcher.group(2));
+      for (String ref : localRefCandidates(localRef, refspecs)) {
+        changed.add(ref);
+        if (range.matches()) {
+          previousSha1.put(ref, range.group(1));
+        }
+      }
+    }
+    if (changed.isEmpty()) {
+      return new FetchResult(ImmutableMap.of(), ImmutableMap.of());
+    }
+
+    Map<String, GitRevision> beforeChanged = new HashMap<>();
+    if (before != null) {
+      for (String ref : changed) {
+        if (before.containsKey(ref)) {
+          beforeChanged.put(ref, before.get(ref));
+        }
+      }
+    } else {
+      for (Map.Entry<String, String> e : previousSha1.entrySet()) {
+        beforeChanged.put(e.getKey(), new GitRevision(this, parseRef(e.getValue())));
+      }
+    }
+
+    // Avoid too long command lines when many references changed
+    ImmutableMap<String, GitRevision> after = changed.size() > MAX_REFS_PER_COMMAND
+        ? refsForDestinations(refspecs)
+        : forEachRef(changed);
+    Map<String, GitRevision> afterChanged = new HashMap<>();
+    for (String ref : changed) {
+      if (after.containsKey(ref)) {
+        afterChanged.put(ref, after.get(ref));
+      }
+    }
+    return new FetchResult(ImmutableMap.copyOf(beforeChanged), ImmutableMap.copyOf(afterChanged));
+  }
+
+  /**
+   * Returns the full names of the local reference shown as {@code displayName} in the fetch
+   * output. Git omits the 'refs/heads/', 'refs/tags/' and 'refs/remotes/' prefixes, so the
+   * expanded names that can't be written by {@code refspecs} are discarded. Empty if none can.
+   */
+  private static ImmutableList<String> localRefCandidates(String displayName,
+      List<Refspec> refspecs) {
+    ImmutableList<String> names = displayName.startsWith("refs/")
+        ? ImmutableList.of(displayName)
+        : ImmutableList.of(
+            "refs/heads/" + displayName, "refs/tags/" + displayName,
+            "refs/remotes/" + displayName);
+    return names.stream()
+        .filter(name -> refspecs.stream().anyMatch(r -> matchesDestination(r, name)))
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  private static boolean matchesDestination(Refspec refspec, String ref) {
+    String destination = refspec.getDestination();
+    if (!destination.startsWith("refs/")) {
+      // Git expands the short names
+      return ref.equals("refs/heads/" + destination) || ref.equals("refs/tags/" + destination);
+    }
+    return refspec.destinationToDestination().matchesOrigin(ref);
+  }
+
+  private static boolean mayUpdateTags(List<Refspec> refspecs, boolean force) {
+    for (Refspec refspec : refspecs) {
+      if (!force && !refspec.isAllowNoFastForward()) {
+        continue;
+      }
+      String destination = refspec.getDestination();
+      int star = destination.indexOf('*');
+      if (!destination.startsWith("refs/")
+          || destination.startsWith("refs/tags/")
+          || (star != -1 && "refs/tags/".startsWith(destination.substring(0, star)))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the local references that can be written by {@code refspecs}.
+   */
+  private ImmutableMap<String, GitRevision> refsForDestinations(List<Refspec> refspecs)
+      throws RepoException {
+    Set<String> patterns = new LinkedHashSet<>();
+    for (Refspec refspec : refspecs) {
+      String destination = refspec.getDestination();
+      int star = destination.indexOf('*');
+      if (!destination.startsWith("refs/")) {
+        patterns.add("refs/heads/" + destination);
+        patterns.add("refs/tags/" + destination);
+      } else if (star == -1) {
+        patterns.add(destination);
+      } else {
+        // for-each-ref matches literal patterns up to a slash
+        String prefix = destination.substring(0, destination.lastIndexOf('/', star) + 1);
+        patterns.add(prefix);
+      }
+    }
+    return forEachRef(patterns).entrySet().stream()
+        .filter(e -> refspecs.stream().anyMatch(r -> matchesDestination(r, e.getKey())))
+        .collect(ImmutableMap.toImmutableMap(Map.Entry::getKey, Map.Entry::getValue));
+  }
+
+  /**
+   * Returns the local references with the exact names or the prefixes (ending in '/') in {@code
+   * patterns}.
+   */
+  private ImmutableMap<String, GitRevision> forEachRef(Collection<String> patterns)
+      throws RepoException {
+    if (patterns.isEmpty()) {
+      return ImmutableMap.of();
+    }
+    ImmutableMap.Builder<String, GitRevision> result = ImmutableMap.builder();
+    CommandOutput output = simpleCommand(ImmutableList.<String>builder()
+        .add("for-each-ref", "--format=%(objectname) %(refname)")
+        .addAll(patterns)
+        .build()
+        .toArray(new String[0]));
+    for (String line : Splitter.on('\n').omitEmptyStrings().split(output.getStdout())) {
+      List<String> strings = Splitter.on(' ').limit(2).splitToList(line);
+      Preconditions.checkState(strings.size() == 2
+          && SHA1_PATTERN.matcher(strings.get(0)).matches(), "Cannot parse line: '%s'", line);
+      String ref = strings.get(1);
+      if (patterns.contains(ref) || patterns.stream().anyMatch(
+          p -> p.endsWith("/") && ref.startsWith(p))) {
+        result.put(ref, new GitRevision(this, strings.get(0)));
+      }
+    }
+    return result.build();
+  }
+
   /**
    * Create a refspec from a string
    */
@@ -378,7 +582,15 @@ public class GitRepository {
 
   @CheckReturnValue
   public LogCmd log(String referenceExpr) {
-    return LogCmd.create(this, referenceExpr);
+    return LogCmd.create(this, ImmutableList.of(checkNotNull(referenceExpr)));
+  }
+
+  /**
+   * Log command for several reference expressions, like {@code git log ref1 ref2 ^ref3}.
+   */
+  @CheckReturnValue
+  LogCmd log(ImmutableList<String> referenceExprs) {
+    return LogCmd.create(this, referenceExprs);
   }
 
   @CheckReturnValue
@@ -406,11 +618,18 @@ public class GitRepository {
   public static Map<String, String> lsRemote(
       String url, Collection<String> refs, GitEnvironment gitEnv, int maxLogLines)
       throws RepoException {
+    return lsRemote(FileSystems.getDefault().getPath("."), ImmutableList.of(), url, refs, gitEnv,
+        maxLogLines);
+  }
+
+  private static Map<String, String> lsRemote(Path cwd, List<String> gitParams, String url,
+      Collection<String> refs, GitEnvironment gitEnv, int maxLogLines) throws RepoException {
 
     ImmutableMap.Builder<String, String> result = ImmutableMap.builder();
-    List<String> args;
+    List<String> args = Lists.newArrayList(gitParams);
     try {
-      args = Lists.newArrayList("ls-remote", validateUrl(url));
+      args.add("ls-remote");
+      args.add(validateUrl(url));
     } catch (ValidationException e) {
       throw new RepoException("Invalid url: " + url, e);
     }
@@ -418,7 +637,7 @@ public class GitRepository {
 
     CommandOutputWithStatus output;
     try {
-      output = executeGit(FileSystems.getDefault().getPath("."), args, gitEnv, false, maxLogLines);
+      output = executeGit(cwd, args, gitEnv, false, maxLogLines);
     } catch (BadExitStatusWithOutputException e) {
       throw new RepoException(
           String.format("Error running ls-remote for '%s' and refs '%s': Exit code %s, Output:\n%s",
@@ -469,6 +688,16 @@ public class GitRepository {
     return lsRemote(url, refs, gitEnv, maxLogLines);
   }
 
+  /**
+   * Same as {@link #lsRemote(String, Collection)} but runs inside this repository, so that its
+   * configuration, like the credential helper, is used.
+   */
+  Map<String, String> lsRemoteFromRepo(String url, Collection<String> refs)
+      throws RepoException {
+    return lsRemote(getCwd(), addGitDirAndWorkTreeParams(ImmutableList.of()), url, refs, gitEnv,
+        DEFAULT_MAX_LOG_LINES);
+  }
+
   @CheckReturnValue
   static String validateUrl(String url) throws RepoException, ValidationException {
     RepositoryUtil.validateNotHttp(url);
@@ -487,7 +716,7 @@ public class GitRepository {
    * Execute show-ref git command in the local repository and returns a map from reference name to
    * GitReference(SHA-1).
    */
-  private ImmutableMap<String, GitRevision> showRef(Iterable<String> refs)
+  ImmutableMap<String, GitRevision> showRef(Iterable<String> refs)
       throws RepoException {
     ImmutableMap.Builder<String, GitRevision> result = ImmutableMap.builder();
     CommandOutput commandOutput = gitAllowNonZeroExit(NO_INPUT,
@@ -525,6 +754,29 @@ public class GitRepository {
     return simpleCommand("merge-base", commit1, commit2).getStdout().trim();
   }
 
+  /**
+   * Returns the best common ancestor of all the commits, or null if they don't have a common
+   * ancestor.
+   */
+  @Nullable
+  String octopusMergeBase(Iterable<String> commits) throws RepoException {
+    CommandOutputWithStatus result =
+        gitAllowNonZeroExit(
+            NO_INPUT,
+            ImmutableList.<String>builder()
+                .add("merge-base", "--octopus", "--")
+                .addAll(commits)
+                .build(),
+            DEFAULT_TIMEOUT);
+    if (result.getTerminationStatus().success()) {
+      return result.getStdout().trim();
+    }
+    if (result.getTerminationStatus().getExitCode() == 1) {
+      return null;
+    }
+    throw new RepoException("Error executing git merge-base --octopus:\n" + result.getStderr());
+  }
+
   boolean isAncestor(String ancestor, String commit) throws RepoException {
     CommandOutputWithStatus result =
         gitAllowNonZeroExit(
@@ -701,6 +953,18 @@ public class GitRepository {
    * Resolves a git reference to the SHA-1 reference
    */
   public String parseRef(String ref) throws RepoException, CannotResolveRevisionException {
+    if (CatFileBatchCheck.isSupported(ref)) {
+      try {
+        CatFileBatchCheck.ObjectInfo info = batchCheck(ref + "^{commit}");
+        if (info == null) {
+          throw new CannotResolveRevisionException("Cannot find reference '" + ref + "'");
+        }
+        return info.getSha1();
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log(
+            "Cannot resolve '%s' with git cat-file --batch-check. Falling back to rev-list", ref);
+      }
+    }
     // Runs rev-list on the reference and remove the extra newline from the output.
     CommandOutputWithStatus result = gitAllowNonZeroExit(
         NO_INPUT, ImmutableList.of("rev-list", "-1", ref, "--"), DEFAULT_TIMEOUT);
@@ -1059,8 +1323,17 @@ public class GitRepository {
    * @param params params the argv to pass to Git, excluding the initial {@code git}
    */
   private CommandOutput git(Path cwd, Iterable<String> params) throws RepoException {
+    return git(cwd, params, /*stdout=*/ null, /*observer=*/ null);
+  }
+
+  /**
+   * Same as {@link #git(Path, Iterable)} but if {@code stdout} is not null the output is written to
+   * it instead of collected in memory.
+   */
+  private CommandOutput git(Path cwd, Iterable<String> params, @Nullable OutputStream stdout,
+      @Nullable KillableObserver observer) throws RepoException {
     try {
-      return executeGit(cwd, params, gitEnv, verbose);
+      return executeGit(cwd, params, gitEnv, verbose, DEFAULT_MAX_LOG_LINES, stdout, observer);
     } catch (BadExitStatusWithOutputException e) {
       CommandOutputWithStatus output = e.getOutput();
 
@@ -1088,6 +1361,51 @@ public class GitRepository {
             output.getStderr()));
   }
 
+  /**
+   * Looks up {@code name} in the long-lived 'git cat-file --batch-check' process of the git
+   * directory, so that resolving references doesn't fork a git process each time.
+   */
+  @Nullable
+  private CatFileBatchCheck.ObjectInfo batchCheck(String name) throws IOException {
+    return CatFileBatchCheck.check(gitDir, this::startBatchCheckProcess, name);
+  }
+
+  /**
+   * Stops the long-lived git processes started for the git directory of this repository. The
+   * repository can still be used after closing it, the processes are started again if needed.
+   */
+  public void close() {
+    CatFileBatchCheck.close(gitDir);
+  }
+
+  /**
+   * Starts a 'git cat-file --batch-check' process for {@link #batchCheck}. Stderr is consumed in a
+   * daemon thread so that the process never blocks on it.
+   */
+  private Process startBatchCheckProcess() throws IOException {
+    List<String> allParams = new ArrayList<>();
+    allParams.add(gitEnv.resolveGitBinary());
+    allParams.addAll(addGitDirAndWorkTreeParams(ImmutableList.of("cat-file", "--batch-check")));
+    ProcessBuilder builder = new ProcessBuilder(allParams).directory(getCwd().toFile());
+    builder.environment().clear();
+    builder.environment().putAll(gitEnv.getEnvironment());
+    Process process = builder.start();
+    Thread stderrReader = new Thread(() -> {
+      try (BufferedReader reader = new BufferedReader(
+          new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          logger.atWarning().log("git cat-file --batch-check: %s", line);
+        }
+      } catch (IOException e) {
+        logger.atFine().withCause(e).log("Error reading git cat-file --batch-check stderr");
+      }
+    }, "git-cat-file-stderr");
+    stderrReader.setDaemon(true);
+    stderrReader.start();
+    return process;
+  }
+
   /**
    * Execute git allowing non-zero exit codes. This will only allow program non-zero exit codes
    * (0-10. The upper bound is arbitrary). And will still fail for exit codes like 127 (Command not
@@ -1130,6 +1448,14 @@ public class GitRepository {
   private static CommandOutputWithStatus executeGit(
       Path cwd, Iterable<String> params, GitEnvironment gitEnv, boolean verbose, int maxLogLines)
       throws CommandException {
+    return executeGit(cwd, params, gitEnv, verbose, maxLogLines, /*stdout=*/ null,
+        /*observer=*/ null);
+  }
+
+  private static CommandOutputWithStatus executeGit(
+      Path cwd, Iterable<String> params, GitEnvironment gitEnv, boolean verbose, int maxLogLines,
+      @Nullable OutputStream stdout, @Nullable KillableObserver observer)
+      throws CommandException {
     List<String> allParams = new ArrayList<>(Iterables.size(params) + 1);
     allParams.add(gitEnv.resolveGitBinary());
     Iterables.addAll(allParams, params);
@@ -1137,6 +1463,12 @@ public class GitRepository {
         new Command(
             Iterables.toArray(allParams, String.class), gitEnv.getEnvironment(), cwd.toFile());
     CommandRunner runner = new CommandRunner(cmd).withVerbose(verbose);
+    if (stdout != null) {
+      runner = runner.withStdOutStream(stdout);
+    }
+    if (observer != null) {
+      runner = runner.withObserver(observer);
+    }
     return
         maxLogLines >= 0 ? runner.withMaxStdOutLogLines(maxLogLines).execute() : runner.execute();
   }
@@ -1194,6 +1526,13 @@ public class GitRepository {
    * Checks if a SHA-1 object exist in the repository
    */
   private boolean checkSha1Exists(String reference) throws RepoException {
+    try {
+      return batchCheck(reference) != null;
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log(
+          "Cannot check '%s' with git cat-file --batch-check. Falling back to cat-file -e",
+          reference);
+    }
     ImmutableList<String> params = ImmutableList.of("cat-file", "-e", reference);
     CommandOutputWithStatus output = gitAllowNonZeroExit(NO_INPUT, params,
         DEFAULT_TIMEOUT);
@@ -1476,6 +1815,17 @@ public class GitRepository {
 
   }
 
+  /**
+   * Visitor of the entries of a 'git log' command.
+   */
+  interface LogEntryVisitor {
+
+    /**
+     * Invoked for each entry found. Returns false for stopping the visitation.
+     */
+    boolean visit(GitLogEntry entry) throws RepoException;
+  }
+
   /**
    * An object capable of performing a 'git log' operation on a repository and returning a list
    * of {@link GitLogEntry}.
@@ -1496,15 +1846,18 @@ public class GitRepository {
     private static final String COMMIT_SEPARATOR = "\u0001copybara\u0001";
     private static final Pattern UNINDENT = Pattern.compile("\n    ");
     private static final String GROUP = "--\n";
+    /** Maximum number of parsed entries waiting for the visitor. */
+    private static final int MAX_PENDING_ENTRIES = 100;
     private final int limit;
     private final ImmutableCollection<String> paths;
-    private final String refExpr;
+    private final ImmutableList<String> refExpr;
 
     private final boolean includeStat;
     private final boolean includeBody;
     private final boolean includeMergeDiff;
     private final boolean firstParent;
     private final int skip;
+    private final boolean noWalk;
 
     private final GitRepository repo;
 
@@ -1512,9 +1865,10 @@ public class GitRepository {
     private final String grepString;
 
     @CheckReturnValue
-    LogCmd(GitRepository repo, String refExpr, int limit, ImmutableCollection<String> paths,
+    LogCmd(GitRepository repo, ImmutableList<String> refExpr, int limit,
+        ImmutableCollection<String> paths,
         boolean firstParent, boolean includeStat, boolean includeBody,
-        @Nullable String grepString, boolean includeMergeDiff, int skip) {
+        @Nullable String grepString, boolean includeMergeDiff, int skip, boolean noWalk) {
       this.limit = limit;
       this.paths = paths;
       this.refExpr = refExpr;
@@ -1525,19 +1879,21 @@ public class GitRepository {
       this.repo = repo;
       this.grepString = grepString;
       this.skip = skip;
+      this.noWalk = noWalk;
     }
 
-    static LogCmd create(GitRepository repository, String refExpr) {
+    static LogCmd create(GitRepository repository, ImmutableList<String> refExpr) {
+      Preconditions.checkArgument(!refExpr.isEmpty());
       return new LogCmd(
           checkNotNull(repository),
-          checkNotNull(refExpr),
+          refExpr,
           0,
           ImmutableList.of(), /*firstParent*/
           true,
           /* includeStat= */ false,
           /*includeBody=*/ true,
           /*grepString=*/ null,
-          /*includeMergeDiff=*/ false, /*skip=*/0);
+          /*includeMergeDiff=*/ false, /*skip=*/0, /*noWalk=*/ false);
     }
 
     /**
@@ -1547,7 +1903,7 @@ public class GitRepository {
     public LogCmd withLimit(int limit) {
       Preconditions.checkArgument(limit > 0);
       return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+          grepString, includeMergeDiff, skip, noWalk);
     }
 
     /**
@@ -1557,7 +1913,7 @@ public class GitRepository {
     LogCmd withSkip(int skip) {
       Preconditions.checkArgument(skip >= 0);
       return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+          grepString, includeMergeDiff, skip, noWalk);
     }
 
     /**
@@ -1567,7 +1923,7 @@ public class GitRepository {
     LogCmd withPaths(ImmutableCollection<String> paths) {
       Preconditions.checkArgument(paths.stream().noneMatch(s -> s.trim().equals("")));
       return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+          grepString, includeMergeDiff, skip, noWalk);
     }
 
     /**
@@ -1576,7 +1932,7 @@ public class GitRepository {
     @CheckReturnValue
     LogCmd firstParent(boolean firstParent) {
       return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+          grepString, includeMergeDiff, skip, noWalk);
     }
 
     /**
@@ -1585,7 +1941,7 @@ public class GitRepository {
     @CheckReturnValue
     LogCmd includeFiles(boolean includeStat) {
       return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+          grepString, includeMergeDiff, skip, noWalk);
     }
 
     /**
@@ -1594,7 +1950,17 @@ public class GitRepository {
     @CheckReturnValue
     LogCmd includeMergeDiff(boolean includeMergeDiff) {
       return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+          grepString, includeMergeDiff, skip, noWalk);
+    }
+
+    /**
+     * Only show the commits of the reference expressions, in the same order, without walking
+     * their history. Equivalent to 'git log --no-walk=unsorted' command.
+     */
+    @CheckReturnValue
+    LogCmd noWalk(boolean noWalk) {
+      return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
+          grepString, includeMergeDiff, skip, noWalk);
     }
 
     /**
@@ -1603,7 +1969,7 @@ public class GitRepository {
     @CheckReturnValue
     LogCmd includeBody(boolean includeBody) {
       return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+          grepString, includeMergeDiff, skip, noWalk);
     }
 
     /**
@@ -1612,13 +1978,32 @@ public class GitRepository {
     @CheckReturnValue
     public LogCmd grep(@Nullable String grepString) {
       return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+          grepString, includeMergeDiff, skip, noWalk);
     }
 
     /**
      * Run 'git log' and returns zero or more {@link GitLogEntry}.
      */
     public ImmutableList<GitLogEntry> run() throws RepoException {
+      ImmutableList.Builder<GitLogEntry> commits = ImmutableList.builder();
+      visit(e -> {
+        commits.add(e);
+        return true;
+      });
+      return commits.build();
+    }
+
+    /**
+     * Run 'git log' and visit the {@link GitLogEntry}s as they are read from the output, without
+     * keeping the whole output in memory. If the visitor stops the visitation, 'git log' is
+     * killed.
+     *
+     * <p>'git log' runs in a separate thread that parses the entries into a bounded queue. The
+     * visitor is invoked in the calling thread, so that it can run other git commands without
+     * blocking the output of 'git log' or counting towards its timeout. 'git log' only waits for
+     * the visitor when more than {@link #MAX_PENDING_ENTRIES} entries are pending.
+     */
+    void visit(LogEntryVisitor visitor) throws RepoException {
       List<String> cmd = Lists.newArrayList("log", "--no-color", createFormat(includeBody));
 
       if (limit > 0) {
@@ -1638,6 +2023,9 @@ public class GitRepository {
       if (includeMergeDiff) {
         cmd.add("-m");
       }
+      if (noWalk) {
+        cmd.add("--no-walk=unsorted");
+      }
       if (skip > 0) {
         cmd.add("--skip");
         cmd.add(Integer.toString(skip));
@@ -1648,68 +2036,245 @@ public class GitRepository {
         cmd.add(grepString);
       }
 
-      cmd.add(refExpr);
+      cmd.addAll(refExpr);
 
       if (!paths.isEmpty()) {
         cmd.add("--");
         cmd.addAll(paths);
       }
 
-      CommandOutput output = repo.simpleCommand(cmd.toArray(new String[0]));
-      return parseLog(output.getStdout(), includeBody);
+      LogEntryStream stream = new LogEntryStream();
+      FutureTask<Void> gitLog = new FutureTask<>(() -> {
+        try {
+          try {
+            repo.git(repo.getCwd(), repo.addGitDirAndWorkTreeParams(cmd), stream, stream);
+          } catch (RepoException e) {
+            // Expected if we killed 'git log' because the visitor is done.
+            if (!stream.stopped) {
+              throw e;
+            }
+          }
+          stream.finish();
+        } finally {
+          stream.end();
+        }
+        return null;
+      });
+      Thread thread = new Thread(gitLog, "git-log");
+      thread.setDaemon(true);
+      thread.start();
+
+      boolean visited = false;
+      try {
+        for (GitLogEntry entry = stream.take(); entry != null; entry = stream.take()) {
+          if (!visitor.visit(entry)) {
+            break;
+          }
+        }
+        visited = true;
+      } finally {
+        // Kills 'git log' if it is still running
+        stream.visitorDone();
+      }
+      if (visited) {
+        try {
+          Uninterruptibles.getUninterruptibly(gitLog);
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause(), RepoException.class);
+          throw new RepoException("Error running git log", e.getCause());
+        }
+      }
     }
 
-    private ImmutableList<GitLogEntry> parseLog(String log, boolean includeBody)
-        throws RepoException {
-      // No changes. We cannot know until we run git log since fromRef can be null (HEAD)
-      if (log.isEmpty()) {
-        return ImmutableList.of();
+    private GitLogEntry parseEntry(String msg) throws RepoException {
+      List<String> groups = Splitter.on("\n" + GROUP).splitToList(msg);
+
+      Map<String, String> fields = Splitter.on("\n")
+          .withKeyValueSeparator(Splitter.on("=").limit(2))
+          .split(groups.get(0));
+
+      String body = null;
+      if (includeBody) {
+        body = UNINDENT.matcher(groups.get(1)).replaceAll("\n");
+        body = body.substring(BEGIN_BODY.length() + 1, body.length() - END_BODY.length() - 1);
+        // Copybara assumes \n as a separator in many places.
+        body = body.replace("\r\n", "\n");
       }
 
-      ImmutableList.Builder<GitLogEntry> commits = ImmutableList.builder();
-      for (String msg : Splitter.on("\n" + COMMIT_SEPARATOR).
-          split(log.substring(COMMIT_SEPARATOR.length()))) {
+      ImmutableSet<String> files = includeStat
+          ? ImmutableSet.copyOf(Splitter.on("\n").omitEmptyStrings().split(groups.get(2)))
+          : null;
 
-        List<String> groups = Splitter.on("\n" + GROUP).splitToList(msg);
+      ImmutableList.Builder<GitRevision> parents = ImmutableList.builder();
+      for (String parent : Splitter.on(" ").omitEmptyStrings()
+          .split(getField(fields, PARENTS_FIELD))) {
+        parents.add(repo.createReferenceFromCompleteSha1(parent));
+      }
+
+      String tree = getField(fields, TREE_FIELD);
+      String commit = getField(fields, COMMIT_FIELD);
+      try {
+        return new GitLogEntry(
+            repo.createReferenceFromCompleteSha1(commit), parents.build(),
+            tree,
+            AuthorParser.parse(getField(fields, AUTHOR_FIELD)),
+            AuthorParser.parse(getField(fields, COMMITTER_FIELD)),
+            tryParseDate(fields, AUTHOR_DATE_FIELD, commit),
+            tryParseDate(fields, COMMITTER_DATE, commit),
+            body, files);
+      } catch (InvalidAuthorException e) {
+        throw new RepoException("Error in commit '" + commit + "'. Invalid author.", e);
+      }
+    }
 
-        Map<String, String> fields = Splitter.on("\n")
-            .withKeyValueSeparator(Splitter.on("=").limit(2))
-            .split(groups.get(0));
+    /**
+     * Parses the 'git log' output incrementally, queueing each entry for the visitor as soon as it
+     * is complete. Only the current entry and the pending ones are kept in memory.
+     */
+    private class LogEntryStream extends OutputStream implements KillableObserver {
+
+      private final byte[] separator = ("\n" + COMMIT_SEPARATOR).getBytes(StandardCharsets.UTF_8);
+      // An empty entry marks the end of the output.
+      private final BlockingQueue<Optional<GitLogEntry>> queue =
+          new ArrayBlockingQueue<>(MAX_PENDING_ENTRIES);
+      // We pretend that the output starts with a new line so that every entry is preceded by
+      // the separator.
+      private byte[] buffer = new byte[] {'\n'};
+      private int count = 1;
+      // Position from where to search for the next separator.
+      private int searchFrom = 0;
+      private boolean started;
+      // No more entries are needed, because the visitor is done or the output cannot be parsed.
+      private volatile boolean stopped;
+      // The visitor doesn't take entries from the queue anymore.
+      private volatile boolean closed;
+      @Nullable private volatile Killable killable;
+      @Nullable private Exception error;
+
+      @Override
+      public void write(int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
 
-        String body = null;
-        if (includeBody) {
-          body = UNINDENT.matcher(groups.get(1)).replaceAll("\n");
-          body = body.substring(BEGIN_BODY.length() + 1, body.length() - END_BODY.length() - 1);
-          // Copybara assumes \n as a separator in many places.
-          body = body.replace("\r\n", "\n");
+      @Override
+      public synchronized void write(byte[] b, int off, int len) {
+        if (stopped) {
+          return;
+        }
+        if (count + len > buffer.length) {
+          buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + len));
         }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+
+        int start = 0;
+        int idx;
+        while ((idx = indexOfSeparator(searchFrom)) != -1) {
+          emit(start, idx);
+          start = idx + separator.length;
+          searchFrom = start;
+          if (stopped) {
+            return;
+          }
+        }
+        // Keep only the incomplete entry
+        System.arraycopy(buffer, start, buffer, 0, count - start);
+        count -= start;
+        searchFrom = Math.max(0, count - separator.length + 1);
+      }
 
-        ImmutableSet<String> files = includeStat
-            ? ImmutableSet.copyOf(Splitter.on("\n").omitEmptyStrings().split(groups.get(2)))
-            : null;
+      private int indexOfSeparator(int from) {
+        outer:
+        for (int i = from; i <= count - separator.length; i++) {
+          for (int j = 0; j < separator.length; j++) {
+            if (buffer[i + j] != separator[j]) {
+              continue outer;
+            }
+          }
+          return i;
+        }
+        return -1;
+      }
 
-        ImmutableList.Builder<GitRevision> parents = ImmutableList.builder();
-        for (String parent : Splitter.on(" ").omitEmptyStrings()
-            .split(getField(fields, PARENTS_FIELD))) {
-          parents.add(repo.createReferenceFromCompleteSha1(parent));
+      private void emit(int from, int to) {
+        // The content before the first separator is empty.
+        if (!started) {
+          started = true;
+          return;
+        }
+        try {
+          put(Optional.of(
+              parseEntry(new String(buffer, from, to - from, StandardCharsets.UTF_8))));
+        } catch (RepoException | RuntimeException e) {
+          error = e;
+          stop();
         }
+      }
 
-        String tree = getField(fields, TREE_FIELD);
-        String commit = getField(fields, COMMIT_FIELD);
+      /** Waits until there is room in the queue, unless the visitor is done. */
+      private void put(Optional<GitLogEntry> entry) {
         try {
-          commits.add(new GitLogEntry(
-              repo.createReferenceFromCompleteSha1(commit), parents.build(),
-              tree,
-              AuthorParser.parse(getField(fields, AUTHOR_FIELD)),
-              AuthorParser.parse(getField(fields, COMMITTER_FIELD)),
-              tryParseDate(fields, AUTHOR_DATE_FIELD, commit),
-              tryParseDate(fields, COMMITTER_DATE, commit),
-              body, files));
-        } catch (InvalidAuthorException e) {
-          throw new RepoException("Error in commit '" + commit + "'. Invalid author.", e);
+          while (!closed && !queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+            // Check again if the visitor is done
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          stop();
         }
       }
-      return commits.build();
+
+      /** Returns the next entry or null if there are no more entries. */
+      @Nullable
+      private GitLogEntry take() {
+        return Uninterruptibles.takeUninterruptibly(queue).orElse(null);
+      }
+
+      private void stop() {
+        stopped = true;
+        Killable current = killable;
+        if (current != null) {
+          current.kill();
+        }
+      }
+
+      /** Invoked by the visitor thread when it doesn't need more entries. */
+      private void visitorDone() {
+        closed = true;
+        stop();
+      }
+
+      /**
+       * Queues the last entry and throws any error found while parsing.
+       */
+      synchronized void finish() throws RepoException {
+        if (!stopped) {
+          emit(0, count);
+        }
+        if (error instanceof RepoException) {
+          throw (RepoException) error;
+        }
+        if (error != null) {
+          throw (RuntimeException) error;
+        }
+      }
+
+      /** Marks the end of the entries. */
+      void end() {
+        put(Optional.empty());
+      }
+
+      @Override
+      public void startObserving(Killable killable) {
+        this.killable = killable;
+        if (stopped) {
+          killable.kill();
+        }
+      }
+
+      @Override
+      public void stopObserving(Killable killable) {
+        this.killable = null;
+      }
     }
 
     private ZonedDateTime tryParseDate(Map<String, String> fields, String dateField,
@@ -17,10 +17,7 @@
 package com.google.copybara.git;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
-import com.google.copybara.Change;
 import com.google.copybara.ChangeVisitable.ChangesVisitor;
-import com.google.copybara.ChangeVisitable.VisitResult;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.exception.CannotResolveRevisionException;
 import com.google.copybara.exception.RepoException;
@@ -31,7 +28,12 @@ public class GitVisitorUtil {
 
   private GitVisitorUtil() {}
 
-  /** Visits */
+  /**
+   * Visits the changes from {@code start} to its ancestors. The changes are read in a streaming
+   * fashion from a single 'git log' that is stopped as soon as the visitor terminates.
+   *
+   * @param visitChangePageSize number of changes read before visiting them
+   */
   static void visitChanges(
       GitRevision start,
       ChangesVisitor visitor,
@@ -41,34 +43,11 @@ public class GitVisitorUtil {
       int visitChangePageSize)
       throws RepoException, CannotResolveRevisionException {
     Preconditions.checkNotNull(start);
-    int skip = 0;
-    boolean finished = false;
+    boolean visited;
     try (ProfilerTask ignore = generalOptions.profiler().start(type + "/visit_changes")) {
-      while (!finished) {
-        ImmutableList<Change<GitRevision>> result;
-        try (ProfilerTask ignore2 =
-            generalOptions.profiler().start("git_log_" + skip + "_" + visitChangePageSize)) {
-          result =
-              queryChanges
-                  .setSkip(skip)
-                  .setLimit(visitChangePageSize)
-                  .build()
-                  .run(start.getSha1())
-                  .reverse();
-        }
-        if (result.isEmpty()) {
-          break;
-        }
-        skip += result.size();
-        for (Change<GitRevision> current : result) {
-          if (visitor.visit(current) == VisitResult.TERMINATE) {
-            finished = true;
-            break;
-          }
-        }
-      }
+      visited = queryChanges.build().visit(start.getSha1(), visitor, visitChangePageSize);
     }
-    if (skip == 0) {
+    if (!visited) {
       throw new CannotResolveRevisionException("Cannot resolve reference " + start.getSha1());
     }
   }
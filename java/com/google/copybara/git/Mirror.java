@@ -73,8 +73,9 @@ public class Mirror implements Migration {
   @Override
   public void run(Path workdir, ImmutableList<String> sourceRefs)
       throws RepoException, IOException, ValidationException {
+    FetchResult result;
     try (ProfilerTask ignore = generalOptions.profiler().start("run/" + name)) {
-      mirrorOptions.mirror(origin, destination, refspec, prune);
+      result = mirrorOptions.mirror(origin, destination, refspec, prune);
     }
 
     // More fine grain events based on the references created/updated/deleted:
@@ -84,16 +85,40 @@ public class Mirror implements Migration {
             new ChangeMigrationFinishedEvent(
                 ImmutableList.of(
                     new DestinationEffect(
-                        generalOptions.dryRunMode ? Type.NOOP : Type.UPDATED,
-                        generalOptions.dryRunMode
-                            ? "Refspecs " + refspec + " can be mirrored"
-                            : "Refspecs " + refspec + " mirrored successfully",
+                        effectType(result),
+                        effectSummary(result),
                         // TODO(danielromero): Populate OriginRef here
                         ImmutableList.of(),
                         new DestinationRef(
                             getOriginDestinationRef(destination), "mirror", /*url=*/ null)))));
   }
 
+  private Type effectType(@Nullable FetchResult result) {
+    if (generalOptions.dryRunMode || (result != null && isEmpty(result))) {
+      return Type.NOOP;
+    }
+    return Type.UPDATED;
+  }
+
+  private String effectSummary(@Nullable FetchResult result) {
+    if (result == null) {
+      return generalOptions.dryRunMode
+          ? "Refspecs " + refspec + " can be mirrored"
+          : "Refspecs " + refspec + " mirrored successfully";
+    }
+    if (isEmpty(result)) {
+      return "Refspecs " + refspec + " are already up to date";
+    }
+    return String.format("Refspecs %s %s: created %s, updated %s, deleted %s", refspec,
+        generalOptions.dryRunMode ? "can be mirrored" : "mirrored successfully",
+        result.getInserted().keySet(), result.getUpdated(), result.getDeleted().keySet());
+  }
+
+  private static boolean isEmpty(FetchResult result) {
+    return result.getInserted().isEmpty() && result.getUpdated().isEmpty()
+        && result.getDeleted().isEmpty();
+  }
+
   private static String getOriginDestinationRef(String url) throws ValidationException {
     return GitHubUtil.isGitHubUrl(url)
         ? GitHubUtil.asGithubUrl(GitHubUtil.getProjectNameFromUrl(url))
@@ -95,6 +95,30 @@ public class Refspec {
     }
   }
 
+  /**
+   * Returns a refspec that only maps {@code originRef}, that should match the origin pattern, to
+   * its destination reference.
+   */
+  Refspec forOriginRef(String originRef) {
+    return new Refspec(originRef, convert(originRef), allowNoFastForward);
+  }
+
+  /**
+   * Returns a refspec that pushes the commit {@code sha1} to the destination reference, that
+   * shouldn't be a pattern.
+   */
+  Refspec forCommit(String sha1) {
+    Preconditions.checkState(!destination.contains("*"), "%s is a pattern", destination);
+    return new Refspec(sha1, destination, allowNoFastForward);
+  }
+
+  /**
+   * Returns a refspec that deletes {@code destinationRef} when pushed.
+   */
+  static Refspec deleteRef(String destinationRef) {
+    return new Refspec("", destinationRef, /*allowNoFastForward=*/false);
+  }
+
   public Refspec withAllowNoFastForward() {
     return new Refspec(origin, destination, /*allowNoFastForward*/true);
   }
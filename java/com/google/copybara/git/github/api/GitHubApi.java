@@ -22,16 +22,27 @@ import static com.google.copybara.git.github.api.GitHubApiException.ResponseCode
 
 import com.google.common.base.Ascii;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Iterables;
 import com.google.common.reflect.TypeToken;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.git.github.api.GitHubApiException.ResponseCode;
+import com.google.copybara.git.github.api.PullRequestsGraphQlQuery.PullRequestNode;
 import com.google.copybara.profiler.Profiler;
 import com.google.copybara.profiler.Profiler.ProfilerTask;
+import com.google.re2j.Matcher;
+import com.google.re2j.Pattern;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import javax.annotation.Nullable;
 
 /**
@@ -41,13 +52,32 @@ public class GitHubApi {
 
   private final GitHubApiTransport transport;
   private final Profiler profiler;
+  @Nullable private final Executor executor;
 
   public static final int MAX_PER_PAGE = 100;
   private static final int MAX_PAGES = 5;
+  private static final Pattern PAGE_PARAM = Pattern.compile("([?&]page=)([0-9]+)");
 
   public GitHubApi(GitHubApiTransport transport, Profiler profiler) {
+    this(transport, profiler, /*executor=*/ null);
+  }
+
+  /**
+   * @param executor if not null, used for running independent requests (like the rest of pages
+   *     of a list once the last page is known) in parallel. Otherwise all the requests are
+   *     sequential.
+   */
+  public GitHubApi(GitHubApiTransport transport, Profiler profiler, @Nullable Executor executor) {
     this.transport = Preconditions.checkNotNull(transport);
     this.profiler = Preconditions.checkNotNull(profiler);
+    this.executor = executor;
+  }
+
+  /** The result of a request that might be still running. */
+  public interface PendingResult<T> {
+
+    /** Waits for the request to finish and returns its result. */
+    T get() throws RepoException, ValidationException;
   }
 
   /**
@@ -152,6 +182,70 @@ public class GitHubApi {
     }
   }
 
+  /**
+   * Get a pull request together with its labels and reviews. This uses a single GraphQL request
+   * instead of one REST request for each of them.
+   *
+   * @param projectId a project in the form of "google/copybara"
+   * @param number the pull request number
+   */
+  public PullRequestDetails getPullRequestDetails(String projectId, long number)
+      throws RepoException, ValidationException {
+    return Iterables.getOnlyElement(getPullRequestDetails(projectId, ImmutableList.of(number)));
+  }
+
+  /**
+   * Get several pull requests of a project together with their labels and reviews, using a single
+   * GraphQL request.
+   *
+   * @param projectId a project in the form of "google/copybara"
+   * @param numbers the pull request numbers
+   */
+  public ImmutableList<PullRequestDetails> getPullRequestDetails(String projectId,
+      List<Long> numbers) throws RepoException, ValidationException {
+    checkArgument(!numbers.isEmpty(), "At least one pull request is required");
+    int slash = projectId.indexOf('/');
+    checkArgument(slash > 0, "Invalid project: %s", projectId);
+    PullRequestsGraphQlQuery.Response response;
+    try (ProfilerTask ignore = profiler.start("github_api_graphql_get_pulls")) {
+      response = transport.post("graphql",
+          PullRequestsGraphQlQuery.create(
+              projectId.substring(0, slash), projectId.substring(slash + 1), numbers),
+          PullRequestsGraphQlQuery.Response.class);
+    } catch (GitHubApiException e) {
+      throw treatGitHubException(e, "Project");
+    }
+    List<String> errors = new ArrayList<>();
+    for (PullRequestsGraphQlQuery.Error error : response.getErrors()) {
+      checkCondition(!"NOT_FOUND".equals(error.getType()),
+          "Pull Request not found: %s", error.getMessage());
+      errors.add(error.getMessage());
+    }
+    if (!errors.isEmpty()) {
+      throw new RepoException("Error running GitHub GraphQL query: " + errors);
+    }
+    Map<String, PullRequestNode> nodes =
+        PullRequestsGraphQlQuery.isNull(response.getData())
+            ? null
+            : response.getData().getRepository();
+    checkCondition(!PullRequestsGraphQlQuery.isNull(nodes), "Project not found: %s", projectId);
+
+    ImmutableList.Builder<PullRequestDetails> result = ImmutableList.builder();
+    for (int i = 0; i < numbers.size(); i++) {
+      long number = numbers.get(i);
+      PullRequestNode node = nodes.get(PullRequestsGraphQlQuery.alias(i));
+      checkCondition(!PullRequestsGraphQlQuery.isNull(node),
+          "Pull Request not found: %s/%d", projectId, number);
+      // Only the first page of labels and reviews is included in the response. Rarely needed,
+      // but fall back to the REST API for the rest.
+      result.add(new PullRequestDetails(
+          node.toPullRequest(),
+          node.hasMoreLabels() ? getIssue(projectId, number) : node.toIssue(),
+          node.hasMoreReviews() ? getReviews(projectId, number) : node.toReviews()));
+    }
+    return result.build();
+  }
+
   /**
    * Get comments for a specific pull request
    *
@@ -199,24 +293,105 @@ public class GitHubApi {
         }.getType(), "Pull Request or project");
   }
 
+  /**
+   * Like {@link #getReviews(String, long)} but the request runs in the background if this
+   * instance has an executor, so that the caller can do other requests meanwhile.
+   */
+  public PendingResult<ImmutableList<Review>> getReviewsAsync(String projectId, long number) {
+    return submit(() -> getReviews(projectId, number));
+  }
+
   private <T> ImmutableList<T> paginatedGet(String path, String profilerName, Type type,
       String entity)
       throws RepoException, ValidationException {
     ImmutableList.Builder<T> builder = ImmutableList.builder();
     int pages = 0;
     while (path != null && pages < MAX_PAGES) {
+      PaginatedList<T> page;
       try (ProfilerTask ignore = profiler.start(String.format("%s_page_%d", profilerName, pages))) {
-        PaginatedList<T> page = transport.get(path, type);
+        page = transport.get(path, type);
+      } catch (GitHubApiException e) {
+        throw treatGitHubException(e, entity);
+      }
+      builder.addAll(page);
+      path = page.getNextUrl();
+      pages++;
+
+      // If we know the URLs of the rest of pages, get them in parallel.
+      List<PendingResult<PaginatedList<T>>> nextPages = new ArrayList<>();
+      for (String pagePath : nextPagePaths(page, pages)) {
+        String taskName = String.format("%s_page_%d", profilerName, pages + nextPages.size());
+        nextPages.add(submit(() -> {
+          try (ProfilerTask ignore = profiler.start(taskName)) {
+            return transport.get(pagePath, type);
+          }
+        }));
+      }
+      for (PendingResult<PaginatedList<T>> nextPage : nextPages) {
+        try {
+          page = nextPage.get();
+        } catch (GitHubApiException e) {
+          throw treatGitHubException(e, entity);
+        }
         builder.addAll(page);
         path = page.getNextUrl();
         pages++;
-      } catch (GitHubApiException e) {
-        throw treatGitHubException(e, entity);
       }
     }
     return builder.build();
   }
 
+  /**
+   * Returns the paths for the pages after {@code page} (up to {@link #MAX_PAGES}) based on the
+   * 'last' link. Returns an empty list if there is no executor for getting them in parallel or if
+   * the links don't use page numbers.
+   */
+  private ImmutableList<String> nextPagePaths(PaginatedList<?> page, int pages) {
+    String nextUrl = page.getNextUrl();
+    String lastUrl = page.getLastUrl();
+    if (executor == null || nextUrl == null || lastUrl == null) {
+      return ImmutableList.of();
+    }
+    Matcher matcher = PAGE_PARAM.matcher(lastUrl);
+    if (!matcher.find()) {
+      return ImmutableList.of();
+    }
+    int lastPage;
+    try {
+      lastPage = Integer.parseInt(matcher.group(2));
+    } catch (NumberFormatException e) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    for (int i = pages + 1; i <= Math.min(lastPage, MAX_PAGES); i++) {
+      result.add(matcher.replaceFirst("$1" + i));
+    }
+    ImmutableList<String> paths = result.build();
+    // Only trust the page numbers if they match the 'next' link.
+    return !paths.isEmpty() && paths.get(0).equals(nextUrl) ? paths : ImmutableList.of();
+  }
+
+  /**
+   * Starts running {@code call} in the executor. If there is no executor, {@code call} runs when
+   * the result is requested.
+   */
+  private <T> PendingResult<T> submit(PendingResult<T> call) {
+    if (executor == null) {
+      return call;
+    }
+    ListenableFutureTask<T> task = ListenableFutureTask.create(call::get);
+    executor.execute(task);
+    return () -> {
+      try {
+        return Uninterruptibles.getUninterruptibly(task);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(
+            e.getCause(), RepoException.class, ValidationException.class);
+        throw new RepoException("Error running GitHub API operation", e.getCause());
+      }
+    };
+  }
+
   /**
    * Create a pull request
    */
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.git.github.api;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
+
+/**
+ * An on-disk cache of GitHub API GET responses, so that they can be revalidated with conditional
+ * requests ({@code If-None-Match}). GitHub doesn't count '304 Not Modified' responses against the
+ * rate limit.
+ *
+ * <p>Entries are keyed by the credentials, the path and the request headers, since different
+ * tokens might get different responses. Responses can contain data of private repositories, so the
+ * entries are only readable by the user. The cache is best effort: I/O errors are logged and
+ * treated as a cache miss.
+ *
+ * <p>The first time that an entry is stored, the entries not used in {@link #MAX_AGE} are deleted,
+ * as well as the least recently used ones over {@link #MAX_ENTRIES}.
+ */
+final class GitHubApiResponseCache {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final int VERSION = 2;
+  private static final int MAX_ENTRIES = 10_000;
+  private static final Duration MAX_AGE = Duration.ofDays(7);
+
+  private final Path dir;
+  private final int maxEntries;
+  private final Duration maxAge;
+  private final AtomicBoolean cleanedUp = new AtomicBoolean();
+
+  GitHubApiResponseCache(Path dir) {
+    this(dir, MAX_ENTRIES, MAX_AGE);
+  }
+
+  @VisibleForTesting
+  GitHubApiResponseCache(Path dir, int maxEntries, Duration maxAge) {
+    this.dir = Preconditions.checkNotNull(dir);
+    this.maxEntries = maxEntries;
+    this.maxAge = Preconditions.checkNotNull(maxAge);
+  }
+
+  /** A cached response. */
+  static final class Entry {
+
+    private final String etag;
+    @Nullable private final String linkHeader;
+    private final byte[] body;
+
+    Entry(String etag, @Nullable String linkHeader, byte[] body) {
+      this.etag = Preconditions.checkNotNull(etag);
+      this.linkHeader = linkHeader;
+      this.body = Preconditions.checkNotNull(body);
+    }
+
+    String getEtag() {
+      return etag;
+    }
+
+    @Nullable
+    String getLinkHeader() {
+      return linkHeader;
+    }
+
+    byte[] getBody() {
+      return body;
+    }
+  }
+
+  /**
+   * Returns the key for a GET request. The key is a hash, so the token cannot be recovered from
+   * it.
+   */
+  static String key(@Nullable String user, @Nullable String token, String path,
+      ImmutableListMultimap<String, String> headers) {
+    Hasher hasher = Hashing.sha256().newHasher()
+        .putString(user == null ? "" : user, UTF_8)
+        .putByte((byte) 0)
+        .putString(token == null ? "" : token, UTF_8)
+        .putByte((byte) 0)
+        .putString(path, UTF_8);
+    for (Map.Entry<String, String> header : headers.entries()) {
+      hasher.putByte((byte) 0)
+          .putString(header.getKey(), UTF_8)
+          .putByte((byte) 0)
+          .putString(header.getValue(), UTF_8);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns the cached entry for {@code key} or null if it is not in the cache.
+   */
+  @Nullable
+  Entry get(String key) {
+    Path file = path(key);
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != VERSION) {
+        return null;
+      }
+      String etag = new String(readBytes(in), UTF_8);
+      String linkHeader = in.readBoolean() ? new String(readBytes(in), UTF_8) : null;
+      Entry entry = new Entry(etag, linkHeader, readBytes(in));
+      // The modified time is the last use, for evicting the least recently used entries
+      Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+      return entry;
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot read GitHub API cache entry %s", file);
+      return null;
+    }
+  }
+
+  /**
+   * Stores {@code entry} in the cache.
+   */
+  void put(String key, Entry entry) {
+    if (cleanedUp.compareAndSet(false, true)) {
+      cleanUp(Instant.now());
+    }
+    Path file = path(key);
+    Path tmp = null;
+    try {
+      Files.createDirectories(file.getParent(), permissions("rwx------"));
+      // The permissions are set when the file is created, so the content is never readable by
+      // others
+      tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp",
+          permissions("rw-------"));
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(VERSION);
+        writeBytes(out, entry.getEtag().getBytes(UTF_8));
+        out.writeBoolean(entry.getLinkHeader() != null);
+        if (entry.getLinkHeader() != null) {
+          writeBytes(out, entry.getLinkHeader().getBytes(UTF_8));
+        }
+        writeBytes(out, entry.getBody());
+      }
+      try {
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot write GitHub API cache entry %s", file);
+    } finally {
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("Cannot delete %s", tmp);
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes the entries that were not used since {@code now - maxAge} and the least recently used
+   * ones over {@code maxEntries}.
+   */
+  @VisibleForTesting
+  void cleanUp(Instant now) {
+    if (!Files.isDirectory(dir)) {
+      return;
+    }
+    List<Path> files = new ArrayList<>();
+    Map<Path, FileTime> lastUsed = new HashMap<>();
+    try (Stream<Path> stream = Files.walk(dir, 2)) {
+      stream.filter(Files::isRegularFile).forEach(files::add);
+      for (Path file : files) {
+        lastUsed.put(file, Files.getLastModifiedTime(file));
+      }
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot list the GitHub API cache entries in %s", dir);
+      return;
+    }
+    files.sort(Comparator.comparing(lastUsed::get, Comparator.reverseOrder()));
+    FileTime oldest = FileTime.from(now.minus(maxAge));
+    for (int i = 0; i < files.size(); i++) {
+      Path file = files.get(i);
+      if (i < maxEntries && lastUsed.get(file).compareTo(oldest) >= 0) {
+        continue;
+      }
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Cannot delete GitHub API cache entry %s", file);
+      }
+    }
+  }
+
+  private FileAttribute<?>[] permissions(String permissions) {
+    return dir.getFileSystem().supportedFileAttributeViews().contains("posix")
+        ? new FileAttribute<?>[] {
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))}
+        : new FileAttribute<?>[0];
+  }
+
+  private Path path(String key) {
+    // Shard by the first two characters to avoid huge directories.
+    return dir.resolve(key.substring(0, 2)).resolve(key.substring(2));
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
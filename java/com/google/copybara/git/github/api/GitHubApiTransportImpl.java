@@ -16,33 +16,45 @@
 
 package com.google.copybara.git.github.api;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.json.JsonHttpContent;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.JsonObjectParser;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.git.GitCredential.UserPassword;
 import com.google.copybara.git.GitRepository;
 import com.google.copybara.util.console.Console;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.lang.reflect.Type;
 import java.net.URI;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import javax.annotation.Nullable;
 
 /**
@@ -57,37 +69,134 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
   private static final String API_URL = "https://api.github.com";
   private static final String API_PREFIX = API_URL + "/";
   private static final String GITHUB_WEB_URL = "https://github.com";
+  private static final int MAX_RATE_LIMITED_ATTEMPTS = 3;
 
   private final GitRepository repo;
   private final HttpTransport httpTransport;
   private final String storePath;
   private final Console console;
+  @Nullable private final GitHubApiResponseCache cache;
+  private final GitHubRateLimiter rateLimiter;
+  /** Identical GET requests that are running, so that concurrent callers share the response. */
+  private final ConcurrentHashMap<String, Future<Object>> inFlightGets = new ConcurrentHashMap<>();
+
+  @Nullable private UserPassword credentials;
+  @Nullable private ValidationException credentialsError;
 
   public GitHubApiTransportImpl(GitRepository repo, HttpTransport httpTransport,
       String storePath, Console console) {
+    this(repo, httpTransport, storePath, console, /*cacheDir=*/ null);
+  }
+
+  /**
+   * @param cacheDir if not null, GET responses are stored in this directory and revalidated with
+   *     conditional requests.
+   */
+  public GitHubApiTransportImpl(GitRepository repo, HttpTransport httpTransport,
+      String storePath, Console console, @Nullable Path cacheDir) {
+    this(repo, httpTransport, storePath, console, cacheDir, new GitHubRateLimiter());
+  }
+
+  /**
+   * @param cacheDir if not null, GET responses are stored in this directory and revalidated with
+   *     conditional requests.
+   * @param rateLimiter delays the requests based on the rate limit headers. Can be shared between
+   *     transports that use the same credentials.
+   */
+  public GitHubApiTransportImpl(GitRepository repo, HttpTransport httpTransport,
+      String storePath, Console console, @Nullable Path cacheDir,
+      GitHubRateLimiter rateLimiter) {
     this.repo = Preconditions.checkNotNull(repo);
     this.httpTransport = Preconditions.checkNotNull(httpTransport);
     this.storePath = storePath;
     this.console = Preconditions.checkNotNull(console);
+    this.cache = cacheDir == null ? null : new GitHubApiResponseCache(cacheDir);
+    this.rateLimiter = Preconditions.checkNotNull(rateLimiter);
   }
 
   @SuppressWarnings("unchecked")
   @Override
   public <T> T get(String path, Type responseType, ImmutableListMultimap<String, String> headers)
       throws RepoException, ValidationException {
-    HttpRequestFactory requestFactory = getHttpRequestFactory(getCredentialsIfPresent(), headers);
+    if (!headers.isEmpty()) {
+      return doGet(path, responseType, headers);
+    }
+    String key = path + " " + responseType.getTypeName();
+    SettableFuture<Object> result = SettableFuture.create();
+    Future<Object> inFlight = inFlightGets.putIfAbsent(key, result);
+    if (inFlight != null) {
+      logger.atFine().log("Waiting for in-flight GitHub API request %s", path);
+      try {
+        return (T) Uninterruptibles.getUninterruptibly(inFlight);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(
+            e.getCause(), RepoException.class, ValidationException.class);
+        throw new RepoException("Error running GitHub API operation " + path, e.getCause());
+      }
+    }
+    try {
+      T response = doGet(path, responseType, headers);
+      result.set(response);
+      return response;
+    } catch (Throwable e) {
+      result.setException(e);
+      throw e;
+    } finally {
+      inFlightGets.remove(key, result);
+    }
+  }
+
+  private <T> T doGet(String path, Type responseType,
+      ImmutableListMultimap<String, String> headers) throws RepoException, ValidationException {
+    UserPassword userPassword = getCredentialsIfPresent();
+    String cacheKey = null;
+    GitHubApiResponseCache.Entry cached = null;
+    ImmutableListMultimap<String, String> requestHeaders = headers;
+    if (cache != null) {
+      cacheKey = userPassword == null
+          ? GitHubApiResponseCache.key(/*user=*/ null, /*token=*/ null, path, headers)
+          : GitHubApiResponseCache.key(userPassword.getUsername(),
+              userPassword.getPassword_BeCareful(), path, headers);
+      cached = cache.get(cacheKey);
+      if (cached != null) {
+        requestHeaders = ImmutableListMultimap.<String, String>builder()
+            .putAll(headers)
+            .put("If-None-Match", cached.getEtag())
+            .build();
+      }
+    }
+    HttpRequestFactory requestFactory = getHttpRequestFactory(userPassword, requestHeaders);
     GenericUrl url = new GenericUrl(URI.create(API_PREFIX + path));
 
     try {
       HttpRequest httpRequest = requestFactory.buildGetRequest(url);
-      HttpResponse response = httpRequest.execute();
-      Object responseObj = response.parseAs(responseType);
-      if (responseObj instanceof PaginatedList) {
-        return (T) ((PaginatedList) responseObj).withPaginationInfo(API_PREFIX,
-            maybeGetLinkHeader(response));
+      HttpResponse response = execute(httpRequest);
+      if (cache == null) {
+        return withPaginationInfo(response.parseAs(responseType), maybeGetLinkHeader(response));
+      }
+      byte[] body;
+      try {
+        body = ByteStreams.toByteArray(response.getContent());
+      } finally {
+        response.disconnect();
       }
-      return (T) responseObj;
+      String linkHeader = maybeGetLinkHeader(response);
+      String etag = response.getHeaders().getETag();
+      if (etag != null) {
+        cache.put(cacheKey, new GitHubApiResponseCache.Entry(etag, linkHeader, body));
+      }
+      return withPaginationInfo(parse(body, responseType), linkHeader);
     } catch (HttpResponseException e) {
+      if (cached != null && e.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+        logger.atInfo().log("Using cached GitHub API response for %s", path);
+        try {
+          return withPaginationInfo(parse(cached.getBody(), responseType),
+              cached.getLinkHeader());
+        } catch (IOException parseError) {
+          throw new RepoException("Cannot parse cached GitHub API response for " + path,
+              parseError);
+        }
+      }
       throw new GitHubApiException(e.getStatusCode(), parseErrorOrIgnore(e),
                                    "GET", path, null, e.getContent());
     } catch (IOException e) {
@@ -95,6 +204,46 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
     }
   }
 
+  /**
+   * Executes the request once the rate limiter allows it, retrying if the request is rejected
+   * because of the rate limit.
+   */
+  private HttpResponse execute(HttpRequest request) throws IOException, RepoException {
+    for (int attempt = 1; ; attempt++) {
+      rateLimiter.acquire();
+      try {
+        HttpResponse response = request.execute();
+        rateLimiter.update(response.getHeaders());
+        return response;
+      } catch (HttpResponseException e) {
+        rateLimiter.update(e.getHeaders());
+        if (attempt >= MAX_RATE_LIMITED_ATTEMPTS || !GitHubRateLimiter.isRateLimited(e)) {
+          throw e;
+        }
+        logger.atWarning().log("GitHub API rate limit exceeded for %s %s. Retrying.",
+            request.getRequestMethod(), request.getUrl());
+      }
+    }
+  }
+
+  @Nullable
+  private static Object parse(byte[] body, Type responseType) throws IOException {
+    // Like HttpResponse.parseAs, return null when there is no content
+    if (body.length == 0) {
+      return null;
+    }
+    return new JsonObjectParser(JSON_FACTORY)
+        .parseAndClose(new ByteArrayInputStream(body), UTF_8, responseType);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T withPaginationInfo(Object responseObj, @Nullable String linkHeader) {
+    if (responseObj instanceof PaginatedList) {
+      return (T) ((PaginatedList) responseObj).withPaginationInfo(API_PREFIX, linkHeader);
+    }
+    return (T) responseObj;
+  }
+
   @SuppressWarnings("unchecked")
   @Nullable
   private static String maybeGetLinkHeader(HttpResponse response) {
@@ -120,10 +269,14 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
 
   /** Credentials for API should be optional for any read operation (GET). */
   @Nullable
-  private UserPassword getCredentialsIfPresent() throws RepoException {
+  private synchronized UserPassword getCredentialsIfPresent() throws RepoException {
+    boolean firstTry = credentialsError == null;
     try {
       return getCredentials();
     } catch (ValidationException e) {
+      if (!firstTry) {
+        return null;
+      }
       String msg = String
           .format("GitHub credentials not found in %s. Assuming the repository is public.",
               storePath);
@@ -133,7 +286,6 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
     }
   }
 
-  @SuppressWarnings("unchecked")
   @Override
   public <T> T post(String path, Object request, Type responseType)
       throws RepoException, ValidationException {
@@ -144,14 +296,8 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
     try {
       HttpRequest httpRequest = requestFactory.buildPostRequest(url,
           new JsonHttpContent(JSON_FACTORY, request));
-      HttpResponse response = httpRequest.execute();
-      Object responseObj = response.parseAs(responseType);
-      if (responseObj instanceof PaginatedList) {
-        return (T) ((PaginatedList) responseObj).withPaginationInfo(API_PREFIX,
-            maybeGetLinkHeader(response));
-      }
-      return (T) responseObj;
-
+      HttpResponse response = execute(httpRequest);
+      return withPaginationInfo(response.parseAs(responseType), maybeGetLinkHeader(response));
     } catch (HttpResponseException e) {
       try {
         throw new GitHubApiException(e.getStatusCode(), parseErrorOrIgnore(e),
@@ -173,7 +319,7 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
 
     GenericUrl url = new GenericUrl(URI.create(API_PREFIX + path));
     try {
-      requestFactory.buildDeleteRequest(url).execute();
+      execute(requestFactory.buildDeleteRequest(url));
     } catch (HttpResponseException e) {
       throw new GitHubApiException(e.getStatusCode(), parseErrorOrIgnore(e),
           "DELETE", path, /*request=*/ null, e.getContent());
@@ -206,7 +352,24 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
    * to get it for the api.github.com host, just in case the user has an specific token for that
    * url, otherwise we use the github.com host one.
    */
-  private UserPassword getCredentials() throws RepoException, ValidationException {
+  private synchronized UserPassword getCredentials() throws RepoException, ValidationException {
+    // Don't run the credential helper for every request
+    if (credentials != null) {
+      return credentials;
+    }
+    if (credentialsError != null) {
+      throw credentialsError;
+    }
+    try {
+      credentials = fillCredentials();
+      return credentials;
+    } catch (ValidationException e) {
+      credentialsError = e;
+      throw e;
+    }
+  }
+
+  private UserPassword fillCredentials() throws RepoException, ValidationException {
     try {
       return repo.credentialFill(API_URL);
     } catch (ValidationException e) {
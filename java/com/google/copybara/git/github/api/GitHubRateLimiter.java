@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git.github.api;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
+import com.google.copybara.exception.RepoException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import javax.annotation.Nullable;
+
+/**
+ * Schedules GitHub API requests based on the rate limit headers of the previous responses.
+ *
+ * <p>While there is plenty of quota requests are not delayed. When the remaining quota goes
+ * below {@link #LOW_QUOTA}, the requests are spread evenly until the quota is reset, so that we
+ * slow down instead of failing with a 403. 'Retry-After' (used by the secondary rate limits) is
+ * honored too.
+ *
+ * <p>Instances are thread-safe and are meant to be shared by all the transports that use the same
+ * credentials.
+ */
+public class GitHubRateLimiter {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final int LOW_QUOTA = 100;
+  private static final Duration DEFAULT_MAX_WAIT = Duration.ofMinutes(15);
+
+  private final Clock clock;
+  private final Sleeper sleeper;
+  private final Duration maxWait;
+
+  private int remaining = -1;
+  @Nullable private Instant reset;
+  @Nullable private Instant retryAfter;
+  @Nullable private Instant nextRequest;
+
+  public GitHubRateLimiter() {
+    this(Clock.systemUTC(), d -> Thread.sleep(d.toMillis()), DEFAULT_MAX_WAIT);
+  }
+
+  @VisibleForTesting
+  GitHubRateLimiter(Clock clock, Sleeper sleeper, Duration maxWait) {
+    this.clock = Preconditions.checkNotNull(clock);
+    this.sleeper = Preconditions.checkNotNull(sleeper);
+    this.maxWait = Preconditions.checkNotNull(maxWait);
+  }
+
+  /**
+   * Blocks until a new request can be sent.
+   *
+   * @throws RepoException if the wait would be longer than the maximum allowed or if the thread
+   *     is interrupted.
+   */
+  public void acquire() throws RepoException {
+    Duration wait = reserve();
+    if (wait.isZero()) {
+      return;
+    }
+    if (wait.compareTo(maxWait) > 0) {
+      throw new RepoException(String.format(
+          "GitHub API rate limit exceeded. Quota resets in %d seconds", wait.getSeconds()));
+    }
+    logger.atInfo().log("Waiting %d ms because of the GitHub API rate limit", wait.toMillis());
+    try {
+      sleeper.sleep(wait);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepoException("Interrupted while waiting for the GitHub API rate limit", e);
+    }
+  }
+
+  private synchronized Duration reserve() {
+    Instant now = clock.instant();
+    Instant start = now;
+    if (retryAfter != null && retryAfter.isAfter(start)) {
+      start = retryAfter;
+    }
+    if (reset != null && !reset.isAfter(start)) {
+      // The quota has been reset, so forget the throttling until we get new headers.
+      remaining = -1;
+      reset = null;
+      nextRequest = null;
+    }
+    if (remaining == 0) {
+      start = reset;
+    } else if (remaining > 0 && remaining < LOW_QUOTA) {
+      if (nextRequest != null && nextRequest.isAfter(start)) {
+        start = nextRequest;
+      }
+      nextRequest = start.plus(Duration.between(start, reset).dividedBy(remaining));
+      // Account for the in-flight request until we see the headers of the response.
+      remaining--;
+    }
+    return Duration.between(now, start);
+  }
+
+  /** Updates the quota information based on the headers of a response. */
+  public synchronized void update(HttpHeaders headers) {
+    Long remainingHeader = parseNumber(headers, "X-RateLimit-Remaining");
+    Long resetHeader = parseNumber(headers, "X-RateLimit-Reset");
+    if (remainingHeader != null && resetHeader != null) {
+      remaining = remainingHeader.intValue();
+      reset = Instant.ofEpochSecond(resetHeader);
+    }
+    Long retryAfterHeader = parseNumber(headers, "Retry-After");
+    if (retryAfterHeader != null) {
+      retryAfter = clock.instant().plusSeconds(retryAfterHeader);
+    }
+  }
+
+  /**
+   * Returns true if the error is because of the primary or secondary rate limit, so the request
+   * can be retried after {@link #acquire()}.
+   */
+  static boolean isRateLimited(HttpResponseException e) {
+    if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_FORBIDDEN && e.getStatusCode() != 429) {
+      return false;
+    }
+    HttpHeaders headers = e.getHeaders();
+    return headers.getFirstHeaderStringValue("Retry-After") != null
+        || "0".equals(headers.getFirstHeaderStringValue("X-RateLimit-Remaining"));
+  }
+
+  @Nullable
+  private static Long parseNumber(HttpHeaders headers, String name) {
+    String value = headers.getFirstHeaderStringValue(name);
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      logger.atWarning().log("Ignoring invalid header %s: %s", name, value);
+      return null;
+    }
+  }
+
+  /** Sleeps the current thread. Used for testing. */
+  @VisibleForTesting
+  interface Sleeper {
+    void sleep(Duration duration) throws InterruptedException;
+  }
+}
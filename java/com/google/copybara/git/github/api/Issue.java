@@ -58,6 +58,10 @@ public class Issue extends PullRequestOrIssue {
       return name;
     }
 
+    void setName(String name) {
+      this.name = name;
+    }
+
     @Override
     public String toString() {
       return MoreObjects.toStringHelper(this)
@@ -54,6 +54,18 @@ public class PullRequest extends PullRequestOrIssue implements SkylarkValue {
         : ImmutableList.copyOf(requestedReviewers);
   }
 
+  void setHead(Revision head) {
+    this.head = head;
+  }
+
+  void setBase(Revision base) {
+    this.base = base;
+  }
+
+  void setRequestedReviewers(List<User> requestedReviewers) {
+    this.requestedReviewers = requestedReviewers;
+  }
+
   @Override
   public String toString() {
     return getToStringHelper()
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git.github.api;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A pull request together with its labels and reviews, as returned by
+ * {@link GitHubApi#getPullRequestDetails(String, long)}.
+ */
+public class PullRequestDetails {
+
+  private final PullRequest pullRequest;
+  private final Issue issue;
+  private final ImmutableList<Review> reviews;
+
+  PullRequestDetails(PullRequest pullRequest, Issue issue, ImmutableList<Review> reviews) {
+    this.pullRequest = Preconditions.checkNotNull(pullRequest);
+    this.issue = Preconditions.checkNotNull(issue);
+    this.reviews = Preconditions.checkNotNull(reviews);
+  }
+
+  public PullRequest getPullRequest() {
+    return pullRequest;
+  }
+
+  /** The issue view of the pull request. Contains the labels. */
+  public Issue getIssue() {
+    return issue;
+  }
+
+  public ImmutableList<Review> getReviews() {
+    return reviews;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("pullRequest", pullRequest)
+        .add("issue", issue)
+        .add("reviews", reviews)
+        .toString();
+  }
+}
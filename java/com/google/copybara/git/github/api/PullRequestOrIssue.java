@@ -109,6 +109,46 @@ public class PullRequestOrIssue implements SkylarkValue {
     return assignees == null ? ImmutableList.of() : ImmutableList.copyOf(assignees);
   }
 
+  void setNumber(long number) {
+    this.number = number;
+  }
+
+  void setState(String state) {
+    this.state = state;
+  }
+
+  void setTitle(String title) {
+    this.title = title;
+  }
+
+  void setBody(String body) {
+    this.body = body;
+  }
+
+  void setCreatedAt(String createdAt) {
+    this.createdAt = createdAt;
+  }
+
+  void setUpdatedAt(String updatedAt) {
+    this.updatedAt = updatedAt;
+  }
+
+  void setHtmlUrl(String htmlUrl) {
+    this.htmlUrl = htmlUrl;
+  }
+
+  void setUser(User user) {
+    this.user = user;
+  }
+
+  void setAssignee(@Nullable User assignee) {
+    this.assignee = assignee;
+  }
+
+  void setAssignees(List<User> assignees) {
+    this.assignees = assignees;
+  }
+
   protected ToStringHelper getToStringHelper() {
     return MoreObjects.toStringHelper(this)
         .add("number", number)
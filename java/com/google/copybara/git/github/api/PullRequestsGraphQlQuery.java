@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git.github.api;
+
+import com.google.api.client.util.Data;
+import com.google.api.client.util.Key;
+import com.google.common.base.Ascii;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * GraphQL query that gets pull requests together with their labels and reviews in one request,
+ * and the mapping of its response to the REST API model classes.
+ *
+ * <p>See https://developer.github.com/v4/object/pullrequest/
+ */
+final class PullRequestsGraphQlQuery {
+
+  private static final int MAX_NODES = 100;
+  // The user that the REST API returns in place of deleted accounts
+  private static final String GHOST_LOGIN = "ghost";
+  private static final long GHOST_ID = 10137;
+
+  private static final String FRAGMENTS = ""
+      + "fragment actor on Actor {\n"
+      + "  __typename login\n"
+      + "  ... on User { databaseId }\n"
+      + "  ... on Bot { databaseId }\n"
+      + "}\n"
+      + "fragment pullRequest on PullRequest {\n"
+      + "  number state title body createdAt updatedAt url\n"
+      + "  author { ...actor }\n"
+      + "  assignees(first: " + MAX_NODES + ") { nodes { ...actor } }\n"
+      + "  headRefName headRefOid headRepositoryOwner { login }\n"
+      + "  baseRefName baseRefOid baseRepository { owner { login } }\n"
+      + "  reviewRequests(first: " + MAX_NODES + ") {\n"
+      + "    nodes { requestedReviewer { ... on User { ...actor } } }\n"
+      + "  }\n"
+      + "  labels(first: " + MAX_NODES + ") { pageInfo { hasNextPage } nodes { name } }\n"
+      + "  reviews(first: " + MAX_NODES + ") {\n"
+      + "    pageInfo { hasNextPage }\n"
+      + "    nodes { databaseId author { ...actor } body commit { oid } state authorAssociation }\n"
+      + "  }\n"
+      + "}\n";
+
+  private PullRequestsGraphQlQuery() {}
+
+  /** Creates a request for the pull requests {@code numbers} of the repository owner/name. */
+  static Request create(String owner, String name, List<Long> numbers) {
+    StringBuilder query = new StringBuilder(
+        "query($owner: String!, $name: String!) {\n  repository(owner: $owner, name: $name) {\n");
+    for (int i = 0; i < numbers.size(); i++) {
+      query.append(String.format("    %s: pullRequest(number: %d) { ...pullRequest }\n",
+          alias(i), numbers.get(i)));
+    }
+    query.append("  }\n}\n").append(FRAGMENTS);
+    Request request = new Request();
+    request.query = query.toString();
+    request.variables = ImmutableMap.of("owner", owner, "name", name);
+    return request;
+  }
+
+  /** The key of the i-th pull request of the request in {@link ResponseData#getRepository()}. */
+  static String alias(int i) {
+    return "pr" + i;
+  }
+
+  /** A GraphQL request. */
+  public static class Request {
+    @Key private String query;
+    @Key private Map<String, Object> variables;
+  }
+
+  /** The response of the query. {@code data} might be partially filled if there are errors. */
+  public static class Response {
+    @Key private ResponseData data;
+    @Key private List<Error> errors;
+
+    @Nullable
+    ResponseData getData() {
+      return data;
+    }
+
+    ImmutableList<Error> getErrors() {
+      return errors == null ? ImmutableList.of() : ImmutableList.copyOf(errors);
+    }
+  }
+
+  /** A GraphQL error. */
+  public static class Error {
+    @Key private String type;
+    @Key private String message;
+
+    @Nullable
+    String getType() {
+      return type;
+    }
+
+    String getMessage() {
+      return message;
+    }
+  }
+
+  /** The data of the response. */
+  public static class ResponseData {
+    @Key private Map<String, PullRequestNode> repository;
+
+    /** Pull requests by alias. Null if the repository was not found. */
+    @Nullable
+    Map<String, PullRequestNode> getRepository() {
+      return repository;
+    }
+  }
+
+  /**
+   * Whether a field of the response is null. JSON nulls are parsed as Data.nullOf() instances and
+   * missing fields are left as Java nulls, so both need to be checked.
+   */
+  static boolean isNull(@Nullable Object field) {
+    return field == null || Data.isNull(field);
+  }
+
+  /** A pull request in the response. */
+  public static class PullRequestNode {
+    @Key private long number;
+    @Key private String state;
+    @Key private String title;
+    @Key private String body;
+    @Key private String createdAt;
+    @Key private String updatedAt;
+    @Key private String url;
+    @Key private ActorNode author;
+    @Key private Connection<ActorNode> assignees;
+    @Key private String headRefName;
+    @Key private String headRefOid;
+    @Key private ActorNode headRepositoryOwner;
+    @Key private String baseRefName;
+    @Key private String baseRefOid;
+    @Key private RepositoryNode baseRepository;
+    @Key private Connection<ReviewRequestNode> reviewRequests;
+    @Key private Connection<LabelNode> labels;
+    @Key private Connection<ReviewNode> reviews;
+
+    boolean hasMoreLabels() {
+      return labels.hasNextPage();
+    }
+
+    boolean hasMoreReviews() {
+      return reviews.hasNextPage();
+    }
+
+    PullRequest toPullRequest() {
+      PullRequest result = new PullRequest();
+      fill(result);
+      result.setHead(revision(headRepositoryOwner, headRefName, headRefOid));
+      result.setBase(revision(
+          isNull(baseRepository) ? null : baseRepository.owner, baseRefName, baseRefOid));
+      List<User> reviewers = new ArrayList<>();
+      for (ReviewRequestNode request : reviewRequests.getNodes()) {
+        // Team review requests are not users
+        if (!isNull(request.requestedReviewer) && request.requestedReviewer.login != null) {
+          reviewers.add(request.requestedReviewer.toUser());
+        }
+      }
+      result.setRequestedReviewers(reviewers);
+      return result;
+    }
+
+    Issue toIssue() {
+      Issue result = new Issue();
+      fill(result);
+      List<Issue.Label> issueLabels = new ArrayList<>();
+      for (LabelNode label : labels.getNodes()) {
+        Issue.Label issueLabel = new Issue.Label();
+        issueLabel.setName(label.name);
+        issueLabels.add(issueLabel);
+      }
+      result.setLabels(issueLabels);
+      return result;
+    }
+
+    ImmutableList<Review> toReviews() {
+      ImmutableList.Builder<Review> result = ImmutableList.builder();
+      for (ReviewNode node : reviews.getNodes()) {
+        Review review = new Review();
+        review.setId(node.databaseId);
+        review.setUser(ActorNode.userOrGhost(node.author));
+        review.setBody(node.body);
+        review.setCommitId(isNull(node.commit) ? null : node.commit.oid);
+        review.setState(node.state);
+        review.setAuthorAssociation(node.authorAssociation);
+        result.add(review);
+      }
+      return result.build();
+    }
+
+    private void fill(PullRequestOrIssue result) {
+      result.setNumber(number);
+      // The REST API doesn't have a merged state
+      result.setState("MERGED".equals(state) ? "closed" : Ascii.toLowerCase(state));
+      result.setTitle(title);
+      result.setBody(body);
+      result.setCreatedAt(createdAt);
+      result.setUpdatedAt(updatedAt);
+      result.setHtmlUrl(url);
+      result.setUser(ActorNode.userOrGhost(author));
+      List<User> users = new ArrayList<>();
+      for (ActorNode assignee : assignees.getNodes()) {
+        users.add(assignee.toUser());
+      }
+      result.setAssignees(users);
+      result.setAssignee(users.isEmpty() ? null : users.get(0));
+    }
+
+    private static Revision revision(@Nullable ActorNode owner, String ref, String sha) {
+      Revision revision = new Revision();
+      // Same format as the REST API: 'owner:branch'
+      revision.setLabel(isNull(owner) ? ref : owner.login + ":" + ref);
+      revision.setRef(ref);
+      revision.setSha(sha);
+      return revision;
+    }
+  }
+
+  /** A list of nodes in the response. */
+  public static class Connection<T> {
+    @Key private PageInfo pageInfo;
+    @Key private List<T> nodes;
+
+    List<T> getNodes() {
+      return nodes == null ? ImmutableList.of() : nodes;
+    }
+
+    boolean hasNextPage() {
+      return pageInfo != null && pageInfo.hasNextPage;
+    }
+  }
+
+  /** Pagination information of a {@link Connection}. */
+  public static class PageInfo {
+    @Key private boolean hasNextPage;
+  }
+
+  /** A user, bot, etc. in the response. */
+  public static class ActorNode {
+    @Key("__typename") private String typeName;
+    @Key private String login;
+    @Key private long databaseId;
+
+    User toUser() {
+      User user = new User();
+      user.setLogin(login);
+      user.setId(databaseId);
+      user.setType(typeName);
+      return user;
+    }
+
+    /**
+     * Authors are null for deleted accounts. The REST API returns the 'ghost' user for them, so
+     * the same user is returned here.
+     */
+    static User userOrGhost(@Nullable ActorNode actor) {
+      if (!isNull(actor)) {
+        return actor.toUser();
+      }
+      User ghost = new User();
+      ghost.setLogin(GHOST_LOGIN);
+      ghost.setId(GHOST_ID);
+      ghost.setType("User");
+      return ghost;
+    }
+  }
+
+  /** A repository in the response. */
+  public static class RepositoryNode {
+    @Key private ActorNode owner;
+  }
+
+  /** A review request in the response. */
+  public static class ReviewRequestNode {
+    @Key private ActorNode requestedReviewer;
+  }
+
+  /** A label in the response. */
+  public static class LabelNode {
+    @Key private String name;
+  }
+
+  /** A review in the response. */
+  public static class ReviewNode {
+    @Key private long databaseId;
+    @Key private ActorNode author;
+    @Key private String body;
+    @Key private CommitNode commit;
+    @Key private String state;
+    @Key private String authorAssociation;
+  }
+
+  /** A commit in the response. */
+  public static class CommitNode {
+    @Key private String oid;
+  }
+}
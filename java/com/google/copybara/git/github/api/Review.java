@@ -73,6 +73,30 @@ public class Review {
         : AuthorAssociation.valueOf(authorAssociation);
   }
 
+  void setId(long id) {
+    this.id = id;
+  }
+
+  void setUser(User user) {
+    this.user = user;
+  }
+
+  void setBody(String body) {
+    this.body = body;
+  }
+
+  void setCommitId(String commitId) {
+    this.commitId = commitId;
+  }
+
+  void setState(String state) {
+    this.state = state;
+  }
+
+  void setAuthorAssociation(String authorAssociation) {
+    this.authorAssociation = authorAssociation;
+  }
+
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
@@ -52,6 +52,18 @@ public class Revision implements SkylarkValue {
     return sha;
   }
 
+  void setLabel(String label) {
+    this.label = label;
+  }
+
+  void setRef(String ref) {
+    this.ref = ref;
+  }
+
+  void setSha(String sha) {
+    this.sha = sha;
+  }
+
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
@@ -56,6 +56,18 @@ public class User implements SkylarkValue {
     return siteAdmin;
   }
 
+  void setLogin(String login) {
+    this.login = login;
+  }
+
+  void setId(long id) {
+    this.id = id;
+  }
+
+  void setType(String type) {
+    this.type = type;
+  }
+
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
@@ -30,9 +30,11 @@ import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.git.github.api.AuthorAssociation;
 import com.google.copybara.git.github.api.CheckRuns;
 import com.google.copybara.git.github.api.CombinedStatus;
 import com.google.copybara.git.github.api.CreatePullRequest;
@@ -47,6 +49,7 @@ import com.google.copybara.git.github.api.Issue;
 import com.google.copybara.git.github.api.Issue.Label;
 import com.google.copybara.git.github.api.PullRequest;
 import com.google.copybara.git.github.api.PullRequestComment;
+import com.google.copybara.git.github.api.PullRequestDetails;
 import com.google.copybara.git.github.api.Ref;
 import com.google.copybara.git.github.api.Review;
 import com.google.copybara.git.github.api.Status;
@@ -233,6 +236,16 @@ public abstract class AbstractGitHubApiTest {
 
   @Test
   public void testGetPullReviews() throws Exception {
+    checkGetPullReviews();
+  }
+
+  @Test
+  public void testGetPullReviewsInParallel() throws Exception {
+    api = new GitHubApi(getTransport(), profiler, runnable -> new Thread(runnable).start());
+    checkGetPullReviews();
+  }
+
+  private void checkGetPullReviews() throws Exception {
     trainMockGetWithHeaders("/repos/octocat/Hello-World/pulls/12/reviews?per_page=100",
         getResource("pulls_12345_reviews_testdata.json"),
         ImmutableMap.of("Link", ""
@@ -362,6 +375,97 @@ public abstract class AbstractGitHubApiTest {
         .containsExactly("cla: yes");
   }
 
+  @Test
+  public void testGetPullRequestDetails() throws Exception {
+    trainMockPost("/graphql",
+        request -> request.contains("pr0: pullRequest(number: 12345)")
+            && request.contains("pr1: pullRequest(number: 12346)")
+            && request.contains("\"owner\":\"example\"")
+            && request.contains("\"name\":\"project\""),
+        getResource("graphql_pulls_testdata.json"));
+    List<PullRequestDetails> details =
+        api.getPullRequestDetails("example/project", ImmutableList.of(12345L, 12346L));
+
+    assertThat(details).hasSize(2);
+    PullRequest pullRequest = details.get(0).getPullRequest();
+    assertThat(pullRequest.getNumber()).isEqualTo(12345);
+    assertThat(pullRequest.isOpen()).isTrue();
+    assertThat(pullRequest.getTitle()).isEqualTo("[TEST] example pull request one");
+    assertThat(pullRequest.getHtmlUrl())
+        .isEqualTo("https://github.com/example/project/pull/12345");
+    assertThat(pullRequest.getUser().getLogin()).isEqualTo("googletestuser");
+    assertThat(pullRequest.getAssignee().getLogin()).isEqualTo("octocat");
+    assertThat(pullRequest.getHead().getLabel()).isEqualTo("googletestuser:example-branch");
+    assertThat(pullRequest.getHead().getSha())
+        .isEqualTo("befdbd40b3bd8d7ec9e6ae7eb7c4e5d4fef1d3bf");
+    assertThat(pullRequest.getBase().getRef()).isEqualTo("master");
+    assertThat(Lists.transform(pullRequest.getRequestedReviewers(), User::getLogin))
+        .containsExactly("reviewer");
+    assertThat(Lists.transform(details.get(0).getIssue().getLabels(), Label::getName))
+        .containsExactly("cla: yes");
+    Review review = Iterables.getOnlyElement(details.get(0).getReviews());
+    assertThat(review.getUser().getLogin()).isEqualTo("octocat");
+    assertThat(review.isApproved()).isTrue();
+    assertThat(review.getCommitId()).isEqualTo("befdbd40b3bd8d7ec9e6ae7eb7c4e5d4fef1d3bf");
+    assertThat(review.getAuthorAssociation()).isEqualTo(AuthorAssociation.MEMBER);
+
+    pullRequest = details.get(1).getPullRequest();
+    assertThat(pullRequest.getState()).isEqualTo("closed");
+    // Deleted accounts are reported as the 'ghost' user, like in the REST API
+    assertThat(pullRequest.getUser().getLogin()).isEqualTo("ghost");
+    assertThat(pullRequest.getAssignee()).isNull();
+    assertThat(pullRequest.getHead().getLabel()).isEqualTo("other-branch");
+    assertThat(details.get(1).getIssue().getLabels()).isEmpty();
+    assertThat(details.get(1).getReviews()).isEmpty();
+  }
+
+  @Test
+  public void testGetPullRequestDetailsNotFound() throws Exception {
+    trainMockPost("/graphql", request -> true, ("{\"data\": {\"repository\": {\"pr0\": null}},"
+        + " \"errors\": [{\"type\": \"NOT_FOUND\", \"message\": \"Could not resolve to a"
+        + " PullRequest with the number of 1.\"}]}").getBytes(UTF_8));
+    try {
+      api.getPullRequestDetails("example/project", 1);
+      fail();
+    } catch (ValidationException e) {
+      assertThat(e).hasMessageThat().contains("Pull Request not found");
+    }
+  }
+
+  @Test
+  public void testGetPullRequestDetailsMissingPullRequest() throws Exception {
+    trainMockPost("/graphql", request -> true,
+        "{\"data\": {\"repository\": {}}}".getBytes(UTF_8));
+    try {
+      api.getPullRequestDetails("example/project", 1);
+      fail();
+    } catch (ValidationException e) {
+      assertThat(e).hasMessageThat().contains("Pull Request not found: example/project/1");
+    }
+  }
+
+  @Test
+  public void testGetPullRequestDetailsMissingRepository() throws Exception {
+    trainMockPost("/graphql", request -> true, "{\"data\": {}}".getBytes(UTF_8));
+    try {
+      api.getPullRequestDetails("example/project", 1);
+      fail();
+    } catch (ValidationException e) {
+      assertThat(e).hasMessageThat().contains("Project not found: example/project");
+    }
+  }
+
+  @Test
+  public void testGetPullRequestDetailsNullRepository() throws Exception {
+    trainMockPost("/graphql", request -> true,
+        "{\"data\": {\"repository\": null}}".getBytes(UTF_8));
+    try {
+      api.getPullRequestDetails("example/project", 1);
+      fail();
+    } catch (ValidationException e) {
+      assertThat(e).hasMessageThat().contains("Project not found: example/project");
+    }
+  }
 
   @Test
   public void testCreateStatus() throws Exception {
@@ -19,8 +19,13 @@ package com.google.copybara.hg;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.copybara.exception.ValidationException.checkCondition;
 
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimaps;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.io.MoreFiles;
 import com.google.copybara.ChangeMessage;
 import com.google.copybara.Destination;
 import com.google.copybara.DestinationEffect;
@@ -33,17 +38,15 @@ import com.google.copybara.exception.CannotResolveRevisionException;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.profiler.Profiler.ProfilerTask;
-import com.google.copybara.util.DiffUtil;
-import com.google.copybara.util.DiffUtil.DiffFile;
-import com.google.copybara.util.DiffUtil.DiffFile.Operation;
-import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
-import com.google.copybara.util.InsideGitDirException;
+import com.google.copybara.util.RenameDetector;
+import com.google.copybara.util.RenameDetector.Score;
 import com.google.copybara.util.console.Console;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
@@ -51,7 +54,13 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.annotation.Nullable;
 
@@ -60,6 +69,9 @@ import javax.annotation.Nullable;
  */
 public class HgDestination implements Destination<HgRevision> {
   private static final String ORIGIN_LABEL_SEPARATOR = ": ";
+  private static final String HG_ARCHIVAL_FILE = ".hg_archival.txt";
+  /** Minimum similarity for committing a removed and an added file as a rename, like Git. */
+  private static final int RENAME_MIN_SCORE = RenameDetector.MAX_SCORE / 2;
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
   static class MessageInfo {
@@ -202,8 +214,8 @@ public class HgDestination implements Destination<HgRevision> {
     }
 
     /**
-     * Add and delete files from a repository, based on the computed diff between the repository and
-     * a {@param workdir}.
+     * Add and delete files from a repository, based on the computed diff between the working copy
+     * of the repository and a {@param workdir}.
      *
      * <p> This is required to write files from the {@param workdir} to the destination because
      * there is no built-in option to set the working directory of a repository. Thus, we need to
@@ -211,61 +223,169 @@ public class HgDestination implements Destination<HgRevision> {
      * contains exactly the same files as that of the {@param workdir}, but not modifying or
      * deleting files excluded in {@code destinationFiles}. Changes are staged to be pushed to a
      * remote repository.
+     *
+     * <p>The working copy is expected to be clean, so the tracked files are the files of the
+     * remote revision. Additions and removals are staged in batches, as starting one hg process
+     * per file is too slow for big changes. Since Mercurial doesn't detect renames, removed and
+     * added files with similar content are recorded as renames.
      */
     private void getDiffAndStageChanges(Glob destinationFiles,
         Path workDir, HgRepository localRepo)
         throws RepoException, IOException {
-      // Create a temp archive of the remote repository to compute diff with
-      Path tempArchivePath = generalOptions.getDirFactory().newTempDir("tempArchive");
-      localRepo.archive(tempArchivePath.toString());
+      Path hgDir = localRepo.getHgDir();
+      PathMatcher pathMatcher = destinationFiles.relativeTo(hgDir);
+      Set<String> tracked = new HashSet<>(localRepo.manifest());
+
+      WorkdirFilesFinder visitor = new WorkdirFilesFinder(workDir);
+      Files.walkFileTree(workDir, visitor);
+
+      List<String> toAdd = new ArrayList<>();
+      for (String name : visitor.files) {
+        boolean isTracked = tracked.contains(name);
+        if (isTracked && !pathMatcher.matches(hgDir.resolve(name))) {
+          continue;
+        }
+        Path source = workDir.resolve(name);
+        Path destFile = hgDir.resolve(name);
+        if (!isTracked) {
+          Files.createDirectories(destFile.getParent());
+          Files.copy(source, destFile, StandardCopyOption.COPY_ATTRIBUTES,
+              StandardCopyOption.REPLACE_EXISTING);
+          toAdd.add(name);
+        } else if (!sameContent(source, destFile)) {
+          // Only rewrite modified files, so that Mercurial doesn't need to check the unchanged
+          // ones again.
+          Files.copy(source, destFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
 
-      // Find excluded files in the archive
-      HgExcludesFinder visitor =
-          new HgExcludesFinder(tempArchivePath, destinationFiles.relativeTo(tempArchivePath));
-      Files.walkFileTree(tempArchivePath, visitor);
+      List<String> toRemove = new ArrayList<>();
+      for (String name : tracked) {
+        if (!visitor.files.contains(name) && pathMatcher.matches(hgDir.resolve(name))) {
+          toRemove.add(name);
+        }
+      }
+      Collections.sort(toRemove);
+
+      // Files that were removed and added with similar content are committed as renames, so
+      // that Mercurial keeps their history.
+      for (Map.Entry<String, List<String>> entry
+          : Multimaps.asMap(detectRenames(hgDir, toRemove, toAdd)).entrySet()) {
+        for (String source : entry.getValue()) {
+          Files.delete(hgDir.resolve(source));
+        }
+        // 'hg mv' takes the target as a literal path, not as a pattern. '--' makes sure that it
+        // is not parsed as an option.
+        runBatched(localRepo, ImmutableList.of("mv", "--after", "--"),
+            asPathPatterns(entry.getValue()), ImmutableList.of(entry.getKey()));
+      }
 
-      try {
-        // Compute the diff between an archive of the remote repo and the workdir
-        ImmutableList<DiffFile> diffFiles = DiffUtil
-            .diffFiles(tempArchivePath, workDir, generalOptions.isVerbose(),
-                generalOptions.getEnvironment());
-
-        for (DiffFile diff : diffFiles) {
-          if (visitor.excluded.contains(diff.getName())) {
-            continue;
-          }
+      runBatched(localRepo, ImmutableList.of("add"), asPathPatterns(toAdd), ImmutableList.of());
+      runBatched(localRepo, ImmutableList.of("remove"), asPathPatterns(toRemove),
+          ImmutableList.of());
+    }
 
-          Operation diffOp = diff.getOperation();
+    /**
+     * Finds the files in {@code added} that are renames of files in {@code removed}, and removes
+     * them from both lists.
+     *
+     * <p>Returns the sources of the renames keyed by their target. Renames that keep the file name
+     * are keyed by the target directory instead, so that directory moves can be recorded with a
+     * few 'hg mv' invocations.
+     */
+    private ListMultimap<String, String> detectRenames(Path hgDir, List<String> removed,
+        List<String> added) throws IOException {
+      ListMultimap<String, String> renames = ArrayListMultimap.create();
+      if (removed.isEmpty() || added.isEmpty()) {
+        return renames;
+      }
+      RenameDetector<String> detector = new RenameDetector<>();
+      for (String name : removed) {
+        Path file = hgDir.resolve(name);
+        if (Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+          detector.addPriorFile(name, Files.newInputStream(file));
+        }
+      }
+      List<RenameCandidate> candidates = new ArrayList<>();
+      for (String name : added) {
+        Path file = hgDir.resolve(name);
+        if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+          continue;
+        }
+        for (Score<String> score
+            : detector.scoresForLaterFile(Files.newInputStream(file), RENAME_MIN_SCORE)) {
+          candidates.add(new RenameCandidate(score.getKey(), name, score.getScore()));
+        }
+      }
+      // Best matches first. Each file can only be part of one rename.
+      candidates.sort((a, b) -> Integer.compare(b.score, a.score));
+      Set<String> usedSources = new HashSet<>();
+      Set<String> usedTargets = new HashSet<>();
+      for (RenameCandidate candidate : candidates) {
+        if (usedSources.contains(candidate.source) || usedTargets.contains(candidate.target)) {
+          continue;
+        }
+        usedSources.add(candidate.source);
+        usedTargets.add(candidate.target);
+        Path source = Paths.get(candidate.source);
+        Path target = Paths.get(candidate.target);
+        if (target.getParent() != null
+            && source.getFileName().equals(target.getFileName())) {
+          renames.put(target.getParent().toString(), candidate.source);
+        } else {
+          renames.put(candidate.target, candidate.source);
+        }
+      }
+      removed.removeAll(usedSources);
+      added.removeAll(usedTargets);
+      return renames;
+    }
 
-          if (diffOp.equals(Operation.ADD)) {
-            Files.copy(workDir.resolve(diff.getName()),
-                localRepo.getHgDir().resolve(diff.getName()), StandardCopyOption.COPY_ATTRIBUTES);
-            localRepo.hg(localRepo.getHgDir(), "add", diff.getName());
-          }
+    private boolean sameContent(Path source, Path dest) throws IOException {
+      return Files.isRegularFile(dest, LinkOption.NOFOLLOW_LINKS)
+          && Files.size(source) == Files.size(dest)
+          && Files.isExecutable(source) == Files.isExecutable(dest)
+          && MoreFiles.asByteSource(source).contentEquals(MoreFiles.asByteSource(dest));
+    }
 
-          if (diffOp.equals(Operation.MODIFIED)) {
-            Files.copy(workDir.resolve(diff.getName()),
-                localRepo.getHgDir().resolve(diff.getName()), StandardCopyOption.REPLACE_EXISTING);
-          }
+    private List<String> asPathPatterns(List<String> files) {
+      // Use 'path:' patterns so that file names are not interpreted as other kind of patterns.
+      return Lists.transform(files, file -> "path:" + file);
+    }
 
-          if (diffOp.equals(Operation.DELETE)) {
-            try {
-              localRepo.hg(localRepo.getHgDir(), "remove", diff.getName());
-            } catch (RepoException e) {
-              // Ignore a .hg_archival file that is not in the workdir nor in the local repo.
-              if (!e.getMessage().contains(".hg_archival.txt: No such file or directory")) {
-                throw e;
-              }
-            }
-          }
+    /**
+     * Runs the hg {@code command} for {@code files}, splitting the invocation in chunks of 6K so
+     * that the arguments don't go over the max argument size of the system. {@code suffix} is
+     * appended to every invocation.
+     */
+    private void runBatched(HgRepository localRepo, List<String> command,
+        Collection<String> files, List<String> suffix) throws RepoException {
+      List<String> current = new ArrayList<>();
+      int size = 0;
+      for (String file : files) {
+        current.add(file);
+        size += file.length();
+        if (size > 6 * 1024) {
+          localRepo.hg(localRepo.getHgDir(), toArgs(command, current, suffix));
+          current.clear();
+          size = 0;
         }
-      } catch (InsideGitDirException e) {
-        throw new RepoException(String.format("Error computing file diff: %s", e.getMessage()), e);
-      } finally {
-        FileUtil.deleteRecursively(tempArchivePath);
       }
+      if (!current.isEmpty()) {
+        localRepo.hg(localRepo.getHgDir(), toArgs(command, current, suffix));
+      }
+    }
+
+    private String[] toArgs(List<String> command, List<String> files, List<String> suffix) {
+      return ImmutableList.<String>builder()
+          .addAll(command)
+          .addAll(files)
+          .addAll(suffix)
+          .build()
+          .toArray(new String[0]);
     }
 
+
     /**
      * Writes the changes in {@param transformResult} to the destination repository.
      */
@@ -318,20 +438,35 @@ public class HgDestination implements Destination<HgRevision> {
     }
   }
 
-  private static final class HgExcludesFinder extends SimpleFileVisitor<Path> {
+  private static final class RenameCandidate {
+    private final String source;
+    private final String target;
+    private final int score;
+
+    private RenameCandidate(String source, String target, int score) {
+      this.source = source;
+      this.target = target;
+      this.score = score;
+    }
+  }
+
+  /**
+   * Collects the relative paths of the files in the workdir, ignoring the metadata file that
+   * {@code hg archive} writes.
+   */
+  private static final class WorkdirFilesFinder extends SimpleFileVisitor<Path> {
     private final Path directory;
-    private final PathMatcher destinationFiles;
-    private final Set<String> excluded = new HashSet<>();
+    private final Set<String> files = new LinkedHashSet<>();
 
-    private HgExcludesFinder(Path directory, PathMatcher destinationFiles) {
+    private WorkdirFilesFinder(Path directory) {
       this.directory = directory;
-      this.destinationFiles = destinationFiles;
     }
 
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-      if (!destinationFiles.matches(file)) {
-        excluded.add(directory.relativize(file).toString());
+      String name = directory.relativize(file).toString();
+      if (!name.equals(HG_ARCHIVAL_FILE)) {
+        files.add(name);
       }
       return FileVisitResult.CONTINUE;
     }
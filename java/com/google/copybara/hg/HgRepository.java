@@ -22,6 +22,7 @@ import static com.google.copybara.util.RepositoryUtil.validateNotHttp;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -191,6 +192,15 @@ public class HgRepository {
     }
   }
 
+  /**
+   * Returns the paths of the files tracked in the parent revision of the working directory,
+   * relative to the root of the repository.
+   */
+  ImmutableList<String> manifest() throws RepoException {
+    return ImmutableList.copyOf(
+        Splitter.on('\n').omitEmptyStrings().split(hg(hgDir, "manifest").getStdout()));
+  }
+
   /**
    * Creates an unversioned archive of the current working directory and subrepositories
    * in the location {@code archivePath}.
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.profiler;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A histogram of task latencies with logarithmic buckets. Each power of two is split in
+ * {@link #SUB_BUCKETS} buckets, so percentiles are accurate to about 12%, using a few KB per
+ * histogram no matter how many values are recorded.
+ */
+final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final long[] buckets = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+  private long count;
+  private long totalNanos;
+  private long maxNanos;
+
+  void record(long nanos) {
+    long value = Math.max(nanos, 0);
+    buckets[bucket(value)]++;
+    count++;
+    totalNanos += value;
+    maxNanos = Math.max(maxNanos, value);
+  }
+
+  long count() {
+    return count;
+  }
+
+  long totalNanos() {
+    return totalNanos;
+  }
+
+  long maxNanos() {
+    return maxNanos;
+  }
+
+  /**
+   * Returns an upper bound of the {@code percentile} (between 0 and 100) of the recorded values.
+   */
+  long percentileNanos(double percentile) {
+    Preconditions.checkArgument(percentile >= 0 && percentile <= 100,
+        "Invalid percentile: %s", percentile);
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      seen += buckets[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), maxNanos);
+      }
+    }
+    return maxNanos;
+  }
+
+  /**
+   * Values smaller than {@link #SUB_BUCKETS} get their own bucket. Bigger values are bucketed by
+   * their highest bit and the {@link #SUB_BUCKET_BITS} bits after it.
+   */
+  private static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  private static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
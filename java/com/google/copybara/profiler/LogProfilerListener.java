@@ -17,10 +17,8 @@
 package com.google.copybara.profiler;
 
 
-import com.google.common.base.Throwables;
 import com.google.common.flogger.FluentLogger;
 import java.time.Duration;
-import java.util.List;
 
 /**
  * A simple callback for the profiler that logs the execution of the tasks when they finish.
@@ -36,28 +34,8 @@ public class LogProfilerListener implements Listener {
 
   @Override
   public void taskFinished(Task task) {
-    List<StackTraceElement> stack = Throwables.lazyStackTrace(new Throwable());
-    if (stack != null && stack.size() > 2) {
-      // Call-site -> profiler -> this
-      int depth = 2;
-      StackTraceElement caller = stack.get(depth);
-      // Depending on the JVM, we might have added entries
-      while ((caller.getClassName().equals("com.google.copybara.profiler.Profiler") 
-          || caller.getMethodName().startsWith("$")) 
-          && stack.size() > depth + 1) {
-        depth++;
-        caller = stack.get(depth);
-      }
-      logger.atInfo()
-          .withInjectedLogSite(
-              caller.getClassName(),
-              caller.getMethodName(),
-              caller.getLineNumber(),
-              caller.getFileName())
-          .log("PROFILE: %6d %s",
-              Duration.ofNanos(task.elapsedNanos()).toMillis(), task.getDescription());
-      return;
-    }
+    // We don't inject the call-site as the log site, since walking the stack for every task is
+    // too expensive for runs with many tasks. The description already identifies the task.
     logger.atInfo().log("PROFILE: %6d %s",
         Duration.ofNanos(task.elapsedNanos()).toMillis(), task.getDescription());
   }
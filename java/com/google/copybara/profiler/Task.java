@@ -76,6 +76,13 @@ public final class Task {
     return fields;
   }
 
+  /**
+   * Value of the profiler ticker when the task started.
+   */
+  long getStartNanos() {
+    return startNanos;
+  }
+
   /**
    * Time elapsedNanos running the task. Should only be called if {@link #isFinished()}
    * returns true.
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.profiler;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A profiler {@link Listener} that records the finished tasks in a preallocated ring buffer and,
+ * when the root task finishes, writes them in the Chrome
+ * <a href="https://github.com/catapult-project/catapult/blob/master/tracing/README.md">
+ * trace_event</a> JSON format (Loadable in chrome://tracing) and logs a summary of the latencies
+ * of each kind of task.
+ *
+ * <p>If the run has more tasks than the capacity of the buffer, only the latest ones are written
+ * to the trace. The summary includes all the tasks.
+ *
+ * <p>The summary groups the tasks by description, replacing numbers with 'N' so that tasks like
+ * {@code github_api_list_pulls_page_1} and {@code github_api_list_pulls_page_2} are grouped
+ * together.
+ */
+public class TraceProfilerListener implements Listener {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final int DEFAULT_CAPACITY = 1 << 16;
+
+  private final Path output;
+  private final Task[] tasks;
+  private final long[] threadIds;
+  private final Map<Long, String> threadNames = new HashMap<>();
+  /** Total number of tasks recorded. The next position of the ring buffer is size % capacity. */
+  private long size;
+  private final Map<String, LatencyHistogram> histograms = new HashMap<>();
+
+  public TraceProfilerListener(Path output) {
+    this(output, DEFAULT_CAPACITY);
+  }
+
+  @VisibleForTesting
+  TraceProfilerListener(Path output, int capacity) {
+    Preconditions.checkArgument(capacity > 0, "Invalid capacity: %s", capacity);
+    this.output = Preconditions.checkNotNull(output);
+    this.tasks = new Task[capacity];
+    this.threadIds = new long[capacity];
+  }
+
+  @Override
+  public void taskStarted(Task task) {
+    // Ignored. We only record the finish event
+  }
+
+  @Override
+  public void taskFinished(Task task) {
+    Thread thread = Thread.currentThread();
+    synchronized (this) {
+      int pos = (int) (size++ % tasks.length);
+      tasks[pos] = task;
+      threadIds[pos] = thread.getId();
+      if (!threadNames.containsKey(thread.getId())) {
+        threadNames.put(thread.getId(), thread.getName());
+      }
+      histograms.computeIfAbsent(groupName(task.getDescription()), k -> new LatencyHistogram())
+          .record(task.elapsedNanos());
+    }
+    if (task.getDescription().equals(Profiler.ROOT_NAME)) {
+      try {
+        writeTrace(task);
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Cannot write profiler trace to %s", output);
+      }
+      for (String line : summary()) {
+        logger.atInfo().log("PROFILE SUMMARY: %s", line);
+      }
+    }
+  }
+
+  /**
+   * Returns a line per kind of task with its latency statistics, sorted by total time.
+   */
+  synchronized ImmutableList<String> summary() {
+    List<Entry<String, LatencyHistogram>> entries = new ArrayList<>(histograms.entrySet());
+    entries.sort((a, b) -> Long.compare(b.getValue().totalNanos(), a.getValue().totalNanos()));
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    for (Entry<String, LatencyHistogram> entry : entries) {
+      LatencyHistogram histogram = entry.getValue();
+      result.add(String.format("%s count=%d total=%dms p50=%dms p95=%dms max=%dms",
+          entry.getKey(), histogram.count(), toMillis(histogram.totalNanos()),
+          toMillis(histogram.percentileNanos(50)), toMillis(histogram.percentileNanos(95)),
+          toMillis(histogram.maxNanos())));
+    }
+    return result.build();
+  }
+
+  private synchronized void writeTrace(Task root) throws IOException {
+    // Chrome traces use microseconds. Make them relative to the start of the run.
+    long origin = root.getStartNanos();
+    try (Writer writer = Files.newBufferedWriter(output, UTF_8)) {
+      writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+      boolean first = true;
+      for (Entry<Long, String> thread : threadNames.entrySet()) {
+        first = separator(writer, first);
+        writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":");
+        writer.write(Long.toString(thread.getKey()));
+        writer.write(",\"args\":{\"name\":");
+        writeString(writer, thread.getValue());
+        writer.write("}}");
+      }
+      long start = Math.max(0, size - tasks.length);
+      for (long i = start; i < size; i++) {
+        int pos = (int) (i % tasks.length);
+        Task task = tasks[pos];
+        first = separator(writer, first);
+        writer.write("{\"name\":");
+        writeString(writer, task.getDescription()
+            .substring(task.getDescription().lastIndexOf('/') + 1));
+        writer.write(",\"ph\":\"X\",\"pid\":1,\"tid\":");
+        writer.write(Long.toString(threadIds[pos]));
+        writer.write(",\"ts\":");
+        writer.write(Long.toString((task.getStartNanos() - origin) / 1000));
+        writer.write(",\"dur\":");
+        writer.write(Long.toString(task.elapsedNanos() / 1000));
+        writer.write(",\"args\":{\"description\":");
+        writeString(writer, task.getDescription());
+        for (Entry<String, String> field : task.getFields().entrySet()) {
+          writer.write(',');
+          writeString(writer, field.getKey());
+          writer.write(':');
+          writeString(writer, field.getValue());
+        }
+        writer.write("}}");
+      }
+      writer.write("]}\n");
+    }
+  }
+
+  private static boolean separator(Writer writer, boolean first) throws IOException {
+    if (!first) {
+      writer.write(",\n");
+    }
+    return false;
+  }
+
+  private static void writeString(Writer writer, String value) throws IOException {
+    writer.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        writer.write('\\');
+        writer.write(c);
+      } else if (c < 0x20) {
+        writer.write(String.format("\\u%04x", (int) c));
+      } else {
+        writer.write(c);
+      }
+    }
+    writer.write('"');
+  }
+
+  /**
+   * Replaces the numbers in {@code description} with 'N', so that tasks that only differ in a
+   * page number or similar are summarized together.
+   */
+  @VisibleForTesting
+  static String groupName(String description) {
+    StringBuilder sb = new StringBuilder(description.length());
+    boolean inNumber = false;
+    for (int i = 0; i < description.length(); i++) {
+      char c = description.charAt(i);
+      if (c >= '0' && c <= '9') {
+        if (!inNumber) {
+          sb.append('N');
+          inNumber = true;
+        }
+      } else {
+        sb.append(c);
+        inNumber = false;
+      }
+    }
+    return sb.toString();
+  }
+
+  private static long toMillis(long nanos) {
+    return Duration.ofNanos(nanos).toMillis();
+  }
+}
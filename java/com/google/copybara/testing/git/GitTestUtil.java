@@ -388,10 +388,11 @@ public class GitTestUtil {
     }
 
     @Override
-    public FetchResult fetch(String url, boolean prune, boolean force,
-        Iterable<String> refspecs) throws RepoException, ValidationException {
+    protected FetchResult fetch(String url, boolean prune, boolean force,
+        Iterable<String> refspecs, boolean computeResult)
+        throws RepoException, ValidationException {
       validator.validateFetch(url, prune, force, refspecs);
-      return super.fetch(mapUrl(url), prune, force, refspecs);
+      return super.fetch(mapUrl(url), prune, force, refspecs, computeResult);
     }
 
     @Override
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.LocalParallelizer;
+import com.google.copybara.TransformWork;
+import com.google.copybara.Transformation;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.util.Glob;
+import com.google.copybara.util.console.Console;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A {@link Transformation} that only rewrites the content of the files matching a {@link Glob},
+ * one file at a time, without adding or deleting files.
+ *
+ * <p>Consecutive content transformations in a {@link Sequence} are joined into a
+ * {@link JoinedContentTransformation}, so that each file is read and written only once for all
+ * of them.
+ */
+public interface ContentTransformation extends Transformation {
+
+  /** The files that this transformation applies to. */
+  Glob getPaths();
+
+  LocalParallelizer parallelizer();
+
+  /**
+   * Creates a {@link ContentTransformer} for a batch of files. Batches might run in parallel, so
+   * each one gets its own instance.
+   */
+  ContentTransformer transformer(Console console);
+
+  /**
+   * Returns true if the transformation works line by line and never matches across lines. Big
+   * files are then transformed in a streaming fashion, passing one line at a time to the
+   * {@link ContentTransformer}.
+   */
+  default boolean isLineBased() {
+    return false;
+  }
+
+  /**
+   * Called after the transformation was applied if no file was changed.
+   *
+   * @param matchedFile true if at least one file matched {@link #getPaths()}
+   */
+  void reportNoop(TransformWork work, boolean matchedFile) throws ValidationException;
+
+  @Override
+  default void transform(TransformWork work) throws IOException, ValidationException {
+    new JoinedContentTransformation(ImmutableList.of(this)).transform(work);
+  }
+
+  @Override
+  default boolean canJoin(Transformation transformation) {
+    return transformation instanceof ContentTransformation;
+  }
+
+  @Override
+  default Transformation join(Transformation next) {
+    return new JoinedContentTransformation(
+        ImmutableList.of(this, (ContentTransformation) next));
+  }
+
+  /** Transforms the content of one file. Instances don't need to be thread-safe. */
+  interface ContentTransformer {
+
+    /**
+     * Returns the transformed content or the same {@code content} instance if the transformation
+     * didn't change the file.
+     */
+    String transform(Path file, String content) throws ValidationException;
+  }
+}
@@ -26,6 +26,8 @@ import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.WorkflowOptions;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.treestate.TreeState;
+import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
 import com.google.devtools.build.lib.events.Location;
@@ -37,9 +39,11 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -138,20 +142,30 @@ public class CopyOrMove implements Transformation {
                 + "file. Use instead core.move('%s', '%s')", this.before, this.before,
             before.getFileName().toString());
 
+        // Collect the files affected before doing the move/copy so that we can keep the TreeState
+        // up to date without traversing the checkout dir again in the next transformation.
+        PathMatcher pathMatcher = beforeIsDir ? paths.relativeTo(before) : null;
+        List<FileState> sources = Files.isSymbolicLink(before)
+            ? null
+            : findSources(work.getTreeState(), before, after, pathMatcher);
+
         // Simple move of all the contents of a directory
         if (beforeIsDir && !isCopy && paths.equals(Glob.ALL_FILES)) {
           moveAllFilesInDir(before, after, work.getCheckoutDir());
-          return;
-        }
+        } else {
+          Files.walkFileTree(before,
+              new CopyMoveVisitor(before, after, pathMatcher, overwrite, isCopy));
 
-        Files.walkFileTree(before,
-            new CopyMoveVisitor(before, after, beforeIsDir ? paths.relativeTo(before) : null,
-                overwrite, isCopy));
-
-        // Delete 'before' folder if we moved all the files. We don't traverse to check emptyness
-        // recursively but it should be good enough for now.
-        if (beforeIsDir && !isCopy) {
-          recursiveDeleteIfEmpty(before);
+          // Delete 'before' folder if we moved all the files. We don't traverse to check
+          // emptyness recursively but it should be good enough for now.
+          if (beforeIsDir && !isCopy) {
+            recursiveDeleteIfEmpty(before);
+          }
+        }
+        // Symlinked 'before' are not tracked. Not notifying means that the next transformation
+        // will read the checkout dir from the filesystem.
+        if (sources != null) {
+          notifyTreeState(work.getTreeState(), before, after, sources);
         }
       } catch (FileAlreadyExistsException e) {
         throw new ValidationException(
@@ -159,6 +173,43 @@ public class CopyOrMove implements Transformation {
       }
   }
 
+  /**
+   * Returns the files that {@link CopyMoveVisitor} or {@link #moveAllFilesInDir} are going to
+   * copy or move, using the {@link TreeState} index.
+   *
+   * <p>{@code pathMatcher} is the glob matcher relative to {@code before} when it is a directory,
+   * or null if {@code before} is a file. Glob matchers are equal for the same glob and directory,
+   * so the {@link TreeState} can reuse previous lookups.
+   */
+  private static List<FileState> findSources(TreeState treeState, Path before, Path after,
+      @Nullable PathMatcher pathMatcher) throws IOException {
+    if (pathMatcher == null) {
+      return ImmutableList.of(new FileState(before));
+    }
+    // The visitor skips 'after' when it is a subdirectory of 'before'.
+    boolean skipAfter = !after.equals(before) && after.startsWith(before);
+    List<FileState> result = new ArrayList<>();
+    for (FileState file : treeState.find(pathMatcher)) {
+      if (skipAfter && file.getPath().normalize().startsWith(after)) {
+        continue;
+      }
+      result.add(file);
+    }
+    return result;
+  }
+
+  private void notifyTreeState(TreeState treeState, Path before, Path after,
+      List<FileState> sources) {
+    List<FileState> added = new ArrayList<>(sources.size());
+    for (FileState source : sources) {
+      added.add(new FileState(after.resolve(before.relativize(source.getPath().normalize()))));
+    }
+    if (!isCopy) {
+      treeState.notifyDelete(sources);
+    }
+    treeState.notifyAdd(added);
+  }
+
   /** Traverse a directory files/folders recursively and delete any empty folder */
   private void recursiveDeleteIfEmpty(Path dir) throws IOException {
     Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
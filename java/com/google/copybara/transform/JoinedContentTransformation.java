@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.copybara.LocalParallelizer;
+import com.google.copybara.LocalParallelizer.TransformFunc;
+import com.google.copybara.NonReversibleValidationException;
+import com.google.copybara.TransformWork;
+import com.google.copybara.Transformation;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.transform.ContentTransformation.ContentTransformer;
+import com.google.copybara.treestate.TreeState.FileState;
+import com.google.copybara.util.console.Console;
+import com.google.devtools.build.lib.events.Location;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies a list of {@link ContentTransformation}s reading and writing each file only once.
+ *
+ * <p>For each file, the transformations whose glob matches the file are applied in order over the
+ * in-memory content. The result is the same as running the transformations one after the other,
+ * including no-op reporting, which is done individually for each transformation.
+ */
+final class JoinedContentTransformation implements Transformation {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /** Files bigger than this are transformed line by line when possible. */
+  private static final long STREAMING_MIN_SIZE = 64 * 1024 * 1024;
+  private static final int STREAMING_BUFFER_SIZE = 64 * 1024;
+
+  private final ImmutableList<ContentTransformation> transformations;
+  private final long streamingMinSize;
+
+  JoinedContentTransformation(ImmutableList<ContentTransformation> transformations) {
+    this(transformations, STREAMING_MIN_SIZE);
+  }
+
+  @VisibleForTesting
+  JoinedContentTransformation(ImmutableList<ContentTransformation> transformations,
+      long streamingMinSize) {
+    Preconditions.checkArgument(!transformations.isEmpty());
+    this.transformations = transformations;
+    this.streamingMinSize = streamingMinSize;
+  }
+
+  @Override
+  public void transform(TransformWork work) throws IOException, ValidationException {
+    Path checkoutDir = work.getCheckoutDir();
+
+    // For each file, the transformations (by index) that apply to it.
+    Map<Path, FileEntry> files = new LinkedHashMap<>();
+    int[] matchingFiles = new int[transformations.size()];
+    for (int i = 0; i < transformations.size(); i++) {
+      for (FileState file : work.getTreeState().find(
+          transformations.get(i).getPaths().relativeTo(checkoutDir))) {
+        files.computeIfAbsent(file.getPath(), k -> new FileEntry(file)).transformations.set(i);
+        matchingFiles[i]++;
+      }
+    }
+
+    BatchTransform batch = new BatchTransform(work.getConsole());
+    transformations.get(0).parallelizer()
+        .run(files.values(), batch, entry -> LocalParallelizer.FILE_SIZE.applyAsLong(entry.file));
+
+    for (int i = 0; i < transformations.size(); i++) {
+      logger.atInfo().log("Applied %s to %d files. %d changed.",
+          transformations.get(i), matchingFiles[i], batch.changedCount[i]);
+    }
+    work.getTreeState().notifyModify(batch.changed);
+    for (int i = 0; i < transformations.size(); i++) {
+      if (batch.changedCount[i] == 0) {
+        transformations.get(i).reportNoop(work, batch.matchedFile.get(i));
+      }
+    }
+  }
+
+  private static class FileEntry {
+    private final FileState file;
+    private final BitSet transformations = new BitSet();
+
+    FileEntry(FileState file) {
+      this.file = file;
+    }
+  }
+
+  private class BatchTransform implements TransformFunc<FileEntry, Boolean> {
+
+    private final Console console;
+    private final List<FileState> changed = new ArrayList<>();
+    private final int[] changedCount = new int[transformations.size()];
+    private final BitSet matchedFile = new BitSet();
+
+    BatchTransform(Console console) {
+      this.console = console;
+    }
+
+    @Override
+    public Boolean run(Iterable<FileEntry> elements) throws IOException, ValidationException {
+      List<ContentTransformer> transformers = new ArrayList<>(transformations.size());
+      for (ContentTransformation transformation : transformations) {
+        transformers.add(transformation.transformer(console));
+      }
+      List<FileState> changed = new ArrayList<>();
+      int[] changedCount = new int[transformations.size()];
+      BitSet matchedFile = new BitSet();
+      for (FileEntry entry : elements) {
+        if (Files.isSymbolicLink(entry.file.getPath())) {
+          continue;
+        }
+        matchedFile.or(entry.transformations);
+        boolean fileChanged = shouldStream(entry)
+            ? transformStreaming(entry, transformers, changedCount)
+            : transformInMemory(entry, transformers, changedCount);
+        if (fileChanged) {
+          changed.add(entry.file);
+        }
+      }
+      synchronized (this) {
+        this.matchedFile.or(matchedFile);
+        this.changed.addAll(changed);
+        for (int i = 0; i < changedCount.length; i++) {
+          this.changedCount[i] += changedCount[i];
+        }
+      }
+      // We cannot return null here.
+      return true;
+    }
+  }
+
+  /**
+   * Returns true if the file is big and all the transformations that apply to it are line based,
+   * so that it can be transformed without loading it in memory.
+   */
+  private boolean shouldStream(FileEntry entry) throws IOException {
+    if (entry.file.getSize() < streamingMinSize) {
+      return false;
+    }
+    for (int i = entry.transformations.nextSetBit(0); i >= 0;
+        i = entry.transformations.nextSetBit(i + 1)) {
+      if (!transformations.get(i).isLineBased()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean transformInMemory(FileEntry entry, List<ContentTransformer> transformers,
+      int[] changedCount) throws IOException, ValidationException {
+    Path path = entry.file.getPath();
+    String original = new String(Files.readAllBytes(path), UTF_8);
+    String content = original;
+    for (int i = entry.transformations.nextSetBit(0); i >= 0;
+        i = entry.transformations.nextSetBit(i + 1)) {
+      String transformed = transformers.get(i).transform(path, content);
+      // Transformers return the same instance if the content didn't change.
+      //noinspection StringEquality
+      if (transformed != content) {
+        changedCount[i]++;
+        content = transformed;
+      }
+    }
+    //noinspection StringEquality
+    if (content == original || content.equals(original)) {
+      return false;
+    }
+    Files.write(path, content.getBytes(UTF_8));
+    return true;
+  }
+
+  /**
+   * Transforms the file line by line, writing the result to a temporary file that replaces the
+   * original file only if something changed. Memory usage is bounded by the longest line instead
+   * of the file size.
+   */
+  private static boolean transformStreaming(FileEntry entry,
+      List<ContentTransformer> transformers, int[] changedCount)
+      throws IOException, ValidationException {
+    Path path = entry.file.getPath();
+    int[] indexes = entry.transformations.stream().toArray();
+    boolean[] changedInFile = new boolean[indexes.length];
+    Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      try (Reader reader = new InputStreamReader(Files.newInputStream(path), UTF_8.newDecoder()
+              .onMalformedInput(CodingErrorAction.REPLACE)
+              .onUnmappableCharacter(CodingErrorAction.REPLACE));
+          Writer writer = new BufferedWriter(
+              new OutputStreamWriter(Files.newOutputStream(tmp), UTF_8))) {
+        LineTransformer lineTransformer =
+            new LineTransformer(path, transformers, indexes, changedInFile, writer);
+        char[] buffer = new char[STREAMING_BUFFER_SIZE];
+        StringBuilder line = new StringBuilder();
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+          int start = 0;
+          for (int i = 0; i < read; i++) {
+            if (buffer[i] == '\n') {
+              line.append(buffer, start, i - start);
+              lineTransformer.transform(line.toString(), 0);
+              writer.write('\n');
+              line.setLength(0);
+              start = i + 1;
+            }
+          }
+          line.append(buffer, start, read - start);
+        }
+        // Same as splitting the content by '\n': The last line is transformed even if empty.
+        lineTransformer.transform(line.toString(), 0);
+      }
+      boolean anyChange = false;
+      for (int i = 0; i < indexes.length; i++) {
+        if (changedInFile[i]) {
+          changedCount[indexes[i]]++;
+          anyChange = true;
+        }
+      }
+      if (!anyChange) {
+        return false;
+      }
+      if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+        Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(path));
+      }
+      try {
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+      return true;
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Applies the transformers in order to a line and writes the result. If a transformer
+   * introduces new lines, the following transformers see them as separate lines, same as when
+   * transforming the whole content.
+   */
+  private static class LineTransformer {
+
+    private final Path path;
+    private final List<ContentTransformer> transformers;
+    private final int[] indexes;
+    private final boolean[] changedInFile;
+    private final Writer writer;
+
+    LineTransformer(Path path, List<ContentTransformer> transformers, int[] indexes,
+        boolean[] changedInFile, Writer writer) {
+      this.path = path;
+      this.transformers = transformers;
+      this.indexes = indexes;
+      this.changedInFile = changedInFile;
+      this.writer = writer;
+    }
+
+    void transform(String line, int from) throws IOException, ValidationException {
+      for (int i = from; i < indexes.length; i++) {
+        String transformed = transformers.get(indexes[i]).transform(path, line);
+        //noinspection StringEquality
+        if (transformed == line) {
+          continue;
+        }
+        changedInFile[i] = true;
+        if (transformed.indexOf('\n') == -1) {
+          line = transformed;
+          continue;
+        }
+        List<String> lines = Splitter.on('\n').splitToList(transformed);
+        for (int j = 0; j < lines.size(); j++) {
+          if (j > 0) {
+            writer.write('\n');
+          }
+          transform(lines.get(j), i + 1);
+        }
+        return;
+      }
+      writer.write(line);
+    }
+  }
+
+  @Override
+  public Transformation reverse() throws NonReversibleValidationException {
+    ImmutableList.Builder<ContentTransformation> reversed = ImmutableList.builder();
+    for (ContentTransformation transformation : transformations.reverse()) {
+      reversed.add((ContentTransformation) transformation.reverse());
+    }
+    return new JoinedContentTransformation(reversed.build(), streamingMinSize);
+  }
+
+  @Override
+  public String describe() {
+    return transformations.size() == 1
+        ? transformations.get(0).describe()
+        : String.format("%s (joined with %d more)",
+            transformations.get(0).describe(), transformations.size() - 1);
+  }
+
+  @Override
+  public Location location() {
+    return transformations.get(0).location();
+  }
+
+  @Override
+  public boolean canJoin(Transformation transformation) {
+    return transformation instanceof ContentTransformation;
+  }
+
+  @Override
+  public Transformation join(Transformation next) {
+    return new JoinedContentTransformation(ImmutableList.<ContentTransformation>builder()
+        .addAll(transformations)
+        .add((ContentTransformation) next)
+        .build(), streamingMinSize);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("transformations", transformations)
+        .toString();
+  }
+}
@@ -30,6 +30,7 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.copybara.templatetoken.Parser;
 import com.google.copybara.templatetoken.Token;
+import com.google.copybara.templatetoken.Token.TokenType;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.re2j.Matcher;
@@ -55,6 +56,11 @@ public final class RegexTemplateTokens {
   private final ArrayListMultimap<String, Integer> groupIndexes = ArrayListMultimap.create();
   private final ImmutableList<Token> tokens;
   private final Set<String> unusedGroups;
+  /**
+   * The longest literal of the template. Any match of {@link #before} contains it, so it is used
+   * for quickly discarding content that cannot match. Null if the template has no literals.
+   */
+  @Nullable private final String requiredLiteral;
 
   public RegexTemplateTokens(Location location, String template, Map<String, Pattern> regexGroups,
       boolean repeatedGroups) throws EvalException {
@@ -65,6 +71,19 @@ public final class RegexTemplateTokens {
     this.before = buildBefore(regexGroups, repeatedGroups);
 
     this.unusedGroups = Sets.difference(regexGroups.keySet(), groupIndexes.keySet());
+    this.requiredLiteral = longestLiteral(tokens);
+  }
+
+  @Nullable
+  private static String longestLiteral(List<Token> tokens) {
+    String result = null;
+    for (Token token : tokens) {
+      if (token.getType() == TokenType.LITERAL
+          && (result == null || token.getValue().length() > result.length())) {
+        result = token.getValue();
+      }
+    }
+    return result == null || result.isEmpty() ? null : result;
   }
 
   /**
@@ -130,19 +149,40 @@ public final class RegexTemplateTokens {
       this.patternsToIgnore = patternsToIgnore;
     }
 
+    /**
+     * Returns the replaced content, or the same {@code content} instance if nothing was replaced.
+     */
     public String replace(String content) {
+      // Fast path for the common case: Most of the files don't contain the literal.
+      if (!mightMatch(content)) {
+        return content;
+      }
       List<String> originalRanges = multiline
           ? ImmutableList.of(content)
           : Splitter.on('\n').splitToList(content);
 
       List<String> newRanges = new ArrayList<>(originalRanges.size());
+      boolean changed = false;
       for (String line : originalRanges) {
-        newRanges.add(replaceLine(line));
+        String newLine = replaceLine(line);
+        changed |= newLine != line;
+        newRanges.add(newLine);
       }
-      return Joiner.on('\n').join(newRanges);
+      return changed ? Joiner.on('\n').join(newRanges) : content;
+    }
+
+    /**
+     * Returns false if {@code text} doesn't contain the required literal of the template and thus
+     * {@link #before} cannot match it.
+     */
+    private boolean mightMatch(String text) {
+      return requiredLiteral == null || text.contains(requiredLiteral);
     }
 
     private String replaceLine(String line) {
+      if (!mightMatch(line)) {
+        return line;
+      }
       if (patternsToIgnore != null) {
         for (Pattern patternToIgnore : patternsToIgnore) {
           if (patternToIgnore.matches(line)) {
@@ -153,6 +193,7 @@ public final class RegexTemplateTokens {
 
       Matcher matcher = before.matcher(line);
       StringBuilder sb = new StringBuilder(line.length());
+      boolean matched = false;
       while (matcher.find()) {
         for (Collection<Integer> groupIndexes : repeatedGroups.asMap().values()) {
           // Check that all the references of the repeated group match the same string
@@ -177,12 +218,18 @@ public final class RegexTemplateTokens {
         }
 
         matcher.appendReplacement(sb, replaceTemplate);
+        matched = true;
         if (firstOnly) {
           break;
         }
       }
+      if (!matched) {
+        return line;
+      }
       matcher.appendTail(sb);
-      return sb.toString();
+      String result = sb.toString();
+      // Only the lines that matched are compared, to detect replacements that are no-ops.
+      return result.equals(line) ? line : result;
     }
 
     @Override
@@ -25,10 +25,14 @@ import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.WorkflowOptions;
 import com.google.copybara.exception.ValidationException;
-import com.google.copybara.util.FileUtil;
+import com.google.copybara.treestate.TreeState;
+import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
 import com.google.devtools.build.lib.events.Location;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * We might promote this to a Skylark transform. But because we already have origin_files,
@@ -56,15 +60,31 @@ public class Remove implements Transformation {
             + " transformations like core.copy(). Please use origin_files exclude for"
             + " filtering out files.");
 
-    int numDeletes = FileUtil.deleteFilesRecursively(work.getCheckoutDir(),
-        glob.relativeTo(work.getCheckoutDir()));
-    logger.atInfo().log("Deleted %d files for glob: %s", numDeletes, glob);
-    if (numDeletes  == 0) {
+    // Use the TreeState for finding the files to delete so that the next transformation can
+    // reuse the cached tree instead of traversing the checkout dir again.
+    TreeState treeState = work.getTreeState();
+    List<FileState> deleted = new ArrayList<>();
+    for (List<FileState> batch : workflowOptions.parallelizer().run(
+        treeState.find(glob.relativeTo(work.getCheckoutDir())), Remove::deleteFiles)) {
+      deleted.addAll(batch);
+    }
+    treeState.notifyDelete(deleted);
+    logger.atInfo().log("Deleted %d files for glob: %s", deleted.size(), glob);
+    if (deleted.isEmpty()) {
       workflowOptions.reportNoop(
           work.getConsole(), glob + " didn't delete any file", work.getIgnoreNoop());
     }
   }
 
+  private static List<FileState> deleteFiles(Iterable<FileState> files) throws IOException {
+    List<FileState> deleted = new ArrayList<>();
+    for (FileState file : files) {
+      Files.delete(file.getPath());
+      deleted.add(file);
+    }
+    return deleted;
+  }
+
   @Override
   public Transformation reverse() throws NonReversibleValidationException {
     throw new NonReversibleValidationException(location, "core.remove is not reversible");
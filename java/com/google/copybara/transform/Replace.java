@@ -17,35 +17,27 @@
 package com.google.copybara.transform;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Iterables;
-import com.google.common.flogger.FluentLogger;
 import com.google.copybara.LocalParallelizer;
 import com.google.copybara.NonReversibleValidationException;
 import com.google.copybara.TransformWork;
-import com.google.copybara.Transformation;
 import com.google.copybara.WorkflowOptions;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.transform.RegexTemplateTokens.Replacer;
-import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
+import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.re2j.Pattern;
 import com.google.re2j.PatternSyntaxException;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.function.Supplier;
 
 /**
  * A source code transformation which replaces a regular expression with some other string.
@@ -67,9 +59,7 @@ import java.util.function.Supplier;
  *
  * TODO(copybara-team): Consider making this configurable to replace multiple matches.
  */
-public final class Replace implements Transformation {
-
-  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+public final class Replace implements ContentTransformation {
 
   private final RegexTemplateTokens before;
   private final RegexTemplateTokens after;
@@ -114,27 +104,29 @@ public final class Replace implements Transformation {
   }
 
   @Override
-  public void transform(TransformWork work)
-      throws IOException, ValidationException {
-    Path checkoutDir = work.getCheckoutDir();
+  public LocalParallelizer parallelizer() {
+    return workflowOptions.parallelizer();
+  }
 
-    Iterable<FileState> files = work.getTreeState().find(
-        paths.relativeTo(checkoutDir));
-    BatchReplace batchReplace = new BatchReplace(this::createReplacer);
-    workflowOptions.parallelizer().run(files, batchReplace);
-    List<FileState> changed = batchReplace.getChanged();
-    boolean matchedFile = batchReplace.isMatchedFile();
-    logger.atInfo().log( "Applied %s to %d files. %d changed.",
-        this, Iterables.size(files), changed.size());
+  @Override
+  public ContentTransformer transformer(Console console) {
+    Replacer replacer = createReplacer();
+    // The replacer returns the same instance if nothing was replaced.
+    return (file, content) -> replacer.replace(content);
+  }
 
-    work.getTreeState().notifyModify(changed);
-    if (changed.isEmpty()) {
-      workflowOptions.reportNoop(
-          work.getConsole(),
-          "Transformation '" + toString() + "' was a no-op because it didn't "
-              + (matchedFile ? "change any of the matching files" : "match any file"),
-          work.getIgnoreNoop());
-    }
+  @Override
+  public boolean isLineBased() {
+    return !multiline;
+  }
+
+  @Override
+  public void reportNoop(TransformWork work, boolean matchedFile) throws ValidationException {
+    workflowOptions.reportNoop(
+        work.getConsole(),
+        "Transformation '" + toString() + "' was a no-op because it didn't "
+            + (matchedFile ? "change any of the matching files" : "match any file"),
+        work.getIgnoreNoop());
   }
 
   @Override
@@ -206,60 +198,11 @@ public final class Replace implements Transformation {
     return parsedGroups;
   }
 
-  private final static class BatchReplace
-      implements LocalParallelizer.TransformFunc<FileState, Boolean> {
-
-
-    private final Supplier<Replacer> replacerSupplier;
-
-    private final List<FileState> changed = new ArrayList<>();
-    private boolean matchedFile = false;
-
-    BatchReplace(Supplier<Replacer> replacerSupplier) {
-      this.replacerSupplier = checkNotNull(replacerSupplier);
-    }
-
-    public List<FileState> getChanged() {
-      return changed;
-    }
-
-    boolean isMatchedFile() {
-      return matchedFile;
-    }
-
-    @Override
-    public Boolean run(Iterable<FileState> elements) throws IOException {
-      Replacer replacer = replacerSupplier.get();
-      List<FileState> changed = new ArrayList<>();
-      boolean matchedFile = false;
-      for (FileState file : elements) {
-        if (Files.isSymbolicLink(file.getPath())) {
-          continue;
-        }
-        matchedFile = true;
-        String originalFileContent = new String(Files.readAllBytes(file.getPath()), UTF_8);
-        String transformed = replacer.replace(originalFileContent);
-        if (!originalFileContent.equals(transformed)) {
-          synchronized (this) {
-            changed.add(file);
-          }
-          Files.write(file.getPath(), transformed.getBytes(UTF_8));
-        }
-      }
-      synchronized (this) {
-        this.matchedFile |= matchedFile;
-        this.changed.addAll(changed);
-      }
-      // We cannot return null here.
-      return true;
-    }
-
-  }
-
   public Replacer createReplacer() {
     return before.replacer(after, firstOnly, multiline, patternsToIgnore);
   }
 
+  @Override
   public Glob getPaths() {
     return paths;
   }
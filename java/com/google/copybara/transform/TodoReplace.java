@@ -18,7 +18,6 @@ package com.google.copybara.transform;
 
 import static com.google.copybara.exception.ValidationException.checkCondition;
 import static com.google.copybara.transform.TodoReplace.Mode.MAP_OR_FAIL;
-import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
@@ -27,20 +26,16 @@ import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Iterables;
 import com.google.copybara.LocalParallelizer;
 import com.google.copybara.NonReversibleValidationException;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.exception.ValidationException;
-import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.events.Location;
 import com.google.re2j.Matcher;
 import com.google.re2j.Pattern;
-import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -53,7 +48,7 @@ import javax.annotation.Nullable;
 /**
  * Map Google style TODOs
  */
-public class TodoReplace implements Transformation {
+public class TodoReplace implements ContentTransformation {
 
   private static final Pattern SINGLE_USER_PATTERN = Pattern.compile("([ \t]*)([^ \t]*)([ \t]*)");
 
@@ -91,30 +86,26 @@ public class TodoReplace implements Transformation {
   }
 
   @Override
-  public void transform(TransformWork work) throws IOException, ValidationException {
-    work.getTreeState().notifyModify(
-        Iterables.concat(
-            parallelizer.run(
-                work.getTreeState().find(glob.relativeTo(work.getCheckoutDir())),
-                files -> run(files, work.getConsole()))));
+  public Glob getPaths() {
+    return glob;
   }
 
-  private Set<FileState> run(Iterable<FileState> files, Console console)
-      throws IOException, ValidationException {
-    Set<FileState> modifiedFiles = new HashSet<>();
+  @Override
+  public LocalParallelizer parallelizer() {
+    return parallelizer;
+  }
+
+  @Override
+  public ContentTransformer transformer(Console console) {
     // TODO(malcon): Remove reconstructing pattern once RE2J doesn't synchronize on matching.
     Pattern batchPattern = Pattern.compile(pattern.pattern(), pattern.flags());
-    for (FileState file : files) {
-      if (Files.isSymbolicLink(file.getPath())) {
-        continue;
-      }
-      String content = new String(Files.readAllBytes(file.getPath()), UTF_8);
+    return (file, content) -> {
       Matcher matcher = batchPattern.matcher(content);
       StringBuffer sb = new StringBuffer();
       boolean modified = false;
       while (matcher.find()) {
         List<String> users = Splitter.on(",").splitToList(matcher.group(2));
-        List<String> mappedUsers = mapUsers(users, matcher.group(0), file.getPath(), console);
+        List<String> mappedUsers = mapUsers(users, matcher.group(0), file, console);
         modified |= !users.equals(mappedUsers);
         String result = matcher.group(1);
         if (!mappedUsers.isEmpty()) {
@@ -122,14 +113,17 @@ public class TodoReplace implements Transformation {
         }
         matcher.appendReplacement(sb, Matcher.quoteReplacement(result));
       }
+      if (!modified) {
+        return content;
+      }
       matcher.appendTail(sb);
+      return sb.toString();
+    };
+  }
 
-      if (modified) {
-        modifiedFiles.add(file);
-        Files.write(file.getPath(), sb.toString().getBytes(UTF_8));
-      }
-    }
-    return modifiedFiles;
+  @Override
+  public void reportNoop(TransformWork work, boolean matchedFile) {
+    // Not reported for TODOs, since most of the files don't contain them.
   }
 
   private List<String> mapUsers(List<String> users, String rawText, Path path, Console console)
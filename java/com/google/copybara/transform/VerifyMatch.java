@@ -76,7 +76,8 @@ public final class VerifyMatch implements Transformation {
         fileMatcherBuilder.relativeTo(checkoutDir));
 
     Iterable<String> errors = Iterables.concat(
-        parallelizer.run(files, new BatchRun(work.getCheckoutDir())));
+        parallelizer.run(files, new BatchRun(work.getCheckoutDir()),
+            LocalParallelizer.FILE_SIZE));
 
     int size = 0;
     for (String error : errors) {
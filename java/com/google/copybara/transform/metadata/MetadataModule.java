@@ -20,6 +20,7 @@ import static com.google.copybara.config.SkylarkUtil.check;
 import static com.google.copybara.config.SkylarkUtil.convertFromNoneable;
 
 import com.google.common.collect.ImmutableList;
+import com.google.copybara.GeneralOptions;
 import com.google.copybara.LabelFinder;
 import com.google.copybara.Transformation;
 import com.google.copybara.config.SkylarkUtil;
@@ -56,6 +57,14 @@ import java.util.Map;
     category = SkylarkModuleCategory.BUILTIN)
 public class MetadataModule implements SkylarkValue {
 
+  private final ReferenceIndexes referenceIndexes;
+
+  public MetadataModule(GeneralOptions generalOptions) {
+    // The directory is created when the first index is written
+    this.referenceIndexes = new ReferenceIndexes(
+        generalOptions.getDirFactory().getCachePath("reference_index"));
+  }
+
   @SuppressWarnings("unused")
   @SkylarkCallable(name = "squash_notes",
       doc = "Generate a message that includes a constant prefix text and a list of changes"
@@ -624,7 +633,9 @@ public class MetadataModule implements SkylarkValue {
       name = "map_references",
       doc =
           "Allows updating links to references in commit messages to match the destination's "
-              + "format. Note that this will only consider the 5000 latest commits.",
+              + "format. Note that this will only consider the 5000 latest commits. The references"
+              + " found are indexed in the Copybara cache, so that later runs only need to read"
+              + " the destination commits created since then.",
       parameters = {
         @Param(
             name = "before",
@@ -725,6 +736,7 @@ public class MetadataModule implements SkylarkValue {
         beforePattern,
         afterPattern,
         ImmutableList.copyOf(SkylarkUtil.convertStringList(labels, "labels")),
+        referenceIndexes,
         location);
     }
 }
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.transform.metadata;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.copybara.ChangeVisitable;
+import com.google.copybara.ChangeVisitable.VisitResult;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.exception.ValidationException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * An index from origin label values to the destination change that contains them, as found by
+ * walking the destination history from the head.
+ *
+ * <p>The index remembers the newest labeled destination change that it covers and whether there
+ * is nothing more to walk (the end of the history or the visit limit was reached). Resolving
+ * references walks the destination from the head only until the previously indexed head, and
+ * then continues further down only if some references are still missing and the history was not
+ * exhausted. If the indexed head is not found (for example
+ * because the destination was rewritten), the old entries are discarded.
+ *
+ * <p>If a file is provided, the index is loaded from it and written back after each walk, so that
+ * the next run doesn't need to walk the destination again.
+ */
+final class ReferenceIndex {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final int VERSION = 1;
+
+  @Nullable private final Path file;
+  private final int maxChangesToVisit;
+
+  // Label value -> destination ref, newest first
+  private Map<String, String> refs = new LinkedHashMap<>();
+  @Nullable private String head;
+  private boolean exhausted;
+  // Whether the index was checked against the destination head in this process
+  private boolean synced;
+
+  ReferenceIndex(@Nullable Path file, int maxChangesToVisit) {
+    this.file = file;
+    this.maxChangesToVisit = maxChangesToVisit;
+    if (file != null) {
+      read();
+    }
+  }
+
+  /**
+   * Returns the destination refs for the {@code values} that can be found in the destination
+   * history. Values that cannot be found are not included in the result.
+   *
+   * <p>All the values that are not indexed yet are resolved in a single walk of {@code
+   * destinationReader}.
+   */
+  synchronized ImmutableMap<String, String> resolve(ImmutableCollection<String> values,
+      ImmutableCollection<String> labels, ChangeVisitable<?> destinationReader)
+      throws RepoException, ValidationException {
+    Set<String> missing = new HashSet<>(values);
+    missing.removeAll(refs.keySet());
+    if (!synced || !missing.isEmpty()) {
+      walk(missing, labels, destinationReader);
+    }
+    ImmutableMap.Builder<String, String> result = ImmutableMap.builder();
+    for (String value : new HashSet<>(values)) {
+      String ref = refs.get(value);
+      if (ref != null) {
+        result.put(value, ref);
+      }
+    }
+    return result.build();
+  }
+
+  private void walk(Set<String> missing, ImmutableCollection<String> labels,
+      ChangeVisitable<?> destinationReader) throws RepoException, ValidationException {
+    Map<String, String> walked = new LinkedHashMap<>();
+    WalkState state = new WalkState();
+    destinationReader.visitChangesWithAnyLabel(null, labels, (input, matchedLabels) -> {
+      String ref = input.getRef();
+      if (state.visited == 0) {
+        state.newHead = ref;
+      }
+      if (!state.reachedHead && ref.equals(head)) {
+        // Everything below is already indexed. Keep the newest ref for each value.
+        state.reachedHead = true;
+        refs.forEach(walked::putIfAbsent);
+        missing.removeAll(refs.keySet());
+        if (exhausted || missing.isEmpty()) {
+          state.terminated = true;
+          return VisitResult.TERMINATE;
+        }
+      }
+      for (String labelValue : matchedLabels.values()) {
+        walked.putIfAbsent(labelValue, ref);
+        missing.remove(labelValue);
+      }
+      state.visited++;
+      if (state.visited > maxChangesToVisit) {
+        state.terminated = true;
+        state.limitReached = true;
+        return VisitResult.TERMINATE;
+      }
+      // Until we reach the indexed head, keep walking so that the index can be reused.
+      if (missing.isEmpty() && (state.reachedHead || head == null)) {
+        state.terminated = true;
+        return VisitResult.TERMINATE;
+      }
+      return VisitResult.CONTINUE;
+    });
+
+    if (state.reachedHead) {
+      exhausted = exhausted || state.limitReached || !state.terminated;
+    } else {
+      if (head != null) {
+        logger.atInfo().log("Indexed head %s not found in the destination. Discarding index.",
+            head);
+      }
+      exhausted = state.limitReached || !state.terminated;
+    }
+    logger.atInfo().log("Visited %d destination changes to resolve references. Indexed %d values.",
+        state.visited, walked.size());
+    refs = walked;
+    head = state.newHead;
+    synced = true;
+    if (file != null) {
+      write();
+    }
+  }
+
+  private static class WalkState {
+    private int visited;
+    @Nullable private String newHead;
+    private boolean reachedHead;
+    private boolean terminated;
+    private boolean limitReached;
+  }
+
+  private void read() {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != VERSION) {
+        return;
+      }
+      String readHead = in.readBoolean() ? readString(in) : null;
+      boolean readExhausted = in.readBoolean();
+      int numEntries = in.readInt();
+      Map<String, String> read = new LinkedHashMap<>();
+      for (int i = 0; i < numEntries; i++) {
+        read.put(readString(in), readString(in));
+      }
+      head = readHead;
+      exhausted = readExhausted;
+      refs = read;
+    } catch (NoSuchFileException e) {
+      // Not indexed yet
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot read reference index %s. Rebuilding it.", file);
+    }
+  }
+
+  private void write() {
+    Path tmp = null;
+    try {
+      Files.createDirectories(file.getParent());
+      tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(VERSION);
+        out.writeBoolean(head != null);
+        if (head != null) {
+          writeString(out, head);
+        }
+        out.writeBoolean(exhausted);
+        out.writeInt(refs.size());
+        for (Map.Entry<String, String> entry : refs.entrySet()) {
+          writeString(out, entry.getKey());
+          writeString(out, entry.getValue());
+        }
+      }
+      try {
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      // Not fatal, we will walk the destination again the next time.
+      logger.atWarning().withCause(e).log("Cannot write reference index %s", file);
+    } finally {
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("Cannot delete %s", tmp);
+        }
+      }
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String str) throws IOException {
+    byte[] bytes = str.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.transform.metadata;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.Ordering;
+import com.google.common.hash.Hashing;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * The {@link ReferenceIndex}es shared by all the {@code metadata.map_references} of a config, one
+ * per destination and set of labels.
+ *
+ * <p>If a directory is provided, the indexes are persisted there.
+ */
+final class ReferenceIndexes {
+
+  @Nullable private final Path dir;
+  private final Map<String, ReferenceIndex> indexes = new ConcurrentHashMap<>();
+
+  ReferenceIndexes(@Nullable Path dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Returns the index for the destination identified by {@code destinationId} and the origin
+   * {@code labels}.
+   */
+  ReferenceIndex get(String destinationId, ImmutableCollection<String> labels) {
+    String key = Hashing.sha256()
+        .hashString(destinationId + "\n"
+            + String.join("\n", Ordering.natural().sortedCopy(labels)), UTF_8)
+        .toString();
+    return indexes.computeIfAbsent(key, k -> new ReferenceIndex(
+        dir == null ? null : dir.resolve(k),
+        ReferenceMigrator.MAX_CHANGES_TO_VISIT));
+  }
+}
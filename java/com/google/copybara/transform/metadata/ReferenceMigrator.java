@@ -17,8 +17,6 @@
 package com.google.copybara.transform.metadata;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.copybara.ChangeVisitable.VisitResult.CONTINUE;
-import static com.google.copybara.ChangeVisitable.VisitResult.TERMINATE;
 import static com.google.copybara.config.SkylarkUtil.check;
 import static com.google.copybara.exception.ValidationException.checkCondition;
 
@@ -26,7 +24,9 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.copybara.ChangeVisitable;
+import com.google.copybara.MigrationInfo;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.exception.RepoException;
@@ -38,10 +38,9 @@ import com.google.copybara.transform.RegexTemplateTokens.Replacer;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.re2j.Pattern;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Set;
 import javax.annotation.Nullable;
 
 /**
@@ -60,24 +59,37 @@ public class ReferenceMigrator implements Transformation {
   @Nullable private final Pattern reversePattern;
   private final Location location;
 
-  private final Map<String, String> knownChanges = new HashMap<>();
+  private final ReferenceIndexes indexes;
+  // Indexes for migrations without a destination id. They are only used by this instance, since
+  // they could belong to any destination of the config.
+  private final ReferenceIndexes unknownDestinationIndexes = new ReferenceIndexes(/*dir=*/ null);
 
   ReferenceMigrator(
       RegexTemplateTokens before,
       RegexTemplateTokens after,
       @Nullable Pattern reversePattern,
       ImmutableList<String> additionalLabels,
+      ReferenceIndexes indexes,
       Location location) {
     this.before = checkNotNull(before, "before");
     this.after = checkNotNull(after, "after");
     this.additionalLabels = checkNotNull(additionalLabels, "additionalLabels");
     this.reversePattern = reversePattern;
+    this.indexes = checkNotNull(indexes);
     this.location = checkNotNull(location);
   }
 
   public static ReferenceMigrator create(
       String before, String after, Pattern forward, @Nullable Pattern backward,
       ImmutableList<String> additionalLabels, Location location) throws EvalException {
+    return create(before, after, forward, backward, additionalLabels,
+        new ReferenceIndexes(/*dir=*/ null), location);
+  }
+
+  static ReferenceMigrator create(
+      String before, String after, Pattern forward, @Nullable Pattern backward,
+      ImmutableList<String> additionalLabels, ReferenceIndexes indexes, Location location)
+      throws EvalException {
     Map<String, Pattern> patterns = ImmutableMap.of("reference", forward);
     RegexTemplateTokens beforeTokens =
         new RegexTemplateTokens(location, before, patterns, /* repeatedGroups= */ false);
@@ -88,37 +100,41 @@ public class ReferenceMigrator implements Transformation {
     check(
         location, after.lastIndexOf("$1") == -1,
         "Destination format '%s' uses the reserved token '$1'.", after);
-    return new ReferenceMigrator(beforeTokens, afterTokens, backward, additionalLabels,
+    return new ReferenceMigrator(beforeTokens, afterTokens, backward, additionalLabels, indexes,
         location);
   }
 
   @Override
   public void transform(TransformWork work) throws ValidationException {
-    AtomicReference<ValidationException> thrown = new AtomicReference<>();
+    // First collect all the references, so that the ones not indexed yet are resolved in a single
+    // walk of the destination history.
+    Set<String> references = new LinkedHashSet<>();
+    before.callbackReplacer(after, (groupValues, template) -> {
+      if (groupValues.get(0) != null) {
+        references.add(groupValues.get(1));
+      }
+      return template;
+    }, false, false, null).replace(work.getMessage());
+    if (references.isEmpty()) {
+      return;
+    }
+    Map<String, String> destinationRefs = findChanges(ImmutableSet.copyOf(references),
+        work.getMigrationInfo());
+
     Replacer replacer = before.callbackReplacer(after, (groupValues, template) -> {
         if (groupValues.get(0) != null) {
-          try {
-            String destinationRef = findChange(groupValues.get(1),
-                work.getMigrationInfo().getOriginLabel(),
-                work.getMigrationInfo().destinationVisitable());
-            if (destinationRef != null) {
-              // This will not work for the case where the template was "foo\\$1", if this is an
-              // issue, a non-naive implementation might be required.
-              return Pattern.compile("[$]1").matcher(template).replaceAll(destinationRef);
-            } else {
-              return groupValues.get(0);
-            }
-          } catch (ValidationException exception) {
-            thrown.compareAndSet(null, exception);
+          String destinationRef = destinationRefs.get(groupValues.get(1));
+          if (destinationRef != null) {
+            // This will not work for the case where the template was "foo\\$1", if this is an
+            // issue, a non-naive implementation might be required.
+            return Pattern.compile("[$]1").matcher(template).replaceAll(destinationRef);
+          } else {
             return groupValues.get(0);
           }
         }
         return template;
       }, false, false, null);
     String replaced = replacer.replace(work.getMessage());
-    if (thrown.get() != null) {
-      throw thrown.get();
-    }
     if (!replaced.equals(work.getMessage())) {
       work.setMessage(replaced);
     }
@@ -134,37 +150,33 @@ public class ReferenceMigrator implements Transformation {
     return "map_references: " + before + " to " + after;
   }
 
-  @Nullable
-  private String findChange(String refBeingMigrated,
-      String originLabel,
-      ChangeVisitable<?> destinationReader) throws  ValidationException {
-    AtomicInteger changesVisited = new AtomicInteger(0);
-    ImmutableList<String> originLabels =
-        ImmutableList.<String>builder().add(originLabel).addAll(additionalLabels).build();
+  private ImmutableMap<String, String> findChanges(ImmutableSet<String> refsBeingMigrated,
+      MigrationInfo migrationInfo) throws ValidationException {
+    ChangeVisitable<?> destinationReader = migrationInfo.destinationVisitable();
+    ImmutableList<String> originLabels = ImmutableList.<String>builder()
+        .add(migrationInfo.getOriginLabel())
+        .addAll(additionalLabels)
+        .build();
     checkCondition(destinationReader != null,
         "Destination does not support reading change history.");
-    if (knownChanges.containsKey(refBeingMigrated)) {
-      return knownChanges.get(refBeingMigrated);
-    }
+    ImmutableMap<String, String> found;
     try {
-      destinationReader.visitChangesWithAnyLabel(null, originLabels, (input, labels) -> {
-        for (String labelValue : labels.values()) {
-          knownChanges.putIfAbsent(labelValue, input.getRef());
-          if (labelValue.equals(refBeingMigrated)) {
-            return TERMINATE;
-          }
-        }
-        return changesVisited.incrementAndGet() > MAX_CHANGES_TO_VISIT ? TERMINATE : CONTINUE;
-      });
-      String retVal = knownChanges.get(refBeingMigrated);
+      String destinationId = migrationInfo.getDestinationId();
+      ReferenceIndex index = destinationId == null
+          ? unknownDestinationIndexes.get(/*destinationId=*/ "", originLabels)
+          : indexes.get(destinationId, originLabels);
+      found = index.resolve(refsBeingMigrated, originLabels, destinationReader);
+    } catch (RepoException exception) {
+      throw new ValidationException("Exception finding reference.", exception);
+    }
+    for (String ref : refsBeingMigrated) {
+      String retVal = found.get(ref);
       if (reversePattern != null && retVal != null && !reversePattern.matches(retVal)) {
         throw new ValidationException(
             String.format("Reference %s does not match regex '%s'", retVal, reversePattern));
       }
-      return retVal;
-    } catch (RepoException exception) {
-      throw new ValidationException("Exception finding reference.", exception);
     }
+    return found;
   }
 
   @Override
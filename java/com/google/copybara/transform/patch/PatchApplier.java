@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform.patch;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.transform.patch.UnifiedDiff.FilePatch;
+import com.google.copybara.transform.patch.UnifiedDiff.Hunk;
+import com.google.copybara.treestate.TreeState;
+import com.google.copybara.treestate.TreeState.FileState;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Applies {@link UnifiedDiff}s to a directory in-process, with the same semantics as
+ * 'git apply': Hunks can be applied at a different line than the one in the diff (offset) but
+ * their context has to match exactly (no fuzz), and errors use the same messages.
+ *
+ * <p>Changes are kept in memory until {@link #flush()} is called, so applying many diffs to the
+ * same files reads and writes each file once. Nothing is written if any diff fails to apply.
+ */
+final class PatchApplier {
+
+  private static final String EXECUTABLE_MODE = "100755";
+
+  private final Path rootDir;
+  private final int strip;
+  private final boolean reverse;
+  private final ImmutableList<Pattern> excludedPaths;
+
+  /** Files changed by the diffs applied since the last flush. */
+  private final Map<String, FileContent> pending = new LinkedHashMap<>();
+  /** Whether each file touched by any diff existed before applying them. */
+  private final Map<String, Boolean> existedBefore = new LinkedHashMap<>();
+  /** Whether each file touched by any diff exists after applying them. */
+  private final Map<String, Boolean> existsAfter = new LinkedHashMap<>();
+
+  /**
+   * @param excludedPaths 'git apply --exclude' patterns, matched against the stripped names
+   */
+  PatchApplier(Path rootDir, int strip, boolean reverse, ImmutableList<String> excludedPaths) {
+    Preconditions.checkArgument(strip >= 0, "stripSlashes must be >= 0.");
+    this.rootDir = rootDir;
+    this.strip = strip;
+    this.reverse = reverse;
+    ImmutableList.Builder<Pattern> patterns = ImmutableList.builder();
+    for (String excludedPath : excludedPaths) {
+      patterns.add(wildcardToRegex(excludedPath));
+    }
+    this.excludedPaths = patterns.build();
+  }
+
+  /**
+   * Applies {@code diff} to the in-memory state of the files. If it fails, no file is modified,
+   * including the changes of the diffs applied before since the last flush.
+   */
+  void apply(UnifiedDiff diff) throws IOException {
+    Preconditions.checkArgument(diff.isSupported(strip),
+        "Diff not supported: %s", diff.getUnsupportedReason());
+    // Files are only updated if all the file patches apply, like 'git apply' does.
+    Map<String, FileContent> updated = new LinkedHashMap<>();
+    for (FilePatch filePatch : diff.getFiles()) {
+      FilePatch patch = reverse ? filePatch.reverse() : filePatch;
+      String name = patch.getName(strip);
+      if (isExcluded(name)) {
+        continue;
+      }
+      if (!resolve(name).normalize().startsWith(rootDir.normalize())) {
+        throw new IOException(String.format("error: invalid path '%s'", name));
+      }
+      FileContent content = updated.containsKey(name) ? updated.get(name) : read(name);
+      if (patch.isCreated()) {
+        if (content.exists) {
+          throw new IOException(
+              String.format("error: %s: already exists in working directory", name));
+        }
+        content = new FileContent(/*exists=*/ true, new ArrayList<>(), /*executable=*/ false);
+      } else if (!content.exists) {
+        throw new IOException(String.format("error: %s: No such file or directory", name));
+      } else {
+        content = content.copy();
+      }
+
+      for (Hunk hunk : patch.getHunks()) {
+        applyHunk(name, content.lines, hunk);
+      }
+      if (patch.isDeleted()) {
+        if (!content.lines.isEmpty()) {
+          throw new IOException(String.format(
+              "error: removal patch leaves file contents\nerror: %s: patch does not apply", name));
+        }
+        content = new FileContent(/*exists=*/ false, content.lines, /*executable=*/ false);
+      } else if (patch.getNewMode() != null) {
+        content.executable = patch.getNewMode().equals(EXECUTABLE_MODE);
+      }
+      updated.put(name, content);
+    }
+    for (Map.Entry<String, FileContent> entry : updated.entrySet()) {
+      pending.put(entry.getKey(), entry.getValue());
+      existsAfter.put(entry.getKey(), entry.getValue().exists);
+    }
+  }
+
+  /** Writes the changes to disk. */
+  void flush() throws IOException {
+    for (Map.Entry<String, FileContent> entry : pending.entrySet()) {
+      Path file = resolve(entry.getKey());
+      FileContent content = entry.getValue();
+      if (!content.exists) {
+        Files.deleteIfExists(file);
+        deleteEmptyParents(file);
+        continue;
+      }
+      Files.createDirectories(file.getParent());
+      Files.write(file, String.join("", content.lines).getBytes(StandardCharsets.ISO_8859_1));
+      if (Files.isExecutable(file) != content.executable) {
+        setExecutable(file, content.executable);
+      }
+    }
+    pending.clear();
+  }
+
+  /**
+   * Notifies {@code treeState} of the files added, modified and deleted by all the diffs
+   * applied. Must only be used if all the changes to the directory were done by this applier.
+   */
+  void notifyTreeState(TreeState treeState) {
+    Preconditions.checkState(pending.isEmpty(), "Changes not flushed");
+    List<FileState> added = new ArrayList<>();
+    List<FileState> modified = new ArrayList<>();
+    List<FileState> deleted = new ArrayList<>();
+    for (Map.Entry<String, Boolean> entry : existsAfter.entrySet()) {
+      boolean existed = existedBefore.get(entry.getKey());
+      FileState fileState = new FileState(resolve(entry.getKey()));
+      if (existed && entry.getValue()) {
+        modified.add(fileState);
+      } else if (entry.getValue()) {
+        added.add(fileState);
+      } else if (existed) {
+        deleted.add(fileState);
+      }
+    }
+    treeState.notifyDelete(deleted);
+    treeState.notifyAdd(added);
+    treeState.notifyModify(modified);
+  }
+
+  private void applyHunk(String name, List<String> image, Hunk hunk) throws IOException {
+    List<String> preimage = hunk.getOldLines();
+    // Same anchoring as 'git apply': A hunk at the start of the file must match at the
+    // beginning and a hunk without trailing context must match at the end.
+    boolean matchBeginning = hunk.getOldStart() <= 1;
+    boolean matchEnd = hunk.getTrailingContext() == 0;
+    int expected = Math.min(hunk.getNewStart() == 0 ? 0 : hunk.getNewStart() - 1, image.size());
+    int position = findPosition(image, preimage, expected, matchBeginning, matchEnd);
+    if (position == -1) {
+      throw new IOException(String.format(
+          "error: patch failed: %s:%d\nerror: %s: patch does not apply",
+          name, hunk.getOldStart(), name));
+    }
+    List<String> replaced = image.subList(position, position + preimage.size());
+    replaced.clear();
+    replaced.addAll(hunk.getNewLines());
+  }
+
+  /**
+   * Finds where {@code preimage} is in {@code image}, trying first the {@code expected}
+   * position and then alternating positions after and before it. Returns -1 if not found.
+   */
+  private static int findPosition(List<String> image, List<String> preimage, int expected,
+      boolean matchBeginning, boolean matchEnd) {
+    if (matchBeginning || matchEnd) {
+      int position = matchBeginning ? 0 : image.size() - preimage.size();
+      boolean matches = matches(image, preimage, position)
+          && (!matchBeginning || !matchEnd || preimage.size() == image.size());
+      return matches ? position : -1;
+    }
+    int last = image.size() - preimage.size();
+    for (int distance = 0; expected - distance >= 0 || expected + distance <= last; distance++) {
+      if (matches(image, preimage, expected + distance)) {
+        return expected + distance;
+      }
+      if (distance > 0 && matches(image, preimage, expected - distance)) {
+        return expected - distance;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean matches(List<String> image, List<String> preimage, int position) {
+    if (position < 0 || position + preimage.size() > image.size()) {
+      return false;
+    }
+    for (int i = 0; i < preimage.size(); i++) {
+      if (!image.get(position + i).equals(preimage.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private FileContent read(String name) throws IOException {
+    FileContent content = pending.get(name);
+    if (content != null) {
+      return content;
+    }
+    Path file = resolve(name);
+    if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+      existedBefore.putIfAbsent(name, false);
+      return new FileContent(/*exists=*/ false, new ArrayList<>(), /*executable=*/ false);
+    }
+    if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+      throw new IOException(String.format("error: %s: wrong type", name));
+    }
+    existedBefore.putIfAbsent(name, true);
+    return new FileContent(/*exists=*/ true, splitLines(Files.readAllBytes(file)),
+        Files.isExecutable(file));
+  }
+
+  private Path resolve(String name) {
+    // Names were decoded as ISO-8859-1 together with the diff content
+    return rootDir.resolve(
+        new String(name.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8));
+  }
+
+  private boolean isExcluded(String name) {
+    for (Pattern excludedPath : excludedPaths) {
+      if (excludedPath.matcher(name).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void deleteEmptyParents(Path file) throws IOException {
+    Path root = rootDir.normalize();
+    for (Path dir = file.normalize().getParent(); dir != null && !dir.equals(root)
+        && dir.startsWith(root); dir = dir.getParent()) {
+      try {
+        Files.deleteIfExists(dir);
+      } catch (DirectoryNotEmptyException e) {
+        return;
+      }
+    }
+  }
+
+  private static void setExecutable(Path file, boolean executable) throws IOException {
+    if (!file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      file.toFile().setExecutable(executable);
+      return;
+    }
+    Set<PosixFilePermission> permissions =
+        EnumSet.copyOf(Files.getPosixFilePermissions(file));
+    if (executable) {
+      permissions.add(PosixFilePermission.OWNER_EXECUTE);
+      if (permissions.contains(PosixFilePermission.GROUP_READ)) {
+        permissions.add(PosixFilePermission.GROUP_EXECUTE);
+      }
+      if (permissions.contains(PosixFilePermission.OTHERS_READ)) {
+        permissions.add(PosixFilePermission.OTHERS_EXECUTE);
+      }
+    } else {
+      permissions.remove(PosixFilePermission.OWNER_EXECUTE);
+      permissions.remove(PosixFilePermission.GROUP_EXECUTE);
+      permissions.remove(PosixFilePermission.OTHERS_EXECUTE);
+    }
+    Files.setPosixFilePermissions(file, permissions);
+  }
+
+  /** Splits the content in lines, keeping the line terminators. */
+  private static List<String> splitLines(byte[] bytes) {
+    String content = new String(bytes, StandardCharsets.ISO_8859_1);
+    List<String> lines = new ArrayList<>();
+    int start = 0;
+    for (int end = content.indexOf('\n'); end != -1; end = content.indexOf('\n', start)) {
+      lines.add(content.substring(start, end + 1));
+      start = end + 1;
+    }
+    if (start < content.length()) {
+      lines.add(content.substring(start));
+    }
+    return lines;
+  }
+
+  /**
+   * Converts a 'git apply --exclude' pattern to a regex. Like git, '*' also matches '/'.
+   */
+  private static Pattern wildcardToRegex(String wildcard) {
+    StringBuilder regex = new StringBuilder();
+    for (int i = 0; i < wildcard.length(); i++) {
+      char c = wildcard.charAt(i);
+      switch (c) {
+        case '*':
+          regex.append(".*");
+          break;
+        case '?':
+          regex.append('.');
+          break;
+        case '[':
+          int end = wildcard.indexOf(']', i + 1);
+          if (end != -1) {
+            String set = wildcard.substring(i + 1, end);
+            regex.append('[')
+                .append(set.startsWith("!") ? "^" + set.substring(1) : set)
+                .append(']');
+            i = end;
+            break;
+          }
+          regex.append("\\[");
+          break;
+        default:
+          regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    return Pattern.compile(regex.toString());
+  }
+
+  private static final class FileContent {
+
+    private final boolean exists;
+    private final List<String> lines;
+    private boolean executable;
+
+    private FileContent(boolean exists, List<String> lines, boolean executable) {
+      this.exists = exists;
+      this.lines = lines;
+      this.executable = executable;
+    }
+
+    FileContent copy() {
+      return new FileContent(exists, new ArrayList<>(lines), executable);
+    }
+  }
+}
@@ -24,11 +24,14 @@ import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.config.ConfigFile;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.treestate.TreeState;
 import com.google.copybara.util.InsideGitDirException;
 import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.events.Location;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
@@ -43,23 +46,33 @@ public class PatchTransformation implements Transformation {
   private final PatchingOptions options;
   private final int strip;
   private final Location location;
+  /** Parsed patches by path, shared with the reverse transformation. */
+  private final Map<String, UnifiedDiff> parsedPatches;
 
   PatchTransformation(
       ImmutableList<ConfigFile> patches, ImmutableList<String> excludedPaths,
       PatchingOptions options, boolean reverse, int strip,
       Location location) {
+    this(patches, excludedPaths, options, reverse, strip, location, new ConcurrentHashMap<>());
+  }
+
+  private PatchTransformation(
+      ImmutableList<ConfigFile> patches, ImmutableList<String> excludedPaths,
+      PatchingOptions options, boolean reverse, int strip,
+      Location location, Map<String, UnifiedDiff> parsedPatches) {
     this.patches = patches;
     this.excludedPaths = excludedPaths;
     this.reverse = reverse;
     this.options = options;
     this.strip = strip;
     this.location = checkNotNull(location);
+    this.parsedPatches = parsedPatches;
   }
 
   @Override
   public void transform(TransformWork work) throws ValidationException, IOException {
     try {
-      patch(work.getConsole(), work.getCheckoutDir(), /*gitDir=*/null);
+      patch(work.getConsole(), work.getCheckoutDir(), /*gitDir=*/null, work.getTreeState());
     } catch (InsideGitDirException e) {
       throw new ValidationException(String.format(
           "Cannot use patch.apply because Copybara temporary directory (%s) is inside a git"
@@ -71,23 +84,62 @@ public class PatchTransformation implements Transformation {
 
   public void patch(Console console, Path checkoutDir, @Nullable Path gitDir)
       throws ValidationException, InsideGitDirException {
+    patch(console, checkoutDir, gitDir, /*treeState=*/null);
+  }
+
+  /**
+   * Applies the patches. If all of them can be applied in-process, each file is read and written
+   * once and {@code treeState} is notified of the changes. Otherwise the patches that cannot be
+   * applied in-process are applied with an external tool and the tree state is not notified, so
+   * that the next transformation reads the checkout dir again.
+   */
+  private void patch(Console console, Path checkoutDir, @Nullable Path gitDir,
+      @Nullable TreeState treeState) throws ValidationException, InsideGitDirException {
     try {
-    for (int i = 0; i < patches.size(); i++) {
-      ConfigFile patch = patches.get(i);
-      console.infoFmt("Applying patch %d/%d: '%s'.", i + 1, patches.size(), patch.path());
-      options.patch(
-          checkoutDir, patch.readContentBytes(), excludedPaths, strip, reverse, gitDir);
-    }
+      PatchApplier applier =
+          options.newInProcessApplier(checkoutDir, excludedPaths, strip, reverse, gitDir);
+      boolean allInProcess = applier != null;
+      for (int i = 0; i < patches.size(); i++) {
+        ConfigFile patch = patches.get(i);
+        console.infoFmt("Applying patch %d/%d: '%s'.", i + 1, patches.size(), patch.path());
+        UnifiedDiff diff = applier == null ? null : parse(patch);
+        if (diff != null && diff.isSupported(strip)) {
+          applier.apply(diff);
+          continue;
+        }
+        if (applier != null) {
+          // The external tool reads the files from disk
+          applier.flush();
+          allInProcess = false;
+        }
+        options.patchWithTool(
+            checkoutDir, patch.readContentBytes(), excludedPaths, strip, reverse, gitDir);
+      }
+      if (applier != null) {
+        applier.flush();
+      }
+      if (treeState != null && allInProcess) {
+        applier.notifyTreeState(treeState);
+      }
     } catch (IOException ioException) {
       console.errorFmt("Error applying patch: %s", ioException.getMessage());
       throw new ValidationException("Error applying patch.", ioException);
     }
   }
 
+  private UnifiedDiff parse(ConfigFile patch) throws IOException {
+    UnifiedDiff diff = parsedPatches.get(patch.path());
+    if (diff == null) {
+      diff = UnifiedDiff.parse(patch.readContentBytes());
+      parsedPatches.put(patch.path(), diff);
+    }
+    return diff;
+  }
+
   @Override
   public Transformation reverse() {
     return new PatchTransformation(patches.reverse(), excludedPaths, options, !reverse, strip,
-        location);
+        location, parsedPatches);
   }
 
   @Override
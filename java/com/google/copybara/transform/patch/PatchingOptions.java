@@ -74,6 +74,13 @@ public class PatchingOptions implements Option {
       arity = 1)
   public boolean useGitApply = true;
 
+  @Parameter(names = "--patch-in-process", description =
+      "Apply the patches that would be applied with 'git apply' with an in-process"
+          + " implementation instead. Diffs that it doesn't support (renames, copies, binary files"
+          + " or symlinks) are still applied with 'git apply'.",
+      arity = 1)
+  public boolean inProcess = true;
+
   /**
    * Applies the diff into a directory tree.
    *
@@ -86,6 +93,40 @@ public class PatchingOptions implements Option {
       return;
     }
     Preconditions.checkArgument(stripSlashes >= 0, "stripSlashes must be >= 0.");
+    PatchApplier applier =
+        newInProcessApplier(rootDir, excludedPaths, stripSlashes, reverse, gitDir);
+    if (applier != null) {
+      UnifiedDiff diff = UnifiedDiff.parse(diffContents);
+      if (diff.isSupported(stripSlashes)) {
+        applier.apply(diff);
+        applier.flush();
+        return;
+      }
+    }
+    patchWithTool(rootDir, diffContents, excludedPaths, stripSlashes, reverse, gitDir);
+  }
+
+  /**
+   * Returns a {@link PatchApplier} if the diffs for {@code rootDir} can be applied in-process, or
+   * null if they need to be applied with GNU Patch or 'git apply --3way'.
+   */
+  @Nullable
+  PatchApplier newInProcessApplier(Path rootDir, ImmutableList<String> excludedPaths,
+      int stripSlashes, boolean reverse, @Nullable Path gitDir) throws ValidationException {
+    if (!inProcess || gitDir != null || shouldUsePatch(gitDir, excludedPaths)) {
+      return null;
+    }
+    return new PatchApplier(rootDir, stripSlashes, reverse, excludedPaths);
+  }
+
+  /** Applies the diff with GNU Patch or 'git apply', never in-process. */
+  void patchWithTool(Path rootDir, byte[] diffContents, ImmutableList<String> excludedPaths,
+      int stripSlashes, boolean reverse, @Nullable Path gitDir)
+      throws IOException, InsideGitDirException, ValidationException {
+    if (diffContents.length == 0) {
+      return;
+    }
+    Preconditions.checkArgument(stripSlashes >= 0, "stripSlashes must be >= 0.");
     boolean verbose = generalOptions.isVerbose();
     Map<String, String> env = generalOptions.getEnvironment();
     if (shouldUsePatch(gitDir, excludedPaths)) {
@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform.patch;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * A parsed unified diff, as generated by 'git diff' or 'diff -u'.
+ *
+ * <p>Only text changes to regular files, including creations, deletions and executable bit
+ * changes, are supported. Diffs with anything else (renames, copies, binary files, symlinks or
+ * quoted file names) or that cannot be parsed are marked as not supported, so that they are
+ * applied with 'git apply' instead.
+ *
+ * <p>Content is decoded as ISO-8859-1 so that every byte maps to one character and files are
+ * written back without changing their encoding.
+ */
+final class UnifiedDiff {
+
+  private static final String DEV_NULL = "/dev/null";
+  private static final Pattern HUNK_HEADER =
+      Pattern.compile("^@@ -([0-9]+)(?:,([0-9]+))? \\+([0-9]+)(?:,([0-9]+))? @@.*");
+
+  private final ImmutableList<FilePatch> files;
+  @Nullable private final String unsupportedReason;
+
+  private UnifiedDiff(ImmutableList<FilePatch> files, @Nullable String unsupportedReason) {
+    this.files = files;
+    this.unsupportedReason = unsupportedReason;
+  }
+
+  /** The file patches, in the order they appear in the diff. */
+  ImmutableList<FilePatch> getFiles() {
+    return files;
+  }
+
+  /**
+   * Returns true if the diff can be applied in-process after stripping {@code strip} leading
+   * components of the file names.
+   */
+  boolean isSupported(int strip) {
+    if (unsupportedReason != null) {
+      return false;
+    }
+    for (FilePatch file : files) {
+      if (file.getName(strip) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Why the diff is not supported, or null if it is. */
+  @Nullable
+  String getUnsupportedReason() {
+    return unsupportedReason;
+  }
+
+  /**
+   * Removes {@code strip} leading components of {@code name}, like 'git apply -p'. Returns null
+   * if there are not enough components.
+   */
+  @Nullable
+  static String stripName(String name, int strip) {
+    int start = 0;
+    for (int i = 0; i < strip; i++) {
+      int slash = name.indexOf('/', start);
+      if (slash == -1) {
+        return null;
+      }
+      start = slash + 1;
+      while (start < name.length() && name.charAt(start) == '/') {
+        start++;
+      }
+    }
+    return start < name.length() ? name.substring(start) : null;
+  }
+
+  static UnifiedDiff parse(byte[] content) {
+    List<String> lines = Splitter.on('\n').splitToList(
+        new String(content, StandardCharsets.ISO_8859_1));
+    Parser parser = new Parser(lines);
+    try {
+      ImmutableList<FilePatch> files = parser.parse();
+      if (files.isEmpty()) {
+        return new UnifiedDiff(files, "no file patches found");
+      }
+      return new UnifiedDiff(files, null);
+    } catch (UnsupportedDiffException e) {
+      return new UnifiedDiff(ImmutableList.of(), e.getMessage());
+    }
+  }
+
+  /** The changes to one file. */
+  static final class FilePatch {
+
+    @Nullable private final String oldName;
+    @Nullable private final String newName;
+    @Nullable private final String gitHeader;
+    private final boolean created;
+    private final boolean deleted;
+    @Nullable private final String oldMode;
+    @Nullable private final String newMode;
+    private final ImmutableList<Hunk> hunks;
+
+    /**
+     * @param gitHeader the names in the 'diff --git' header, used when the diff doesn't have
+     *     '---' and '+++' lines
+     */
+    private FilePatch(@Nullable String oldName, @Nullable String newName,
+        @Nullable String gitHeader, boolean created, boolean deleted, @Nullable String oldMode,
+        @Nullable String newMode, ImmutableList<Hunk> hunks) {
+      Preconditions.checkArgument(gitHeader != null || oldName != null || newName != null);
+      this.oldName = oldName;
+      this.newName = newName;
+      this.gitHeader = gitHeader;
+      this.created = created;
+      this.deleted = deleted;
+      this.oldMode = oldMode;
+      this.newMode = newMode;
+      this.hunks = hunks;
+    }
+
+    /**
+     * Returns the name of the file after stripping {@code strip} leading components, or null if
+     * it cannot be stripped or the old and new names are different.
+     */
+    @Nullable
+    String getName(int strip) {
+      if (gitHeader != null) {
+        return headerName(gitHeader, strip);
+      }
+      String oldStripped = oldName == null ? null : stripName(oldName, strip);
+      String newStripped = newName == null ? null : stripName(newName, strip);
+      if ((oldName != null && oldStripped == null) || (newName != null && newStripped == null)
+          // A rename without extended headers
+          || (oldStripped != null && newStripped != null && !oldStripped.equals(newStripped))) {
+        return null;
+      }
+      return newStripped != null ? newStripped : oldStripped;
+    }
+
+    /** Whether the file is created by the patch. */
+    boolean isCreated() {
+      return created;
+    }
+
+    /** Whether the file is deleted by the patch. */
+    boolean isDeleted() {
+      return deleted;
+    }
+
+    /** Git file mode before the change (for example '100644'), if present in the diff. */
+    @Nullable
+    String getOldMode() {
+      return oldMode;
+    }
+
+    /** Git file mode after the change (for example '100755'), if present in the diff. */
+    @Nullable
+    String getNewMode() {
+      return newMode;
+    }
+
+    ImmutableList<Hunk> getHunks() {
+      return hunks;
+    }
+
+    FilePatch reverse() {
+      ImmutableList.Builder<Hunk> reversed = ImmutableList.builder();
+      for (Hunk hunk : hunks) {
+        reversed.add(hunk.reverse());
+      }
+      return new FilePatch(newName, oldName, gitHeader, deleted, created, newMode, oldMode,
+          reversed.build());
+    }
+  }
+
+  /**
+   * Names in 'diff --git a/foo b/foo' headers are not quoted, so the name is found by splitting
+   * the header in two names that are the same after stripping {@code strip} components. Returns
+   * null if there is no such split or if it is ambiguous.
+   */
+  @Nullable
+  private static String headerName(String header, int strip) {
+    String result = null;
+    for (int i = header.indexOf(' '); i != -1; i = header.indexOf(' ', i + 1)) {
+      String oldName = stripName(header.substring(0, i), strip);
+      if (oldName != null && oldName.equals(stripName(header.substring(i + 1), strip))) {
+        if (result != null) {
+          return null;
+        }
+        result = oldName;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * A contiguous block of changes. Lines keep their line terminator, except the last line of a
+   * file that doesn't end with a newline.
+   */
+  static final class Hunk {
+
+    private final int oldStart;
+    private final int newStart;
+    private final ImmutableList<String> oldLines;
+    private final ImmutableList<String> newLines;
+    private final int leadingContext;
+    private final int trailingContext;
+
+    private Hunk(int oldStart, int newStart, ImmutableList<String> oldLines,
+        ImmutableList<String> newLines, int leadingContext, int trailingContext) {
+      this.oldStart = oldStart;
+      this.newStart = newStart;
+      this.oldLines = oldLines;
+      this.newLines = newLines;
+      this.leadingContext = leadingContext;
+      this.trailingContext = trailingContext;
+    }
+
+    /** 1-based line where the hunk starts in the old file, or 0 if the old file is empty. */
+    int getOldStart() {
+      return oldStart;
+    }
+
+    /** 1-based line where the hunk starts in the new file, or 0 if the new file is empty. */
+    int getNewStart() {
+      return newStart;
+    }
+
+    /** Context and removed lines. */
+    ImmutableList<String> getOldLines() {
+      return oldLines;
+    }
+
+    /** Context and added lines. */
+    ImmutableList<String> getNewLines() {
+      return newLines;
+    }
+
+    /** Number of context lines before the first change. */
+    int getLeadingContext() {
+      return leadingContext;
+    }
+
+    /** Number of context lines after the last change. */
+    int getTrailingContext() {
+      return trailingContext;
+    }
+
+    Hunk reverse() {
+      return new Hunk(newStart, oldStart, newLines, oldLines, leadingContext, trailingContext);
+    }
+  }
+
+  private static final class UnsupportedDiffException extends Exception {
+
+    UnsupportedDiffException(String message) {
+      super(message);
+    }
+  }
+
+  private static final class Parser {
+
+    private final List<String> lines;
+    private int pos;
+
+    private Parser(List<String> lines) {
+      this.lines = lines;
+    }
+
+    ImmutableList<FilePatch> parse() throws UnsupportedDiffException {
+      ImmutableList.Builder<FilePatch> result = ImmutableList.builder();
+      while (pos < lines.size()) {
+        String line = lines.get(pos);
+        if (line.startsWith("diff --git ")) {
+          result.add(parseGitPatch());
+        } else if (isTraditionalHeader()) {
+          result.add(parseFilePatch(null, null, false, false, /*gitDiff=*/ false));
+        } else {
+          // Text before the first patch, like a commit message
+          pos++;
+        }
+      }
+      return result.build();
+    }
+
+    private boolean isTraditionalHeader() {
+      return pos + 2 < lines.size()
+          && lines.get(pos).startsWith("--- ")
+          && lines.get(pos + 1).startsWith("+++ ")
+          && lines.get(pos + 2).startsWith("@@ -");
+    }
+
+    private FilePatch parseGitPatch() throws UnsupportedDiffException {
+      String header = lines.get(pos++).substring("diff --git ".length());
+      String oldMode = null;
+      String newMode = null;
+      boolean created = false;
+      boolean deleted = false;
+      while (pos < lines.size()) {
+        String line = lines.get(pos);
+        if (line.startsWith("old mode ")) {
+          oldMode = line.substring("old mode ".length()).trim();
+        } else if (line.startsWith("new mode ")) {
+          newMode = line.substring("new mode ".length()).trim();
+        } else if (line.startsWith("new file mode ")) {
+          newMode = line.substring("new file mode ".length()).trim();
+          created = true;
+        } else if (line.startsWith("deleted file mode ")) {
+          oldMode = line.substring("deleted file mode ".length()).trim();
+          deleted = true;
+        } else if (line.startsWith("index ")) {
+          // Only used by --3way
+        } else if (line.startsWith("rename ") || line.startsWith("copy ")
+            || line.startsWith("similarity index ") || line.startsWith("dissimilarity index ")) {
+          throw new UnsupportedDiffException("renames and copies are not supported");
+        } else if (line.startsWith("Binary files ") || line.startsWith("GIT binary patch")) {
+          throw new UnsupportedDiffException("binary files are not supported");
+        } else {
+          break;
+        }
+        pos++;
+      }
+      checkMode(oldMode);
+      checkMode(newMode);
+      if (pos + 1 < lines.size() && lines.get(pos).startsWith("--- ")
+          && lines.get(pos + 1).startsWith("+++ ")) {
+        return parseFilePatch(oldMode, newMode, created, deleted, /*gitDiff=*/ true);
+      }
+      // Only extended headers (mode changes, empty files): Names come from the git header.
+      if (header.startsWith("\"")) {
+        throw new UnsupportedDiffException("quoted file names are not supported");
+      }
+      return new FilePatch(null, null, header, created, deleted, oldMode, newMode,
+          ImmutableList.of());
+    }
+
+    private FilePatch parseFilePatch(@Nullable String oldMode, @Nullable String newMode,
+        boolean created, boolean deleted, boolean gitDiff)
+        throws UnsupportedDiffException {
+      String oldName = parseName(lines.get(pos++).substring("--- ".length()));
+      String newName = parseName(lines.get(pos++).substring("+++ ".length()));
+      if (oldName == null && newName == null) {
+        throw new UnsupportedDiffException("both file names are " + DEV_NULL);
+      }
+      if (gitDiff && ((oldName == null) != created || (newName == null) != deleted)) {
+        throw new UnsupportedDiffException("inconsistent file creation or deletion");
+      }
+      ImmutableList.Builder<Hunk> hunks = ImmutableList.builder();
+      while (pos < lines.size() && lines.get(pos).startsWith("@@ ")) {
+        hunks.add(parseHunk());
+      }
+      return new FilePatch(oldName, newName, /*gitHeader=*/ null, oldName == null,
+          newName == null, oldMode, newMode, hunks.build());
+    }
+
+    private Hunk parseHunk() throws UnsupportedDiffException {
+      Matcher matcher = HUNK_HEADER.matcher(lines.get(pos));
+      if (!matcher.matches()) {
+        throw new UnsupportedDiffException("corrupt hunk header at line " + (pos + 1));
+      }
+      pos++;
+      int oldStart = Integer.parseInt(matcher.group(1));
+      int oldCount = matcher.group(2) == null ? 1 : Integer.parseInt(matcher.group(2));
+      int newStart = Integer.parseInt(matcher.group(3));
+      int newCount = matcher.group(4) == null ? 1 : Integer.parseInt(matcher.group(4));
+
+      List<String> oldLines = new ArrayList<>(oldCount);
+      List<String> newLines = new ArrayList<>(newCount);
+      int leadingContext = 0;
+      int trailingContext = 0;
+      boolean changed = false;
+      while (oldLines.size() < oldCount || newLines.size() < newCount) {
+        if (pos >= lines.size()) {
+          throw new UnsupportedDiffException("truncated hunk at line " + pos);
+        }
+        String line = lines.get(pos++);
+        // An empty line is an empty context line whose leading space was removed
+        char type = line.isEmpty() ? ' ' : line.charAt(0);
+        String text = line.isEmpty() ? "\n" : line.substring(1) + "\n";
+        switch (type) {
+          case ' ':
+            oldLines.add(text);
+            newLines.add(text);
+            if (changed) {
+              trailingContext++;
+            } else {
+              leadingContext++;
+            }
+            break;
+          case '-':
+            oldLines.add(text);
+            changed = true;
+            trailingContext = 0;
+            break;
+          case '+':
+            newLines.add(text);
+            changed = true;
+            trailingContext = 0;
+            break;
+          case '\\':
+            removeNewline(lines.get(pos - 2), oldLines, newLines);
+            break;
+          default:
+            throw new UnsupportedDiffException("corrupt patch at line " + pos);
+        }
+        if (oldLines.size() > oldCount || newLines.size() > newCount) {
+          throw new UnsupportedDiffException("corrupt patch at line " + pos);
+        }
+      }
+      if (pos < lines.size() && lines.get(pos).startsWith("\\")) {
+        removeNewline(lines.get(pos - 1), oldLines, newLines);
+        pos++;
+      }
+      return new Hunk(oldStart, newStart, ImmutableList.copyOf(oldLines),
+          ImmutableList.copyOf(newLines), leadingContext, trailingContext);
+    }
+
+    /**
+     * Handles '\ No newline at end of file' by removing the newline of the last line of the
+     * side(s) that {@code previous} belongs to.
+     */
+    private static void removeNewline(String previous, List<String> oldLines,
+        List<String> newLines) throws UnsupportedDiffException {
+      char type = previous.isEmpty() ? ' ' : previous.charAt(0);
+      if (type == ' ' || type == '-') {
+        removeNewline(oldLines);
+      }
+      if (type == ' ' || type == '+') {
+        removeNewline(newLines);
+      }
+    }
+
+    private static void removeNewline(List<String> lines) throws UnsupportedDiffException {
+      if (lines.isEmpty()) {
+        throw new UnsupportedDiffException("unexpected 'No newline at end of file'");
+      }
+      String last = lines.get(lines.size() - 1);
+      lines.set(lines.size() - 1, last.substring(0, last.length() - 1));
+    }
+
+    @Nullable
+    private static String parseName(String name) throws UnsupportedDiffException {
+      int tab = name.indexOf('\t');
+      if (tab != -1) {
+        // 'diff -u' timestamp or the tab git adds after names with spaces
+        name = name.substring(0, tab);
+      }
+      name = name.trim();
+      if (name.startsWith("\"")) {
+        throw new UnsupportedDiffException("quoted file names are not supported");
+      }
+      if (name.isEmpty()) {
+        throw new UnsupportedDiffException("empty file name");
+      }
+      return name.equals(DEV_NULL) ? null : name;
+    }
+
+    private static void checkMode(@Nullable String mode) throws UnsupportedDiffException {
+      if (mode != null && !mode.equals("100644") && !mode.equals("100755")) {
+        throw new UnsupportedDiffException("file mode " + mode + " is not supported");
+      }
+    }
+  }
+}
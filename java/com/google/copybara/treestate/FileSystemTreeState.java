@@ -16,11 +16,10 @@
 
 package com.google.copybara.treestate;
 
-import static com.google.copybara.treestate.TreeStateUtil.filter;
+import static com.google.copybara.treestate.TreeStateUtil.recordAdd;
+import static com.google.copybara.treestate.TreeStateUtil.recordDelete;
+import static com.google.copybara.treestate.TreeStateUtil.recordModify;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -29,7 +28,6 @@ import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -42,18 +40,15 @@ public class FileSystemTreeState implements TreeState {
   private boolean fsRead = false;
   private boolean notified;
   private Map<Path, FileState> files = new HashMap<>();
-
-  private final LoadingCache<PathMatcher, List<FileState>> cachedMatches =
-      CacheBuilder.newBuilder().maximumSize(5).build(
-          new CacheLoader<PathMatcher, List<FileState>>() {
-            @Override
-            public List<FileState> load(PathMatcher pathMatcher) throws Exception {
-              return filter(pathMatcher, FileSystemTreeState.this.files.values());
-            }
-          });
+  private final MatchIndex matchIndex;
 
   public FileSystemTreeState(Path checkoutDir) {
+    this(checkoutDir, new MatchStats());
+  }
+
+  FileSystemTreeState(Path checkoutDir, MatchStats stats) {
     this.checkoutDir = checkoutDir;
+    this.matchIndex = new MatchIndex(stats);
   }
 
   @Override
@@ -62,7 +57,7 @@ public class FileSystemTreeState implements TreeState {
       files = readFileSystem();
       fsRead = true;
     }
-    return cachedMatches.getUnchecked(pathMatcher);
+    return matchIndex.find(pathMatcher, files.values());
   }
 
   private Map<Path, FileState> readFileSystem() throws IOException {
@@ -71,7 +66,7 @@ public class FileSystemTreeState implements TreeState {
       @Override
       public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
           throws IOException {
-        result.put(file, new FileState(file));
+        result.put(file, new FileState(file, attrs));
         return FileVisitResult.CONTINUE;
       }
     });
@@ -81,19 +76,19 @@ public class FileSystemTreeState implements TreeState {
   @Override
   public void notifyModify(Iterable<FileState> paths) {
     notified = true;
-    for (FileState path : paths) {
-      files.put(path.getPath(), path);
-    }
+    recordModify(files, paths);
   }
 
   @Override
-  public void notifyAdd(Iterable<FileState> path) {
-    throw new UnsupportedOperationException("Not supported. Don't notify!");
+  public void notifyAdd(Iterable<FileState> paths) {
+    notified = true;
+    recordAdd(files, matchIndex, paths);
   }
 
   @Override
-  public void notifyDelete(Iterable<FileState> path) {
-    throw new UnsupportedOperationException("Not supported. Don't notify!");
+  public void notifyDelete(Iterable<FileState> paths) {
+    notified = true;
+    recordDelete(files, matchIndex, paths);
   }
 
   @Override
@@ -104,8 +99,13 @@ public class FileSystemTreeState implements TreeState {
   @Override
   public TreeState newTreeState() {
     if (fsRead && notified) {
-      return new MapBasedTreeState(checkoutDir, files, cachedMatches);
+      return new MapBasedTreeState(checkoutDir, files, matchIndex);
     }
-    return new FileSystemTreeState(checkoutDir);
+    return new FileSystemTreeState(checkoutDir, matchIndex.getStats());
+  }
+
+  @Override
+  public MatchStats getMatchStats() {
+    return matchIndex.getStats();
   }
 }
@@ -16,16 +16,14 @@
 
 package com.google.copybara.treestate;
 
-import static com.google.copybara.treestate.TreeStateUtil.filter;
+import static com.google.copybara.treestate.TreeStateUtil.recordAdd;
+import static com.google.copybara.treestate.TreeStateUtil.recordDelete;
+import static com.google.copybara.treestate.TreeStateUtil.recordModify;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -37,44 +35,35 @@ public class MapBasedTreeState implements TreeState {
   private boolean notified = false;
   private final Path checkoutDir;
   private final Map<Path, FileState> files;
+  private final MatchIndex matchIndex;
 
-  private final LoadingCache<PathMatcher, List<FileState>> cachedMatches =
-      CacheBuilder.newBuilder().maximumSize(10).build(
-          new CacheLoader<PathMatcher, List<FileState>>() {
-            @Override
-            public List<FileState> load(PathMatcher pathMatcher) throws Exception {
-              return filter(pathMatcher, files.values());
-            }
-          });
-
-  MapBasedTreeState(Path checkoutDir, Map<Path, FileState> files,
-      LoadingCache<PathMatcher, List<FileState>> cachedMatches) {
+  MapBasedTreeState(Path checkoutDir, Map<Path, FileState> files, MatchIndex matchIndex) {
     this.checkoutDir = checkoutDir;
     this.files = new HashMap<>(files);
-    this.cachedMatches.putAll(cachedMatches.asMap());
+    this.matchIndex = new MatchIndex(matchIndex);
   }
 
   @Override
   public Iterable<FileState> find(PathMatcher pathMatcher) throws IOException {
-    return cachedMatches.getUnchecked(pathMatcher);
+    return matchIndex.find(pathMatcher, files.values());
   }
 
   @Override
   public void notifyModify(Iterable<FileState> paths) {
     notified = true;
-    for (FileState fileState : paths) {
-      files.put(fileState.getPath(), fileState);
-    }
+    recordModify(files, paths);
   }
 
   @Override
-  public void notifyAdd(Iterable<FileState> path) {
-    throw new UnsupportedOperationException("Not supported. Don't notify!");
+  public void notifyAdd(Iterable<FileState> paths) {
+    notified = true;
+    recordAdd(files, matchIndex, paths);
   }
 
   @Override
-  public void notifyDelete(Iterable<FileState> path) {
-    throw new UnsupportedOperationException("Not supported. Don't notify!");
+  public void notifyDelete(Iterable<FileState> paths) {
+    notified = true;
+    recordDelete(files, matchIndex, paths);
   }
 
   @Override
@@ -85,8 +74,13 @@ public class MapBasedTreeState implements TreeState {
   @Override
   public TreeState newTreeState() {
     if (notified) {
-      return new MapBasedTreeState(checkoutDir, files, cachedMatches);
+      return new MapBasedTreeState(checkoutDir, files, matchIndex);
     }
-    return new FileSystemTreeState(checkoutDir);
+    return new FileSystemTreeState(checkoutDir, matchIndex.getStats());
+  }
+
+  @Override
+  public MatchStats getMatchStats() {
+    return matchIndex.getStats();
   }
 }
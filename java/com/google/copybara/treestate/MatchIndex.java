@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.treestate;
+
+import static com.google.copybara.treestate.TreeStateUtil.filter;
+
+import com.google.copybara.treestate.TreeState.FileState;
+import com.google.copybara.treestate.TreeState.MatchStats;
+import com.google.copybara.util.TreePathMatcher;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the results of {@link TreeState#find} by {@link PathMatcher}.
+ *
+ * <p>Matchers created from the same glob are equal, so repeated lookups for the same glob are
+ * served from the index. If the index has the result of a matcher that includes the requested one
+ * (for example '**' for 'src/**'), the new result is computed by filtering that smaller list
+ * instead of all the files.
+ *
+ * <p>The index is bounded by the total number of files in the indexed results. Least recently used
+ * results are evicted first.
+ */
+final class MatchIndex {
+
+  private static final int MAX_INDEXED_FILES = 100_000;
+
+  private final Map<PathMatcher, List<FileState>> matches =
+      new LinkedHashMap<>(16, 0.75f, /*accessOrder=*/true);
+  private final MatchStats stats;
+  private long indexedFiles;
+
+  MatchIndex(MatchStats stats) {
+    this.stats = stats;
+  }
+
+  /** Creates a copy of {@code other} that shares the cached results and the stats. */
+  MatchIndex(MatchIndex other) {
+    this.stats = other.stats;
+    synchronized (other) {
+      this.matches.putAll(other.matches);
+      this.indexedFiles = other.indexedFiles;
+    }
+  }
+
+  MatchStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Returns the files in {@code allFiles} that match {@code pathMatcher}, using the indexed results
+   * when possible.
+   */
+  synchronized List<FileState> find(PathMatcher pathMatcher, Collection<FileState> allFiles) {
+    List<FileState> result = matches.get(pathMatcher);
+    if (result != null) {
+      stats.hits.incrementAndGet();
+      return result;
+    }
+    List<FileState> candidates = null;
+    for (Map.Entry<PathMatcher, List<FileState>> entry : matches.entrySet()) {
+      if (entry.getKey() instanceof TreePathMatcher
+          && (candidates == null || entry.getValue().size() < candidates.size())
+          && ((TreePathMatcher) entry.getKey()).includes(pathMatcher)) {
+        candidates = entry.getValue();
+      }
+    }
+    if (candidates != null) {
+      stats.narrowed.incrementAndGet();
+      result = filter(pathMatcher, candidates);
+    } else {
+      stats.misses.incrementAndGet();
+      result = filter(pathMatcher, allFiles);
+    }
+    index(pathMatcher, result);
+    return result;
+  }
+
+  /** Incrementally update the indexed results with {@code added} new files. */
+  synchronized void recordAdd(List<FileState> added) {
+    if (added.isEmpty()) {
+      return;
+    }
+    // Cached lists might be shared with other TreeStates or still be in use. Copy on write.
+    Map<PathMatcher, List<FileState>> updated = new HashMap<>();
+    for (Map.Entry<PathMatcher, List<FileState>> entry : matches.entrySet()) {
+      List<FileState> newMatches = filter(entry.getKey(), added);
+      if (!newMatches.isEmpty()) {
+        List<FileState> result = new ArrayList<>(entry.getValue());
+        result.addAll(newMatches);
+        updated.put(entry.getKey(), result);
+      }
+    }
+    for (Map.Entry<PathMatcher, List<FileState>> entry : updated.entrySet()) {
+      index(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /** Incrementally update the indexed results with {@code deleted} files. */
+  synchronized void recordDelete(Set<Path> deleted) {
+    if (deleted.isEmpty()) {
+      return;
+    }
+    Map<PathMatcher, List<FileState>> updated = new HashMap<>();
+    for (Map.Entry<PathMatcher, List<FileState>> entry : matches.entrySet()) {
+      List<FileState> result = new ArrayList<>(entry.getValue().size());
+      for (FileState fileState : entry.getValue()) {
+        if (!deleted.contains(fileState.getPath())) {
+          result.add(fileState);
+        }
+      }
+      if (result.size() != entry.getValue().size()) {
+        updated.put(entry.getKey(), result);
+      }
+    }
+    for (Map.Entry<PathMatcher, List<FileState>> entry : updated.entrySet()) {
+      index(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Stores the {@code result} of {@code pathMatcher}, evicting least recently used results until
+   * the total number of indexed files is within the bound. Results bigger than the bound are not
+   * indexed.
+   */
+  private void index(PathMatcher pathMatcher, List<FileState> result) {
+    List<FileState> previous = matches.remove(pathMatcher);
+    if (previous != null) {
+      indexedFiles -= previous.size();
+    }
+    if (result.size() > MAX_INDEXED_FILES) {
+      return;
+    }
+    Iterator<List<FileState>> eldest = matches.values().iterator();
+    while (indexedFiles + result.size() > MAX_INDEXED_FILES && eldest.hasNext()) {
+      indexedFiles -= eldest.next().size();
+      eldest.remove();
+    }
+    matches.put(pathMatcher, result);
+    indexedFiles += result.size();
+  }
+}
@@ -17,9 +17,18 @@
 package com.google.copybara.treestate;
 
 import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
 
 /**
  * An object that allows to do potentially cached filesystem lookups.
@@ -32,19 +41,76 @@ public interface TreeState {
   /**
    * An object that contains a path found in the {@link TreeState}.
    *
-   * <p>Wrapped so that we can include things like the hash of the file in the future.
+   * <p>Besides the path, it keeps the size, the last modified time and the content hash of the
+   * file. Size and modified time are captured when the file is found by walking the checkout dir
+   * (or read lazily otherwise). The content hash is only computed on demand. The attributes are
+   * discarded whenever the file is notified as modified.
    */
   class FileState {
     private final Path path;
+    @Nullable private volatile BasicFileAttributes attributes;
+    @Nullable private volatile HashCode contentHash;
 
-    FileState(Path path) {
+    public FileState(Path path) {
+      this(path, /*attributes=*/null);
+    }
+
+    FileState(Path path, @Nullable BasicFileAttributes attributes) {
       this.path = Preconditions.checkNotNull(path);
+      this.attributes = attributes;
     }
 
     public Path getPath() {
       return path;
     }
 
+    /** Size in bytes of the file (or the symlink, if the path is a symlink). */
+    public long getSize() throws IOException {
+      return getAttributes().size();
+    }
+
+    /**
+     * Size in bytes captured when the file was found, or -1 if it is not known. Unlike {@link
+     * #getSize()}, it never reads the file system.
+     */
+    public long getKnownSize() {
+      BasicFileAttributes attrs = attributes;
+      return attrs == null ? -1 : attrs.size();
+    }
+
+    /** Last modified time of the file (or the symlink, if the path is a symlink). */
+    public FileTime getLastModifiedTime() throws IOException {
+      return getAttributes().lastModifiedTime();
+    }
+
+    /**
+     * SHA-256 hash of the file content. Computed the first time it is requested and cached until
+     * the file is notified as modified.
+     */
+    public HashCode getContentHash() throws IOException {
+      HashCode hash = contentHash;
+      if (hash == null) {
+        hash = MoreFiles.asByteSource(path).hash(Hashing.sha256());
+        contentHash = hash;
+      }
+      return hash;
+    }
+
+    private BasicFileAttributes getAttributes() throws IOException {
+      BasicFileAttributes attrs = attributes;
+      if (attrs == null) {
+        attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        attributes = attrs;
+      }
+      return attrs;
+    }
+
+    /** Discard any cached attribute or hash, since the file content changed. */
+    void invalidate() {
+      attributes = null;
+      contentHash = null;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) {
@@ -61,6 +127,42 @@ public interface TreeState {
     public int hashCode() {
       return path.hashCode();
     }
+
+    @Override
+    public String toString() {
+      return path.toString();
+    }
+  }
+
+  /**
+   * Counters of how {@link #find} lookups were served, shared by all the {@link TreeState}s
+   * created with {@link #newTreeState()}.
+   */
+  final class MatchStats {
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong narrowed = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    /** Lookups served from a previous result for the same matcher. */
+    public long getHits() {
+      return hits.get();
+    }
+
+    /** Lookups computed by filtering the previous result of a more general matcher. */
+    public long getNarrowed() {
+      return narrowed.get();
+    }
+
+    /** Lookups computed by filtering all the files. */
+    public long getMisses() {
+      return misses.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "hits=%d, narrowed=%d, misses=%d", getHits(), getNarrowed(), getMisses());
+    }
   }
 
   /**
@@ -74,14 +176,15 @@ public interface TreeState {
   void notifyModify(Iterable<FileState> paths);
 
   /**
-   * Not implemented for now.
+   * Notify the {@link TreeState} that {@code paths} have been added. Adding an already existing
+   * path is equivalent to modifying it.
    */
-  void notifyAdd(Iterable<FileState> path);
+  void notifyAdd(Iterable<FileState> paths);
 
   /**
-   * Not implemented for now.
+   * Notify the {@link TreeState} that {@code paths} have been deleted.
    */
-  void notifyDelete(Iterable<FileState> path);
+  void notifyDelete(Iterable<FileState> paths);
 
   void notifyNoChange();
 
@@ -91,4 +194,7 @@ public interface TreeState {
    * FileSystem based TreeState.
    */
   TreeState newTreeState();
+
+  /** Returns the lookup counters for this {@link TreeState} and the ones it was created from. */
+  MatchStats getMatchStats();
 }
@@ -18,9 +18,14 @@ package com.google.copybara.treestate;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.copybara.treestate.TreeState.FileState;
+import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -40,6 +45,54 @@ public final class TreeStateUtil {
         .collect(Collectors.toList());
   }
 
+  /**
+   * Record {@code paths} as modified in the {@code files} index, discarding any attribute cached
+   * for them.
+   */
+  static void recordModify(Map<Path, FileState> files, Iterable<FileState> paths) {
+    for (FileState fileState : paths) {
+      fileState.invalidate();
+      FileState previous = files.put(fileState.getPath(), fileState);
+      if (previous != null) {
+        previous.invalidate();
+      }
+    }
+  }
+
+  /**
+   * Record {@code paths} as added in the {@code files} index and incrementally update the
+   * {@code matchIndex} results so that they don't need to be recomputed.
+   */
+  static void recordAdd(Map<Path, FileState> files, MatchIndex matchIndex,
+      Iterable<FileState> paths) {
+    List<FileState> added = new ArrayList<>();
+    for (FileState fileState : paths) {
+      fileState.invalidate();
+      FileState previous = files.put(fileState.getPath(), fileState);
+      if (previous != null) {
+        previous.invalidate();
+      } else {
+        added.add(fileState);
+      }
+    }
+    matchIndex.recordAdd(added);
+  }
+
+  /**
+   * Record {@code paths} as deleted in the {@code files} index and incrementally update the
+   * {@code matchIndex} results so that they don't need to be recomputed.
+   */
+  static void recordDelete(Map<Path, FileState> files, MatchIndex matchIndex,
+      Iterable<FileState> paths) {
+    Set<Path> deleted = new HashSet<>();
+    for (FileState fileState : paths) {
+      if (files.remove(fileState.getPath()) != null) {
+        deleted.add(fileState.getPath());
+      }
+    }
+    matchIndex.recordDelete(deleted);
+  }
+
   @VisibleForTesting
   public static boolean isCachedTreeState(TreeState treeState) {
     return treeState instanceof MapBasedTreeState;
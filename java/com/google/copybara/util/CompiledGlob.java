@@ -0,0 +1,517 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.util;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.re2j.Pattern;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * A compiled representation of a {@link Glob} that matches relative, '/' separated, paths.
+ *
+ * <p>Globs are matched with the same semantics as the JDK 'glob:' syntax, but instead of trying
+ * every pattern for every path, the patterns are indexed by their literal prefix:
+ *
+ * <ul>
+ *   <li>Literal patterns ('foo/BUILD') are looked up in a set.
+ *   <li>Recursive patterns ('foo/bar/**') are looked up by the path ancestors.
+ *   <li>The rest of the patterns are merged in one regex per literal prefix ('foo/*.java' and
+ *       'foo/{a,b}/**' end up in the regex for 'foo') that is only tried for paths under it.
+ * </ul>
+ *
+ * <p>It can also answer if a directory might contain matching files or if all the files under
+ * a directory match, so that file tree walks can skip whole subtrees.
+ */
+abstract class CompiledGlob {
+
+  /** Returns true if the relative {@code path} matches. */
+  abstract boolean matches(String path);
+
+  /**
+   * Returns false if no path under the relative directory {@code dir} can match. {@code ""} is the
+   * root directory. False positives are allowed.
+   */
+  abstract boolean mightMatchUnder(String dir);
+
+  /**
+   * Returns true if all the paths under the relative directory {@code dir} match. False negatives
+   * are allowed.
+   */
+  abstract boolean matchesAllUnder(String dir);
+
+  /**
+   * Returns true if every path that {@code other} matches is also matched by this glob. False
+   * negatives are allowed.
+   */
+  final boolean includes(CompiledGlob other) {
+    if (other instanceof Union) {
+      return includes(((Union) other).a) && includes(((Union) other).b);
+    }
+    if (other instanceof Difference) {
+      return includesDifference((Difference) other);
+    }
+    for (Map.Entry<String, String> e : ((PatternSet) other).prefixByGlob.entrySet()) {
+      if (!includesGlob(e.getKey(), e.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if every path that {@code glob}, with literal prefix {@code prefix}, matches is
+   * also matched by this glob. False negatives are allowed.
+   */
+  abstract boolean includesGlob(String glob, String prefix);
+
+  /**
+   * Returns true if every path that {@code other} matches is also matched by this glob. False
+   * negatives are allowed.
+   */
+  abstract boolean includesDifference(Difference other);
+
+  /** Compiles a list of globs into a matcher that matches if any of them match. */
+  static CompiledGlob compile(Iterable<String> globs) {
+    return new PatternSet(globs);
+  }
+
+  /** A matcher that matches what {@code include} matches unless {@code exclude} matches. */
+  static CompiledGlob difference(CompiledGlob include, @Nullable CompiledGlob exclude) {
+    return exclude == null ? include : new Difference(include, exclude);
+  }
+
+  /** A matcher that matches what {@code a} or {@code b} match. */
+  static CompiledGlob union(CompiledGlob a, CompiledGlob b) {
+    return new Union(a, b);
+  }
+
+  private static final class PatternSet extends CompiledGlob {
+
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final boolean matchAll;
+    /** The globs and the literal prefix that all the paths they match are under. */
+    private final ImmutableMap<String, String> prefixByGlob;
+    private final ImmutableSet<String> literals;
+    private final ImmutableSet<String> recursivePrefixes;
+    private final ImmutableMap<String, Pattern> regexByPrefix;
+    /**
+     * Literal prefixes of all the patterns and the maximum number of segments of the paths that
+     * they can match.
+     */
+    private final ImmutableMap<String, Integer> maxSegmentsByPrefix;
+    /** All the proper ancestors of the keys of {@link #maxSegmentsByPrefix}, including "". */
+    private final ImmutableSet<String> prefixAncestors;
+
+    PatternSet(Iterable<String> globs) {
+      boolean matchAll = false;
+      Map<String, String> prefixByGlob = new LinkedHashMap<>();
+      Set<String> literals = new HashSet<>();
+      Set<String> recursivePrefixes = new HashSet<>();
+      Map<String, List<String>> regexes = new LinkedHashMap<>();
+      Map<String, Integer> maxSegments = new HashMap<>();
+      Set<String> prefixAncestors = new HashSet<>();
+
+      for (String glob : globs) {
+        List<String> segments = Splitter.on('/').splitToList(glob);
+        List<String> prefix = new ArrayList<>();
+        for (String segment : segments) {
+          if (Glob.isMeta(segment)) {
+            break;
+          }
+          prefix.add(Glob.unescape(segment));
+        }
+        if (prefix.size() == segments.size()) {
+          literals.add(Joiner.on('/').join(prefix));
+          prefix.remove(prefix.size() - 1);
+        } else if (glob.equals("**")) {
+          matchAll = true;
+        } else if (prefix.size() == segments.size() - 1
+            && Iterables.getLast(segments).equals("**")) {
+          recursivePrefixes.add(Joiner.on('/').join(prefix));
+        } else {
+          regexes.computeIfAbsent(Joiner.on('/').join(prefix), k -> new ArrayList<>())
+              .add(toRegex(glob));
+        }
+        String key = Joiner.on('/').join(prefix);
+        prefixByGlob.put(glob, key);
+        // Without '**' a glob cannot match more segments than it has. '{a,b/c}' can match less.
+        int segmentCount = glob.contains("**") ? UNBOUNDED : segments.size();
+        maxSegments.merge(key, segmentCount, Math::max);
+        for (int i = 0; i < prefix.size(); i++) {
+          prefixAncestors.add(Joiner.on('/').join(prefix.subList(0, i)));
+        }
+      }
+
+      ImmutableMap.Builder<String, Pattern> regexByPrefix = ImmutableMap.builder();
+      for (Map.Entry<String, List<String>> e : regexes.entrySet()) {
+        regexByPrefix.put(e.getKey(),
+            Pattern.compile("(?:" + Joiner.on(")|(?:").join(e.getValue()) + ")"));
+      }
+      this.matchAll = matchAll;
+      this.prefixByGlob = ImmutableMap.copyOf(prefixByGlob);
+      this.literals = ImmutableSet.copyOf(literals);
+      this.recursivePrefixes = ImmutableSet.copyOf(recursivePrefixes);
+      this.regexByPrefix = regexByPrefix.build();
+      this.maxSegmentsByPrefix = ImmutableMap.copyOf(maxSegments);
+      this.prefixAncestors = ImmutableSet.copyOf(prefixAncestors);
+    }
+
+    @Override
+    boolean matches(String path) {
+      if (matchAll || literals.contains(path)) {
+        return true;
+      }
+      Pattern rootRegex = regexByPrefix.get("");
+      if (rootRegex != null && rootRegex.matches(path)) {
+        return true;
+      }
+      for (int i = path.indexOf('/'); i != -1; i = path.indexOf('/', i + 1)) {
+        String ancestor = path.substring(0, i);
+        if (recursivePrefixes.contains(ancestor)) {
+          return true;
+        }
+        Pattern regex = regexByPrefix.get(ancestor);
+        if (regex != null && regex.matches(path)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    boolean mightMatchUnder(String dir) {
+      if (matchAll) {
+        return true;
+      }
+      if (dir.isEmpty()) {
+        return !maxSegmentsByPrefix.isEmpty();
+      }
+      if (prefixAncestors.contains(dir)) {
+        return true;
+      }
+      // Files under 'dir' have at least one more segment than 'dir'.
+      int fileSegments = segmentCount(dir) + 1;
+      if (maxSegmentsByPrefix.getOrDefault("", 0) >= fileSegments) {
+        return true;
+      }
+      for (int i = dir.indexOf('/'); ; i = dir.indexOf('/', i + 1)) {
+        String ancestor = i == -1 ? dir : dir.substring(0, i);
+        if (maxSegmentsByPrefix.getOrDefault(ancestor, 0) >= fileSegments) {
+          return true;
+        }
+        if (i == -1) {
+          return false;
+        }
+      }
+    }
+
+    @Override
+    boolean matchesAllUnder(String dir) {
+      if (matchAll) {
+        return true;
+      }
+      if (dir.isEmpty()) {
+        return false;
+      }
+      for (int i = dir.indexOf('/'); ; i = dir.indexOf('/', i + 1)) {
+        if (recursivePrefixes.contains(i == -1 ? dir : dir.substring(0, i))) {
+          return true;
+        }
+        if (i == -1) {
+          return false;
+        }
+      }
+    }
+
+    @Override
+    boolean includesGlob(String glob, String prefix) {
+      return matchAll
+          || prefixByGlob.containsKey(glob)
+          || (isLiteral(glob) && matches(Glob.unescape(glob)))
+          // All the paths matched by 'glob' are under 'prefix'
+          || (!prefix.isEmpty() && matchesAllUnder(prefix));
+    }
+
+    @Override
+    boolean includesDifference(Difference other) {
+      return includes(other.include);
+    }
+
+    private static boolean isLiteral(String glob) {
+      for (String segment : Splitter.on('/').split(glob)) {
+        if (Glob.isMeta(segment)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static int segmentCount(String path) {
+      int count = 1;
+      for (int i = 0; i < path.length(); i++) {
+        if (path.charAt(i) == '/') {
+          count++;
+        }
+      }
+      return count;
+    }
+  }
+
+  private static final class Difference extends CompiledGlob {
+
+    private final CompiledGlob include;
+    private final CompiledGlob exclude;
+
+    Difference(CompiledGlob include, CompiledGlob exclude) {
+      this.include = Preconditions.checkNotNull(include);
+      this.exclude = Preconditions.checkNotNull(exclude);
+    }
+
+    @Override
+    boolean matches(String path) {
+      return include.matches(path) && !exclude.matches(path);
+    }
+
+    @Override
+    boolean mightMatchUnder(String dir) {
+      return include.mightMatchUnder(dir) && !exclude.matchesAllUnder(dir);
+    }
+
+    @Override
+    boolean matchesAllUnder(String dir) {
+      return include.matchesAllUnder(dir) && !exclude.mightMatchUnder(dir);
+    }
+
+    @Override
+    boolean includesGlob(String glob, String prefix) {
+      // We don't know if 'glob' matches anything that we exclude
+      return false;
+    }
+
+    @Override
+    boolean includesDifference(Difference other) {
+      // 'other' has to exclude at least what we exclude
+      return include.includes(other.include) && other.exclude.includes(exclude);
+    }
+  }
+
+  private static final class Union extends CompiledGlob {
+
+    private final CompiledGlob a;
+    private final CompiledGlob b;
+
+    Union(CompiledGlob a, CompiledGlob b) {
+      this.a = Preconditions.checkNotNull(a);
+      this.b = Preconditions.checkNotNull(b);
+    }
+
+    @Override
+    boolean matches(String path) {
+      return a.matches(path) || b.matches(path);
+    }
+
+    @Override
+    boolean mightMatchUnder(String dir) {
+      return a.mightMatchUnder(dir) || b.mightMatchUnder(dir);
+    }
+
+    @Override
+    boolean matchesAllUnder(String dir) {
+      return a.matchesAllUnder(dir) || b.matchesAllUnder(dir);
+    }
+
+    @Override
+    boolean includesGlob(String glob, String prefix) {
+      return a.includesGlob(glob, prefix) || b.includesGlob(glob, prefix);
+    }
+
+    @Override
+    boolean includesDifference(Difference other) {
+      return a.includesDifference(other) || b.includesDifference(other);
+    }
+  }
+
+  /**
+   * Translates a glob to a regex with the semantics of the JDK 'glob:' syntax for '/' separated
+   * paths.
+   *
+   * @throws IllegalArgumentException if the glob is not valid
+   */
+  static String toRegex(String glob) {
+    StringBuilder regex = new StringBuilder();
+    boolean inGroup = false;
+    int i = 0;
+    while (i < glob.length()) {
+      char c = glob.charAt(i++);
+      switch (c) {
+        case '\\':
+          Preconditions.checkArgument(i < glob.length(), "No character to escape in '%s'", glob);
+          appendLiteral(regex, glob.charAt(i++));
+          break;
+        case '[':
+          i = appendCharClass(regex, glob, i);
+          break;
+        case '{':
+          Preconditions.checkArgument(!inGroup, "Cannot nest groups in '%s'", glob);
+          regex.append("(?:(?:");
+          inGroup = true;
+          break;
+        case '}':
+          if (inGroup) {
+            regex.append("))");
+            inGroup = false;
+          } else {
+            appendLiteral(regex, c);
+          }
+          break;
+        case ',':
+          if (inGroup) {
+            regex.append(")|(?:");
+          } else {
+            appendLiteral(regex, c);
+          }
+          break;
+        case '*':
+          if (i < glob.length() && glob.charAt(i) == '*') {
+            regex.append(".*");
+            i++;
+          } else {
+            regex.append("[^/]*");
+          }
+          break;
+        case '?':
+          regex.append("[^/]");
+          break;
+        default:
+          appendLiteral(regex, c);
+      }
+    }
+    Preconditions.checkArgument(!inGroup, "Missing '}' in '%s'", glob);
+    return regex.toString();
+  }
+
+  /**
+   * Appends the character class that starts at {@code i} (after '[') and returns the index after
+   * the closing ']'. Like in the JDK, classes never match '/'.
+   */
+  private static int appendCharClass(StringBuilder regex, String glob, int i) {
+    StringBuilder chars = new StringBuilder();
+    boolean negated = false;
+    if (i < glob.length() && glob.charAt(i) == '^') {
+      appendClassChar(chars, '^');
+      i++;
+    } else {
+      if (i < glob.length() && glob.charAt(i) == '!') {
+        negated = true;
+        i++;
+      }
+      if (i < glob.length() && glob.charAt(i) == '-') {
+        appendClassChar(chars, '-');
+        i++;
+      }
+    }
+    boolean closed = false;
+    char last = 0;
+    boolean hasRangeStart = false;
+    while (i < glob.length()) {
+      char c = glob.charAt(i++);
+      if (c == ']') {
+        closed = true;
+        break;
+      }
+      Preconditions.checkArgument(c != '/', "Explicit '/' in class in '%s'", glob);
+      if (c == '-') {
+        Preconditions.checkArgument(hasRangeStart, "Invalid range in '%s'", glob);
+        Preconditions.checkArgument(i < glob.length(), "Missing ']' in '%s'", glob);
+        char end = glob.charAt(i++);
+        if (end == ']') {
+          // A trailing '-' is a literal
+          appendClassChar(chars, '-');
+          closed = true;
+          break;
+        }
+        Preconditions.checkArgument(end >= last, "Invalid range in '%s'", glob);
+        // The previous char was already appended. Exclude '/' from ranges like '!-0'.
+        if (last < '/' && end > '/') {
+          appendClassRange(chars, (char) (last + 1), '.');
+          appendClassRange(chars, '0', end);
+        } else if (end != '/') {
+          appendClassRange(chars, (char) (last + 1), end);
+        } else if (last + 1 < '/') {
+          appendClassRange(chars, (char) (last + 1), '.');
+        }
+        hasRangeStart = false;
+      } else {
+        appendClassChar(chars, c);
+        hasRangeStart = true;
+        last = c;
+      }
+    }
+    Preconditions.checkArgument(closed, "Missing ']' in '%s'", glob);
+    if (negated) {
+      regex.append("[^/").append(chars).append(']');
+    } else if (chars.length() == 0) {
+      // '[]' never matches
+      regex.append("[^\\x00-\\x{10FFFF}]");
+    } else {
+      regex.append('[').append(chars).append(']');
+    }
+    return i;
+  }
+
+  private static void appendClassRange(StringBuilder chars, char from, char to) {
+    if (from > to) {
+      return;
+    }
+    appendClassChar(chars, from);
+    if (from != to) {
+      chars.append('-');
+      appendClassChar(chars, to);
+    }
+  }
+
+  private static void appendClassChar(StringBuilder chars, char c) {
+    if (isAsciiPunctuation(c)) {
+      chars.append('\\');
+    }
+    chars.append(c);
+  }
+
+  private static void appendLiteral(StringBuilder regex, char c) {
+    if (isAsciiPunctuation(c)) {
+      regex.append('\\');
+    }
+    regex.append(c);
+  }
+
+  private static boolean isAsciiPunctuation(char c) {
+    return c < 128 && !Character.isLetterOrDigit(c) && !Character.isWhitespace(c)
+        && !Character.isISOControl(c);
+  }
+}
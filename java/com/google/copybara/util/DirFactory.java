@@ -44,6 +44,14 @@ public class DirFactory {
     return Files.createDirectories(rootPath.resolve(CACHE).resolve(name));
   }
 
+  /**
+   * Get the cache directory for {@code name} without creating it, for callers that only create it
+   * when they write to it.
+   */
+  public Path getCachePath(String name) {
+    return rootPath.resolve(CACHE).resolve(name);
+  }
+
   /** Creates a temp directory in the root path. */
   public Path newTempDir(String name) throws IOException {
     Path outputPath = getTmpRoot();
@@ -41,7 +41,6 @@ import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.LinkedHashSet;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -156,6 +155,13 @@ public final class FileUtil {
       Path path, Set<PosixFilePermission> permissionsToAdd, PathMatcher pathMatcher)
       throws IOException {
     Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        return mightMatchUnder(pathMatcher, dir)
+            ? FileVisitResult.CONTINUE
+            : FileVisitResult.SKIP_SUBTREE;
+      }
+
       @Override
       public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
         if (pathMatcher.matches(file)) {
@@ -189,6 +195,13 @@ public final class FileUtil {
     // Normalize so that the patchMatcher works
     Files.walkFileTree(path.normalize(), new SimpleFileVisitor<Path>() {
 
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        return mightMatchUnder(pathMatcher, dir)
+            ? FileVisitResult.CONTINUE
+            : FileVisitResult.SKIP_SUBTREE;
+      }
+
       @Override
       public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
         if (pathMatcher.matches(file)) {
@@ -217,28 +230,69 @@ public final class FileUtil {
   }
 
   /**
-   * A {@link PathMatcher} that returns true if any of the delegate {@code pathMatchers} returns
-   * true.
+   * Returns false if {@code pathMatcher} is a {@link TreePathMatcher} and no path under
+   * {@code dir} can match.
    */
-  static PathMatcher anyPathMatcher(ImmutableList<PathMatcher> pathMatchers) {
-    return new AnyPathMatcher(pathMatchers);
+  private static boolean mightMatchUnder(PathMatcher pathMatcher, Path dir) {
+    return !(pathMatcher instanceof TreePathMatcher)
+        || ((TreePathMatcher) pathMatcher).mightMatchUnder(dir);
   }
 
   /**
    * Returns {@link PathMatcher} that negates {@code athMatcher}
    */
   public static PathMatcher notPathMatcher(PathMatcher pathMatcher) {
-    return new PathMatcher() {
-      @Override
-      public boolean matches(Path path) {
-        return !pathMatcher.matches(path);
-      }
+    return pathMatcher instanceof TreePathMatcher
+        ? new NotTreePathMatcher((TreePathMatcher) pathMatcher)
+        : new NotPathMatcher(pathMatcher);
+  }
 
-      @Override
-      public String toString() {
-        return "not(" + pathMatcher + ")";
-      }
-    };
+  private static class NotPathMatcher implements PathMatcher {
+
+    final PathMatcher delegate;
+
+    NotPathMatcher(PathMatcher delegate) {
+      this.delegate = checkNotNull(delegate);
+    }
+
+    @Override
+    public boolean matches(Path path) {
+      return !delegate.matches(path);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o != null && o.getClass() == getClass()
+          && delegate.equals(((NotPathMatcher) o).delegate);
+    }
+
+    @Override
+    public int hashCode() {
+      return ~delegate.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return "not(" + delegate + ")";
+    }
+  }
+
+  private static final class NotTreePathMatcher extends NotPathMatcher
+      implements TreePathMatcher {
+
+    NotTreePathMatcher(TreePathMatcher delegate) {
+      super(delegate);
+    }
+
+    @Override
+    public boolean mightMatchUnder(Path dir) {
+      return !((TreePathMatcher) delegate).matchesAllUnder(dir);
+    }
+
+    @Override
+    public boolean matchesAllUnder(Path dir) {
+      return !((TreePathMatcher) delegate).mightMatchUnder(dir);
+    }
   }
 
   /**
@@ -290,6 +344,14 @@ public final class FileUtil {
       this.additonalValidator = additionalValidator;
     }
 
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+      Path destDir = to.resolve(from.relativize(dir).toString()).normalize();
+      return mightMatchUnder(destPathMatcher, destDir)
+          ? FileVisitResult.CONTINUE
+          : FileVisitResult.SKIP_SUBTREE;
+    }
+
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
       // using from...toString to allow crossing from one filesystem into another
@@ -471,45 +533,4 @@ public final class FileUtil {
     }
     return repoStorage.resolve(escapedUrl);
   }
-
-  private static class AnyPathMatcher implements PathMatcher {
-
-    private final ImmutableList<PathMatcher> pathMatchers;
-
-    AnyPathMatcher(ImmutableList<PathMatcher> pathMatchers) {
-      this.pathMatchers = pathMatchers;
-    }
-
-    @Override
-    public boolean matches(Path path) {
-      for (PathMatcher pathMatcher : pathMatchers) {
-        if (pathMatcher.matches(path)) {
-          return true;
-        }
-      }
-      return false;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) {
-        return true;
-      }
-      if (o == null || getClass() != o.getClass()) {
-        return false;
-      }
-      AnyPathMatcher that = (AnyPathMatcher) o;
-      return Objects.equals(pathMatchers, that.pathMatchers);
-    }
-
-    @Override
-    public int hashCode() {
-      return Objects.hashCode(pathMatchers);
-    }
-
-    @Override
-    public String toString() {
-      return "anyOf[" + Joiner.on(", ").join(pathMatchers) + "]";
-    }
-  }
 }
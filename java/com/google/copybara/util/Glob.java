@@ -87,7 +87,16 @@ public abstract class Glob implements Concatable, SkylarkValue {
     return false;
   }
 
-  public abstract PathMatcher relativeTo(Path path);
+  /**
+   * Returns a {@link PathMatcher} that matches the paths under {@code path} that match this glob.
+   * The returned matcher is a {@link TreePathMatcher}.
+   */
+  public PathMatcher relativeTo(Path path) {
+    return new RelativeGlobMatcher(path, this);
+  }
+
+  /** Returns the compiled representation of the glob, for matching relative paths. */
+  abstract CompiledGlob getCompiled();
 
   /**
    * Creates a function {@link Glob} that when a {@link Path} is passed it returns a
@@ -193,11 +202,11 @@ public abstract class Glob implements Concatable, SkylarkValue {
     return ImmutableSet.copyOf(roots);
   }
 
-  private static String unescape(String pathComponent) {
+  static String unescape(String pathComponent) {
     return UNESCAPE.matcher(pathComponent).replaceAll("$1");
   }
 
-  private static boolean isMeta(String pathComponent) {
+  static boolean isMeta(String pathComponent) {
     int c = 0;
     while (c < pathComponent.length()) {
       switch (pathComponent.charAt(c)) {
@@ -216,4 +225,95 @@ public abstract class Glob implements Concatable, SkylarkValue {
     return false;
   }
 
+  /**
+   * A {@link TreePathMatcher} that matches the paths under a directory with a
+   * {@link CompiledGlob}.
+   *
+   * <p>Two matchers are equal if they are for the same glob and directory, so that they can be
+   * used as cache keys.
+   */
+  private static final class RelativeGlobMatcher implements TreePathMatcher {
+
+    private final Path rootPath;
+    private final String root;
+    private final String separator;
+    private final Glob glob;
+    private final CompiledGlob compiled;
+
+    RelativeGlobMatcher(Path root, Glob glob) {
+      this.separator = root.getFileSystem().getSeparator();
+      this.rootPath = root.normalize();
+      String rootString = rootPath.toString();
+      this.root = rootString.endsWith(separator) ? rootString : rootString + separator;
+      this.glob = glob;
+      this.compiled = glob.getCompiled();
+    }
+
+    @Override
+    public boolean matches(Path path) {
+      String relative = relativize(path.toString());
+      return relative != null && !relative.isEmpty() && compiled.matches(relative);
+    }
+
+    @Override
+    public boolean mightMatchUnder(Path dir) {
+      String dirString = dir.toString();
+      if (root.startsWith(dirString.endsWith(separator) ? dirString : dirString + separator)) {
+        // An ancestor of the root
+        return compiled.mightMatchUnder("");
+      }
+      String relative = relativize(dirString);
+      return relative != null && compiled.mightMatchUnder(relative);
+    }
+
+    @Override
+    public boolean matchesAllUnder(Path dir) {
+      String relative = relativize(dir.toString());
+      return relative != null && compiled.matchesAllUnder(relative);
+    }
+
+    /** Returns the '/' separated path relative to the root or null if it is not under it. */
+    @Nullable
+    private String relativize(String path) {
+      if (!path.startsWith(root)) {
+        return path.length() == root.length() - separator.length() && root.startsWith(path)
+            ? ""
+            : null;
+      }
+      String relative = path.substring(root.length());
+      return separator.equals("/") ? relative : relative.replace(separator, "/");
+    }
+
+    @Override
+    public boolean includes(PathMatcher other) {
+      if (!(other instanceof RelativeGlobMatcher)) {
+        return false;
+      }
+      RelativeGlobMatcher that = (RelativeGlobMatcher) other;
+      return rootPath.equals(that.rootPath)
+          && (glob.equals(that.glob) || compiled.includes(that.compiled));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      RelativeGlobMatcher that = (RelativeGlobMatcher) o;
+      return rootPath.equals(that.rootPath) && glob.equals(that.glob);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(rootPath, glob);
+    }
+
+    @Override
+    public String toString() {
+      return glob.toString();
+    }
+  }
 }
@@ -16,7 +16,6 @@
 
 package com.google.copybara.util;
 
-import java.nio.file.FileSystem;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.util.Objects;
@@ -44,33 +43,6 @@ public final class ReadablePathMatcher implements PathMatcher {
     return toString;
   }
 
-  /**
-   * Creates a {@link PathMatcher} based on a glob relative to {@code path}. The string
-   * representation of the {@code PathMatcher} is the actual glob.
-   *
-   * For example a glob "dir/**.java" would match any java file inside {@code path}/dir directory.
-   */
-  public static ReadablePathMatcher relativeGlob(Path path, String glob) {
-    FileUtil.checkNormalizedRelative(glob);
-
-    FileSystem fs = path.getFileSystem();
-    String root = path.normalize().toString();
-    String separator = fs.getSeparator();
-
-    if (!root.endsWith(separator)) {
-      root += separator;
-    }
-
-    // If the current filesystem uses a backslash as the separator, the root must be escaped
-    // first to be valid glob syntax since backslash is considered an escaping character.
-    if ("\\".equals(separator)) {
-      root = root.replace("\\", "\\\\");
-      glob = glob.replace("/", "\\\\");
-    }
-
-    return new ReadablePathMatcher(fs.getPathMatcher("glob:" + root + glob), glob);
-  }
-
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -16,16 +16,16 @@
 
 package com.google.copybara.util;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteProcessor;
 import com.google.common.io.ByteStreams;
-import com.google.common.primitives.Ints;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
 
 /**
@@ -33,59 +33,169 @@ import java.util.List;
  * implementing {@code Destination} for repositories that don't automatically detect renames
  * (e.g. Mercurial).
  *
+ * <p>Prior files are stored in an inverted index from line hash to the prior files containing that
+ * line, so that scoring a later file only looks at the prior files that share some line with it.
+ *
  * @param <I> type of key to use for referencing files in the prior revision
  */
 public final class RenameDetector<I> {
 
-  private final List<PriorFile<I>> priorFiles = new ArrayList<>();
-
-  private static final class PriorFile<I> {
-    /**
-     * Key associated with the name of the file in the prior revision. For instance, this can just
-     * be a String of the relative path from the repo root.
-     */
-    I key;
-
-    /**
-     * A list of hashes corresponding with chunks of content in the file.
-     *
-     * TODO(copybara-team): Store hash counts rather than just the hash itself.
-     */
-    int[] hashes;
+  private final List<I> priorKeys = new ArrayList<>();
+
+  /** Number of lines of each prior file, indexed like {@link #priorKeys}. */
+  private int[] priorLines = new int[16];
+
+  private final LineIndex index = new LineIndex();
+
+  /**
+   * Number of matching lines for each prior file while scoring a later file. Only the entries in
+   * {@link #touched} are non-zero, and they are reset after scoring.
+   */
+  private int[] matchCounts = new int[16];
+  private int[] touched = new int[16];
+
+  /**
+   * The hashes of the lines of a file. Each distinct hash is stored once, sorted, together with the
+   * number of times it appears in the file.
+   */
+  private static final class LineHashes {
+    final int[] hashes;
+    final int[] counts;
+    /** Total number of lines, including repeated ones. */
+    final int lines;
+
+    LineHashes(int[] hashes, int[] counts, int lines) {
+      this.hashes = hashes;
+      this.counts = counts;
+      this.lines = lines;
+    }
   }
 
-  private static final class HashingByteProcessor implements ByteProcessor<int[]> {
+  private static final class HashingByteProcessor implements ByteProcessor<LineHashes> {
 
     int hash;
-    final HashSet<Integer> hashes = new HashSet<>();
+    /** Whether there are bytes after the last newline. */
+    boolean pendingLine;
+    int[] hashes = new int[64];
+    int size;
 
     @Override
     public boolean processBytes(byte[] buf, int off, int len) {
-      while (off != len) {
+      int end = off + len;
+      while (off != end) {
         hash *= 31;
         byte b = buf[off++];
         hash += b;
+        pendingLine = true;
         if (b == '\n') {
-          hashes.add(hash);
-          hash = 0;
+          addLine();
         }
       }
       return true;
     }
 
+    private void addLine() {
+      if (size == hashes.length) {
+        hashes = Arrays.copyOf(hashes, size * 2);
+      }
+      hashes[size++] = hash;
+      hash = 0;
+      pendingLine = false;
+    }
+
     @Override
-    public int[] getResult() {
-      hashes.add(hash);
-      int[] hashesArray = Ints.toArray(hashes);
-      Arrays.sort(hashesArray);
-      return hashesArray;
+    public LineHashes getResult() {
+      if (pendingLine) {
+        addLine();
+      }
+      Arrays.sort(hashes, 0, size);
+      int distinct = 0;
+      int[] counts = new int[size];
+      for (int i = 0; i < size; i++) {
+        if (distinct > 0 && hashes[distinct - 1] == hashes[i]) {
+          counts[distinct - 1]++;
+        } else {
+          hashes[distinct] = hashes[i];
+          counts[distinct++] = 1;
+        }
+      }
+      return new LineHashes(
+          Arrays.copyOf(hashes, distinct), Arrays.copyOf(counts, distinct), size);
+    }
+  }
+
+  /**
+   * An inverted index from line hash to the prior files that contain the line. Uses open
+   * addressing over primitive arrays, and the postings of a hash are a linked list in the postings
+   * arrays, so that indexing big trees doesn't box every hash.
+   */
+  private static final class LineIndex {
+
+    private int[] keys = new int[1024];
+    /** One plus the position of the first posting of the key, or 0 if the slot is free. */
+    private int[] heads = new int[1024];
+    private int usedSlots;
+
+    private int[] postingFiles = new int[1024];
+    private int[] postingCounts = new int[1024];
+    /** One plus the position of the next posting of the same key, or 0 if it is the last one. */
+    private int[] postingNext = new int[1024];
+    private int postings;
+
+    void add(int hash, int file, int count) {
+      if (postings == postingFiles.length) {
+        postingFiles = Arrays.copyOf(postingFiles, postings * 2);
+        postingCounts = Arrays.copyOf(postingCounts, postings * 2);
+        postingNext = Arrays.copyOf(postingNext, postings * 2);
+      }
+      int slot = slot(keys, heads, hash);
+      if (heads[slot] == 0) {
+        keys[slot] = hash;
+        usedSlots++;
+      }
+      postingFiles[postings] = file;
+      postingCounts[postings] = count;
+      postingNext[postings] = heads[slot];
+      heads[slot] = ++postings;
+      if (usedSlots * 2 > keys.length) {
+        rehash();
+      }
+    }
+
+    /** Returns one plus the position of the first posting for {@code hash}, or 0 if none. */
+    int first(int hash) {
+      return heads[slot(keys, heads, hash)];
+    }
+
+    private void rehash() {
+      int[] newKeys = new int[keys.length * 2];
+      int[] newHeads = new int[keys.length * 2];
+      for (int i = 0; i < keys.length; i++) {
+        if (heads[i] != 0) {
+          int slot = slot(newKeys, newHeads, keys[i]);
+          newKeys[slot] = keys[i];
+          newHeads[slot] = heads[i];
+        }
+      }
+      keys = newKeys;
+      heads = newHeads;
+    }
+
+    private static int slot(int[] keys, int[] heads, int hash) {
+      int mask = keys.length - 1;
+      int mixed = hash * 0x9E3779B9;
+      int slot = (mixed ^ (mixed >>> 16)) & mask;
+      while (heads[slot] != 0 && keys[slot] != hash) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
     }
   }
 
   /**
    * Hashes a single file until the end of the stream.
    */
-  private int[] hashes(InputStream input) throws IOException {
+  private LineHashes hashes(InputStream input) throws IOException {
     try {
       return ByteStreams.readBytes(input, new HashingByteProcessor());
     } finally {
@@ -98,10 +208,18 @@ public final class RenameDetector<I> {
    * the later revision. Closes {@code input} before returning.
    */
   public void addPriorFile(I key, InputStream input) throws IOException {
-    PriorFile<I> hash = new PriorFile<>();
-    hash.key = key;
-    hash.hashes = hashes(input);
-    priorFiles.add(hash);
+    LineHashes hashes = hashes(input);
+    int file = priorKeys.size();
+    priorKeys.add(key);
+    if (file == priorLines.length) {
+      priorLines = Arrays.copyOf(priorLines, file * 2);
+      matchCounts = Arrays.copyOf(matchCounts, file * 2);
+      touched = Arrays.copyOf(touched, file * 2);
+    }
+    priorLines[file] = hashes.lines;
+    for (int i = 0; i < hashes.hashes.length; i++) {
+      index.add(hashes.hashes[i], file, hashes.counts[i]);
+    }
   }
 
   /**
@@ -117,47 +235,66 @@ public final class RenameDetector<I> {
    *
    * <p>The algorithm used is based on, but not equivalent to, the Git algorithm implemented in
    * <a href="https://github.com/git/git/blob/master/diffcore-rename.c">diffcore-rename.c</a>. Both
-   * algorithms hash every line of every file, store a list of the hash-codes for each file, and
-   * then check the number of shared hash-codes between files to estimate their similarity.
+   * algorithms hash every line of every file, store the hash-codes for each file, and then check
+   * the number of shared lines between files to estimate their similarity. A line repeated N times
+   * in both files counts as N shared lines.
    *
-   * <p>The Git algorithm has a concept of a minimum score. i.e. if two files have < X%
-   * similarity, they will not be returned in the results. This allows some file comparisons to be
-   * skipped because of large differences in size. That is not implemented here: all similarities
-   * greater than 0% (one or more shared lines) are returned.
+   * <p>All similarities greater than 0% (one or more shared lines) are returned. Use
+   * {@link #scoresForLaterFile(InputStream, int)} for skipping files with low similarity.
    *
    * <p>When calling this method, the later file is checked against all the prior files added with
-   * {@link #addPriorFile(Object,InputStream)}, scored based on the number of shared hashes, and
-   * files with a score greater than 0 are returned.
+   * {@link #addPriorFile(Object,InputStream)}, scored based on the number of shared lines, and
+   * files with one or more shared lines are returned.
    */
   public List<Score<I>> scoresForLaterFile(InputStream input) throws IOException {
-    List<Score<I>> results = new ArrayList<>();
-    int[] laterHashes = hashes(input);
-    if (isEmpty(laterHashes)) {
+    return scoresForLaterFile(input, /*minScore=*/ 0);
+  }
+
+  /**
+   * Like {@link #scoresForLaterFile(InputStream)}, but only returns the files with a score of at
+   * least {@code minScore}. Like in Git, prior files whose number of lines is too different from
+   * the later file to reach that score are skipped without comparing their content.
+   */
+  public List<Score<I>> scoresForLaterFile(InputStream input, int minScore) throws IOException {
+    checkArgument(minScore >= 0 && minScore <= MAX_SCORE,
+        "minScore should be between 0 and %s: %s", MAX_SCORE, minScore);
+    LineHashes later = hashes(input);
+    if (later.lines == 0) {
       return ImmutableList.of();
     }
-    for (PriorFile<I> priorFile : priorFiles) {
-      // Determine the number of hashes that priorFile.hashes and laterHashes have in common.
-      int matchCount = 0;
-      int priorIndex = 0;
-      int laterIndex = 0;
-      while (priorIndex < priorFile.hashes.length && laterIndex < laterHashes.length) {
-        int priorHash = priorFile.hashes[priorIndex];
-        int laterHash = laterHashes[laterIndex];
-        if (laterHash > priorHash) {
-          priorIndex++;
-        } else {
-          laterIndex++;
-          if (priorHash == laterHash) {
-            matchCount++;
-          }
+    // A file with A lines can share at most A lines with a file with B lines, so the score
+    // is at most min(A, B) * MAX_SCORE / max(A, B).
+    long minLines = (long) later.lines * minScore / MAX_SCORE;
+    long maxLines = minScore == 0
+        ? Long.MAX_VALUE
+        : (long) later.lines * MAX_SCORE / minScore + 1;
+
+    int touchedCount = 0;
+    for (int i = 0; i < later.hashes.length; i++) {
+      for (int posting = index.first(later.hashes[i]); posting != 0;
+          posting = index.postingNext[posting - 1]) {
+        int file = index.postingFiles[posting - 1];
+        int lines = priorLines[file];
+        if (lines < minLines || lines > maxLines) {
+          continue;
         }
+        if (matchCounts[file] == 0) {
+          touched[touchedCount++] = file;
+        }
+        matchCounts[file] += Math.min(later.counts[i], index.postingCounts[posting - 1]);
       }
-      if (matchCount != 0 && !isEmpty(priorFile.hashes)) {
-        int size =
-            (laterHashes.length > priorFile.hashes.length)
-                ? laterHashes.length
-                : priorFile.hashes.length;
-        results.add(new Score<>(priorFile.key, matchCount * MAX_SCORE / size));
+    }
+
+    // Keep the order in which prior files were added for files with the same score
+    Arrays.sort(touched, 0, touchedCount);
+    List<Score<I>> results = new ArrayList<>();
+    for (int i = 0; i < touchedCount; i++) {
+      int file = touched[i];
+      int size = Math.max(later.lines, priorLines[file]);
+      int score = (int) ((long) matchCounts[file] * MAX_SCORE / size);
+      matchCounts[file] = 0;
+      if (score >= minScore) {
+        results.add(new Score<>(priorKeys.get(file), score));
       }
     }
 
@@ -166,10 +303,6 @@ public final class RenameDetector<I> {
     return results;
   }
 
-  private static boolean isEmpty(int[] hashes) {
-    return hashes.length == 0 || (hashes.length == 1 && hashes[0] == 0);
-  }
-
   public static final class Score<I> {
 
     private final I key;
@@ -18,13 +18,10 @@ package com.google.copybara.util;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableList.Builder;
 import com.google.common.collect.ImmutableSet;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkPrinter;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkValue;
 import java.nio.file.FileSystems;
-import java.nio.file.Path;
-import java.nio.file.PathMatcher;
 import java.util.Objects;
 import javax.annotation.Nullable;
 
@@ -37,6 +34,7 @@ final class SimpleGlob extends Glob implements SkylarkValue {
   private final ImmutableList<String> include;
   @Nullable
   private final Glob exclude;
+  private final CompiledGlob compiled;
 
   SimpleGlob(Iterable<String> include, @Nullable Glob exclude) {
     this.include = ImmutableList.copyOf(include);
@@ -48,20 +46,13 @@ final class SimpleGlob extends Glob implements SkylarkValue {
       FileUtil.checkNormalizedRelative(glob);
       FileSystems.getDefault().getPathMatcher("glob:" + glob);
     }
+    this.compiled = CompiledGlob.difference(
+        CompiledGlob.compile(this.include), exclude == null ? null : exclude.getCompiled());
   }
 
   @Override
-  public PathMatcher relativeTo(Path path) {
-    Builder<PathMatcher> includeList = ImmutableList.builder();
-    for (String path1 : include) {
-      includeList.add(ReadablePathMatcher.relativeGlob(path, path1));
-    }
-    PathMatcher excludeMatcher = (exclude == null)
-        ? FileUtil.anyPathMatcher(ImmutableList.of())
-        : exclude.relativeTo(path);
-    return new GlobPathMatcher(
-        FileUtil.anyPathMatcher(includeList.build()),
-        excludeMatcher);
+  CompiledGlob getCompiled() {
+    return compiled;
   }
 
   @Override
@@ -114,27 +105,6 @@ final class SimpleGlob extends Glob implements SkylarkValue {
     printer.append(toString());
   }
 
-  private class GlobPathMatcher implements PathMatcher {
-
-    private final PathMatcher includeMatcher;
-    private final PathMatcher excludeMatcher;
-
-    GlobPathMatcher(PathMatcher includeMatcher, PathMatcher excludeMatcher) {
-      this.includeMatcher = includeMatcher;
-      this.excludeMatcher = excludeMatcher;
-    }
-
-    @Override
-    public boolean matches(Path path) {
-      return includeMatcher.matches(path) && !excludeMatcher.matches(path);
-    }
-
-    @Override
-    public String toString() {
-      return SimpleGlob.this.toString();
-    }
-  }
-
   @Override
   public boolean equals(Object o) {
     if (this == o) {
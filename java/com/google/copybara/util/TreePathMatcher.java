@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.util;
+
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+
+/**
+ * A {@link PathMatcher} that can also tell if a directory might contain matching paths, so that
+ * file tree walks can skip whole subtrees.
+ */
+public interface TreePathMatcher extends PathMatcher {
+
+  /**
+   * Returns false if no path under the directory {@code dir} can match. It might return true even
+   * if no path can match.
+   */
+  boolean mightMatchUnder(Path dir);
+
+  /**
+   * Returns true if all the paths under the directory {@code dir} match. It might return false
+   * even if all the paths match.
+   */
+  boolean matchesAllUnder(Path dir);
+
+  /**
+   * Returns true if every path that {@code other} matches is also matched by this matcher. It might
+   * return false even if that is the case.
+   */
+  default boolean includes(PathMatcher other) {
+    return equals(other);
+  }
+}
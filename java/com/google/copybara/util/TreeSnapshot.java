@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.google.copybara.util.FileUtil.ResolvedSymlink;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * The content of the files under a directory, recorded as hashes so that the directory can be
+ * compared later with another one without keeping a copy of it.
+ *
+ * <p>Regular files are recorded by their SHA-256 hash, size and executable bit, and symlinks by
+ * their target. Like 'git diff', empty directories are ignored.
+ */
+public final class TreeSnapshot {
+
+  private final ImmutableMap<String, Entry> entries;
+
+  private TreeSnapshot(ImmutableMap<String, Entry> entries) {
+    this.entries = entries;
+  }
+
+  /**
+   * Records the files under {@code root}. Fails with {@link AbsoluteSymlinksNotAllowed} if a
+   * symlink points outside of {@code root}.
+   */
+  public static TreeSnapshot create(Path root) throws IOException {
+    Path normalized = root.normalize();
+    PathMatcher allFiles = Glob.ALL_FILES.relativeTo(normalized);
+    ImmutableMap.Builder<String, Entry> entries = ImmutableMap.builder();
+    Files.walkFileTree(normalized, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (attrs.isSymbolicLink()) {
+          checkSymlinkUnderRoot(allFiles, file);
+        }
+        entries.put(normalized.relativize(file).toString(), Entry.create(file, attrs, null));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return new TreeSnapshot(entries.build());
+  }
+
+  /** Number of files recorded. */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the paths, relative to {@code root}, of the files that were added, deleted or
+   * modified in {@code root} compared to this snapshot.
+   *
+   * <p>Files are only hashed if they have the same type, size and executable bit as the
+   * recorded ones.
+   */
+  public ImmutableSortedSet<String> changedFiles(Path root) throws IOException {
+    Path normalized = root.normalize();
+    ImmutableSortedSet.Builder<String> changed = ImmutableSortedSet.naturalOrder();
+    Set<String> seen = new HashSet<>();
+    Files.walkFileTree(normalized, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        String path = normalized.relativize(file).toString();
+        seen.add(path);
+        Entry recorded = entries.get(path);
+        if (recorded == null || !recorded.equals(Entry.create(file, attrs, recorded))) {
+          changed.add(path);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    for (String path : entries.keySet()) {
+      if (!seen.contains(path)) {
+        changed.add(path);
+      }
+    }
+    return changed.build();
+  }
+
+  private static void checkSymlinkUnderRoot(PathMatcher allFiles, Path symlink)
+      throws IOException {
+    ResolvedSymlink resolvedSymlink = FileUtil.resolveSymlink(allFiles, symlink);
+    if (!resolvedSymlink.isAllUnderRoot()) {
+      throw new AbsoluteSymlinksNotAllowed(
+          String.format("Symlink '%s' is absolute or escaped the root: '%s'.",
+              symlink, resolvedSymlink.getRegularFile()),
+          symlink, resolvedSymlink.getRegularFile());
+    }
+  }
+
+  private static final class Entry {
+
+    @Nullable private final String symlinkTarget;
+    private final long size;
+    private final boolean executable;
+    @Nullable private final HashCode hash;
+
+    private Entry(@Nullable String symlinkTarget, long size, boolean executable,
+        @Nullable HashCode hash) {
+      this.symlinkTarget = symlinkTarget;
+      this.size = size;
+      this.executable = executable;
+      this.hash = hash;
+    }
+
+    /**
+     * Creates the entry for {@code file}. If {@code compareTo} is not null, the content is only
+     * hashed when it could be equal to it.
+     */
+    static Entry create(Path file, BasicFileAttributes attrs, @Nullable Entry compareTo)
+        throws IOException {
+      if (attrs.isSymbolicLink()) {
+        return new Entry(Files.readSymbolicLink(file).toString(), 0, false, null);
+      }
+      long size = attrs.size();
+      boolean executable = Files.isExecutable(file);
+      if (compareTo != null
+          && (compareTo.symlinkTarget != null
+              || compareTo.size != size
+              || compareTo.executable != executable)) {
+        return new Entry(null, size, executable, null);
+      }
+      return new Entry(null, size, executable,
+          MoreFiles.asByteSource(file).hash(Hashing.sha256()));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Entry entry = (Entry) o;
+      return size == entry.size
+          && executable == entry.executable
+          && Objects.equals(symlinkTarget, entry.symlinkTarget)
+          && Objects.equals(hash, entry.hash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(symlinkTarget, size, executable, hash);
+    }
+  }
+}
@@ -19,8 +19,6 @@ package com.google.copybara.util;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import java.nio.file.Path;
-import java.nio.file.PathMatcher;
 import java.util.Objects;
 
 /**
@@ -30,27 +28,17 @@ public class UnionGlob extends Glob {
 
   private final Glob lval;
   private final Glob rval;
+  private final CompiledGlob compiled;
 
   UnionGlob(Glob lval, Glob rval) {
     this.lval = Preconditions.checkNotNull(lval);
     this.rval = Preconditions.checkNotNull(rval);
+    this.compiled = CompiledGlob.union(lval.getCompiled(), rval.getCompiled());
   }
 
   @Override
-  public PathMatcher relativeTo(Path base) {
-    PathMatcher leftMatcher = lval.relativeTo(base);
-    PathMatcher rightMatcher = rval.relativeTo(base);
-    return new PathMatcher() {
-      @Override
-      public boolean matches(Path path) {
-        return leftMatcher.matches(path) || rightMatcher.matches(path);
-      }
-
-      @Override
-      public String toString() {
-        return UnionGlob.this.toString();
-      }
-    };
+  CompiledGlob getCompiled() {
+    return compiled;
   }
 
   @Override
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.copybara.exception.ValidationException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LocalParallelizerTest {
+
+  @Rule
+  public final ExpectedException thrown = ExpectedException.none();
+
+  private final LocalParallelizer parallelizer = new LocalParallelizer(4, /*minSize=*/10);
+
+  @After
+  public void tearDown() {
+    parallelizer.close();
+  }
+
+  @Test
+  public void testResultsInOrder() throws Exception {
+    List<Integer> input = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+    List<List<Integer>> result = parallelizer.run(input, ImmutableList::copyOf);
+
+    assertThat(result.size()).isGreaterThan(1);
+    assertThat(ImmutableList.copyOf(Iterables.concat(result))).isEqualTo(input);
+  }
+
+  @Test
+  public void testSmallListRunsInOneBatch() throws Exception {
+    List<Integer> input = ImmutableList.of(1, 2, 3);
+    assertThat(parallelizer.run(input, ImmutableList::copyOf))
+        .containsExactly(ImmutableList.of(1, 2, 3));
+  }
+
+  @Test
+  public void testHeavyElementsRunAlone() throws Exception {
+    List<Integer> input = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+    List<List<Integer>> result = parallelizer.run(input, ImmutableList::copyOf,
+        e -> e == 50 ? Long.MAX_VALUE / 2 : 1);
+
+    assertThat(result).contains(ImmutableList.of(50));
+    assertThat(ImmutableList.copyOf(Iterables.concat(result))).isEqualTo(input);
+  }
+
+  @Test
+  public void testIOExceptionPropagated() throws Exception {
+    List<Integer> input = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Failed 42");
+    parallelizer.run(input, elements -> {
+      for (Integer e : elements) {
+        if (e == 42) {
+          throw new IOException("Failed 42");
+        }
+      }
+      return true;
+    });
+  }
+
+  @Test
+  public void testValidationExceptionPropagated() throws Exception {
+    List<Integer> input = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+    thrown.expect(ValidationException.class);
+    thrown.expectMessage("Bad 7");
+    parallelizer.run(input, elements -> {
+      List<Integer> result = new ArrayList<>();
+      for (Integer e : elements) {
+        ValidationException.checkCondition(e != 7, "Bad %s", e);
+        result.add(e);
+      }
+      return result;
+    });
+  }
+}
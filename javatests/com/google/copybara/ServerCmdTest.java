@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_EXECUTE;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_READ;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_WRITE;
+
+import com.google.common.base.Splitter;
+import com.google.copybara.util.ExitCode;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ServerCmdTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void setup() {
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testRunsRequests() throws Exception {
+    ServerCmd cmd = new ServerCmd((args, env, cwd, output) -> {
+      output.print("Running " + Arrays.toString(args));
+      return args[0].equals("info") ? ExitCode.SUCCESS : ExitCode.CONFIGURATION_ERROR;
+    });
+
+    List<String> responses = serve(cmd, ""
+        + "{\"id\": \"1\", \"args\": [\"info\", \"copy.bara.sky\"]}\n"
+        + "\n"
+        + "{\"id\": \"2\", \"args\": [\"validate\", \"copy.bara.sky\"]}\n");
+
+    assertThat(responses).containsExactly(
+        "{\"id\":\"1\",\"exit_code\":0,\"exit_code_name\":\"SUCCESS\","
+            + "\"output\":\"Running [info, copy.bara.sky]\"}",
+        "{\"id\":\"2\",\"exit_code\":2,\"exit_code_name\":\"CONFIGURATION_ERROR\","
+            + "\"output\":\"Running [validate, copy.bara.sky]\"}");
+  }
+
+  @Test
+  public void testRunsRequestsInParallel() throws Exception {
+    CountDownLatch latch = new CountDownLatch(2);
+    ServerCmd cmd = new ServerCmd((args, env, cwd, output) -> {
+      latch.countDown();
+      try {
+        // Only finishes if the other request is running at the same time
+        return latch.await(10, TimeUnit.SECONDS) ? ExitCode.SUCCESS : ExitCode.INTERNAL_ERROR;
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+    List<String> responses = serve(cmd, ""
+        + "{\"id\": \"1\", \"args\": [\"info\"]}\n"
+        + "{\"id\": \"2\", \"args\": [\"info\"]}\n");
+
+    assertThat(responses).hasSize(2);
+    for (String response : responses) {
+      assertThat(response).contains("\"exit_code\":0");
+    }
+  }
+
+  @Test
+  public void testInvalidRequests() throws Exception {
+    ServerCmd cmd = new ServerCmd((args, env, cwd, output) -> {
+      throw new AssertionError("Shouldn't run");
+    });
+
+    List<String> responses = serve(cmd, "not json\n{\"id\": \"1\"}\n");
+
+    assertThat(responses).hasSize(2);
+    assertThat(responses.get(0)).contains("\"exit_code\":1");
+    assertThat(responses.get(0)).contains("Invalid request");
+    assertThat(responses.get(1)).contains("\"id\":\"1\"");
+    assertThat(responses.get(1)).contains("'args' is required");
+  }
+
+  @Test
+  public void testNullAndIncompleteRequests() throws Exception {
+    ServerCmd cmd = new ServerCmd((args, env, cwd, output) -> {
+      throw new AssertionError("Shouldn't run");
+    });
+
+    List<String> responses = serve(cmd, ""
+        + "null\n"
+        + "{\"id\": \"1\", \"args\": [null]}\n"
+        + "{\"id\": \"2\", \"args\": [\"info\"], \"cwd\": \"relative/dir\"}\n"
+        + "{\"id\": \"3\", \"args\": [\"info\"], \"env\": {\"HOME\": null}}\n");
+
+    assertThat(responses).containsExactly(
+        "{\"exit_code\":1,\"exit_code_name\":\"COMMAND_LINE_ERROR\","
+            + "\"output\":\"Invalid request: a JSON object is required\"}",
+        "{\"id\":\"1\",\"exit_code\":1,\"exit_code_name\":\"COMMAND_LINE_ERROR\","
+            + "\"output\":\"Invalid request: 'args' is required and cannot contain null values\"}",
+        "{\"id\":\"2\",\"exit_code\":1,\"exit_code_name\":\"COMMAND_LINE_ERROR\","
+            + "\"output\":\"Invalid request: 'cwd' has to be an absolute path\"}",
+        "{\"id\":\"3\",\"exit_code\":1,\"exit_code_name\":\"COMMAND_LINE_ERROR\","
+            + "\"output\":\"Invalid request: 'env' cannot contain null values\"}");
+  }
+
+  @Test
+  public void testRequestEnvironmentAndWorkingDirectory() throws Exception {
+    ServerCmd cmd = new ServerCmd((args, env, cwd, output) -> {
+      output.print(env + " " + cwd);
+      return ExitCode.SUCCESS;
+    });
+
+    List<String> responses = serve(cmd, ""
+        + "{\"id\": \"1\", \"args\": [\"info\"], \"cwd\": \"/some/dir\","
+        + " \"env\": {\"HOME\": \"/home/foo\"}}\n"
+        + "{\"id\": \"2\", \"args\": [\"info\"]}\n");
+
+    assertThat(responses).containsExactly(
+        "{\"id\":\"1\",\"exit_code\":0,\"exit_code_name\":\"SUCCESS\","
+            + "\"output\":\"{HOME=/home/foo} /some/dir\"}",
+        "{\"id\":\"2\",\"exit_code\":0,\"exit_code_name\":\"SUCCESS\","
+            + "\"output\":\"null null\"}");
+  }
+
+  @Test
+  public void testUnexpectedError() throws Exception {
+    ServerCmd cmd = new ServerCmd((args, env, cwd, output) -> {
+      throw new IllegalStateException("Oops");
+    });
+
+    List<String> responses = serve(cmd, "{\"id\": \"1\", \"args\": []}\n");
+
+    assertThat(responses).containsExactly(
+        "{\"id\":\"1\",\"exit_code\":31,\"exit_code_name\":\"INTERNAL_ERROR\","
+            + "\"output\":\"Unexpected error running the request:"
+            + " java.lang.IllegalStateException: Oops\\n\"}");
+  }
+
+  @Test
+  public void testServerKeepsRunningAfterError() throws Exception {
+    ServerCmd cmd = new ServerCmd((args, env, cwd, output) -> {
+      if (args[0].equals("fail")) {
+        throw new StackOverflowError();
+      }
+      return ExitCode.SUCCESS;
+    });
+
+    List<String> responses = serve(cmd, ""
+        + "{\"id\": \"1\", \"args\": [\"fail\"]}\n"
+        + "{\"id\": \"2\", \"args\": [\"info\"]}\n");
+
+    assertThat(responses).hasSize(2);
+    assertThat(responses).contains(
+        "{\"id\":\"1\",\"exit_code\":31,\"exit_code_name\":\"INTERNAL_ERROR\","
+            + "\"output\":\"Unexpected error running the request:"
+            + " java.lang.StackOverflowError\\n\"}");
+    assertThat(responses).contains(
+        "{\"id\":\"2\",\"exit_code\":0,\"exit_code_name\":\"SUCCESS\",\"output\":\"\"}");
+  }
+
+  @Test
+  public void testRequiresToken() throws Exception {
+    ServerCmd cmd = new ServerCmd((args, env, cwd, output) -> ExitCode.SUCCESS);
+
+    List<String> responses = serve(cmd, "secret", ""
+        + "{\"id\": \"1\", \"args\": [\"info\"]}\n"
+        + "{\"id\": \"2\", \"args\": [\"info\"], \"token\": \"wrong\"}\n"
+        + "{\"id\": \"3\", \"args\": [\"info\"], \"token\": \"secret\"}\n");
+
+    assertThat(responses).hasSize(3);
+    assertThat(responses.get(0)).contains("\"id\":\"1\",\"exit_code\":1");
+    assertThat(responses.get(0)).contains("missing or wrong 'token'");
+    assertThat(responses.get(1)).contains("\"id\":\"2\",\"exit_code\":1");
+    assertThat(responses.get(1)).contains("missing or wrong 'token'");
+    assertThat(responses.get(2)).contains("\"id\":\"3\",\"exit_code\":0");
+  }
+
+  @Test
+  public void testTokenFileOnlyReadableByTheUser() throws Exception {
+    Path tokenFile = Files.createTempDirectory("server").resolve("dir/1234.token");
+
+    String token = ServerCmd.createTokenFile(tokenFile);
+
+    assertThat(token).hasLength(64);
+    assertThat(new String(Files.readAllBytes(tokenFile), UTF_8)).isEqualTo(token);
+    assertThat(Files.getPosixFilePermissions(tokenFile)).containsExactly(OWNER_READ, OWNER_WRITE);
+    assertThat(Files.getPosixFilePermissions(tokenFile.getParent()))
+        .containsExactly(OWNER_READ, OWNER_WRITE, OWNER_EXECUTE);
+    assertThat(ServerCmd.createTokenFile(tokenFile)).isNotEqualTo(token);
+  }
+
+  private List<String> serve(ServerCmd cmd, String input) throws Exception {
+    return serve(cmd, /*token=*/ null, input);
+  }
+
+  private List<String> serve(ServerCmd cmd, @Nullable String token, String input)
+      throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    cmd.serve(new ByteArrayInputStream(input.getBytes(UTF_8)), out, executor, token);
+    return Splitter.on('\n').omitEmptyStrings().splitToList(new String(out.toByteArray(), UTF_8));
+  }
+}
@@ -585,6 +585,32 @@ public class TransformWorkTest {
             "prefix_file3.txt", "bbb"));
   }
 
+  @Test
+  public void testTreeStateSeesWrittenFiles()
+      throws IOException, ValidationException, RepoException {
+    FileSystem fileSystem = Jimfs.newFileSystem();
+    Path base = fileSystem.getPath("testTreeStateSeesWrittenFiles");
+    writeFile(base, "folder/file1.txt", "aaa");
+    writeFile(base, "folder/file2.txt", "aaa");
+
+    Files.createDirectories(workdir.resolve("folder"));
+    origin.addChange(0, base, "message", /*matchesGlob=*/true);
+
+    runWorkflow("test", ""
+        + "def test(ctx):\n"
+        + "    ctx.run(core.move('folder/file1.txt', 'moved/file1.txt'))\n"
+        + "    ctx.write_path(ctx.new_path('folder/new.txt'), 'aaa')\n"
+        + "    ctx.write_path(ctx.new_path('folder/file2.txt'), 'aaa aaa')\n"
+        + "    ctx.run(core.replace(before ='aaa', after = 'bbb', paths = glob(['**.txt'])))\n"
+        + "    ctx.run(core.replace(before ='bbb', after = 'ccc', paths = glob(['**.txt'])))");
+
+    assertThat(destination.processed.get(0).getWorkdir())
+        .containsExactlyEntriesIn(ImmutableMap.of(
+            "moved/file1.txt", "ccc",
+            "folder/new.txt", "ccc",
+            "folder/file2.txt", "ccc ccc"));
+  }
+
   @Test
   public void testRunFileOps() throws IOException, ValidationException, RepoException {
     checkPathOperations("folder/file.txt", ""
@@ -23,6 +23,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.copybara.Destination;
+import com.google.copybara.ModuleSet;
 import com.google.copybara.Origin;
 import com.google.copybara.Revision;
 import com.google.copybara.TransformWork;
@@ -47,11 +48,15 @@ import com.google.devtools.build.lib.skylarkinterface.SkylarkValue;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.syntax.SkylarkList;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.annotation.Nullable;
 import org.junit.Before;
 import org.junit.Rule;
@@ -349,6 +354,50 @@ public class SkylarkParserTest {
     parser.evalProgramFails(content, ".*trying to mutate a frozen object.*");
   }
 
+  /** Requests of the 'server' subcommand evaluate the same cached syntax trees, even at once. */
+  @Test
+  public void testCachedFilesCanBeEvaluatedConcurrently() throws Exception {
+    StarlarkFileCache cache = new StarlarkFileCache();
+    SkylarkParser cachingParser =
+        new SkylarkParser(parser.createModuleSet().getStaticModules(), cache);
+    parser.addConfigFile("foo.bara.sky", ""
+        + "def double(values):\n"
+        + "  return [v * 2 for v in values]\n");
+    ConfigFile config = parser.createConfigFile("copy.bara.sky", ""
+        + "load('//foo', 'double')\n"
+        + "def total(values):\n"
+        + "  result = 0\n"
+        + "  for v in double(values):\n"
+        + "    result += v\n"
+        + "  return result\n"
+        + "val = total(range(100)) + len({str(x): x for x in range(10)})\n");
+
+    assertThat(evalVal(cachingParser, config, parser.createModuleSet())).isEqualTo(9910);
+    assertThat(evalVal(cachingParser, config, parser.createModuleSet())).isEqualTo(9910);
+    assertThat(cache.getMisses()).isEqualTo(2);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Object>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        ModuleSet moduleSet = parser.createModuleSet();
+        results.add(executor.submit(() -> evalVal(cachingParser, config, moduleSet)));
+      }
+      for (Future<Object> result : results) {
+        assertThat(result.get()).isEqualTo(9910);
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(cache.getMisses()).isEqualTo(2);
+    assertThat(cache.getHits()).isEqualTo(18);
+  }
+
+  private Object evalVal(SkylarkParser skylarkParser, ConfigFile config, ModuleSet moduleSet)
+      throws Exception {
+    return skylarkParser.executeSkylark(config, moduleSet, console).getGlobals().get("val");
+  }
+
   @SkylarkModule(
       name = "mock_labels_aware_module",
       doc = "LabelsAwareModule for testing purposes",
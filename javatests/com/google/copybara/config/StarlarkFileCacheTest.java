@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.syntax.StarlarkFile;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class StarlarkFileCacheTest {
+
+  @Test
+  public void testReusesFileWithSameContent() {
+    StarlarkFileCache cache = new StarlarkFileCache();
+
+    StarlarkFile first = cache.parse("/copy.bara.sky", "foo = 1".getBytes(UTF_8));
+    StarlarkFile second = cache.parse("/copy.bara.sky", "foo = 1".getBytes(UTF_8));
+
+    assertThat(second).isSameInstanceAs(first);
+    assertThat(cache.getMisses()).isEqualTo(1);
+    assertThat(cache.getHits()).isEqualTo(1);
+  }
+
+  @Test
+  public void testParsesAgainWhenContentChanges() {
+    StarlarkFileCache cache = new StarlarkFileCache();
+
+    StarlarkFile first = cache.parse("/copy.bara.sky", "foo = 1".getBytes(UTF_8));
+    StarlarkFile changed = cache.parse("/copy.bara.sky", "foo = 2".getBytes(UTF_8));
+    StarlarkFile current = cache.parse("/copy.bara.sky", "foo = 2".getBytes(UTF_8));
+
+    assertThat(changed).isNotSameInstanceAs(first);
+    assertThat(current).isSameInstanceAs(changed);
+    assertThat(cache.getMisses()).isEqualTo(2);
+    assertThat(cache.getHits()).isEqualTo(1);
+  }
+
+  @Test
+  public void testFilesAreCachedByPath() {
+    StarlarkFileCache cache = new StarlarkFileCache();
+
+    StarlarkFile first = cache.parse("/one/copy.bara.sky", "foo = 1".getBytes(UTF_8));
+    StarlarkFile second = cache.parse("/two/copy.bara.sky", "foo = 1".getBytes(UTF_8));
+
+    assertThat(second).isNotSameInstanceAs(first);
+    assertThat(cache.getMisses()).isEqualTo(2);
+  }
+}
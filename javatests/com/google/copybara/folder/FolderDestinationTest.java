@@ -25,6 +25,7 @@ import com.google.common.base.StandardSystemProperty;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.copybara.Destination;
+import com.google.copybara.DestinationEffect;
 import com.google.copybara.Revision;
 import com.google.copybara.WriterContext;
 import com.google.copybara.exception.RepoException;
@@ -39,6 +40,7 @@ import java.io.IOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -70,11 +72,12 @@ public class FolderDestinationTest {
     skylark = new SkylarkTestExecutor(options);
   }
 
-  private void write() throws ValidationException, RepoException, IOException {
+  private ImmutableList<DestinationEffect> write()
+      throws ValidationException, RepoException, IOException {
     WriterContext writerContext =
         new WriterContext("FolderDestinationTest", "test", false, new DummyRevision("origin_ref"),
             Glob.ALL_FILES.roots());
-    skylark
+    return skylark
         .<Destination<Revision>>eval("dest", "dest = folder.destination()")
         .newWriter(writerContext)
         .write(
@@ -150,6 +153,55 @@ public class FolderDestinationTest {
         .containsNoMoreFiles();
   }
 
+  @Test
+  public void testIncremental() throws Exception {
+    Path localFolder = Files.createTempDirectory("local_folder");
+    options.folderDestination.localFolder = localFolder.toString();
+    options.folderDestination.incremental = true;
+    excludedPathsForDeletion = ImmutableList.of("excluded.txt");
+    Files.write(localFolder.resolve("excluded.txt"), new byte[]{});
+
+    Files.write(workdir.resolve("changed.txt"), "foo".getBytes(UTF_8));
+    Files.write(workdir.resolve("deleted.txt"), new byte[]{});
+    assertThat(Iterables.getOnlyElement(write()).getSummary())
+        .endsWith("(4 added, 0 modified, 0 deleted, 0 unchanged)");
+
+    FileTime unchangedTime = FileTime.fromMillis(0);
+    Files.setLastModifiedTime(localFolder.resolve("test.txt"), unchangedTime);
+    Files.write(workdir.resolve("changed.txt"), "bar".getBytes(UTF_8));
+    Files.delete(workdir.resolve("deleted.txt"));
+    Files.write(workdir.resolve("dir/added.txt"), "added".getBytes(UTF_8));
+    assertThat(Iterables.getOnlyElement(write()).getSummary())
+        .endsWith("(1 added, 1 modified, 1 deleted, 2 unchanged)");
+
+    assertThatPath(localFolder)
+        .containsFile("changed.txt", "bar")
+        .containsFile("dir/added.txt", "added")
+        .containsFiles("test.txt", "dir/file.txt", "excluded.txt")
+        .containsNoMoreFiles();
+    assertThat(Files.getLastModifiedTime(localFolder.resolve("test.txt")))
+        .isEqualTo(unchangedTime);
+  }
+
+  @Test
+  public void testIncrementalIgnoresLastModifiedTime() throws Exception {
+    Path localFolder = Files.createTempDirectory("local_folder");
+    options.folderDestination.localFolder = localFolder.toString();
+    options.folderDestination.incremental = true;
+
+    Files.write(workdir.resolve("changed.txt"), "foo".getBytes(UTF_8));
+    write();
+
+    FileTime time = FileTime.fromMillis(0);
+    Files.write(workdir.resolve("changed.txt"), "bar".getBytes(UTF_8));
+    Files.setLastModifiedTime(workdir.resolve("changed.txt"), time);
+    Files.setLastModifiedTime(localFolder.resolve("changed.txt"), time);
+    assertThat(Iterables.getOnlyElement(write()).getSummary())
+        .endsWith("(0 added, 1 modified, 0 deleted, 2 unchanged)");
+
+    assertThatPath(localFolder).containsFile("changed.txt", "bar");
+  }
+
   @Test
   public void testDefaultRoot() throws Exception {
     Path defaultRootPath = Files.createTempDirectory("defaultRoot");
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.copybara.testing.git.GitTestUtil.getGitEnv;
+import static com.google.copybara.util.CommandRunner.DEFAULT_TIMEOUT;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.copybara.util.console.testing.TestingConsole;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DestinationLabelIndexTest {
+
+  private static final String LABEL = "GitOrigin-RevId";
+
+  private GitRepository repository;
+  private Path workdir;
+
+  @Before
+  public void setup() throws Exception {
+    workdir = Files.createTempDirectory("workdir");
+    repository = GitRepository
+        .newBareRepo(Files.createTempDirectory("gitdir"), getGitEnv(), /*verbose=*/true,
+            DEFAULT_TIMEOUT)
+        .withWorkTree(workdir);
+    repository.init();
+  }
+
+  @Test
+  public void testIncrementalUpdate() throws Exception {
+    commit("a.txt", "first\n\n" + LABEL + ": aaa\n");
+    commit("b.txt", "no label\n");
+    commit("c.txt", "second\n\n" + LABEL + ": bbb\n" + LABEL + ": ccc\n");
+
+    DestinationLabelIndex index = update();
+    assertThat(labels(index)).containsExactly("ccc", "aaa").inOrder();
+    assertThat(index.getEntries().get(0).getFiles()).containsExactly("c.txt");
+    assertThat(index.getEntries().get(0).getLabelValues()).containsExactly("bbb", "ccc");
+
+    commit("d.txt", "third\n\n" + LABEL + ": ddd\n");
+    // Loads the persisted index and only reads the new commit
+    index = update();
+    assertThat(labels(index)).containsExactly("ddd", "ccc", "aaa").inOrder();
+  }
+
+  @Test
+  public void testRewrittenHistory() throws Exception {
+    commit("a.txt", "first\n\n" + LABEL + ": aaa\n");
+    commit("b.txt", "second\n\n" + LABEL + ": bbb\n");
+    assertThat(labels(update())).containsExactly("bbb", "aaa").inOrder();
+
+    repository.simpleCommand("reset", "--hard", "HEAD~1");
+    commit("c.txt", "other\n\n" + LABEL + ": ccc\n");
+    assertThat(labels(update())).containsExactly("ccc", "aaa").inOrder();
+  }
+
+  @Test
+  public void testIncrementalUpdateAppends() throws Exception {
+    commit("a.txt", "first\n\n" + LABEL + ": aaa\n");
+    update();
+    Path file = Iterables.getOnlyElement(indexFiles());
+    Object fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+    long size = Files.size(file);
+
+    commit("b.txt", "second\n\n" + LABEL + ": bbb\n");
+    update();
+    commit("c.txt", "third\n\n" + LABEL + ": ccc\n");
+    assertThat(labels(update())).containsExactly("ccc", "bbb", "aaa").inOrder();
+
+    assertThat(Files.readAttributes(file, BasicFileAttributes.class).fileKey())
+        .isEqualTo(fileKey);
+    assertThat(Files.size(file)).isGreaterThan(size);
+  }
+
+  @Test
+  public void testCorruptedBlockIsIgnored() throws Exception {
+    commit("a.txt", "first\n\n" + LABEL + ": aaa\n");
+    update();
+    commit("b.txt", "second\n\n" + LABEL + ": bbb\n");
+    update();
+    Path file = Iterables.getOnlyElement(indexFiles());
+    byte[] content = Files.readAllBytes(file);
+    content[content.length - 1]++;
+    Files.write(file, content);
+
+    // The corrupted block is ignored and the index is rebuilt from the last valid head.
+    commit("c.txt", "third\n\n" + LABEL + ": ccc\n");
+    assertThat(labels(update())).containsExactly("ccc", "bbb", "aaa").inOrder();
+    assertThat(labels(update())).containsExactly("ccc", "bbb", "aaa").inOrder();
+  }
+
+  @Test
+  public void testIndexPerRef() throws Exception {
+    commit("a.txt", "first\n\n" + LABEL + ": aaa\n");
+    repository.simpleCommand("branch", "other");
+    commit("b.txt", "second\n\n" + LABEL + ": bbb\n");
+
+    assertThat(labels(update("master", "HEAD"))).containsExactly("bbb", "aaa").inOrder();
+    assertThat(labels(update("other", "other"))).containsExactly("aaa");
+    assertThat(indexFiles()).hasSize(2);
+    // Each ref finds its own head indexed
+    assertThat(labels(update("master", "HEAD"))).containsExactly("bbb", "aaa").inOrder();
+  }
+
+  @Test
+  public void testStopsAtFirstMatch() throws Exception {
+    commit("a.txt", "first\n\n" + LABEL + ": aaa\n");
+    commit("b.txt", "second\n\n" + LABEL + ": bbb\n");
+    commit("c.txt", "third\n\n" + LABEL + ": ccc\n");
+
+    DestinationLabelIndex index = load(/*firstParent=*/ false);
+    assertThat(find(index, "HEAD", e -> true).getSha1())
+        .isEqualTo(repository.resolveReference("HEAD").getSha1());
+    // Only the commits up to the first match are indexed
+    assertThat(labels(index)).containsExactly("ccc");
+
+    // The next lookup without a match in the index continues from there
+    index = load(/*firstParent=*/ false);
+    assertThat(labels(index)).containsExactly("ccc");
+    DestinationLabelIndex.Entry entry = find(index, "HEAD", e -> e.getFiles().contains("a.txt"));
+    assertThat(entry.getLabelValues()).containsExactly("aaa");
+    assertThat(labels(index)).containsExactly("ccc", "bbb", "aaa").inOrder();
+    assertThat(labels(load(/*firstParent=*/ false)))
+        .containsExactly("ccc", "bbb", "aaa").inOrder();
+
+    assertThat(find(load(/*firstParent=*/ false), "HEAD", e -> false)).isNull();
+  }
+
+  @Test
+  public void testFirstParentRebuildsWhenHeadIsNotInTheChain() throws Exception {
+    commit("a.txt", "first\n\n" + LABEL + ": aaa\n");
+    commit("b.txt", "second\n\n" + LABEL + ": bbb\n");
+    repository.simpleCommand("checkout", "-b", "feature", "HEAD~1");
+    commit("f.txt", "feature\n\n" + LABEL + ": fff\n");
+    assertThat(labels(update("master", "feature", /*firstParent=*/ true)))
+        .containsExactly("fff", "aaa").inOrder();
+
+    repository.simpleCommand("checkout", "-");
+    repository.simpleCommand("merge", "--no-ff", "feature", "-m",
+        "merge\n\n" + LABEL + ": mmm\n");
+
+    // The indexed head is an ancestor, but only through the second parent of the merge
+    assertThat(labels(update("master", "HEAD", /*firstParent=*/ true)))
+        .containsExactly("mmm", "bbb", "aaa").inOrder();
+  }
+
+  private DestinationLabelIndex update() throws Exception {
+    return update("master", "HEAD");
+  }
+
+  private DestinationLabelIndex update(String ref, String head) throws Exception {
+    return update(ref, head, /*firstParent=*/ false);
+  }
+
+  /** Indexes the whole history of {@code head}. */
+  private DestinationLabelIndex update(String ref, String head, boolean firstParent)
+      throws Exception {
+    DestinationLabelIndex index = DestinationLabelIndex.load(repository, ref, LABEL, firstParent);
+    assertThat(find(index, head, firstParent, e -> false)).isNull();
+    return index;
+  }
+
+  private DestinationLabelIndex load(boolean firstParent) {
+    return DestinationLabelIndex.load(repository, "master", LABEL, firstParent);
+  }
+
+  private DestinationLabelIndex.Entry find(DestinationLabelIndex index, String head,
+      Predicate<DestinationLabelIndex.Entry> matches) throws Exception {
+    return find(index, head, /*firstParent=*/ false, matches);
+  }
+
+  private DestinationLabelIndex.Entry find(DestinationLabelIndex index, String head,
+      boolean firstParent, Predicate<DestinationLabelIndex.Entry> matches) throws Exception {
+    ChangeReader.Builder reader =
+        ChangeReader.Builder.forDestination(repository, new TestingConsole())
+            .setFirstParent(firstParent)
+            .grep("^" + LABEL + ": ");
+    return index.find(repository.resolveReference(head), reader, LABEL, /*batchSize=*/ 2,
+        matches);
+  }
+
+  private List<Path> indexFiles() throws IOException {
+    try (Stream<Path> files = Files.list(repository.getGitDir().resolve("copybara_label_index"))) {
+      return files.collect(Collectors.toList());
+    }
+  }
+
+  private static List<String> labels(DestinationLabelIndex index) throws Exception {
+    return Lists.transform(index.getEntries(), e -> e.getLabelValues().get(
+        e.getLabelValues().size() - 1));
+  }
+
+  private void commit(String file, String message) throws Exception {
+    Files.write(workdir.resolve(file), file.getBytes(UTF_8));
+    repository.add().files(file).run();
+    repository.simpleCommand("commit", file, "-m", message);
+  }
+}
@@ -32,6 +32,7 @@ import static com.google.copybara.testing.git.GitTestUtil.mockResponseAndValidat
 import static com.google.copybara.util.CommandRunner.DEFAULT_TIMEOUT;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.times;
@@ -654,6 +655,56 @@ public class GitHubPrOriginTest {
   }
 
 
+  @Test
+  public void testGraphQlWithDeletedAccounts() throws Exception {
+    GitRepository remote = gitUtil.mockRemoteRepo("github.com/google/example");
+    addFiles(remote, "first change", ImmutableMap.of("123.txt", ""));
+    String sha1 = remote.parseRef("HEAD");
+    remote.simpleCommand("update-ref", GitHubUtil.asHeadRef(123), sha1);
+    options.githubPrOrigin.useGraphQl = true;
+
+    // Authors of deleted accounts are null
+    gitUtil.mockApi(
+        eq("POST"),
+        eq("https://api.github.com/graphql"),
+        mockResponseAndValidateRequest(
+            "{'data': {'repository': {'pr0': {\n"
+                + "  'number': 123, 'state': 'OPEN', 'title': 'test summary',\n"
+                + "  'body': 'test summary', 'url': 'http://some/pr/url/123',\n"
+                + "  'author': null,\n"
+                + "  'assignees': {'nodes': []},\n"
+                + "  'headRefName': 'example-branch', 'headRefOid': '" + sha1 + "',\n"
+                + "  'headRepositoryOwner': {'login': 'googletestuser'},\n"
+                + "  'baseRefName': 'master', 'baseRefOid': '" + sha1 + "',\n"
+                + "  'baseRepository': {'owner': {'login': 'google'}},\n"
+                + "  'reviewRequests': {'nodes': []},\n"
+                + "  'labels': {'pageInfo': {'hasNextPage': false},\n"
+                + "      'nodes': [{'name': 'foo: yes'}]},\n"
+                + "  'reviews': {'pageInfo': {'hasNextPage': false}, 'nodes': [\n"
+                + "    {'databaseId': 1, 'body': '', 'commit': {'oid': '" + sha1 + "'},\n"
+                + "     'author': {'__typename': 'User', 'login': 'reviewer', 'databaseId': 2},\n"
+                + "     'state': 'APPROVED', 'authorAssociation': 'MEMBER'},\n"
+                + "    {'databaseId': 2, 'body': '', 'commit': null, 'author': null,\n"
+                + "     'state': 'COMMENTED', 'authorAssociation': 'NONE'}]}\n"
+                + "}}}}",
+            request -> request.contains("pr0: pullRequest(number: 123)")));
+
+    GitRevision rev = githubPrOrigin(
+        "url = 'https://github.com/google/example'",
+        "required_labels = ['foo: yes']",
+        "review_state = 'ANY'")
+        .resolve("123");
+
+    assertThat(rev.getSha1()).isEqualTo(sha1);
+    assertThat(rev.associatedLabels().get(GITHUB_PR_USER)).containsExactly("ghost");
+    assertThat(rev.associatedLabels().get(GitHubPROrigin.GITHUB_PR_REVIEWER_APPROVER))
+        .containsExactly("reviewer");
+    assertThat(rev.associatedLabels().get(GitHubPROrigin.GITHUB_PR_REVIEWER_OTHER))
+        .containsExactly("ghost");
+    // The pull request, labels and reviews are read from the single GraphQL response
+    verify(gitUtil.httpTransport(), times(1)).buildRequest(anyString(), anyString());
+  }
+
   @Test
   public void testHttprUrl() throws Exception {
     GitHubPROrigin val =
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.copybara.testing.git.GitTestUtil.getGitEnv;
+import static com.google.copybara.util.CommandRunner.DEFAULT_TIMEOUT;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.copybara.git.GitRepository.GitLogEntry;
+import com.google.copybara.util.console.testing.TestingConsole;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GitLogCacheTest {
+
+  private GitRepository repository;
+  private Path workdir;
+  private Path cacheDir;
+  private GitLogCache cache;
+
+  @Before
+  public void setup() throws Exception {
+    workdir = Files.createTempDirectory("workdir");
+    repository = GitRepository
+        .newBareRepo(Files.createTempDirectory("gitdir"), getGitEnv(), /*verbose=*/true,
+            DEFAULT_TIMEOUT)
+        .withWorkTree(workdir);
+    repository.init();
+    cacheDir = Files.createTempDirectory("cache");
+    cache = new GitLogCache(cacheDir);
+  }
+
+  @Test
+  public void testPutAndGet() throws Exception {
+    commit("foo.txt", "first");
+    commit("bar.txt", "second\n\nWith a longer description\nand some=label\n");
+    GitLogEntry entry = Iterables.getOnlyElement(
+        repository.log("HEAD").withLimit(1).includeFiles(true).run());
+
+    assertThat(cache.get(repository, entry.getCommit().getSha1())).isNull();
+    cache.put(entry);
+    GitLogEntry cached = cache.get(repository, entry.getCommit().getSha1());
+
+    assertThat(cached).isNotNull();
+    assertThat(cached.getCommit()).isEqualTo(entry.getCommit());
+    assertThat(cached.getParents()).isEqualTo(entry.getParents());
+    assertThat(cached.getTree()).isEqualTo(entry.getTree());
+    assertThat(cached.getAuthor()).isEqualTo(entry.getAuthor());
+    assertThat(cached.getCommitter()).isEqualTo(entry.getCommitter());
+    assertThat(cached.getAuthorDate()).isEqualTo(entry.getAuthorDate());
+    assertThat(cached.getCommitDate()).isEqualTo(entry.getCommitDate());
+    assertThat(cached.getBody()).isEqualTo(entry.getBody());
+    assertThat(cached.getFiles()).containsExactly("bar.txt");
+  }
+
+  @Test
+  public void testCorruptedEntryIsAMiss() throws Exception {
+    commit("foo.txt", "first");
+    GitLogEntry entry = Iterables.getOnlyElement(
+        repository.log("HEAD").withLimit(1).includeFiles(true).run());
+    cache.put(entry);
+    String sha1 = entry.getCommit().getSha1();
+    Path segment = Iterables.getOnlyElement(files(".pack"));
+    byte[] content = Files.readAllBytes(segment);
+    Arrays.fill(content, 4, content.length, (byte) 0);
+    Files.write(segment, content);
+
+    assertThat(new GitLogCache(cacheDir).get(repository, sha1)).isNull();
+  }
+
+  @Test
+  public void testEntriesAppendedToASegment() throws Exception {
+    commit("foo.txt", "first");
+    commit("bar.txt", "second");
+    commit("baz.txt", "third");
+    ImmutableList<GitLogEntry> entries =
+        repository.log("HEAD").includeFiles(true).run();
+    cache.putAll(entries.subList(0, 2));
+    cache.put(entries.get(2));
+
+    assertThat(files(".pack")).hasSize(1);
+    assertThat(files(".idx")).hasSize(1);
+    GitLogCache other = new GitLogCache(cacheDir);
+    for (GitLogEntry entry : entries) {
+      GitLogEntry cached = other.get(repository, entry.getCommit().getSha1());
+      assertThat(cached).isNotNull();
+      assertThat(cached.getBody()).isEqualTo(entry.getBody());
+      assertThat(cached.getFiles()).isEqualTo(entry.getFiles());
+    }
+  }
+
+  @Test
+  public void testOldSegmentsAreCompacted() throws Exception {
+    commit("foo.txt", "first");
+    GitLogEntry entry = Iterables.getOnlyElement(
+        repository.log("HEAD").withLimit(1).includeFiles(true).run());
+    List<String> sha1s = new ArrayList<>();
+    for (int i = 0; i <= GitLogCache.MAX_SEGMENTS; i++) {
+      String sha1 = Strings.padStart(Integer.toHexString(i), 40, '0');
+      sha1s.add(sha1);
+      // A new instance writes to its own segment
+      new GitLogCache(cacheDir).put(new GitLogEntry(new GitRevision(repository, sha1),
+          entry.getParents(), entry.getTree(), entry.getAuthor(), entry.getCommitter(),
+          entry.getAuthorDate(), entry.getCommitDate(), "message " + i, entry.getFiles()));
+    }
+    assertThat(files(".pack")).hasSize(GitLogCache.MAX_SEGMENTS + 1);
+    FileTime old = FileTime.from(
+        Instant.now().minus(GitLogCache.COMPACTION_MIN_AGE).minus(Duration.ofMinutes(1)));
+    for (Path file : files(".idx")) {
+      Files.setLastModifiedTime(file, old);
+    }
+
+    GitLogCache compacting = new GitLogCache(cacheDir);
+    assertThat(compacting.get(repository, sha1s.get(0)).getBody()).isEqualTo("message 0");
+    assertThat(files(".pack")).hasSize(1);
+    GitLogCache other = new GitLogCache(cacheDir);
+    for (int i = 0; i < sha1s.size(); i++) {
+      assertThat(other.get(repository, sha1s.get(i)).getBody()).isEqualTo("message " + i);
+    }
+  }
+
+  @Test
+  public void testChangeReaderUsesCache() throws Exception {
+    commit("foo.txt", "first");
+    commit("bar.txt", "second");
+    ChangeReader reader = ChangeReader.Builder.forDestination(repository, new TestingConsole())
+        .setLogCache(cache)
+        .build();
+
+    ImmutableList<String> messages = ImmutableList.copyOf(
+        Iterables.transform(reader.run("HEAD"), c -> c.getMessage()));
+    assertThat(messages).containsExactly("first\n", "second\n").inOrder();
+
+    // Modify the cached entry to check that we don't read it from git again.
+    GitRevision head = repository.resolveReference("HEAD");
+    GitLogEntry entry = cache.get(repository, head.getSha1());
+    cache.put(new GitLogEntry(entry.getCommit(), entry.getParents(), entry.getTree(),
+        entry.getAuthor(), entry.getCommitter(), entry.getAuthorDate(), entry.getCommitDate(),
+        "from cache\n", entry.getFiles()));
+
+    messages = ImmutableList.copyOf(
+        Iterables.transform(reader.run("HEAD"), c -> c.getMessage()));
+    assertThat(messages).containsExactly("first\n", "from cache\n").inOrder();
+  }
+
+  private List<Path> files(String suffix) throws IOException {
+    try (Stream<Path> files = Files.list(cacheDir)) {
+      return files.filter(p -> p.toString().endsWith(suffix)).collect(Collectors.toList());
+    }
+  }
+
+  private void commit(String file, String message) throws Exception {
+    Files.write(workdir.resolve(file), file.getBytes(UTF_8));
+    repository.add().files(file).run();
+    repository.simpleCommand("commit", file, "-m", message);
+  }
+}
@@ -24,7 +24,10 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.testing.FakeTicker;
+import com.google.copybara.DestinationEffect;
+import com.google.copybara.DestinationEffect.Type;
 import com.google.copybara.config.Migration;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
@@ -32,6 +35,7 @@ import com.google.copybara.git.GitCredential.UserPassword;
 import com.google.copybara.profiler.Profiler;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
+import com.google.copybara.testing.TestingEventMonitor;
 import com.google.copybara.testing.git.GitTestUtil;
 import com.google.copybara.testing.profiler.RecordingListener;
 import com.google.copybara.testing.profiler.RecordingListener.EventType;
@@ -130,6 +134,101 @@ public class GitMirrorTest {
     assertThat(dest).isEqualTo(destOld);
   }
 
+  @Test
+  public void testIncrementalMirror() throws Exception {
+    options.gitMirrorOptions.incremental = true;
+    TestingEventMonitor eventMonitor = new TestingEventMonitor();
+    options.general.withEventMonitor(eventMonitor);
+
+    Migration mirror = createMirrorObj();
+    mirror.run(workdir, ImmutableList.of());
+    String orig = originRepo.git(originRepo.getGitDir(), "show-ref").getStdout();
+    String dest = destRepo.git(destRepo.getGitDir(), "show-ref").getStdout();
+    assertThat(dest).isEqualTo(orig);
+    DestinationEffect effect = lastEffect(eventMonitor);
+    assertThat(effect.getType()).isEqualTo(Type.UPDATED);
+    assertThat(effect.getSummary()).contains("refs/heads/master");
+    assertThat(effect.getSummary()).contains("refs/heads/other");
+
+    // Nothing changed: only the references are listed
+    RecordingListener recordingCallback = new RecordingListener();
+    Profiler profiler = new Profiler(new FakeTicker());
+    profiler.init(ImmutableList.of(recordingCallback));
+    options.general.withProfiler(profiler);
+    mirror = createMirrorObj();
+    mirror.run(workdir, ImmutableList.of());
+    recordingCallback
+        .assertMatchesNext(EventType.START, "//copybara")
+        .assertMatchesNext(EventType.START, "//copybara/run/default")
+        .assertMatchesNext(EventType.START, "//copybara/run/default/ls_remote")
+        .assertMatchesNext(EventType.END, "//copybara/run/default/ls_remote")
+        .assertMatchesNext(EventType.END, "//copybara/run/default");
+    effect = lastEffect(eventMonitor);
+    assertThat(effect.getType()).isEqualTo(Type.NOOP);
+    assertThat(effect.getSummary()).contains("already up to date");
+
+    Files.write(originRepo.getWorkTree().resolve("test.txt"), "updated content".getBytes());
+    originRepo.add().files("test.txt").run();
+    originRepo.simpleCommand("commit", "-m", "second commit");
+
+    mirror.run(workdir, ImmutableList.of());
+    orig = originRepo.git(originRepo.getGitDir(), "show-ref").getStdout();
+    dest = destRepo.git(destRepo.getGitDir(), "show-ref").getStdout();
+    assertThat(dest).isEqualTo(orig);
+    effect = lastEffect(eventMonitor);
+    assertThat(effect.getType()).isEqualTo(Type.UPDATED);
+    assertThat(effect.getSummary()).contains("created [], updated {refs/heads/master=");
+    assertThat(effect.getSummary()).doesNotContain("refs/heads/other");
+  }
+
+  @Test
+  public void testIncrementalMirrorPrune() throws Exception {
+    options.gitMirrorOptions.incremental = true;
+    TestingEventMonitor eventMonitor = new TestingEventMonitor();
+    options.general.withEventMonitor(eventMonitor);
+
+    String cfg = ""
+        + "git.mirror("
+        + "    name = 'default',"
+        + "    origin = 'file://" + originRepo.getGitDir().toAbsolutePath() + "',"
+        + "    destination = 'file://" + destRepo.getGitDir().toAbsolutePath() + "',"
+        + "    prune = True,"
+        + ")\n"
+        + "";
+
+    Migration migration = loadMigration(cfg, "default");
+    migration.run(workdir, ImmutableList.of());
+    originRepo.simpleCommand("branch", "-D", "other");
+    migration.run(workdir, ImmutableList.of());
+
+    checkRefDoesntExist("refs/heads/other");
+    assertThat(lastEffect(eventMonitor).getSummary())
+        .contains("created [], updated {}, deleted [refs/heads/other]");
+  }
+
+  @Test
+  public void testIncrementalMirrorManyReferences() throws Exception {
+    options.gitMirrorOptions.incremental = true;
+    TestingEventMonitor eventMonitor = new TestingEventMonitor();
+    options.general.withEventMonitor(eventMonitor);
+    for (int i = 0; i < 101; i++) {
+      originRepo.simpleCommand("branch", "many" + i);
+    }
+
+    createMirrorObj().run(workdir, ImmutableList.of());
+
+    String orig = originRepo.git(originRepo.getGitDir(), "show-ref").getStdout();
+    String dest = destRepo.git(destRepo.getGitDir(), "show-ref").getStdout();
+    assertThat(dest).isEqualTo(orig);
+    // All the references are mirrored, so the changes are not known
+    assertThat(lastEffect(eventMonitor).getSummary()).endsWith("mirrored successfully");
+  }
+
+  private static DestinationEffect lastEffect(TestingEventMonitor eventMonitor) {
+    return Iterables.getOnlyElement(Iterables.getLast(eventMonitor.changeMigrationFinishedEvents)
+        .getDestinationEffects());
+  }
+
   private Migration createMirrorObj() throws IOException, ValidationException {
     return loadMigration(String.format(""
             + "git.mirror("
@@ -699,6 +699,22 @@ public class GitOriginTest {
     assertThat(changes).isEqualTo(ImmutableList.of("three\n"));
   }
 
+  @Test
+  public void testVisitTerminatesEarly() throws Exception {
+    options.git.visitChangePageSize = 1;
+    createBranchMerge("John Name <john@name.com>");
+    List<Change<?>> visited = new ArrayList<>();
+    origin().newReader(originFiles, authoring).visitChanges(getLastCommitRef(),
+        input -> {
+          visited.add(input);
+          return visited.size() == 2 ? VisitResult.TERMINATE : VisitResult.CONTINUE;
+        });
+
+    assertThat(Lists.transform(visited, Change::firstLineMessage))
+        .containsExactly("Merge branch 'feature'", "master2")
+        .inOrder();
+  }
+
   @Test
   public void testFirstParent() throws Exception {
     options.git.visitChangePageSize = 3;
@@ -827,6 +843,38 @@ public class GitOriginTest {
     assertThat(changes.get(1).getMessage()).isEqualTo("Merge branch 'feature'\n");
   }
 
+  @Test
+  public void testIncludeBranchCommitLogSeveralMerges() throws Exception {
+    String author = "John Name <john@name.com>";
+    git("branch", "feature1");
+    git("branch", "feature2");
+    git("checkout", "feature1");
+    singleFileCommit(author, "feature1 change", "feature1.txt", "");
+    git("checkout", "master");
+    singleFileCommit(author, "master1", "master1.txt", "");
+    git("merge", "--no-ff", "feature1");
+    git("checkout", "feature2");
+    singleFileCommit(author, "feature2 change", "feature2.txt", "");
+    git("checkout", "master");
+    singleFileCommit(author, "master2", "master2.txt", "");
+    git("merge", "--no-ff", "feature2");
+
+    moreOriginArgs = "include_branch_commit_logs = True";
+    origin = origin();
+    ImmutableList<Change<GitRevision>> changes = newReader()
+        .changes(origin.resolve(firstCommitRef), origin.resolve("HEAD")).getChanges();
+
+    assertThat(changes).hasSize(4);
+    assertThat(changes.get(0).getMessage()).doesNotContain(ChangeReader.BRANCH_COMMIT_LOG_HEADING);
+    assertThat(changes.get(1).getMessage()).contains(ChangeReader.BRANCH_COMMIT_LOG_HEADING);
+    assertThat(changes.get(1).getMessage()).contains("feature1 change");
+    assertThat(changes.get(1).getMessage()).doesNotContain("master1");
+    assertThat(changes.get(3).getMessage()).contains("feature2 change");
+    assertThat(changes.get(3).getMessage()).doesNotContain("feature1 change");
+    assertThat(changes.get(3).getMessage()).doesNotContain("master1");
+    assertThat(changes.get(3).getMessage()).doesNotContain("master2");
+  }
+
   @Test
   public void testChangesMergeNoop() throws Exception {
     ImmutableList<? extends Change<?>> includedChanges = checkChangesMergeNoop(false);
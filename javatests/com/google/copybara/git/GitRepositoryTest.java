@@ -46,6 +46,7 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
@@ -55,6 +56,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import org.junit.Before;
 import org.junit.Test;
@@ -511,6 +514,119 @@ public class GitRepositoryTest {
     assertThat(result.getInserted()).isEmpty();
   }
 
+  @Test
+  public void testFetchUpdatedRefsWithoutPrune() throws Exception {
+    GitRepository dest = GitRepository.newBareRepo(Files.createTempDirectory("destDir"),
+        getGitEnv(), /*verbose=*/true, DEFAULT_TIMEOUT);
+    dest.init();
+
+    Files.write(workdir.resolve("foo.txt"), new byte[]{});
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message");
+    repository.simpleCommand("branch", "unchanged");
+    repository.simpleCommand("branch", "other");
+    String first = repository.parseRef("HEAD");
+
+    String fetchUrl = "file://" + repository.getGitDir();
+    dest.fetch(fetchUrl, /*prune=*/false, /*force=*/true,
+        ImmutableList.of("refs/heads/*:refs/remotes/origin/*"));
+
+    Files.write(workdir.resolve("foo.txt"), new byte[]{42});
+    repository.simpleCommand("commit", "foo.txt", "-m", "message2");
+    String second = repository.parseRef("HEAD");
+    repository.simpleCommand("checkout", "-q", "other");
+    Files.write(workdir.resolve("foo.txt"), new byte[]{43});
+    repository.simpleCommand("commit", "foo.txt", "-m", "message3");
+    String third = repository.parseRef("HEAD");
+    repository.simpleCommand("branch", "new");
+
+    FetchResult result = dest.fetch(fetchUrl, /*prune=*/false, /*force=*/true,
+        ImmutableList.of("refs/heads/*:refs/remotes/origin/*"));
+
+    assertThat(result.getDeleted()).isEmpty();
+    assertThat(result.getInserted().keySet()).containsExactly("refs/remotes/origin/new");
+    assertThat(result.getInserted().get("refs/remotes/origin/new").getSha1()).isEqualTo(third);
+    assertThat(result.getUpdated().keySet()).containsExactly(
+        "refs/remotes/origin/master", "refs/remotes/origin/other");
+    assertThat(result.getUpdated().get("refs/remotes/origin/master").getBefore().getSha1())
+        .isEqualTo(first);
+    assertThat(result.getUpdated().get("refs/remotes/origin/master").getAfter().getSha1())
+        .isEqualTo(second);
+    assertThat(result.getUpdated().get("refs/remotes/origin/other").getBefore().getSha1())
+        .isEqualTo(first);
+    assertThat(result.getUpdated().get("refs/remotes/origin/other").getAfter().getSha1())
+        .isEqualTo(third);
+  }
+
+  @Test
+  public void testFetchWithoutResultPrunes() throws Exception {
+    List<String> commands = new ArrayList<>();
+    GitRepository dest = new GitRepository(Files.createTempDirectory("destDir"), /*workTree=*/null,
+        true, getGitEnv(), DEFAULT_TIMEOUT) {
+
+      @Override
+      public CommandOutput simpleCommand(String... argv) throws RepoException {
+        commands.add(argv[0]);
+        return super.simpleCommand(argv);
+      }
+    }.init();
+
+    Files.write(workdir.resolve("foo.txt"), new byte[]{});
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message");
+    repository.simpleCommand("branch", "deleted");
+    repository.simpleCommand("tag", "v1");
+
+    String fetchUrl = "file://" + repository.getGitDir();
+    dest.fetchWithoutResult(fetchUrl, /*prune=*/true, /*force=*/true,
+        ImmutableList.of("refs/*:refs/*"));
+    assertThat(dest.showRef().keySet())
+        .containsExactly("refs/heads/master", "refs/heads/deleted", "refs/tags/v1");
+
+    repository.simpleCommand("branch", "-D", "deleted");
+    repository.simpleCommand("tag", "-d", "v1");
+    commands.clear();
+    dest.fetchWithoutResult(fetchUrl, /*prune=*/true, /*force=*/true,
+        ImmutableList.of("refs/*:refs/*"));
+
+    assertThat(dest.showRef().keySet()).containsExactly("refs/heads/master");
+    // The references are only listed by the showRef() above, not to compute a FetchResult.
+    assertThat(commands).doesNotContain("for-each-ref");
+  }
+
+  @Test
+  public void testFetchPruneOnlyReportsRefspecDestinations() throws Exception {
+    GitRepository dest = GitRepository.newBareRepo(Files.createTempDirectory("destDir"),
+        getGitEnv(), /*verbose=*/true, DEFAULT_TIMEOUT);
+    dest.init();
+
+    Files.write(workdir.resolve("foo.txt"), new byte[]{});
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message");
+    repository.simpleCommand("branch", "deleted");
+    repository.simpleCommand("tag", "v1");
+
+    String fetchUrl = "file://" + repository.getGitDir();
+    FetchResult result = dest.fetch(fetchUrl, /*prune=*/true, /*force=*/true,
+        ImmutableList.of("refs/heads/*:refs/remotes/origin/*"));
+    // Auto-followed tags are not written by the refspec
+    assertThat(result.getInserted().keySet())
+        .containsExactly("refs/remotes/origin/master", "refs/remotes/origin/deleted");
+    // Same short name as the remote branch, but not written by the refspec
+    dest.simpleCommand("update-ref", "refs/heads/origin/deleted", repository.parseRef("HEAD"));
+
+    repository.simpleCommand("branch", "-D", "deleted");
+    result = dest.fetch(fetchUrl, /*prune=*/true, /*force=*/true,
+        ImmutableList.of("refs/heads/*:refs/remotes/origin/*"));
+
+    assertThat(result.getDeleted().keySet()).containsExactly("refs/remotes/origin/deleted");
+    assertThat(result.getUpdated()).isEmpty();
+    assertThat(result.getInserted()).isEmpty();
+    assertThat(dest.showRef().keySet()).containsAtLeast(
+        "refs/remotes/origin/master", "refs/heads/origin/deleted");
+    assertThat(dest.showRef()).doesNotContainKey("refs/remotes/origin/deleted");
+  }
+
   @Test
   public void testFetchNonHeadSHA1() throws Exception {
     List<Iterable<String>> requestedFetches = new ArrayList<>();
@@ -519,10 +635,11 @@ public class GitRepositoryTest {
         true, getGitEnv(), DEFAULT_TIMEOUT) {
 
       @Override
-      public FetchResult fetch(String url, boolean prune, boolean force, Iterable<String> refspecs)
+      protected FetchResult fetch(String url, boolean prune, boolean force,
+          Iterable<String> refspecs, boolean computeResult)
           throws RepoException, ValidationException {
         requestedFetches.add(refspecs);
-        return super.fetch(url, prune, force, refspecs);
+        return super.fetch(url, prune, force, refspecs, computeResult);
       }
     }.init();
 
@@ -546,6 +663,104 @@ public class GitRepositoryTest {
             + "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaa")));
   }
 
+  @Test
+  public void testParseRefSeesNewReferences() throws Exception {
+    Files.write(workdir.resolve("foo.txt"), "aaa".getBytes(UTF_8));
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message 1");
+    String first = repository.parseRef("HEAD");
+    assertThat(repository.parseRef(first.substring(0, 10))).isEqualTo(first);
+
+    // Changes done after the first lookup are visible to the following ones.
+    repository.simpleCommand("checkout", "-b", "other");
+    Files.write(workdir.resolve("foo.txt"), "bbb".getBytes(UTF_8));
+    repository.simpleCommand("commit", "foo.txt", "-m", "message 2");
+    String second = repository.parseRef("other");
+    assertThat(second).isNotEqualTo(first);
+    assertThat(repository.parseRef("HEAD")).isEqualTo(second);
+    assertThat(repository.parseRef("other~1")).isEqualTo(first);
+
+    repository.simpleCommand("tag", "-a", "-m", "annotated", "some_tag", first);
+    assertThat(repository.parseRef("some_tag")).isEqualTo(first);
+    assertThat(repository.resolveReference(first).getSha1()).isEqualTo(first);
+
+    try {
+      repository.parseRef("does_not_exist");
+      fail();
+    } catch (CannotResolveRevisionException expected) {
+      assertThat(expected).hasMessageThat().contains("Cannot find reference 'does_not_exist'");
+    }
+    // Not a single object name, resolved with rev-list
+    try {
+      repository.parseRef("does not exist");
+      fail();
+    } catch (CannotResolveRevisionException expected) {
+      assertThat(expected).hasMessageThat().contains("Cannot find reference 'does not exist'");
+    }
+  }
+
+  @Test
+  public void testBatchCheckProcessSharedByGitDir() throws Exception {
+    Files.write(workdir.resolve("foo.txt"), "aaa".getBytes(UTF_8));
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message 1");
+    CatFileBatchCheck.closeIdle(Duration.ZERO);
+    assertThat(CatFileBatchCheck.runningProcesses()).isEqualTo(0);
+
+    String head = repository.parseRef("HEAD");
+    GitRepository other = repository.withWorkTree(Files.createTempDirectory("other"));
+    assertThat(other.parseRef("HEAD")).isEqualTo(head);
+    assertThat(CatFileBatchCheck.runningProcesses()).isEqualTo(1);
+
+    repository.close();
+    assertThat(CatFileBatchCheck.runningProcesses()).isEqualTo(0);
+    // Closed repositories can still be used
+    assertThat(other.parseRef("HEAD")).isEqualTo(head);
+    assertThat(CatFileBatchCheck.runningProcesses()).isEqualTo(1);
+
+    CatFileBatchCheck.closeIdle(CatFileBatchCheck.IDLE_TIMEOUT);
+    assertThat(CatFileBatchCheck.runningProcesses()).isEqualTo(1);
+    CatFileBatchCheck.closeIdle(Duration.ZERO);
+    assertThat(CatFileBatchCheck.runningProcesses()).isEqualTo(0);
+  }
+
+  @Test
+  public void testFailedBatchCheckProcessIsReplacedWhenIdle() throws Exception {
+    Files.write(workdir.resolve("foo.txt"), "aaa".getBytes(UTF_8));
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message 1");
+    Path gitDir = Files.createTempDirectory("batch_check");
+    AtomicBoolean fail = new AtomicBoolean(true);
+    Callable<Process> processFactory = () -> {
+      if (fail.get()) {
+        throw new IOException("Cannot start");
+      }
+      return new ProcessBuilder(
+          "git", "--git-dir=" + repository.getGitDir(), "cat-file", "--batch-check").start();
+    };
+
+    checkFails(gitDir, processFactory);
+    Thread.sleep(100);
+    fail.set(false);
+    // The previous failure is sticky until the process is replaced
+    checkFails(gitDir, processFactory);
+    // The failed requests don't count as uses
+    CatFileBatchCheck.closeIdle(Duration.ofMillis(100));
+
+    assertThat(CatFileBatchCheck.check(gitDir, processFactory, "HEAD").getSha1())
+        .isEqualTo(repository.parseRef("HEAD"));
+    CatFileBatchCheck.close(gitDir);
+  }
+
+  private static void checkFails(Path gitDir, Callable<Process> processFactory) {
+    try {
+      CatFileBatchCheck.check(gitDir, processFactory, "HEAD");
+      fail();
+    } catch (IOException expected) {
+      // Expected
+    }
+  }
+
   @Test
   public void testFetchInvalidGitRepo() throws Exception {
     GitRepository dest = GitRepository.newBareRepo(Files.createTempDirectory("destDir"),
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git.github.api;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_EXECUTE;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_READ;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_WRITE;
+
+import com.google.common.collect.ImmutableListMultimap;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GitHubApiResponseCacheTest {
+
+  private static final Instant NOW = Instant.ofEpochSecond(1_500_000_000);
+
+  private Path dir;
+
+  @Before
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("cache");
+  }
+
+  @Test
+  public void testKeyDependsOnTheToken() {
+    String key = GitHubApiResponseCache.key("user", "token", "foo/bar", ImmutableListMultimap.of());
+
+    assertThat(GitHubApiResponseCache.key("user", "token", "foo/bar", ImmutableListMultimap.of()))
+        .isEqualTo(key);
+    assertThat(GitHubApiResponseCache.key("user", "other", "foo/bar", ImmutableListMultimap.of()))
+        .isNotEqualTo(key);
+    assertThat(GitHubApiResponseCache.key("user", null, "foo/bar", ImmutableListMultimap.of()))
+        .isNotEqualTo(key);
+    assertThat(key).doesNotContain("token");
+  }
+
+  @Test
+  public void testEntriesOnlyReadableByTheUser() throws Exception {
+    GitHubApiResponseCache cache = new GitHubApiResponseCache(dir);
+    String key = GitHubApiResponseCache.key("user", "token", "foo/bar", ImmutableListMultimap.of());
+
+    cache.put(key, new GitHubApiResponseCache.Entry("\"v1\"", null, "body".getBytes(UTF_8)));
+
+    Path file = entry(key);
+    assertThat(Files.getPosixFilePermissions(file)).containsExactly(OWNER_READ, OWNER_WRITE);
+    assertThat(Files.getPosixFilePermissions(file.getParent()))
+        .containsExactly(OWNER_READ, OWNER_WRITE, OWNER_EXECUTE);
+    assertThat(new String(cache.get(key).getBody(), UTF_8)).isEqualTo("body");
+  }
+
+  @Test
+  public void testCleanUpDeletesOldAndLeastRecentlyUsedEntries() throws Exception {
+    GitHubApiResponseCache cache = new GitHubApiResponseCache(dir, 2, Duration.ofDays(1));
+    String old = put(cache, "old", NOW.minus(Duration.ofDays(2)));
+    String lru = put(cache, "lru", NOW.minus(Duration.ofHours(3)));
+    String used = put(cache, "used", NOW.minus(Duration.ofHours(2)));
+    String recent = put(cache, "recent", NOW.minus(Duration.ofHours(1)));
+
+    cache.cleanUp(NOW);
+
+    assertThat(Files.exists(entry(old))).isFalse();
+    assertThat(Files.exists(entry(lru))).isFalse();
+    assertThat(Files.exists(entry(used))).isTrue();
+    assertThat(Files.exists(entry(recent))).isTrue();
+    try (Stream<Path> files = Files.walk(dir)) {
+      assertThat(files.filter(Files::isRegularFile).count()).isEqualTo(2);
+    }
+  }
+
+  @Test
+  public void testGetMarksEntryAsUsed() throws Exception {
+    GitHubApiResponseCache cache = new GitHubApiResponseCache(dir, 1, Duration.ofDays(1));
+    String first = put(cache, "first", Instant.now().minus(Duration.ofHours(2)));
+    String second = put(cache, "second", Instant.now().minus(Duration.ofHours(1)));
+
+    assertThat(cache.get(first)).isNotNull();
+    cache.cleanUp(Instant.now());
+
+    assertThat(Files.exists(entry(first))).isTrue();
+    assertThat(Files.exists(entry(second))).isFalse();
+  }
+
+  private String put(GitHubApiResponseCache cache, String path, Instant lastUsed)
+      throws Exception {
+    String key = GitHubApiResponseCache.key("user", "token", path, ImmutableListMultimap.of());
+    cache.put(key, new GitHubApiResponseCache.Entry("\"v1\"", null, path.getBytes(UTF_8)));
+    Files.setLastModifiedTime(entry(key), FileTime.from(lastUsed));
+    return key;
+  }
+
+  private Path entry(String key) {
+    return dir.resolve(key.substring(0, 2)).resolve(key.substring(2));
+  }
+}
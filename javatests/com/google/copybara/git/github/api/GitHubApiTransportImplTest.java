@@ -30,12 +30,16 @@ import com.google.api.client.testing.http.MockHttpTransport;
 import com.google.api.client.testing.http.MockLowLevelHttpRequest;
 import com.google.api.client.testing.http.MockLowLevelHttpResponse;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.reflect.TypeToken;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.git.GitRepository;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
+import java.lang.reflect.Type;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -108,6 +112,76 @@ public class GitHubApiTransportImplTest {
     assertThat(headers).containsEntry("authorization", ImmutableList.of("Basic dXNlcjpTRUNSRVQ="));
   }
 
+  @Test
+  public void testGetUsesCachedResponse() throws Exception {
+    List<String> requestEtags = new ArrayList<>();
+    httpTransport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest() {
+          @Override
+          public LowLevelHttpResponse execute() throws IOException {
+            List<String> etag = this.getHeaders().get("if-none-match");
+            requestEtags.add(etag == null ? null : Iterables.getOnlyElement(etag));
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+            if (etag != null && etag.contains("\"v1\"")) {
+              response.setStatusCode(304);
+              return response;
+            }
+            response.addHeader("ETag", "\"v1\"");
+            response.addHeader("Link",
+                "<https://api.github.com/foo/bar?page=2>; rel=\"next\"");
+            response.setContent("[{\"state\": \"success\"}]");
+            return response;
+          }
+        };
+      }
+    };
+    transport = new GitHubApiTransportImpl(repo, httpTransport, "store", new TestingConsole(),
+        Files.createTempDirectory("cache"));
+    Type type = new TypeToken<PaginatedList<Status>>() {}.getType();
+
+    PaginatedList<Status> first = transport.get("foo/bar", type);
+    PaginatedList<Status> second = transport.get("foo/bar", type);
+
+    assertThat(requestEtags).containsExactly(null, "\"v1\"").inOrder();
+    for (PaginatedList<Status> result : ImmutableList.of(first, second)) {
+      assertThat(result).hasSize(1);
+      assertThat(result.get(0).getState()).isEqualTo(Status.State.SUCCESS);
+      assertThat(result.getNextUrl()).isEqualTo("foo/bar?page=2");
+    }
+  }
+
+  @Test
+  public void testRetriesWhenRateLimited() throws Exception {
+    List<String> requests = new ArrayList<>();
+    httpTransport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest() {
+          @Override
+          public LowLevelHttpResponse execute() throws IOException {
+            requests.add(method + " " + url);
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+            if (requests.size() == 1) {
+              response.setStatusCode(403);
+              response.addHeader("Retry-After", "0");
+              response.setContent("{\"message\": \"You have exceeded a secondary rate limit\"}");
+              return response;
+            }
+            response.setContent("foo");
+            return response;
+          }
+        };
+      }
+    };
+    transport = new GitHubApiTransportImpl(repo, httpTransport, "store", new TestingConsole());
+
+    transport.get("foo/bar", String.class);
+    assertThat(requests).containsExactly(
+        "GET https://api.github.com/foo/bar", "GET https://api.github.com/foo/bar");
+  }
+
   private void runTestThrowsHttpResponseException(Callable<?> c) throws Exception {
     HttpResponseException ex =
         new HttpResponseException.Builder(STATUS_CODE, ERROR_MESSAGE, new HttpHeaders()).build();
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git.github.api;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.copybara.exception.RepoException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GitHubRateLimiterTest {
+
+  private static final Instant NOW = Instant.ofEpochSecond(1_500_000_000);
+
+  private MutableClock clock;
+  private List<Duration> sleeps;
+  private GitHubRateLimiter limiter;
+
+  @Before
+  public void setup() {
+    clock = new MutableClock();
+    sleeps = new ArrayList<>();
+    limiter = new GitHubRateLimiter(clock, d -> {
+      sleeps.add(d);
+      clock.now = clock.now.plus(d);
+    }, Duration.ofMinutes(15));
+  }
+
+  @Test
+  public void testNoHeaders() throws Exception {
+    limiter.update(new HttpHeaders());
+    for (int i = 0; i < 10; i++) {
+      limiter.acquire();
+    }
+    assertThat(sleeps).isEmpty();
+  }
+
+  @Test
+  public void testPlentyOfQuota() throws Exception {
+    limiter.update(rateLimitHeaders(4000, NOW.plusSeconds(600)));
+    for (int i = 0; i < 10; i++) {
+      limiter.acquire();
+    }
+    assertThat(sleeps).isEmpty();
+  }
+
+  @Test
+  public void testLowQuotaSpreadsRequests() throws Exception {
+    limiter.update(rateLimitHeaders(10, NOW.plusSeconds(100)));
+    for (int i = 0; i < 3; i++) {
+      limiter.acquire();
+    }
+    // The first request goes right away, the next ones wait their share of the remaining time
+    assertThat(sleeps).containsExactly(Duration.ofSeconds(10), Duration.ofSeconds(10)).inOrder();
+  }
+
+  @Test
+  public void testNoQuotaWaitsForReset() throws Exception {
+    limiter.update(rateLimitHeaders(0, NOW.plusSeconds(60)));
+    limiter.acquire();
+    assertThat(sleeps).containsExactly(Duration.ofSeconds(60));
+
+    // After the reset we don't throttle until we get new headers
+    limiter.acquire();
+    assertThat(sleeps).hasSize(1);
+  }
+
+  @Test
+  public void testRetryAfter() throws Exception {
+    limiter.update(new HttpHeaders().setRetryAfter("30"));
+    limiter.acquire();
+    limiter.acquire();
+    assertThat(sleeps).containsExactly(Duration.ofSeconds(30));
+  }
+
+  @Test
+  public void testWaitTooLong() throws Exception {
+    limiter.update(rateLimitHeaders(0, NOW.plus(Duration.ofHours(1))));
+    try {
+      limiter.acquire();
+      fail();
+    } catch (RepoException e) {
+      assertThat(e).hasMessageThat().contains("rate limit exceeded");
+    }
+    assertThat(sleeps).isEmpty();
+  }
+
+  @Test
+  public void testIsRateLimited() {
+    assertThat(GitHubRateLimiter.isRateLimited(
+        exception(403, new HttpHeaders().set("X-RateLimit-Remaining", "0")))).isTrue();
+    assertThat(GitHubRateLimiter.isRateLimited(
+        exception(403, new HttpHeaders().setRetryAfter("10")))).isTrue();
+    assertThat(GitHubRateLimiter.isRateLimited(
+        exception(429, new HttpHeaders().setRetryAfter("10")))).isTrue();
+    assertThat(GitHubRateLimiter.isRateLimited(
+        exception(403, new HttpHeaders().set("X-RateLimit-Remaining", "10")))).isFalse();
+    assertThat(GitHubRateLimiter.isRateLimited(
+        exception(404, new HttpHeaders().setRetryAfter("10")))).isFalse();
+  }
+
+  private static HttpHeaders rateLimitHeaders(int remaining, Instant reset) {
+    return new HttpHeaders()
+        .set("X-RateLimit-Remaining", Integer.toString(remaining))
+        .set("X-RateLimit-Reset", Long.toString(reset.getEpochSecond()));
+  }
+
+  private static HttpResponseException exception(int status, HttpHeaders headers) {
+    return new HttpResponseException.Builder(status, "error", headers).build();
+  }
+
+  private static class MutableClock extends Clock {
+
+    private Instant now = NOW;
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+  }
+}
@@ -20,6 +20,7 @@ import static com.google.common.collect.Iterables.getOnlyElement;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.copybara.ChangeMessage.parseMessage;
 import static com.google.copybara.testing.FileSubjects.assertThatPath;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
@@ -239,6 +240,81 @@ public class HgDestinationTest {
     assertThatPath(hgDestPath).containsFile("excluded.txt", "content");
   }
 
+  @Test
+  public void testWriteManyFiles() throws Exception {
+    // Enough files to need more than one batch of hg add/remove
+    for (int i = 0; i < 500; i++) {
+      Path file = workdir.resolve(String.format("some/nested/directory/file_%03d.txt", i));
+      Files.createDirectories(file.getParent());
+      Files.write(file, ("content " + i).getBytes(StandardCharsets.UTF_8));
+    }
+    createRevisionAndWrite("add_ref");
+
+    workdir = options.general.getDirFactory().newTempDir("testWriteManyFiles-workdir");
+    Files.write(workdir.resolve("file.txt"), "first write".getBytes(StandardCharsets.UTF_8));
+    createRevisionAndWrite("delete_ref");
+
+    remoteRepo.cleanUpdate("tip");
+
+    ImmutableList<HgLogEntry> commits = remoteRepo.log().run();
+    assertThat(commits).hasSize(3);
+    assertThat(commits.get(0).getFiles()).hasSize(500);
+    assertThat(commits.get(1).getFiles()).hasSize(500);
+    assertThatPath(hgDestPath).containsFile("file.txt", "first write");
+    assertThatPath(hgDestPath).containsNoFiles("some/nested/directory/file_000.txt",
+        "some/nested/directory/file_499.txt");
+  }
+
+  @Test
+  public void testWriteRenamesFiles() throws Exception {
+    Files.createDirectories(workdir.resolve("old"));
+    Files.write(workdir.resolve("old/one.txt"), "one\ntwo\nthree\nfour\n".getBytes(UTF_8));
+    Files.write(workdir.resolve("old/two.txt"), "five\nsix\nseven\neight\n".getBytes(UTF_8));
+    Files.write(workdir.resolve("before.txt"), "a\nb\nc\nd\n".getBytes(UTF_8));
+    createRevisionAndWrite("add_ref");
+
+    workdir = options.general.getDirFactory().newTempDir("testWriteRenamesFiles-workdir");
+    Files.createDirectories(workdir.resolve("new"));
+    Files.write(workdir.resolve("new/one.txt"), "one\ntwo\nthree\nfour\n".getBytes(UTF_8));
+    Files.write(workdir.resolve("new/two.txt"), "five\nsix\nseven\n8\n".getBytes(UTF_8));
+    Files.write(workdir.resolve("after.txt"), "a\nb\nc\nd\n".getBytes(UTF_8));
+    Files.write(workdir.resolve("other.txt"), "other".getBytes(UTF_8));
+    createRevisionAndWrite("rename_ref");
+
+    String status = remoteRepo.hg(hgDestPath, "status", "--copies", "--change", "tip")
+        .getStdout();
+    assertThat(status).isEqualTo(""
+        + "A after.txt\n"
+        + "  before.txt\n"
+        + "A new/one.txt\n"
+        + "  old/one.txt\n"
+        + "A new/two.txt\n"
+        + "  old/two.txt\n"
+        + "A other.txt\n"
+        + "R before.txt\n"
+        + "R old/one.txt\n"
+        + "R old/two.txt\n");
+  }
+
+  @Test
+  public void testWriteRenamesFilesWithPatternNames() throws Exception {
+    Files.write(workdir.resolve("glob:*.txt"), "one\ntwo\nthree\nfour\n".getBytes(UTF_8));
+    Files.write(workdir.resolve("other.txt"), "other".getBytes(UTF_8));
+    createRevisionAndWrite("add_ref");
+
+    workdir = options.general.getDirFactory().newTempDir("testWriteRenamesPatterns-workdir");
+    Files.write(workdir.resolve("-renamed.txt"), "one\ntwo\nthree\nfour\n".getBytes(UTF_8));
+    Files.write(workdir.resolve("other.txt"), "other".getBytes(UTF_8));
+    createRevisionAndWrite("rename_ref");
+
+    String status = remoteRepo.hg(hgDestPath, "status", "--copies", "--change", "tip")
+        .getStdout();
+    assertThat(status).isEqualTo(""
+        + "A -renamed.txt\n"
+        + "  glob:*.txt\n"
+        + "R glob:*.txt\n");
+  }
+
   @Test
   public void testPreviousImportReference() throws Exception {
     Path file = workdir.resolve("test.txt");
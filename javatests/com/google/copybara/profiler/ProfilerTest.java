@@ -199,7 +199,8 @@ public class ProfilerTest {
     }
     LogRecord record = assertingHandler.getStoredLogRecords().get(0);
     assertThat(record.getMessage()).contains("testListenerLogging");
-    assertThat(record.getSourceClassName()).contains(this.getClass().getName());
+    // The call-site is not injected, as walking the stack for every task is too expensive.
+    assertThat(record.getSourceClassName()).isEqualTo(LogProfilerListener.class.getName());
   }
 
   @Test
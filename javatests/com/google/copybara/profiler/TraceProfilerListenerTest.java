@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.testing.FakeTicker;
+import com.google.copybara.profiler.Profiler.ProfilerTask;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TraceProfilerListenerTest {
+
+  private Profiler profiler;
+  private FakeTicker ticker;
+  private Path trace;
+
+  @Before
+  public void setUp() throws Exception {
+    ticker = new FakeTicker();
+    profiler = new Profiler(ticker);
+    trace = Files.createTempDirectory("trace").resolve("trace.json");
+  }
+
+  @Test
+  public void testWritesTrace() throws Exception {
+    TraceProfilerListener listener = new TraceProfilerListener(trace);
+    profiler.init(ImmutableList.of(listener));
+    ticker.advance(1, TimeUnit.MILLISECONDS);
+    try (ProfilerTask ignore = profiler.start("iterative")) {
+      ticker.advance(2, TimeUnit.MILLISECONDS);
+      try (ProfilerTask ignore2 = profiler.start("origin.\"checkout\"",
+          ImmutableMap.of("type", "git"))) {
+        ticker.advance(5, TimeUnit.MILLISECONDS);
+      }
+    }
+    profiler.stop();
+
+    String threadId = Long.toString(Thread.currentThread().getId());
+    assertThat(new String(Files.readAllBytes(trace), UTF_8)).isEqualTo(""
+        + "{\"displayTimeUnit\":\"ms\",\"traceEvents\":["
+        + "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + threadId
+        + ",\"args\":{\"name\":\"" + Thread.currentThread().getName() + "\"}},\n"
+        + "{\"name\":\"origin.\\\"checkout\\\"\",\"ph\":\"X\",\"pid\":1,\"tid\":" + threadId
+        + ",\"ts\":3000,\"dur\":5000,\"args\":{"
+        + "\"description\":\"//copybara/iterative/origin.\\\"checkout\\\"\",\"type\":\"git\"}},\n"
+        + "{\"name\":\"iterative\",\"ph\":\"X\",\"pid\":1,\"tid\":" + threadId
+        + ",\"ts\":1000,\"dur\":7000,\"args\":{\"description\":\"//copybara/iterative\"}},\n"
+        + "{\"name\":\"copybara\",\"ph\":\"X\",\"pid\":1,\"tid\":" + threadId
+        + ",\"ts\":0,\"dur\":8000,\"args\":{\"description\":\"//copybara\"}}]}\n");
+  }
+
+  @Test
+  public void testRingBufferKeepsLatestTasks() throws Exception {
+    TraceProfilerListener listener = new TraceProfilerListener(trace, 2);
+    profiler.init(ImmutableList.of(listener));
+    for (int i = 0; i < 5; i++) {
+      try (ProfilerTask ignore = profiler.start("task_" + i)) {
+        ticker.advance(1, TimeUnit.MILLISECONDS);
+      }
+    }
+    profiler.stop();
+
+    String content = new String(Files.readAllBytes(trace), UTF_8);
+    assertThat(content).doesNotContain("task_3");
+    assertThat(content).contains("\"name\":\"task_4\"");
+    assertThat(content).contains("\"name\":\"copybara\"");
+    // The summary includes all the tasks
+    assertThat(listener.summary()).contains(
+        "//copybara/task_N count=5 total=5ms p50=1ms p95=1ms max=1ms");
+  }
+
+  @Test
+  public void testSummary() {
+    TraceProfilerListener listener = new TraceProfilerListener(trace);
+    profiler.init(ImmutableList.of(listener));
+    for (int i = 1; i <= 100; i++) {
+      try (ProfilerTask ignore = profiler.start("github_api_list_pulls_page_" + i)) {
+        ticker.advance(i, TimeUnit.MILLISECONDS);
+      }
+    }
+    try (ProfilerTask ignore = profiler.start("other")) {
+      ticker.advance(1, TimeUnit.MILLISECONDS);
+    }
+
+    ImmutableList<String> summary = listener.summary();
+    assertThat(summary).hasSize(2);
+    assertThat(summary.get(0)).matches("//copybara/github_api_list_pulls_page_N count=100"
+        + " total=5050ms p50=(5[0-9])ms p95=(9[5-9]|10[0-9])ms max=100ms");
+    assertThat(summary.get(1)).isEqualTo("//copybara/other count=1 total=1ms p50=1ms p95=1ms"
+        + " max=1ms");
+  }
+
+  @Test
+  public void testGroupName() {
+    assertThat(TraceProfilerListener.groupName("//copybara/page_12/foo3bar45"))
+        .isEqualTo("//copybara/page_N/fooNbarN");
+    assertThat(TraceProfilerListener.groupName("//copybara")).isEqualTo("//copybara");
+  }
+}
@@ -20,6 +20,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.copybara.testing.FileSubjects.assertThatPath;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.jimfs.Jimfs;
 import com.google.copybara.Transformation;
 import com.google.copybara.exception.ValidationException;
@@ -146,6 +147,27 @@ public final class ReplaceTest {
     assertThatPath(checkoutDir).containsFile("file1.txt", "foo\nbar\nbaz\n");
   }
 
+  @Test
+  public void testLiteralPrefixOnlyInSomeLines() throws Exception {
+    Replace transformation = eval("core.replace(\n"
+        + "  before = 'com.google.internal.${name}',\n"
+        + "  after = 'com.google.${name}',\n"
+        + "  regex_groups = {\n"
+        + "       'name' : '[a-z]+',"
+        + "  },\n"
+        + ")");
+
+    writeFile(checkoutDir.resolve("file1.txt"),
+        "import com.google.internal.foo;\nimport com.google.bar;\ncom.google.internal.\n");
+    writeFile(checkoutDir.resolve("file2.txt"), "import com.google.bar;\n");
+    transform(transformation);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file1.txt",
+            "import com.google.foo;\nimport com.google.bar;\ncom.google.internal.\n")
+        .containsFile("file2.txt", "import com.google.bar;\n");
+  }
+
   @Test
   public void testWithGroups() throws Exception {
     Replace transformation = eval("core.replace(\n"
@@ -532,6 +554,51 @@ public final class ReplaceTest {
             ".*BEFORE.*lulz.*was a no-op because it didn't match any file");
   }
 
+  @Test
+  public void testJoinedReplaces() throws Exception {
+    options.workflowOptions.ignoreNoop = true;
+    Transformation transformation = eval("core.transform([\n"
+        + "    core.replace(before = 'foo', after = 'bar'),\n"
+        + "    core.replace(before = 'bar', after = 'baz', paths = glob(['**.txt'])),\n"
+        + "    core.replace(before = 'not_found', after = 'lulz'),\n"
+        + "])");
+
+    writeFile(checkoutDir.resolve("file.txt"), "foo\nbar");
+    writeFile(checkoutDir.resolve("file.md"), "foo\nbar");
+    transform(transformation);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file.txt", "baz\nbaz")
+        .containsFile("file.md", "bar\nbar")
+        .containsNoMoreFiles();
+    console.assertThat()
+        .onceInLog(MessageType.WARNING,
+            ".*not_found.*lulz.*was a no-op because it didn't change any of the matching files");
+  }
+
+  @Test
+  public void testStreamingReplace() throws Exception {
+    Replace first = eval("core.replace(before = 'foo', after = 'bar\\nfoo', first_only = True)");
+    Replace second = eval("core.replace(before = 'foo', after = 'baz')");
+    Replace multiline = eval("core.replace(before = 'a\\nb', after = 'c', multiline = True)");
+    JoinedContentTransformation joined =
+        new JoinedContentTransformation(ImmutableList.of(first, second), /*streamingMinSize=*/ 0);
+
+    writeFile(checkoutDir.resolve("file.txt"), "foo foo\r\nno match\n\nfoo\n");
+    writeFile(checkoutDir.resolve("unchanged.txt"), "nothing\nhere");
+    transform(joined);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file.txt", "bar\nbaz baz\r\nno match\n\nbar\nbaz\n")
+        .containsFile("unchanged.txt", "nothing\nhere")
+        .containsNoMoreFiles();
+
+    // Multiline replaces are never streamed
+    writeFile(checkoutDir.resolve("file.txt"), "a\nb");
+    transform(new JoinedContentTransformation(ImmutableList.of(multiline), 0));
+    assertThatPath(checkoutDir).containsFile("file.txt", "c");
+  }
+
   @Test
   public void useDollarSignInAfter() throws Exception {
     Replace replace = eval("core.replace(\n"
@@ -40,6 +40,7 @@ import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.re2j.Pattern;
 import java.nio.file.FileSystem;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
@@ -54,7 +55,7 @@ import org.junit.runners.JUnit4;
 public class RevisionMigratorTest {
 
   private DummyOrigin origin;
-  private ChangeVisitable<?> destinationReader;
+  private MockReader destinationReader;
   private ReferenceMigrator referenceMigrator;
   private SkylarkTestExecutor skylark;
   private TestingConsole console;
@@ -91,9 +92,13 @@ public class RevisionMigratorTest {
   }
 
   private TransformWork getTransformWork(String msg) {
+    return getTransformWork(msg, new MigrationInfo(DummyOrigin.LABEL_NAME, destinationReader));
+  }
+
+  private TransformWork getTransformWork(String msg, MigrationInfo migrationInfo) {
     return new TransformWork(checkoutDir, new Metadata(msg, new Author("foo", "foo@foo.com"),
         ImmutableSetMultimap.of()),
-        Changes.EMPTY, console, new MigrationInfo(DummyOrigin.LABEL_NAME, destinationReader),
+        Changes.EMPTY, console, migrationInfo,
         new DummyRevision("1234567890"), false);
   }
 
@@ -137,6 +142,83 @@ public class RevisionMigratorTest {
             + "http://externalreviews.com/view?e and stuff.");
   }
 
+  @Test
+  public void testMultipleResolvedInSingleWalk() throws Exception {
+    String desc = "Building on http://internalReviews.com/53, http://internalReviews.com/14 and"
+        + " http://internalReviews.com/1001.";
+    TransformWork work = getTransformWork(desc);
+    referenceMigrator.transform(work);
+    assertThat(work.getMessage())
+        .isEqualTo("Building on http://externalreviews.com/view?35, "
+            + "http://externalreviews.com/view?e and http://externalreviews.com/view?3e9.");
+    assertThat(destinationReader.walks).isEqualTo(1);
+    assertThat(destinationReader.visited).isEqualTo(1001);
+
+    // Already indexed references only need to check the destination head
+    work = getTransformWork("Building on http://internalReviews.com/14");
+    referenceMigrator.transform(work);
+    assertThat(work.getMessage()).isEqualTo("Building on http://externalreviews.com/view?e");
+    assertThat(destinationReader.walks).isEqualTo(1);
+  }
+
+  @Test
+  public void testIndexPersistedBetweenRuns() throws Exception {
+    Path indexDir = checkoutDir.getFileSystem().getPath("/index");
+    MigrationInfo migrationInfo =
+        new MigrationInfo(DummyOrigin.LABEL_NAME, destinationReader, "destination");
+    referenceMigrator = ReferenceMigrator.create(
+        "http://internalReviews.com/${reference}",
+        "http://externalreviews.com/view?${reference}",
+        Pattern.compile("[0-9]+"),
+        Pattern.compile("[0-9a-f]+"),
+        ImmutableList.of(),
+        new ReferenceIndexes(indexDir),
+        location);
+    TransformWork work = getTransformWork("Fixes http://internalReviews.com/123", migrationInfo);
+    referenceMigrator.transform(work);
+    assertThat(work.getMessage()).isEqualTo("Fixes http://externalreviews.com/view?7b");
+    assertThat(destinationReader.visited).isEqualTo(123);
+
+    destinationReader = new MockReader();
+    migrationInfo = new MigrationInfo(DummyOrigin.LABEL_NAME, destinationReader, "destination");
+    referenceMigrator = ReferenceMigrator.create(
+        "http://internalReviews.com/${reference}",
+        "http://externalreviews.com/view?${reference}",
+        Pattern.compile("[0-9]+"),
+        Pattern.compile("[0-9a-f]+"),
+        ImmutableList.of(),
+        new ReferenceIndexes(indexDir),
+        location);
+    work = getTransformWork("Fixes http://internalReviews.com/123", migrationInfo);
+    referenceMigrator.transform(work);
+    assertThat(work.getMessage()).isEqualTo("Fixes http://externalreviews.com/view?7b");
+    // The head didn't change, so the index from the previous run is used.
+    assertThat(destinationReader.visited).isEqualTo(1);
+  }
+
+  @Test
+  public void testIndexWithoutDestinationIdNotShared() throws Exception {
+    Path indexDir = checkoutDir.getFileSystem().getPath("/index");
+    ReferenceIndexes indexes = new ReferenceIndexes(indexDir);
+    for (int i = 0; i < 2; i++) {
+      destinationReader = new MockReader();
+      referenceMigrator = ReferenceMigrator.create(
+          "http://internalReviews.com/${reference}",
+          "http://externalreviews.com/view?${reference}",
+          Pattern.compile("[0-9]+"),
+          Pattern.compile("[0-9a-f]+"),
+          ImmutableList.of(),
+          indexes,
+          location);
+      TransformWork work = getTransformWork("Fixes http://internalReviews.com/123");
+      referenceMigrator.transform(work);
+      assertThat(work.getMessage()).isEqualTo("Fixes http://externalreviews.com/view?7b");
+      // Not shared with the previous map_references, that could have a different destination
+      assertThat(destinationReader.visited).isEqualTo(123);
+    }
+    assertThat(Files.exists(indexDir)).isFalse();
+  }
+
   @Test
   public void testLegacyLabel() throws Exception {
     referenceMigrator = ReferenceMigrator.create(
@@ -293,9 +375,13 @@ public class RevisionMigratorTest {
 
   class MockReader implements ChangeVisitable<DummyRevision> {
 
+    int walks;
+    int visited;
+
     @Override
     public void visitChanges(DummyRevision start, ChangesVisitor visitor)
         throws RepoException {
+      walks++;
       int changeNumber = 0;
       Change<DummyRevision> change;
       do {
@@ -316,7 +402,7 @@ public class RevisionMigratorTest {
                 "Lorem Ipsum",
                 ZonedDateTime.now(ZoneId.systemDefault()),
                 labels.build());
-
+        visited++;
       } while (visitor.visit(change) != VisitResult.TERMINATE);
     }
   }
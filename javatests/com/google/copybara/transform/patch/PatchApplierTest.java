@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform.patch;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.copybara.testing.FileSubjects.assertThatPath;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.treestate.FileSystemTreeState;
+import com.google.copybara.treestate.TreeState;
+import com.google.copybara.treestate.TreeState.FileState;
+import com.google.copybara.treestate.TreeStateUtil;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PatchApplierTest {
+
+  private static final ImmutableList<String> NO_EXCLUDED = ImmutableList.of();
+
+  private static final String MODIFY_DIFF = ""
+      + "diff --git a/file.txt b/file.txt\n"
+      + "index 1f5d0fa..3ba1d34 100644\n"
+      + "--- a/file.txt\n"
+      + "+++ b/file.txt\n"
+      + "@@ -2,3 +2,3 @@ one\n"
+      + " two\n"
+      + "-three\n"
+      + "+THREE\n"
+      + " four\n";
+
+  private Path workdir;
+
+  @Before
+  public void setup() throws IOException {
+    workdir = Files.createTempDirectory("workdir");
+  }
+
+  @Test
+  public void testApply() throws Exception {
+    writeFile("file.txt", "one\ntwo\nthree\nfour\nfive\n");
+
+    apply(MODIFY_DIFF, /*reverse=*/ false);
+    assertThatPath(workdir).containsFile("file.txt", "one\ntwo\nTHREE\nfour\nfive\n");
+
+    apply(MODIFY_DIFF, /*reverse=*/ true);
+    assertThatPath(workdir).containsFile("file.txt", "one\ntwo\nthree\nfour\nfive\n");
+  }
+
+  @Test
+  public void testApplyWithOffset() throws Exception {
+    writeFile("file.txt", "added\nadded\none\ntwo\nthree\nfour\nfive\n");
+
+    apply(MODIFY_DIFF, /*reverse=*/ false);
+
+    assertThatPath(workdir).containsFile("file.txt", "added\nadded\none\ntwo\nTHREE\nfour\nfive\n");
+  }
+
+  @Test
+  public void testContextDoesNotMatch() throws Exception {
+    writeFile("file.txt", "one\ntwo\nthree\nFOUR\nfive\n");
+    try {
+      apply(MODIFY_DIFF, /*reverse=*/ false);
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().isEqualTo(
+          "error: patch failed: file.txt:2\nerror: file.txt: patch does not apply");
+    }
+    assertThatPath(workdir).containsFile("file.txt", "one\ntwo\nthree\nFOUR\nfive\n");
+  }
+
+  @Test
+  public void testAlreadyApplied() throws Exception {
+    writeFile("file.txt", "one\ntwo\nTHREE\nfour\nfive\n");
+    try {
+      apply(MODIFY_DIFF, /*reverse=*/ false);
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("patch does not apply");
+    }
+  }
+
+  @Test
+  public void testHunkAtTheBeginningMustMatchThere() throws Exception {
+    String diff = ""
+        + "--- a/file.txt\n"
+        + "+++ b/file.txt\n"
+        + "@@ -1,2 +1,2 @@\n"
+        + "-one\n"
+        + "+ONE\n"
+        + " two\n";
+    writeFile("file.txt", "zero\none\ntwo\n");
+    try {
+      apply(diff, /*reverse=*/ false);
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("error: patch failed: file.txt:1");
+    }
+  }
+
+  @Test
+  public void testNoNewlineAtEndOfFile() throws Exception {
+    String diff = ""
+        + "diff --git a/file.txt b/file.txt\n"
+        + "index ba0e162..9c08216 100644\n"
+        + "--- a/file.txt\n"
+        + "+++ b/file.txt\n"
+        + "@@ -1 +1 @@\n"
+        + "-bar\n"
+        + "\\ No newline at end of file\n"
+        + "+new bar\n"
+        + "\\ No newline at end of file";
+    writeFile("file.txt", "bar\n");
+    try {
+      apply(diff, /*reverse=*/ false);
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("patch does not apply");
+    }
+
+    writeFile("file.txt", "bar");
+    apply(diff, /*reverse=*/ false);
+    assertThatPath(workdir).containsFile("file.txt", "new bar");
+  }
+
+  @Test
+  public void testCreateAndDelete() throws Exception {
+    String diff = ""
+        + "diff --git a/dir/old.txt b/dir/old.txt\n"
+        + "deleted file mode 100644\n"
+        + "index 5716ca5..0000000\n"
+        + "--- a/dir/old.txt\n"
+        + "+++ /dev/null\n"
+        + "@@ -1 +0,0 @@\n"
+        + "-old\n"
+        + "diff --git a/other/new.sh b/other/new.sh\n"
+        + "new file mode 100755\n"
+        + "index 0000000..257cc56\n"
+        + "--- /dev/null\n"
+        + "+++ b/other/new.sh\n"
+        + "@@ -0,0 +1,2 @@\n"
+        + "+#!/bin/bash\n"
+        + "+echo new\n"
+        + "diff --git a/empty.txt b/empty.txt\n"
+        + "new file mode 100644\n"
+        + "index 0000000..e69de29\n";
+    writeFile("dir/old.txt", "old\n");
+
+    apply(diff, /*reverse=*/ false);
+
+    assertThatPath(workdir)
+        .containsFile("other/new.sh", "#!/bin/bash\necho new\n")
+        .containsFile("empty.txt", "")
+        .containsNoMoreFiles();
+    assertThat(Files.isExecutable(workdir.resolve("other/new.sh"))).isTrue();
+    assertThat(Files.exists(workdir.resolve("dir"))).isFalse();
+
+    apply(diff, /*reverse=*/ true);
+
+    assertThatPath(workdir)
+        .containsFile("dir/old.txt", "old\n")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testCreateExistingFile() throws Exception {
+    String diff = ""
+        + "--- /dev/null\n"
+        + "+++ b/file.txt\n"
+        + "@@ -0,0 +1 @@\n"
+        + "+foo\n";
+    writeFile("file.txt", "foo\n");
+    try {
+      apply(diff, /*reverse=*/ false);
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat()
+          .isEqualTo("error: file.txt: already exists in working directory");
+    }
+  }
+
+  @Test
+  public void testModeChange() throws Exception {
+    String diff = ""
+        + "diff --git a/run.sh b/run.sh\n"
+        + "old mode 100644\n"
+        + "new mode 100755\n";
+    writeFile("run.sh", "echo foo\n");
+
+    apply(diff, /*reverse=*/ false);
+    assertThat(Files.isExecutable(workdir.resolve("run.sh"))).isTrue();
+
+    apply(diff, /*reverse=*/ true);
+    assertThat(Files.isExecutable(workdir.resolve("run.sh"))).isFalse();
+  }
+
+  @Test
+  public void testExcludedPaths() throws Exception {
+    String diff = MODIFY_DIFF + MODIFY_DIFF.replace("file.txt", "excluded/dir/file.txt");
+    writeFile("file.txt", "one\ntwo\nthree\nfour\nfive\n");
+    writeFile("excluded/dir/file.txt", "one\ntwo\nthree\nfour\nfive\n");
+
+    PatchApplier applier = new PatchApplier(workdir, /*strip=*/ 1, /*reverse=*/ false,
+        ImmutableList.of("excluded/*"));
+    applier.apply(UnifiedDiff.parse(diff.getBytes(UTF_8)));
+    applier.flush();
+
+    assertThatPath(workdir)
+        .containsFile("file.txt", "one\ntwo\nTHREE\nfour\nfive\n")
+        .containsFile("excluded/dir/file.txt", "one\ntwo\nthree\nfour\nfive\n");
+  }
+
+  @Test
+  public void testSeveralDiffsAreWrittenOnFlush() throws Exception {
+    String other = ""
+        + "--- a/file.txt\n"
+        + "+++ b/file.txt\n"
+        + "@@ -4,2 +4,2 @@\n"
+        + " four\n"
+        + "-five\n"
+        + "+FIVE\n";
+    writeFile("file.txt", "one\ntwo\nthree\nfour\nfive\n");
+    PatchApplier applier =
+        new PatchApplier(workdir, /*strip=*/ 1, /*reverse=*/ false, NO_EXCLUDED);
+    applier.apply(UnifiedDiff.parse(MODIFY_DIFF.getBytes(UTF_8)));
+    applier.apply(UnifiedDiff.parse(other.getBytes(UTF_8)));
+    assertThatPath(workdir).containsFile("file.txt", "one\ntwo\nthree\nfour\nfive\n");
+    try {
+      // Fails because it was already applied, but keeps the previous changes
+      applier.apply(UnifiedDiff.parse(other.getBytes(UTF_8)));
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("patch does not apply");
+    }
+
+    applier.flush();
+
+    assertThatPath(workdir).containsFile("file.txt", "one\ntwo\nTHREE\nfour\nFIVE\n");
+  }
+
+  @Test
+  public void testNotifiesTreeState() throws Exception {
+    String diff = MODIFY_DIFF
+        + "--- /dev/null\n"
+        + "+++ b/added.txt\n"
+        + "@@ -0,0 +1 @@\n"
+        + "+added\n"
+        + "--- a/deleted.txt\n"
+        + "+++ /dev/null\n"
+        + "@@ -1 +0,0 @@\n"
+        + "-deleted\n";
+    writeFile("file.txt", "one\ntwo\nthree\nfour\nfive\n");
+    writeFile("deleted.txt", "deleted\n");
+    writeFile("unchanged.txt", "unchanged\n");
+    TreeState treeState = new FileSystemTreeState(workdir);
+    treeState.find(path -> true);
+
+    PatchApplier applier =
+        new PatchApplier(workdir, /*strip=*/ 1, /*reverse=*/ false, NO_EXCLUDED);
+    applier.apply(UnifiedDiff.parse(diff.getBytes(UTF_8)));
+    applier.flush();
+    applier.notifyTreeState(treeState);
+
+    TreeState next = treeState.newTreeState();
+    assertThat(TreeStateUtil.isCachedTreeState(next)).isTrue();
+    ImmutableList.Builder<String> files = ImmutableList.builder();
+    for (FileState file : next.find(path -> true)) {
+      files.add(workdir.relativize(file.getPath()).toString());
+    }
+    assertThat(files.build()).containsExactly("added.txt", "file.txt", "unchanged.txt");
+  }
+
+  @Test
+  public void testStrip() throws Exception {
+    writeFile("file.txt", "one\ntwo\nthree\nfour\nfive\n");
+    String diff = MODIFY_DIFF.replace("a/file.txt", "a/left/file.txt")
+        .replace("b/file.txt", "b/right/file.txt");
+
+    PatchApplier applier =
+        new PatchApplier(workdir, /*strip=*/ 2, /*reverse=*/ false, NO_EXCLUDED);
+    applier.apply(UnifiedDiff.parse(diff.getBytes(UTF_8)));
+    applier.flush();
+
+    assertThatPath(workdir).containsFile("file.txt", "one\ntwo\nTHREE\nfour\nfive\n");
+    assertThat(UnifiedDiff.parse(diff.getBytes(UTF_8)).isSupported(1)).isFalse();
+    assertThat(UnifiedDiff.parse(diff.getBytes(UTF_8)).isSupported(3)).isFalse();
+  }
+
+  @Test
+  public void testUnsupportedDiffs() {
+    assertUnsupported(""
+        + "diff --git a/foo.txt b/bar.txt\n"
+        + "similarity index 100%\n"
+        + "rename from foo.txt\n"
+        + "rename to bar.txt\n");
+    assertUnsupported(""
+        + "diff --git a/image.png b/image.png\n"
+        + "index 1f5d0fa..3ba1d34 100644\n"
+        + "Binary files a/image.png and b/image.png differ\n");
+    assertUnsupported(""
+        + "diff --git a/link b/link\n"
+        + "new file mode 120000\n"
+        + "--- /dev/null\n"
+        + "+++ b/link\n"
+        + "@@ -0,0 +1 @@\n"
+        + "+target\n");
+    assertUnsupported("Just some text\n");
+    assertUnsupported(""
+        + "--- a/file.txt\n"
+        + "+++ b/file.txt\n"
+        + "@@ -1,2 +1,2 @@\n"
+        + "-one\n");
+  }
+
+  private static void assertUnsupported(String diff) {
+    assertThat(UnifiedDiff.parse(diff.getBytes(UTF_8)).isSupported(1)).isFalse();
+  }
+
+  private void apply(String diff, boolean reverse) throws IOException {
+    PatchApplier applier = new PatchApplier(workdir, /*strip=*/ 1, reverse, NO_EXCLUDED);
+    applier.apply(UnifiedDiff.parse(diff.getBytes(UTF_8)));
+    applier.flush();
+  }
+
+  private void writeFile(String path, String content) throws IOException {
+    Path file = workdir.resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes(UTF_8));
+  }
+}
@@ -22,6 +22,8 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.copybara.TransformWork;
 import com.google.copybara.config.ConfigFile;
 import com.google.copybara.config.MapConfigFile;
 import com.google.copybara.exception.ValidationException;
@@ -30,6 +32,8 @@ import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.testing.TransformWorks;
 import com.google.copybara.testing.git.GitTestUtil;
+import com.google.copybara.treestate.TreeState;
+import com.google.copybara.treestate.TreeStateUtil;
 import com.google.copybara.util.console.testing.TestingConsole;
 import com.google.devtools.build.lib.events.Location;
 import java.io.IOException;
@@ -113,6 +117,8 @@ public class PatchTransformationTest {
 
   @Test
   public void insideGitFolderTest() throws Exception {
+    // Only 'git apply' is affected by the parent repository
+    options.patch.inProcess = false;
     GitRepository.newRepo(/*verbose*/ false, checkoutDir, GitTestUtil.getGitEnv()).init();
 
     Path foo = Files.createDirectories(checkoutDir.resolve("foo"));
@@ -125,6 +131,42 @@ public class PatchTransformationTest {
     transform.transform(TransformWorks.of(foo, "testmsg", console));
   }
 
+  @Test
+  public void insideGitFolderInProcessTest() throws Exception {
+    GitRepository.newRepo(/*verbose*/ false, checkoutDir, GitTestUtil.getGitEnv()).init();
+
+    Path foo = Files.createDirectories(checkoutDir.resolve("foo"));
+    Files.write(foo.resolve("test.txt"), "foo\n".getBytes(UTF_8));
+    PatchTransformation transform =
+        new PatchTransformation(ImmutableList.of(patchFile), excludedFromPatch, patchingOptions,
+            /*reverse=*/ false, /*strip=*/1, Location.BUILTIN);
+    transform.transform(TransformWorks.of(foo, "testmsg", console));
+    assertThatPath(foo)
+        .containsFile("test.txt", "bar\n")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void applyInProcessUpdatesTreeState() throws Exception {
+    Files.write(checkoutDir.resolve("test.txt"), "foo\n".getBytes(UTF_8));
+    Files.write(checkoutDir.resolve("other.txt"), "other\n".getBytes(UTF_8));
+    PatchTransformation transform =
+        new PatchTransformation(ImmutableList.of(patchFile), excludedFromPatch, patchingOptions,
+            /*reverse=*/ false, /*strip=*/1, Location.BUILTIN);
+    TransformWork work = TransformWorks.of(checkoutDir, "testmsg", console);
+    work.getTreeState().find(path -> true);
+
+    transform.transform(work);
+
+    TreeState treeState = work.withUpdatedTreeState().getTreeState();
+    assertThat(TreeStateUtil.isCachedTreeState(treeState)).isTrue();
+    assertThat(Iterables.size(treeState.find(path -> true))).isEqualTo(2);
+    assertThatPath(checkoutDir)
+        .containsFile("test.txt", "bar\n")
+        .containsFile("other.txt", "other\n")
+        .containsNoMoreFiles();
+  }
+
   @Test
   public void reverseTransformationTest() throws Exception {
     Files.write(checkoutDir.resolve("test.txt"), "bar\n".getBytes(UTF_8));
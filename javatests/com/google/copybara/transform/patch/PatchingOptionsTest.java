@@ -74,6 +74,13 @@ public class PatchingOptionsTest {
     checkPatch();
   }
 
+  @Test
+  public void testPatchWithGitApplyNotInProcess() throws Exception {
+    useGitApply();
+    options.patch.inProcess = false;
+    checkPatch();
+  }
+
   @Test
   public void testPatch() throws Exception {
     setDefaultPatchImplementation();
@@ -378,6 +385,14 @@ public class PatchingOptionsTest {
         + "error: file1.txt: patch does not apply");
   }
 
+  @Test
+  public void patchFail_gitApplyNotInProcess() throws Exception {
+    useGitApply();
+    options.patch.inProcess = false;
+    checkFail("error: patch failed: file1.txt:1\n"
+        + "error: file1.txt: patch does not apply");
+  }
+
   private void checkFail(String errorMsg) throws Exception {
     writeFile(left, "file1.txt", "foo");
     writeFile(right, "file1.txt", "new foo\n");
@@ -18,13 +18,20 @@ package com.google.copybara.treestate;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.copybara.treestate.TreeStateUtil.isCachedTreeState;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.Hashing;
 import com.google.common.jimfs.Jimfs;
+import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
 import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -93,4 +100,104 @@ public class TreeStateTest {
     // This TreeState has not been used or notified. Should return a FS based one.
     assertThat(isCachedTreeState(treeState.newTreeState())).isFalse();
   }
+
+  @Test
+  public void testAddAndDeleteKeepCachedTreeState() throws IOException {
+    Path foo = touch("foo", "foo");
+    Path bar = touch("dir/bar", "bar");
+    TreeState treeState = new FileSystemTreeState(checkoutDir);
+    assertThat(paths(treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir))))
+        .containsExactly(foo, bar);
+
+    Path baz = touch("dir/baz", "baz");
+    Files.delete(foo);
+    treeState.notifyAdd(ImmutableList.of(new FileState(baz)));
+    treeState.notifyDelete(ImmutableList.of(new FileState(foo)));
+
+    treeState = treeState.newTreeState();
+    assertThat(isCachedTreeState(treeState)).isTrue();
+    assertThat(paths(treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir))))
+        .containsExactly(bar, baz);
+    assertThat(paths(treeState.find(Glob.createGlob(ImmutableList.of("dir/**"))
+        .relativeTo(checkoutDir))))
+        .containsExactly(bar, baz);
+  }
+
+  @Test
+  public void testFileStateAttributes() throws IOException {
+    Path foo = touch("foo", "foo");
+    TreeState treeState = new FileSystemTreeState(checkoutDir);
+    FileState fileState = Iterables.getOnlyElement(
+        treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir)));
+    assertThat(fileState.getKnownSize()).isEqualTo(3);
+    assertThat(fileState.getSize()).isEqualTo(3);
+    assertThat(new FileState(foo).getKnownSize()).isEqualTo(-1);
+    assertThat(fileState.getContentHash())
+        .isEqualTo(Hashing.sha256().hashString("foo", UTF_8));
+
+    Files.write(foo, "modified".getBytes(UTF_8));
+    treeState.notifyModify(ImmutableList.of(fileState));
+
+    fileState = Iterables.getOnlyElement(
+        treeState.newTreeState().find(Glob.ALL_FILES.relativeTo(checkoutDir)));
+    assertThat(fileState.getSize()).isEqualTo(8);
+    assertThat(fileState.getContentHash())
+        .isEqualTo(Hashing.sha256().hashString("modified", UTF_8));
+  }
+
+  @Test
+  public void testMatchersFromSameGlobShareResults() throws IOException {
+    Path foo = touch("src/foo", "foo");
+    touch("other/bar", "bar");
+    TreeState treeState = new FileSystemTreeState(checkoutDir);
+    Iterable<FileState> first = treeState.find(
+        Glob.createGlob(ImmutableList.of("src/**")).relativeTo(checkoutDir));
+    treeState.notifyNoChange();
+
+    treeState = treeState.newTreeState();
+    Iterable<FileState> second = treeState.find(
+        Glob.createGlob(ImmutableList.of("src/**")).relativeTo(checkoutDir));
+    assertThat(second).isSameInstanceAs(first);
+    assertThat(paths(second)).containsExactly(foo);
+    assertThat(treeState.getMatchStats().getHits()).isEqualTo(1);
+    assertThat(treeState.getMatchStats().getMisses()).isEqualTo(1);
+  }
+
+  @Test
+  public void testNarrowsFromMoreGeneralMatcher() throws IOException {
+    Path foo = touch("src/foo", "foo");
+    Path bar = touch("src/sub/bar", "bar");
+    touch("other/baz", "baz");
+    TreeState treeState = new FileSystemTreeState(checkoutDir);
+    assertThat(paths(treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir)))).hasSize(3);
+    assertThat(paths(treeState.find(
+        Glob.createGlob(ImmutableList.of("src/**")).relativeTo(checkoutDir))))
+        .containsExactly(foo, bar);
+    assertThat(paths(treeState.find(
+        Glob.createGlob(ImmutableList.of("src/sub/**", "src/foo")).relativeTo(checkoutDir))))
+        .containsExactly(foo, bar);
+    // Not included in any previous result
+    assertThat(paths(treeState.find(
+        Glob.createGlob(ImmutableList.of("**"), ImmutableList.of("src/**"))
+            .relativeTo(checkoutDir))))
+        .hasSize(1);
+
+    assertThat(treeState.getMatchStats().getMisses()).isEqualTo(1);
+    assertThat(treeState.getMatchStats().getNarrowed()).isEqualTo(3);
+    assertThat(treeState.getMatchStats().getHits()).isEqualTo(0);
+  }
+
+  private Path touch(String path, String content) throws IOException {
+    Path file = checkoutDir.resolve(path);
+    Files.createDirectories(file.getParent());
+    return Files.write(file, content.getBytes(UTF_8));
+  }
+
+  private static List<Path> paths(Iterable<FileState> files) {
+    List<Path> result = new ArrayList<>();
+    for (FileState file : files) {
+      result.add(file.getPath());
+    }
+    return result;
+  }
 }
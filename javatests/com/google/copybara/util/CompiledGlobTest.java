@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CompiledGlobTest {
+
+  private static final Path ROOT = Paths.get("/some/root");
+
+  private static final ImmutableList<String> GLOBS = ImmutableList.of(
+      "**", "*", "foo", "foo/bar", "foo/**", "foo/bar/**", "foo/*", "foo/*.java", "**.java",
+      "**/*.java", "foo/**/bar", "foo/**.java", "f?o/bar", "fo[a-p]/**", "fo[!o]/bar",
+      "{foo,baz}/bar", "{foo/bar,baz}/**", "foo/{a,b}*", "fo\\*/bar", "[a-c]*/**", "ba?/*/bar",
+      "foo/bar.{java,txt}", "*/bar/**", "foo/[!-0]", "foo/[-a]", "foo/[a-]", "**/BUILD");
+
+  private static final ImmutableList<String> PATHS = ImmutableList.of(
+      "foo", "foo/bar", "foo/bar/baz", "foo/bar/baz/bar", "foo/a.java", "foo/bar/a.java",
+      "a.java", "foo/bar.java", "foo/bar.txt", "fao/bar", "fpo/bar", "fqo/bar", "fo*/bar",
+      "fo*", "baz/bar", "baz/a/bar", "foo/abc", "foo/ba", "bar", "foo/-", "foo/a", "foo/.",
+      "foo/0", "foo//", "cfoo/x", "BUILD", "foo/BUILD", "foo/bar/BUILD", ".java", "foo/.java");
+
+  @Test
+  public void testMatchesLikeJdkGlob() {
+    for (String glob : GLOBS) {
+      assertMatchesLikeJdk(ImmutableList.of(glob), ImmutableList.of(), PATHS);
+    }
+    assertMatchesLikeJdk(GLOBS.subList(2, 10), GLOBS.subList(10, 15), PATHS);
+  }
+
+  @Test
+  public void testRandomGlobsMatchLikeJdkGlob() {
+    Random random = new Random(42);
+    String[] pieces = {"foo", "bar", "a", "b", "/", "*", "**", "?", "[a-c]", "[!a]", ".java",
+        "{a,b}", "{foo,bar/baz}"};
+    for (int i = 0; i < 300; i++) {
+      List<String> globs = new ArrayList<>();
+      for (int j = random.nextInt(4) + 1; j > 0; j--) {
+        StringBuilder glob = new StringBuilder();
+        for (int k = random.nextInt(5) + 1; k > 0; k--) {
+          glob.append(pieces[random.nextInt(pieces.length)]);
+        }
+        String candidate = glob.toString();
+        if (!candidate.startsWith("/") && !candidate.endsWith("/") && !candidate.contains("//")) {
+          globs.add(candidate);
+        }
+      }
+      List<String> paths = new ArrayList<>(PATHS);
+      for (int j = 0; j < 20; j++) {
+        StringBuilder path = new StringBuilder(pieces[random.nextInt(4)]);
+        for (int k = random.nextInt(4); k > 0; k--) {
+          path.append(random.nextBoolean() ? "/" : "").append(pieces[random.nextInt(4)]);
+        }
+        paths.add(path.toString() + (random.nextBoolean() ? ".java" : ""));
+      }
+      assertMatchesLikeJdk(globs, ImmutableList.of(), paths);
+    }
+  }
+
+  @Test
+  public void testMightMatchUnder() {
+    TreePathMatcher matcher = treeMatcher(
+        Glob.createGlob(ImmutableList.of("foo/bar/**", "baz/*.java", "README"),
+            ImmutableList.of("foo/bar/excluded/**")));
+    assertThat(matcher.mightMatchUnder(ROOT)).isTrue();
+    assertThat(matcher.mightMatchUnder(ROOT.getParent())).isTrue();
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("foo"))).isTrue();
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("foo/bar"))).isTrue();
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("foo/bar/some/dir"))).isTrue();
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("baz"))).isTrue();
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("foo/other"))).isFalse();
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("baz/sub"))).isFalse();
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("README"))).isFalse();
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("foo/bar/excluded"))).isFalse();
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("foo/bar/excluded/sub"))).isFalse();
+    assertThat(matcher.mightMatchUnder(Paths.get("/other"))).isFalse();
+
+    assertThat(matcher.matchesAllUnder(ROOT)).isFalse();
+    assertThat(matcher.matchesAllUnder(ROOT.resolve("foo/bar"))).isFalse();
+    assertThat(matcher.matchesAllUnder(ROOT.resolve("foo/bar/other"))).isTrue();
+    assertThat(matcher.matchesAllUnder(ROOT.resolve("baz"))).isFalse();
+  }
+
+  @Test
+  public void testMightMatchUnderUnboundedGlobs() {
+    TreePathMatcher matcher = treeMatcher(Glob.createGlob(ImmutableList.of("**.java")));
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("any/dir"))).isTrue();
+    assertThat(matcher.matchesAllUnder(ROOT.resolve("any/dir"))).isFalse();
+
+    matcher = treeMatcher(Glob.createGlob(ImmutableList.of("*/BUILD")));
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("dir"))).isTrue();
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("dir/sub"))).isFalse();
+
+    matcher = treeMatcher(Glob.createGlob(ImmutableList.of()));
+    assertThat(matcher.mightMatchUnder(ROOT)).isFalse();
+  }
+
+  @Test
+  public void testNotPathMatcherPrunes() {
+    PathMatcher matcher = FileUtil.notPathMatcher(
+        Glob.createGlob(ImmutableList.of("foo/**", "BUILD")).relativeTo(ROOT));
+    assertThat(matcher).isInstanceOf(TreePathMatcher.class);
+    TreePathMatcher notMatcher = (TreePathMatcher) matcher;
+    assertThat(notMatcher.matches(ROOT.resolve("foo/a"))).isFalse();
+    assertThat(notMatcher.matches(ROOT.resolve("bar/a"))).isTrue();
+    assertThat(notMatcher.mightMatchUnder(ROOT.resolve("foo"))).isFalse();
+    assertThat(notMatcher.mightMatchUnder(ROOT.resolve("bar"))).isTrue();
+    assertThat(notMatcher.matchesAllUnder(ROOT.resolve("bar"))).isTrue();
+  }
+
+  @Test
+  public void testUnion() {
+    Glob glob = new UnionGlob(Glob.createGlob(ImmutableList.of("foo/**")),
+        Glob.createGlob(ImmutableList.of("bar/*"), ImmutableList.of("bar/excluded")));
+    TreePathMatcher matcher = treeMatcher(glob);
+    assertThat(matcher.matches(ROOT.resolve("foo/a/b"))).isTrue();
+    assertThat(matcher.matches(ROOT.resolve("bar/a"))).isTrue();
+    assertThat(matcher.matches(ROOT.resolve("bar/excluded"))).isFalse();
+    assertThat(matcher.matches(ROOT.resolve("bar/a/b"))).isFalse();
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("bar/a"))).isFalse();
+    assertThat(matcher.mightMatchUnder(ROOT.resolve("baz"))).isFalse();
+    assertThat(matcher.toString()).isEqualTo(glob.toString());
+  }
+
+  @Test
+  public void testWindowsPaths() {
+    Path root = Jimfs.newFileSystem(Configuration.windows()).getPath("c:/tmp");
+    PathMatcher matcher = Glob.createGlob(ImmutableList.of("foo/*/bar")).relativeTo(root);
+    assertThat(matcher.matches(root.resolve("foo/a/bar"))).isTrue();
+    assertThat(matcher.matches(root.resolve("foo/a/b/bar"))).isFalse();
+    assertThat(((TreePathMatcher) matcher).mightMatchUnder(root.resolve("foo/a"))).isTrue();
+    assertThat(((TreePathMatcher) matcher).mightMatchUnder(root.resolve("baz"))).isFalse();
+  }
+
+  @Test
+  public void testMatchersAreValueEqual() {
+    PathMatcher first = Glob.createGlob(ImmutableList.of("foo/**"), ImmutableList.of("foo/bar"))
+        .relativeTo(ROOT);
+    PathMatcher second = Glob.createGlob(ImmutableList.of("foo/**"), ImmutableList.of("foo/bar"))
+        .relativeTo(ROOT.resolve("."));
+    assertThat(first).isEqualTo(second);
+    assertThat(first.hashCode()).isEqualTo(second.hashCode());
+    assertThat(first).isNotEqualTo(Glob.createGlob(ImmutableList.of("foo/**")).relativeTo(ROOT));
+    assertThat(first).isNotEqualTo(
+        Glob.createGlob(ImmutableList.of("foo/**"), ImmutableList.of("foo/bar"))
+            .relativeTo(ROOT.resolve("foo")));
+    assertThat(FileUtil.notPathMatcher(first)).isEqualTo(FileUtil.notPathMatcher(second));
+  }
+
+  @Test
+  public void testIncludes() {
+    assertIncludes(ImmutableList.of("**"), ImmutableList.of(), ImmutableList.of("foo/*.java"),
+        ImmutableList.of("bar"), true);
+    assertIncludes(ImmutableList.of("foo/**"), ImmutableList.of(),
+        ImmutableList.of("foo/bar/**", "foo/*.java", "foo/BUILD"), ImmutableList.of(), true);
+    assertIncludes(ImmutableList.of("foo/**", "BUILD"), ImmutableList.of(),
+        ImmutableList.of("BUILD", "foo/BUILD"), ImmutableList.of(), true);
+    assertIncludes(ImmutableList.of("foo/**"), ImmutableList.of(),
+        ImmutableList.of("foo/bar/**", "*.java"), ImmutableList.of(), false);
+    assertIncludes(ImmutableList.of("foo/**"), ImmutableList.of("foo/bar/**"),
+        ImmutableList.of("foo/baz/**"), ImmutableList.of(), false);
+    assertIncludes(ImmutableList.of("foo/**"), ImmutableList.of("foo/bar/**"),
+        ImmutableList.of("foo/baz/**"), ImmutableList.of("foo/bar/**"), true);
+    assertIncludes(ImmutableList.of("foo/**"), ImmutableList.of("foo/bar/**"),
+        ImmutableList.of("foo/**"), ImmutableList.of("foo/**"), true);
+    assertIncludes(ImmutableList.of("foo/*.java"), ImmutableList.of(),
+        ImmutableList.of("foo/*.java"), ImmutableList.of(), true);
+    assertIncludes(ImmutableList.of("foo/*.java"), ImmutableList.of(),
+        ImmutableList.of("foo/a.java"), ImmutableList.of(), true);
+    assertIncludes(ImmutableList.of("foo/*.java"), ImmutableList.of(),
+        ImmutableList.of("foo/*"), ImmutableList.of(), false);
+
+    TreePathMatcher union = treeMatcher(
+        new UnionGlob(Glob.createGlob(ImmutableList.of("foo/**")),
+            Glob.createGlob(ImmutableList.of("bar/**"))));
+    assertThat(union.includes(
+        Glob.createGlob(ImmutableList.of("foo/a", "bar/b")).relativeTo(ROOT))).isTrue();
+    assertThat(union.includes(
+        Glob.createGlob(ImmutableList.of("foo/a", "baz/b")).relativeTo(ROOT))).isFalse();
+    assertThat(treeMatcher(Glob.ALL_FILES).includes(
+        Glob.createGlob(ImmutableList.of("foo/a")).relativeTo(ROOT.resolve("foo")))).isFalse();
+  }
+
+  private static void assertIncludes(List<String> include, List<String> exclude,
+      List<String> otherInclude, List<String> otherExclude, boolean expected) {
+    Glob glob = Glob.createGlob(include, exclude);
+    Glob other = Glob.createGlob(otherInclude, otherExclude);
+    assertWithMessage("%s includes %s", glob, other)
+        .that(treeMatcher(glob).includes(other.relativeTo(ROOT))).isEqualTo(expected);
+  }
+
+  private static TreePathMatcher treeMatcher(Glob glob) {
+    PathMatcher matcher = glob.relativeTo(ROOT);
+    assertThat(matcher).isInstanceOf(TreePathMatcher.class);
+    return (TreePathMatcher) matcher;
+  }
+
+  private static void assertMatchesLikeJdk(
+      List<String> include, List<String> exclude, List<String> paths) {
+    List<PathMatcher> jdkIncludes = new ArrayList<>();
+    List<PathMatcher> jdkExcludes = new ArrayList<>();
+    try {
+      for (String glob : include) {
+        jdkIncludes.add(FileSystems.getDefault().getPathMatcher("glob:" + ROOT + "/" + glob));
+      }
+      for (String glob : exclude) {
+        jdkExcludes.add(FileSystems.getDefault().getPathMatcher("glob:" + ROOT + "/" + glob));
+      }
+    } catch (IllegalArgumentException e) {
+      // Not a valid glob
+      return;
+    }
+    PathMatcher matcher = Glob.createGlob(include, exclude).relativeTo(ROOT);
+    for (String relative : paths) {
+      Path path = ROOT.resolve(relative);
+      boolean expected = jdkIncludes.stream().anyMatch(m -> m.matches(path))
+          && jdkExcludes.stream().noneMatch(m -> m.matches(path));
+      assertWithMessage("%s matching %s", Glob.createGlob(include, exclude), relative)
+          .that(matcher.matches(path)).isEqualTo(expected);
+      // Pruning must never skip matching files
+      for (Path dir = path.getParent(); dir.startsWith(ROOT); dir = dir.getParent()) {
+        TreePathMatcher treeMatcher = (TreePathMatcher) matcher;
+        if (expected) {
+          assertWithMessage("%s under %s", Glob.createGlob(include, exclude), dir)
+              .that(treeMatcher.mightMatchUnder(dir)).isTrue();
+        } else {
+          assertWithMessage("%s all under %s", Glob.createGlob(include, exclude), dir)
+              .that(treeMatcher.matchesAllUnder(dir)).isFalse();
+        }
+      }
+    }
+  }
+}
@@ -248,4 +248,54 @@ public final class RenameDetectorTest {
     assertThat(result.get(0).getScore()).isEqualTo(200);
   }
 
+  @Test
+  public void repeatedLinesAreCounted() throws Exception {
+    RenameDetector<TestKey> detector = new RenameDetector<>();
+    detector.addPriorFile(TestKey.FOO, new Bytes("aaaa\naaaa\naaaa\nbbbb\n"));
+    detector.addPriorFile(TestKey.BAR, new Bytes("aaaa\ncccc\ndddd\nbbbb\n"));
+
+    List<Score<TestKey>> result =
+        detector.scoresForLaterFile(new Bytes("aaaa\naaaa\naaaa\neeee\n"));
+    assertThat(result).hasSize(2);
+    assertThat(result.get(0).getKey()).isEqualTo(TestKey.FOO);
+    assertThat(result.get(0).getScore()).isEqualTo(750);
+    assertThat(result.get(1).getKey()).isEqualTo(TestKey.BAR);
+    assertThat(result.get(1).getScore()).isEqualTo(250);
+  }
+
+  @Test
+  public void minScore() throws Exception {
+    RenameDetector<TestKey> detector = new RenameDetector<>();
+    detector.addPriorFile(TestKey.FOO, new Bytes("aaaa\nbbbb\ncccc\ndddd\n"));
+    detector.addPriorFile(TestKey.BAR, new Bytes("aaaa\nbbbb\nxxxx\nyyyy\n"));
+    // Shares all the lines, but it is too big to reach the minimum score
+    detector.addPriorFile(TestKey.BAZ, new Bytes("aaaa\nbbbb\ncccc\ndddd\n1\n2\n3\n4\n5\n"));
+
+    List<Score<TestKey>> result =
+        detector.scoresForLaterFile(new Bytes("aaaa\nbbbb\ncccc\neeee\n"), 500);
+    assertThat(result).hasSize(2);
+    assertThat(result.get(0).getKey()).isEqualTo(TestKey.FOO);
+    assertThat(result.get(0).getScore()).isEqualTo(750);
+    assertThat(result.get(1).getKey()).isEqualTo(TestKey.BAR);
+    assertThat(result.get(1).getScore()).isEqualTo(500);
+
+    assertThat(detector.scoresForLaterFile(new Bytes("aaaa\nbbbb\ncccc\neeee\n"), 600))
+        .hasSize(1);
+  }
+
+  @Test
+  public void manyPriorFiles() throws Exception {
+    RenameDetector<Integer> detector = new RenameDetector<>();
+    for (int i = 0; i < 5000; i++) {
+      detector.addPriorFile(i, new Bytes("common\nfile " + i + "\nline " + i + "\n"));
+    }
+
+    List<Score<Integer>> result =
+        detector.scoresForLaterFile(new Bytes("common\nfile 1234\nline 1234\n"), 500);
+    assertThat(result).hasSize(1);
+    assertThat(result.get(0).getKey()).isEqualTo(1234);
+    assertThat(result.get(0).getScore()).isEqualTo(RenameDetector.MAX_SCORE);
+    assertThat(detector.scoresForLaterFile(new Bytes("common\nother\n"))).hasSize(5000);
+  }
+
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TreeSnapshotTest {
+
+  private Path one;
+  private Path other;
+
+  @Before
+  public void setup() throws IOException {
+    Path root = Files.createTempDirectory("TreeSnapshotTest");
+    one = Files.createDirectory(root.resolve("one"));
+    other = Files.createDirectory(root.resolve("other"));
+  }
+
+  @Test
+  public void testSameContent() throws Exception {
+    writeFile(one, "foo.txt", "foo");
+    writeFile(one, "dir/bar.txt", "bar");
+    Files.createSymbolicLink(one.resolve("dir/link"), Paths.get("bar.txt"));
+    Files.createDirectories(one.resolve("empty/dir"));
+    writeFile(other, "foo.txt", "foo");
+    writeFile(other, "dir/bar.txt", "bar");
+    Files.createSymbolicLink(other.resolve("dir/link"), Paths.get("bar.txt"));
+
+    TreeSnapshot snapshot = TreeSnapshot.create(one);
+
+    assertThat(snapshot.size()).isEqualTo(3);
+    assertThat(snapshot.changedFiles(other)).isEmpty();
+    assertThat(snapshot.changedFiles(one)).isEmpty();
+  }
+
+  @Test
+  public void testChangedFiles() throws Exception {
+    writeFile(one, "same.txt", "same");
+    writeFile(one, "modified.txt", "foo");
+    writeFile(one, "resized.txt", "foo");
+    writeFile(one, "deleted.txt", "foo");
+    writeFile(one, "executable.txt", "foo");
+    Files.createSymbolicLink(one.resolve("link"), Paths.get("same.txt"));
+    TreeSnapshot snapshot = TreeSnapshot.create(one);
+
+    writeFile(one, "modified.txt", "bar");
+    writeFile(one, "resized.txt", "foobar");
+    Files.delete(one.resolve("deleted.txt"));
+    writeFile(one, "some/added.txt", "foo");
+    FileUtil.addPermissions(one.resolve("executable.txt"),
+        ImmutableSet.of(PosixFilePermission.OWNER_EXECUTE));
+    Files.delete(one.resolve("link"));
+    Files.createSymbolicLink(one.resolve("link"), Paths.get("modified.txt"));
+
+    assertThat(snapshot.changedFiles(one))
+        .containsExactly("deleted.txt", "executable.txt", "link", "modified.txt", "resized.txt",
+            "some/added.txt")
+        .inOrder();
+  }
+
+  @Test
+  public void testSymlinkReplacedByFile() throws Exception {
+    writeFile(one, "foo.txt", "foo");
+    Files.createSymbolicLink(one.resolve("link"), Paths.get("foo.txt"));
+    writeFile(other, "foo.txt", "foo");
+    writeFile(other, "link", "foo");
+
+    assertThat(TreeSnapshot.create(one).changedFiles(other)).containsExactly("link");
+  }
+
+  @Test
+  public void testSymlinkOutsideRoot() throws Exception {
+    Path outside = writeFile(other, "outside.txt", "foo");
+    Files.createSymbolicLink(one.resolve("link"), outside);
+    try {
+      TreeSnapshot.create(one);
+      fail();
+    } catch (AbsoluteSymlinksNotAllowed expected) {
+      assertThat(expected.getSymlink().toString()).isEqualTo(one.resolve("link").toString());
+    }
+  }
+
+  private static Path writeFile(Path root, String path, String content) throws IOException {
+    Path file = root.resolve(path);
+    Files.createDirectories(file.getParent());
+    return Files.write(file, content.getBytes(UTF_8));
+  }
+}